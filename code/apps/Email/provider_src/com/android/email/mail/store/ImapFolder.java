@@ -63,6 +63,7 @@ import java.io.OutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -75,12 +76,37 @@ class ImapFolder extends Folder {
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
 
+    /** The most UIDs asked for by one UID FETCH command. */
+    @VisibleForTesting
+    static final int FETCH_BATCH_SIZE = 200;
+    /**
+     * The most UID FETCH commands sent ahead of their responses, to hide the round trip to the
+     * server. UID FETCH commands do not depend on each other, so servers may run them in any
+     * order (RFC 3501, section 5.5).
+     */
+    @VisibleForTesting
+    static final int MAX_PIPELINED_FETCHES = 4;
+
+    /** Sorts messages by descending UID, so that the most recent messages are fetched first. */
+    private static final Comparator<Message> NEWEST_UID_FIRST = new Comparator<Message>() {
+        @Override
+        public int compare(Message lhs, Message rhs) {
+            final long lhsUid = ImapStore.parseUid(lhs.getUid());
+            final long rhsUid = ImapStore.parseUid(rhs.getUid());
+            if (lhsUid < 0 && rhsUid < 0) {
+                return lhs.getUid().compareTo(rhs.getUid());
+            }
+            return lhsUid < rhsUid ? 1 : (lhsUid == rhsUid ? 0 : -1);
+        }
+    };
+
     private final ImapStore mStore;
     private final String mName;
     private int mMessageCount = -1;
     private ImapConnection mConnection;
     private OpenMode mMode;
     private boolean mExists;
+    private int mMaxPipelinedFetches = MAX_PIPELINED_FETCHES;
     /** The local mailbox associated with this remote folder */
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
@@ -91,6 +117,11 @@ class ImapFolder extends Folder {
         mName = name;
     }
 
+    @VisibleForTesting
+    void setMaxPipelinedFetchesForTest(int maxPipelinedFetches) {
+        mMaxPipelinedFetches = maxPipelinedFetches;
+    }
+
     private void destroyResponses() {
         if (mConnection != null) {
             mConnection.destroyResponses();
@@ -728,122 +759,141 @@ class ImapFolder extends Folder {
             }
         }
 
+        // Several commands are kept in flight, each asking for a batch of UIDs, most recent first.
+        // The responses carry their UID, so they are handled the same whichever command they
+        // answer.
+        final Message[] sorted = messages.clone();
+        Arrays.sort(sorted, NEWEST_UID_FIRST);
+        final String fetchItems =
+                Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
         try {
-            mConnection.sendCommand(String.format(Locale.US,
-                    ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-                    ), false);
-            ImapResponse response;
-            do {
-                response = null;
+            int sent = 0;
+            int inFlight = 0;
+            while (sent < sorted.length || inFlight > 0) {
+                while (sent < sorted.length && inFlight < mMaxPipelinedFetches) {
+                    final int end = Math.min(sent + FETCH_BATCH_SIZE, sorted.length);
+                    mConnection.sendCommand(String.format(Locale.US,
+                            ImapConstants.UID_FETCH + " %s (%s)",
+                            ImapStore.joinMessageUidRanges(sorted, sent, end), fetchItems),
+                            false);
+                    sent = end;
+                    inFlight++;
+                }
                 try {
-                    response = mConnection.readResponse();
-
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
-                    }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
-                                }
-                                message.setBody(null);
-                            }
-                        }
-                    }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
-                    }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
-
-                        try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                    fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
-                            LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
-                        }
-                    }
-
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+                    final ImapResponse response = mConnection.readResponse();
+                    if (response.isTagged()) {
+                        inFlight--;
+                    } else if (response.isDataResponse(1, ImapConstants.FETCH)) {
+                        handleFetchResponse(response, fp, fetchPart, messageMap, listener);
                     }
                 } finally {
                     destroyResponses();
                 }
-            } while (!response.isTagged());
+            }
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
     }
 
+    /**
+     * Copies the items of an untagged FETCH response into the message it is about, if it is one
+     * of the messages being fetched.
+     */
+    private void handleFetchResponse(ImapResponse response, FetchProfile fp, Part fetchPart,
+            HashMap<String, Message> messageMap, MessageRetrievalListener listener)
+            throws IOException, MessagingException {
+        final ImapList fetchList = response.getListOrEmpty(2);
+        final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+        if (TextUtils.isEmpty(uid)) return;
+
+        ImapMessage message = (ImapMessage) messageMap.get(uid);
+        if (message == null) return;
+
+        if (fp.contains(FetchProfile.Item.FLAGS)) {
+            final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            for (int i = 0, count = flags.size(); i < count; i++) {
+                final ImapString flag = flags.getStringOrEmpty(i);
+                if (flag.is(ImapConstants.FLAG_DELETED)) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                }
+            }
+        }
+        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+            final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.INTERNALDATE).getDateOrNull();
+            final int size = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.RFC822_SIZE).getNumberOrZero();
+            final String header = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+            message.setInternalDate(internalDate);
+            message.setSize(size);
+            message.parse(Utility.streamFromAsciiString(header));
+        }
+        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+            ImapList bs = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+            if (!bs.isEmpty()) {
+                try {
+                    parseBodyStructure(bs, message, ImapConstants.TEXT);
+                } catch (MessagingException e) {
+                    if (Logging.LOGD) {
+                        LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
+                    }
+                    message.setBody(null);
+                }
+            }
+        }
+        if (fp.contains(FetchProfile.Item.BODY)
+                || fp.contains(FetchProfile.Item.BODY_SANE)) {
+            // Body is keyed by "BODY[]...".
+            // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+            // TODO Should we accept "RFC822" as well??
+            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+            InputStream bodyStream = body.getAsStream();
+            message.parse(bodyStream);
+        }
+        if (fetchPart != null) {
+            InputStream bodyStream =
+                    fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+            String encodings[] = fetchPart.getHeader(
+                    MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+            String contentTransferEncoding = null;
+            if (encodings != null && encodings.length > 0) {
+                contentTransferEncoding = encodings[0];
+            } else {
+                // According to http://tools.ietf.org/html/rfc2045#section-6.1
+                // "7bit" is the default.
+                contentTransferEncoding = "7bit";
+            }
+
+            try {
+                // TODO Don't create 2 temp files.
+                // decodeBody creates BinaryTempFileBody, but we could avoid this
+                // if we implement ImapStringBody.
+                // (We'll need to share a temp file.  Protect it with a ref-count.)
+                fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                        fetchPart.getSize(), listener));
+            } catch(Exception e) {
+                // TODO: Figure out what kinds of exceptions might actually be thrown
+                // from here. This blanket catch-all is because we're not sure what to
+                // do if we don't have a contentTransferEncoding, and we don't have
+                // time to figure out what exceptions might be thrown.
+                LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+            }
+        }
+
+        if (listener != null) {
+            listener.messageRetrieved(message);
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
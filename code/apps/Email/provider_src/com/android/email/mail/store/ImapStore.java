@@ -90,6 +90,13 @@ public class ImapStore extends Store {
 
     private boolean mUseOAuth;
 
+    /**
+     * The number of idle connections the pool keeps. Callers that run work for one account in
+     * parallel should not run more than this many operations at a time, or they will open and
+     * close a connection for each one.
+     */
+    public static final int MAX_POOLED_CONNECTIONS = 2;
+
     private final ConcurrentLinkedQueue<ImapConnection> mConnectionPool =
             new ConcurrentLinkedQueue<ImapConnection>();
 
@@ -581,7 +588,11 @@ public class ImapStore extends Store {
     void poolConnection(ImapConnection connection) {
         if (connection != null) {
             connection.destroyResponses();
-            mConnectionPool.add(connection);
+            if (mConnectionPool.size() < MAX_POOLED_CONNECTIONS) {
+                mConnectionPool.add(connection);
+            } else {
+                connection.close();
+            }
         }
     }
 
@@ -634,6 +645,59 @@ public class ImapStore extends Store {
         return sb.toString();
     }
 
+    /**
+     * Returns the UIDs of {@code messages[start]} to {@code messages[end - 1]} as an IMAP
+     * sequence set, writing runs of consecutive UIDs, ascending or descending, as ranges,
+     * e.g. "9:7,3,1:2". Only the given UIDs are in the set.
+     */
+    static String joinMessageUidRanges(Message[] messages, int start, int end) {
+        final StringBuilder sb = new StringBuilder();
+        int i = start;
+        while (i < end) {
+            if (i > start) {
+                sb.append(',');
+            }
+            final long first = parseUid(messages[i].getUid());
+            int last = i;
+            if (first >= 0 && i + 1 < end) {
+                final long step = parseUid(messages[i + 1].getUid()) - first;
+                if (step == 1 || step == -1) {
+                    long expected = first + step;
+                    while (last + 1 < end && expected >= 0
+                            && parseUid(messages[last + 1].getUid()) == expected) {
+                        last++;
+                        expected += step;
+                    }
+                }
+            }
+            sb.append(messages[i].getUid());
+            if (last > i) {
+                sb.append(':').append(messages[last].getUid());
+            }
+            i = last + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the value of a UID, or -1 if it is not a number as IMAP defines it.
+     */
+    static long parseUid(String uid) {
+        final int length = uid.length();
+        if (length == 0 || length > 18 || (length > 1 && uid.charAt(0) == '0')) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = uid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
     static class ImapMessage extends MimeMessage {
         ImapMessage(String uid, ImapFolder folder) {
             mUid = uid;
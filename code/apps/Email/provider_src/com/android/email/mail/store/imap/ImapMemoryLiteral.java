@@ -48,6 +48,13 @@ public class ImapMemoryLiteral extends ImapString {
         }
     }
 
+    /**
+     * Creates a literal that takes over {@code data}; the caller must not modify it afterwards.
+     */
+    /* package */ ImapMemoryLiteral(byte[] data) {
+        mData = data;
+    }
+
     @Override
     public void destroy() {
         mData = null;
@@ -19,20 +19,27 @@ package com.android.email.mail.store.imap;
 import android.text.TextUtils;
 
 import com.android.email.DebugUtils;
-import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.Logging;
+import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.utility.LoggingInputStream;
 import com.android.mail.utils.LogUtils;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 /**
  * IMAP response parser.
+ *
+ * <p>The parser reads the stream through a buffer of its own that is reused for the life of the
+ * connection.  Atoms and quoted strings are decoded straight from that buffer, and literals are
+ * copied from it in bulk into their final byte array or temp file, so a large FETCH BODY[]
+ * response costs one allocation of its size and no per-byte work.
  */
 public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
@@ -42,8 +49,29 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    /** Size of {@link #mBuffer}. */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Atoms that appear in nearly every response.  An atom equal to one of these is returned as
+     * the shared String rather than a new one.
+     */
+    private static final String[] COMMON_ATOMS = {
+            ImapConstants.FETCH, ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.OK,
+            ImapConstants.EXISTS, ImapConstants.EXPUNGE, ImapConstants.INTERNALDATE,
+            ImapConstants.RFC822_SIZE, ImapConstants.BODYSTRUCTURE, ImapConstants.SEARCH,
+            "\\Seen", "\\Answered", "\\Flagged", "\\Deleted",
+    };
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /**
+     * Bytes read from {@link #mIn} but not parsed yet are in {@code mBuffer[mPos..mLimit)}.
+     */
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
 
     /**
      * To log network activities when the parser crashes.
@@ -92,7 +120,7 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
@@ -106,34 +134,68 @@ public class ImapResponseParser {
     }
 
     /**
-     * Peek next one byte.
+     * Make sure {@link #mBuffer} has at least one byte to parse, reading whatever is available
+     * from {@link #mIn} if it's empty.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
-    private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
-            throw newEOSException();
+    private void fill() throws IOException {
+        while (mPos == mLimit) {
+            final int read = mIn.read(mBuffer, 0, mBuffer.length);
+            if (read == -1) {
+                throw newEOSException();
+            }
+            mPos = 0;
+            mLimit = read;
         }
-        return next;
+    }
+
+    /**
+     * Peek next one byte.
+     *
+     * Throws IOException() if reaches EOF.
+     */
+    private int peek() throws IOException {
+        fill();
+        return mBuffer[mPos] & 0xff;
     }
 
     /**
      * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
      *
-     * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
-     * we shouldn't see EOF during parsing.
+     * Throws IOException() if reaches EOF.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
-        }
+        fill();
+        final int next = mBuffer[mPos++] & 0xff;
         mDiscourseLogger.addReceivedByte(next);
         return next;
     }
 
+    /**
+     * Log the bytes in {@code mBuffer[start..end)}, which have just been consumed.
+     */
+    private void logReceived(int start, int end) {
+        for (int i = start; i < end; i++) {
+            mDiscourseLogger.addReceivedByte(mBuffer[i] & 0xff);
+        }
+    }
+
+    /**
+     * @return the bytes in {@code mBuffer[start..end)} as a string, one char per byte.
+     */
+    @SuppressWarnings("deprecation")
+    private String newString(int start, int end) {
+        return new String(mBuffer, 0, start, end - start);
+    }
+
+    private void appendChars(StringBuilder sb, int start, int end) {
+        for (int i = start; i < end; i++) {
+            sb.append((char) (mBuffer[i] & 0xff));
+        }
+    }
+
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
@@ -224,12 +286,26 @@ public class ImapResponseParser {
     /* package for test */ String readUntil(char end) throws IOException {
         mBufferReadUntil.setLength(0);
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
+            fill();
+            final int start = mPos;
+            while (mPos < mLimit && (mBuffer[mPos] & 0xff) != end) {
+                mPos++;
+            }
+            logReceived(start, mPos);
+            if (mPos == mLimit) {
+                // The string continues past the buffered bytes.
+                appendChars(mBufferReadUntil, start, mPos);
+                continue;
+            }
+            final String s;
+            if (mBufferReadUntil.length() == 0) {
+                s = newString(start, mPos);
             } else {
-                return mBufferReadUntil.toString();
+                appendChars(mBufferReadUntil, start, mPos);
+                s = mBufferReadUntil.toString();
             }
+            readByte(); // Consume end
+            return s;
         }
     }
 
@@ -363,42 +439,86 @@ public class ImapResponseParser {
     private ImapString parseBareString() throws IOException, MessagingException {
         mParseBareString.setLength(0);
         for (;;) {
-            final int ch = peek();
-
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
-
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
-                }
-                return new ImapSimpleString(s);
-            } else if (ch == '[') {
+            fill();
+            final int start = mPos;
+            while (mPos < mLimit && !isAtomEnd(mBuffer[mPos] & 0xff) && mBuffer[mPos] != '[') {
+                mPos++;
+            }
+            logReceived(start, mPos);
+            if (mPos == mLimit) {
+                // The atom continues past the buffered bytes.
+                appendChars(mParseBareString, start, mPos);
+                continue;
+            }
+            if (mBuffer[mPos] == '[') {
+                appendChars(mParseBareString, start, mPos);
                 // Eat all until next ']'
                 mParseBareString.append((char) readByte());
                 mParseBareString.append(readUntil(']'));
                 mParseBareString.append(']'); // readUntil won't include the end char.
-            } else {
-                mParseBareString.append((char) readByte());
+                continue;
             }
+            if (mParseBareString.length() == 0) {
+                if (mPos == start) {
+                    throw new MessagingException("Expected string, none found.");
+                }
+                // The whole atom is in the buffer.
+                return newAtom(start, mPos);
+            }
+            appendChars(mParseBareString, start, mPos);
+            final String s = mParseBareString.toString();
+
+            // NIL will be always converted into the empty string.
+            if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+                return ImapString.EMPTY;
+            }
+            return new ImapSimpleString(s);
         }
     }
 
+    private static boolean isAtomEnd(int ch) {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        return ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
+                // ']' is not part of atom (it's in resp-specials)
+                ch == ']' ||
+                // docs claim that flags are \ atom but atom isn't supposed to
+                // contain
+                // * and some flags contain *
+                // ch == '%' || ch == '*' ||
+                ch == '%' ||
+                // TODO probably should not allow \ and should recognize
+                // it as a flag instead
+                // ch == '"' || ch == '\' ||
+                ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f;
+    }
+
+    /**
+     * @return the atom in {@code mBuffer[start..end)}, using a shared String for common atoms.
+     */
+    private ImapString newAtom(int start, int end) {
+        final int length = end - start;
+        // NIL will be always converted into the empty string.
+        if (length == 3 && (mBuffer[start] | 0x20) == 'n' && (mBuffer[start + 1] | 0x20) == 'i'
+                && (mBuffer[start + 2] | 0x20) == 'l') {
+            return ImapString.EMPTY;
+        }
+        for (String atom : COMMON_ATOMS) {
+            if (atom.length() == length && bufferEquals(start, atom)) {
+                return new ImapSimpleString(atom);
+            }
+        }
+        return new ImapSimpleString(newString(start, end));
+    }
+
+    private boolean bufferEquals(int start, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if ((mBuffer[start + i] & 0xff) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -443,11 +563,48 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
         if (size > mLiteralKeepInMemoryThreshold) {
-            return new ImapTempFileLiteral(in);
+            final File file = File.createTempFile("imap", ".tmp", TempDirectory.getTempDirectory());
+            boolean success = false;
+            try {
+                // Unfortunately, we can't really use deleteOnExit(), because temp filenames are
+                // random so it'd simply cause a memory leak.
+                final OutputStream out = new FileOutputStream(file);
+                try {
+                    readLiteral(null, out, size);
+                } finally {
+                    out.close();
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    file.delete();
+                }
+            }
+            return new ImapTempFileLiteral(file, size);
         } else {
-            return new ImapMemoryLiteral(in);
+            final byte[] data = new byte[size];
+            readLiteral(data, null, size);
+            return new ImapMemoryLiteral(data);
+        }
+    }
+
+    /**
+     * Read the {@code size} bytes of a literal into {@code data}, or write them to {@code out}
+     * if {@code data} is null.  Literals are not logged.
+     */
+    private void readLiteral(byte[] data, OutputStream out, int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            fill();
+            final int count = Math.min(size - done, mLimit - mPos);
+            if (data != null) {
+                System.arraycopy(mBuffer, mPos, data, done, count);
+            } else {
+                out.write(mBuffer, mPos, count);
+            }
+            mPos += count;
+            done += count;
         }
     }
 }
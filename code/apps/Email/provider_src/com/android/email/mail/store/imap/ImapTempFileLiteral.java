@@ -55,6 +55,15 @@ public class ImapTempFileLiteral extends ImapString {
         out.close();
     }
 
+    /**
+     * Creates a literal for a temp file that already holds its {@code size} bytes.  The literal
+     * owns the file from now on, and deletes it when destroyed.
+     */
+    /* package */ ImapTempFileLiteral(File file, int size) {
+        mFile = file;
+        mSize = size;
+    }
+
     /**
      * Make sure we delete the temp file.
      *
@@ -23,7 +23,6 @@ import android.database.CursorWindow;
 import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.util.LruCache;
 
 import com.android.email.DebugUtils;
 import com.android.mail.utils.LogUtils;
@@ -33,8 +32,12 @@ import com.google.common.annotations.VisibleForTesting;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An LRU cache for EmailContent (Account, HostAuth, Mailbox, and Message, thus far).  The intended
@@ -69,10 +72,13 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: The cache is split into stripes by id, each with its own lock, LRU
+ * list, locked ids and tokens, so that lookups of different rows from different threads do not
+ * wait for each other. Callers need no locking of their own; whole-cache operations (invalidate,
+ * size) visit the stripes one at a time.
+ *
+ * The cache is bounded by the number of cursors and, optionally, by their estimated size in
+ * bytes; hits, misses and evictions are counted in {@link Statistics}.
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -83,23 +89,30 @@ public final class ContentCache {
     // If false, reads will not use the cache; this is intended for debugging only
     private static final boolean READ_CACHE_ENABLED = true;  // DO NOT CHECK IN FALSE
 
+    // The most stripes a cache is split into, and the fewest cursors each stripe holds; small
+    // caches keep a single stripe, and with it an exact LRU order
+    @VisibleForTesting
+    static final int MAX_STRIPES = 8;
+    private static final int MIN_CURSORS_PER_STRIPE = 16;
+    // Rough overhead of a cached column, beyond its data
+    private static final int COLUMN_OVERHEAD_BYTES = 16;
+
     // Count of non-cacheable queries (debug only)
     private static int sNotCacheable = 0;
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
-
     // All defined caches
     private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
     // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
     // tend to be closed quickly after use.  The value, for each cursor, is its reference count
     /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
 
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
+    // The stripes of the cache; a row's stripe is picked by the hash of its id
+    private final Stripe[] mStripes;
+    // The limits of each stripe
+    private final int mMaxCursorsPerStripe;
+    private final long mMaxBytesPerStripe;
 
     // The name of the cache (used for logging)
     private final String mName;
@@ -111,65 +124,99 @@ public final class ContentCache {
     // Cache statistics
     private final Statistics mStats;
     /** If {@code true}, lock the cache for all writes */
-    private static boolean sLockCache;
+    private static volatile boolean sLockCache;
 
     /**
-     * A synchronized reference counter for arbitrary objects
+     * A synchronized reference counter for arbitrary objects. The counts are split by hash over a
+     * few maps with their own locks, so that threads counting different objects rarely contend.
      */
     /*package*/ static class CounterMap<T> {
-        private HashMap<T, Integer> mMap;
+        private static final int STRIPES = 8;
+        private final HashMap<T, Integer>[] mMaps;
 
+        @SuppressWarnings("unchecked")
         /*package*/ CounterMap(int maxSize) {
-            mMap = new HashMap<T, Integer>(maxSize);
+            mMaps = new HashMap[STRIPES];
+            for (int i = 0; i < STRIPES; i++) {
+                mMaps[i] = new HashMap<T, Integer>(Math.max(1, maxSize / STRIPES));
+            }
         }
 
         /*package*/ CounterMap() {
-            mMap = new HashMap<T, Integer>();
+            this(STRIPES * 4);
         }
 
-        /*package*/ synchronized int subtract(T object) {
-            Integer refCount = mMap.get(object);
-            int newCount;
-            if (refCount == null || refCount.intValue() == 0) {
-                throw new IllegalStateException();
-            }
-            if (refCount > 1) {
-                newCount = refCount - 1;
-                mMap.put(object, newCount);
-            } else {
-                newCount = 0;
-                mMap.remove(object);
+        private HashMap<T, Integer> mapFor(T object) {
+            return mMaps[spread(object.hashCode()) & (STRIPES - 1)];
+        }
+
+        /*package*/ int subtract(T object) {
+            final HashMap<T, Integer> map = mapFor(object);
+            synchronized (map) {
+                Integer refCount = map.get(object);
+                int newCount;
+                if (refCount == null || refCount.intValue() == 0) {
+                    throw new IllegalStateException();
+                }
+                if (refCount > 1) {
+                    newCount = refCount - 1;
+                    map.put(object, newCount);
+                } else {
+                    newCount = 0;
+                    map.remove(object);
+                }
+                return newCount;
             }
-            return newCount;
         }
 
-        /*package*/ synchronized void add(T object) {
-            Integer refCount = mMap.get(object);
-            if (refCount == null) {
-                mMap.put(object, 1);
-            } else {
-                mMap.put(object, refCount + 1);
+        /*package*/ void add(T object) {
+            final HashMap<T, Integer> map = mapFor(object);
+            synchronized (map) {
+                Integer refCount = map.get(object);
+                if (refCount == null) {
+                    map.put(object, 1);
+                } else {
+                    map.put(object, refCount + 1);
+                }
             }
         }
 
-        /*package*/ synchronized boolean contains(T object) {
-            return mMap.containsKey(object);
+        /*package*/ boolean contains(T object) {
+            final HashMap<T, Integer> map = mapFor(object);
+            synchronized (map) {
+                return map.containsKey(object);
+            }
         }
 
-        /*package*/ synchronized int getCount(T object) {
-            Integer refCount = mMap.get(object);
-            return (refCount == null) ? 0 : refCount.intValue();
+        /*package*/ int getCount(T object) {
+            final HashMap<T, Integer> map = mapFor(object);
+            synchronized (map) {
+                Integer refCount = map.get(object);
+                return (refCount == null) ? 0 : refCount.intValue();
+            }
         }
 
-        synchronized int size() {
-            return mMap.size();
+        int size() {
+            int size = 0;
+            for (HashMap<T, Integer> map : mMaps) {
+                synchronized (map) {
+                    size += map.size();
+                }
+            }
+            return size;
         }
 
         /**
          * For Debugging Only - not efficient
          */
-        synchronized Set<Map.Entry<T, Integer>> entrySet() {
-            return mMap.entrySet();
+        Set<Map.Entry<T, Integer>> entrySet() {
+            final HashMap<T, Integer> copy = new HashMap<T, Integer>();
+            for (HashMap<T, Integer> map : mMaps) {
+                synchronized (map) {
+                    copy.putAll(map);
+                }
+            }
+            return copy.entrySet();
         }
     }
 
@@ -242,6 +289,7 @@ public final class ContentCache {
      */
     public static final class CacheToken {
         private final String mId;
+        // Guarded by the stripe of the id
         private boolean mIsValid = READ_CACHE_ENABLED;
 
         /*package*/ CacheToken(String id) {
@@ -271,6 +319,66 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * A cached cursor and its estimated size
+     */
+    private static final class Entry {
+        final Cursor mCursor;
+        final int mBytes;
+
+        Entry(Cursor cursor, int bytes) {
+            mCursor = cursor;
+            mBytes = bytes;
+        }
+    }
+
+    /**
+     * The part of the cache holding the ids with the same hash; all access to a stripe is
+     * synchronized on it.
+     */
+    private static final class Stripe {
+        // In access order, so that the least recently used cursor comes first
+        final LinkedHashMap<String, Entry> mEntries =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        // A set of locked content id's
+        final CounterMap<String> mLockMap = new CounterMap<String>(4);
+        // A set of active tokens
+        final TokenList mTokenList;
+        long mBytes;
+
+        Stripe(String name) {
+            mTokenList = new TokenList(name);
+        }
+
+        Cursor get(String id) {
+            final Entry entry = mEntries.get(id);
+            return entry == null ? null : entry.mCursor;
+        }
+
+        /**
+         * Replaces the cursor for the id, returning the one it replaced, if any. The caller
+         * takes care of closing that.
+         */
+        Cursor put(String id, Cursor cursor, int bytes) {
+            final Entry old = mEntries.put(id, new Entry(cursor, bytes));
+            mBytes += bytes;
+            if (old == null) {
+                return null;
+            }
+            mBytes -= old.mBytes;
+            return old.mCursor;
+        }
+
+        Cursor remove(String id) {
+            final Entry old = mEntries.remove(id);
+            if (old == null) {
+                return null;
+            }
+            mBytes -= old.mBytes;
+            return old.mCursor;
+        }
+    }
+
     /**
      * The cached cursor is simply a CursorWrapper whose underlying cursor contains zero or one
      * rows.  We handle simple movement (moveToFirst(), moveToNext(), etc.), and override close()
@@ -306,12 +414,7 @@ public final class ContentCache {
          */
         @Override
         public void close() {
-            synchronized(mCache) {
-                int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
-                    super.close();
-                }
-            }
+            mCache.release(mId, mCursor);
             isClosed = true;
         }
 
@@ -409,24 +512,60 @@ public final class ContentCache {
      * @param maxSize the maximum number of content cursors to cache
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
+        this(name, baseProjection, maxSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Public constructor
+     * @param name the name of the cache (used for logging)
+     * @param baseProjection the projection used for cached cursors; queries whose columns are not
+     *  included in baseProjection will always generate a cache miss
+     * @param maxSize the maximum number of content cursors to cache
+     * @param maxBytes the maximum estimated size of the cached cursors; a cursor larger than its
+     *  share of this is not cached at all
+     */
+    public ContentCache(String name, String[] baseProjection, int maxSize, long maxBytes) {
+        this(name, baseProjection, maxSize, maxBytes, stripeCount(maxSize));
+    }
+
+    @VisibleForTesting
+    ContentCache(String name, String[] baseProjection, int maxSize, long maxBytes,
+            int stripeCount) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
-                // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
-                }
-            }
-        };
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe(mName);
+        }
+        mMaxCursorsPerStripe = Math.max(1, (maxSize + stripeCount - 1) / stripeCount);
+        mMaxBytesPerStripe = maxBytes == Long.MAX_VALUE ? maxBytes : maxBytes / stripeCount;
         mBaseProjection = baseProjection;
         mLogTag = "ContentCache-" + name;
-        sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
+        synchronized (sContentCaches) {
+            sContentCaches.add(this);
+        }
         mStats = new Statistics(this);
     }
 
+    /**
+     * Returns the number of stripes for a cache of the given size: a power of two, no more than
+     * {@link #MAX_STRIPES}, with at least {@link #MIN_CURSORS_PER_STRIPE} cursors in each
+     */
+    private static int stripeCount(int maxSize) {
+        int stripes = 1;
+        while (stripes < MAX_STRIPES && maxSize / (stripes * 2) >= MIN_CURSORS_PER_STRIPE) {
+            stripes *= 2;
+        }
+        return stripes;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private Stripe stripeFor(String id) {
+        return mStripes[spread(id.hashCode()) & (mStripes.length - 1)];
+    }
+
     /**
      * Return the base projection for cached rows
      * Get the projection used for cached rows (typically, the largest possible projection)
@@ -442,27 +581,76 @@ public final class ContentCache {
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = stripe.mTokenList.add(id);
+            if (stripe.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
         }
-        return token;
     }
 
     public int size() {
-        return mLruCache.size();
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.mEntries.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of the cached cursors, or 0 if the cache is not bounded by size
+     */
+    public long getByteSize() {
+        long bytes = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                bytes += stripe.mBytes;
+            }
+        }
+        return bytes;
+    }
+
+    private int getTokenCount() {
+        int count = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.mTokenList.size();
+            }
+        }
+        return count;
     }
 
     @VisibleForTesting
     Cursor get(String id) {
-        return mLruCache.get(id);
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            return stripe.get(id);
+        }
+    }
+
+    @VisibleForTesting
+    Statistics getStatistics() {
+        return mStats;
     }
 
     protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
+        final LinkedHashMap<String, Cursor> snapshot = new LinkedHashMap<String, Cursor>();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, Entry> entry : stripe.mEntries.entrySet()) {
+                    snapshot.put(entry.getKey(), entry.getValue().mCursor);
+                }
+            }
+        }
+        return snapshot;
     }
+
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
      * cached cursor (if caching was successful) or the original cursor
@@ -479,31 +667,101 @@ public final class ContentCache {
         c.moveToPosition(0);
         return putCursorImpl(c, id, projection, token);
     }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
+
+    public Cursor putCursorImpl(Cursor c, String id, String[] projection,
             CacheToken token) {
-        try {
-            if (!token.isValid()) {
-                if (DebugUtils.DEBUG && DEBUG_CACHE) {
-                    LogUtils.d(mLogTag, "============ Stale token for " + id);
+        // Reading the row can take a while, so do it before taking the lock
+        final int bytes = (c != null) ? estimateBytes(c) : 0;
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            try {
+                if (!token.isValid()) {
+                    if (DebugUtils.DEBUG && DEBUG_CACHE) {
+                        LogUtils.d(mLogTag, "============ Stale token for " + id);
+                    }
+                    mStats.mStaleCount.incrementAndGet();
+                    return c;
+                }
+                if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache
+                        && bytes <= mMaxBytesPerStripe) {
+                    if (DebugUtils.DEBUG && DEBUG_CACHE) {
+                        LogUtils.d(mLogTag, "============ Caching cursor for: " + id);
+                    }
+                    // If we've already cached this cursor, invalidate the older one
+                    Cursor existingCursor = stripe.get(id);
+                    if (existingCursor != null) {
+                       unlockImpl(stripe, id, null, false);
+                    }
+                    stripe.put(id, c, bytes);
+                    trimToSize(stripe);
+                    return new CachedCursor(c, this, id);
                 }
-                mStats.mStaleCount++;
                 return c;
+            } finally {
+                stripe.mTokenList.remove(token);
             }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
-                if (DebugUtils.DEBUG && DEBUG_CACHE) {
-                    LogUtils.d(mLogTag, "============ Caching cursor for: " + id);
-                }
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
-                }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
+        }
+    }
+
+    /**
+     * Estimates the memory held by the current row of a cursor: two bytes per char of its strings,
+     * the length of its blobs, and a little for every column. Only done if the cache is bounded
+     * by size, as it reads every column.
+     */
+    private int estimateBytes(Cursor c) {
+        if (mMaxBytesPerStripe == Long.MAX_VALUE) {
+            return 0;
+        }
+        final int columns = c.getColumnCount();
+        int bytes = columns * COLUMN_OVERHEAD_BYTES;
+        if (c.getPosition() < 0 || c.getPosition() >= c.getCount()) {
+            return bytes;
+        }
+        for (int i = 0; i < columns; i++) {
+            switch (c.getType(i)) {
+                case Cursor.FIELD_TYPE_STRING:
+                    bytes += 2 * c.getString(i).length();
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    bytes += c.getBlob(i).length;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Evicts the least recently used cursors of the stripe until it is within its limits. The
+     * most recently used cursor always stays.
+     */
+    private void trimToSize(Stripe stripe) {
+        final Iterator<Map.Entry<String, Entry>> it = stripe.mEntries.entrySet().iterator();
+        while (stripe.mEntries.size() > 1 && (stripe.mEntries.size() > mMaxCursorsPerStripe
+                || stripe.mBytes > mMaxBytesPerStripe)) {
+            final Entry eldest = it.next().getValue();
+            it.remove();
+            stripe.mBytes -= eldest.mBytes;
+            mStats.mEvictionCount.incrementAndGet();
+            // Close this cursor if it's no longer being used
+            if (!sActiveCursors.contains(eldest.mCursor)) {
+                eldest.mCursor.close();
+            }
+        }
+    }
+
+    /**
+     * Called when a CachedCursor is closed; closes the underlying cursor if it is no longer cached
+     * and no other CachedCursor uses it.
+     */
+    private void release(String id, Cursor cursor) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            int count = sActiveCursors.subtract(cursor);
+            if ((count == 0) && stripe.get(id) != cursor) {
+                cursor.close();
             }
-            return c;
-        } finally {
-            mTokenList.remove(token);
         }
     }
 
@@ -513,35 +771,34 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
+    public Cursor getCachedCursor(String id, String[] projection) {
         if (DebugUtils.DEBUG && DEBUG_STATISTICS) {
             // Every 200 calls to getCursor, report cache statistics
             dumpOnCount(200);
         }
-        if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            if (projection == mBaseProjection) {
+                return getCachedCursorImpl(stripe, id);
+            } else {
+                return getMatrixCursor(stripe, id, projection, null);
+            }
         }
     }
 
-    private CachedCursor getCachedCursorImpl(String id) {
-        Cursor c = get(id);
+    private CachedCursor getCachedCursorImpl(Stripe stripe, String id) {
+        Cursor c = stripe.get(id);
         if (c != null) {
-            mStats.mHitCount++;
+            mStats.mHitCount.incrementAndGet();
             return new CachedCursor(c, this, id);
         }
-        mStats.mMissCount++;
+        mStats.mMissCount.incrementAndGet();
         return null;
     }
 
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
+    private MatrixCursor getMatrixCursor(Stripe stripe, String id, String[] projection,
             ContentValues values) {
-        Cursor c = get(id);
+        Cursor c = stripe.get(id);
         if (c != null) {
             // Make a new MatrixCursor with the requested columns
             MatrixCursor mc = new MatrixCursorWithCachedColumns(projection, 1);
@@ -557,7 +814,7 @@ public final class ContentCache {
             for (String column: projection) {
                 int columnIndex = c.getColumnIndex(column);
                 if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
+                    mStats.mProjectionMissCount.incrementAndGet();
                     return null;
                 } else {
                     String value;
@@ -579,10 +836,10 @@ public final class ContentCache {
                 return null;
             }
             mc.addRow(row);
-            mStats.mHitCount++;
+            mStats.mHitCount.incrementAndGet();
             return mc;
         }
-        mStats.mMissCount++;
+        mStats.mMissCount.incrementAndGet();
         return null;
     }
 
@@ -590,14 +847,17 @@ public final class ContentCache {
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        if (DebugUtils.DEBUG && DEBUG_TOKENS) {
-            LogUtils.d(mTokenList.mLogTag, "============ Lock invalidated " + count +
-                    " tokens for: " + id);
+    public void lock(String id) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            // Prevent new valid tokens from being created
+            stripe.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = stripe.mTokenList.invalidateTokens(id);
+            if (DebugUtils.DEBUG && DEBUG_TOKENS) {
+                LogUtils.d(stripe.mTokenList.mLogTag, "============ Lock invalidated " + count +
+                        " tokens for: " + id);
+            }
         }
     }
 
@@ -605,8 +865,11 @@ public final class ContentCache {
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(String id) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            unlockImpl(stripe, id, null, true);
+        }
     }
 
     /**
@@ -616,8 +879,11 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(String id, ContentValues values) {
+        final Stripe stripe = stripeFor(id);
+        synchronized (stripe) {
+            unlockImpl(stripe, id, values, true);
+        }
     }
 
     /**
@@ -625,29 +891,31 @@ public final class ContentCache {
      * then closes the previously cached one (if any, and if not in use)
      * If values are not passed in, removes the row from cache
      * If the row was locked, unlock it
+     * @param stripe the stripe of the row, which the caller holds the lock of
      * @param id the id of the row
      * @param values new ContentValues for the row (or null if row should simply be removed)
      * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
-        Cursor c = get(id);
+    private void unlockImpl(Stripe stripe, String id, ContentValues values, boolean wasLocked) {
+        Cursor c = stripe.get(id);
         if (c != null) {
             if (DebugUtils.DEBUG && DEBUG_CACHE) {
                 LogUtils.d(mLogTag, "=========== Unlocking cache for: " + id);
             }
             if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
+                MatrixCursor cursor = getMatrixCursor(stripe, id, mBaseProjection, values);
                 if (cursor != null) {
                     if (DebugUtils.DEBUG && DEBUG_CACHE) {
                         LogUtils.d(mLogTag, "=========== Recaching with new values: " + id);
                     }
                     cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
+                    stripe.put(id, cursor, estimateBytes(cursor));
+                    trimToSize(stripe);
                 } else {
-                    mLruCache.remove(id);
+                    stripe.remove(id);
                 }
             } else {
-                mLruCache.remove(id);
+                stripe.remove(id);
             }
             // If there are no cursors using the old cached cursor, close it
             if (!sActiveCursors.contains(c)) {
@@ -655,14 +923,14 @@ public final class ContentCache {
             }
         }
         if (wasLocked) {
-            mLockMap.subtract(id);
+            stripe.mLockMap.subtract(id);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -674,35 +942,44 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             LogUtils.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
-        mLruCache.evictAll();
-        // Invalidate all current tokens
-        mTokenList.invalidate();
+        mStats.mInvalidateCount.incrementAndGet();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                // Close all cached cursors that are no longer in use
+                for (Entry entry : stripe.mEntries.values()) {
+                    if (!sActiveCursors.contains(entry.mCursor)) {
+                        entry.mCursor.close();
+                    }
+                }
+                stripe.mEntries.clear();
+                stripe.mBytes = 0;
+                // Invalidate all current tokens
+                stripe.mTokenList.invalidate();
+            }
+        }
     }
 
     // Debugging code below
 
     private void dumpOnCount(int num) {
-        mStats.mOpCount++;
-        if ((mStats.mOpCount % num) == 0) {
+        if ((mStats.mOpCount.incrementAndGet() % num) == 0) {
             dumpStats();
         }
     }
 
     /*package*/ void recordQueryTime(Cursor c, long nanoTime) {
         if (c instanceof CachedCursor) {
-            mStats.hitTimes += nanoTime;
-            mStats.hits++;
+            mStats.hitTimes.addAndGet(nanoTime);
+            mStats.hits.incrementAndGet();
         } else {
             if (c.getCount() == 1) {
-                mStats.missTimes += nanoTime;
-                mStats.miss++;
+                mStats.missTimes.addAndGet(nanoTime);
+                mStats.miss.incrementAndGet();
             }
         }
     }
@@ -715,9 +992,15 @@ public final class ContentCache {
         }
     }
 
+    private static ContentCache[] getAllCaches() {
+        synchronized (sContentCaches) {
+            return sContentCaches.toArray(new ContentCache[sContentCaches.size()]);
+        }
+    }
+
     // For use with unit tests
     public static void invalidateAllCaches() {
-        for (ContentCache cache: sContentCaches) {
+        for (ContentCache cache: getAllCaches()) {
             cache.invalidate();
         }
     }
@@ -736,23 +1019,25 @@ public final class ContentCache {
 
         // Cache statistics
         // The item is in the cache AND is used to create a cursor
-        private int mHitCount = 0;
+        private final AtomicInteger mHitCount = new AtomicInteger();
         // Basic cache miss (the item is not cached)
-        private int mMissCount = 0;
+        private final AtomicInteger mMissCount = new AtomicInteger();
         // Incremented when a cachePut is invalid due to an intervening write
-        private int mStaleCount = 0;
+        private final AtomicInteger mStaleCount = new AtomicInteger();
         // A projection miss occurs when the item is cached, but not all requested columns are
         // available in the base projection
-        private int mProjectionMissCount = 0;
+        private final AtomicInteger mProjectionMissCount = new AtomicInteger();
+        // Incremented when a cursor is dropped to stay within the size of the cache
+        private final AtomicInteger mEvictionCount = new AtomicInteger();
         // Incremented whenever the entire cache is invalidated
-        private int mInvalidateCount = 0;
+        private final AtomicInteger mInvalidateCount = new AtomicInteger();
         // Count of operations put/get
-        private int mOpCount = 0;
+        private final AtomicInteger mOpCount = new AtomicInteger();
         // The following are for timing statistics
-        private long hits = 0;
-        private long hitTimes = 0;
-        private long miss = 0;
-        private long missTimes = 0;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong hitTimes = new AtomicLong();
+        private final AtomicLong miss = new AtomicLong();
+        private final AtomicLong missTimes = new AtomicLong();
 
         // Used in toString() and addCacheStatistics()
         private int mCursorCount = 0;
@@ -768,18 +1053,35 @@ public final class ContentCache {
             mName = name;
         }
 
+        int getHitCount() {
+            return mHitCount.get();
+        }
+
+        int getMissCount() {
+            return mMissCount.get() + mProjectionMissCount.get();
+        }
+
+        int getEvictionCount() {
+            return mEvictionCount.get();
+        }
+
+        int getStaleCount() {
+            return mStaleCount.get();
+        }
+
         private void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
-                hitTimes += cache.mStats.hitTimes;
-                missTimes += cache.mStats.missTimes;
-                hits += cache.mStats.hits;
-                miss += cache.mStats.miss;
+                mHitCount.addAndGet(cache.mStats.mHitCount.get());
+                mMissCount.addAndGet(cache.mStats.mMissCount.get());
+                mProjectionMissCount.addAndGet(cache.mStats.mProjectionMissCount.get());
+                mStaleCount.addAndGet(cache.mStats.mStaleCount.get());
+                mEvictionCount.addAndGet(cache.mStats.mEvictionCount.get());
+                hitTimes.addAndGet(cache.mStats.hitTimes.get());
+                missTimes.addAndGet(cache.mStats.missTimes.get());
+                hits.addAndGet(cache.mStats.hits.get());
+                miss.addAndGet(cache.mStats.miss.get());
                 mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                mTokenCount += cache.getTokenCount();
             }
         }
 
@@ -792,18 +1094,21 @@ public final class ContentCache {
 
         @Override
         public String toString() {
-            if (mHitCount + mMissCount == 0) return "No cache";
-            int totalTries = mMissCount + mProjectionMissCount + mHitCount;
+            final int hitCount = mHitCount.get();
+            final int missCount = mMissCount.get() + mProjectionMissCount.get();
+            if (hitCount + missCount == 0) return "No cache";
+            int totalTries = missCount + hitCount;
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
             append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
-            append(sb, "Hits", mHitCount);
-            append(sb, "Misses", mMissCount + mProjectionMissCount);
-            append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
-            append(sb, "Hit%", mHitCount * 100 / totalTries);
-            append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
-            append(sb, "Miss time", missTimes / 1000000.0 / miss);
+            append(sb, "Hits", hitCount);
+            append(sb, "Misses", missCount);
+            append(sb, "Evictions", mEvictionCount.get());
+            append(sb, "Inval", mInvalidateCount.get());
+            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.getTokenCount());
+            append(sb, "Hit%", hitCount * 100 / totalTries);
+            append(sb, "\nHit time", hitTimes.get() / 1000000.0 / hits.get());
+            append(sb, "Miss time", missTimes.get() / 1000000.0 / miss.get());
             return sb.toString();
         }
     }
@@ -811,7 +1116,7 @@ public final class ContentCache {
     public static void dumpStats() {
         Statistics totals = new Statistics("Totals");
 
-        for (ContentCache cache: sContentCaches) {
+        for (ContentCache cache: getAllCaches()) {
             if (cache != null) {
                 LogUtils.d(cache.mName, cache.mStats.toString());
                 totals.addCacheStatistics(cache);
@@ -17,15 +17,19 @@
 package com.android.email.service;
 
 import android.app.Service;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
@@ -36,6 +40,7 @@ import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapStore;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
@@ -109,6 +114,13 @@ public class ImapService extends Service {
      */
     private static final String LOCAL_SERVERID_PREFIX = "Local-";
 
+    /**
+     * Schedules {@link #synchronizeMailboxSynchronous}: accounts sync in parallel, each with at
+     * most as many mailboxes at a time as its store pools connections.
+     */
+    private static final MailboxSyncScheduler sSyncScheduler =
+            new MailboxSyncScheduler(ImapStore.MAX_POOLED_CONNECTIONS);
+
     private static String sMessageDecodeErrorString;
 
     /**
@@ -157,20 +169,25 @@ public class ImapService extends Service {
     /**
      * Start foreground synchronization of the specified folder. This is called by
      * synchronizeMailbox or checkMail.
+     * Syncs of different accounts run concurrently; syncs of the same mailbox run one at a time,
+     * in the order they were requested. See {@link MailboxSyncScheduler}.
      * TODO this should use ID's instead of fully-restored objects
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
+        final MailboxSyncScheduler.Ticket ticket = sSyncScheduler.acquire(account.mId, folder.mId);
         Store remoteStore = null;
         try {
             remoteStore = Store.getInstance(account, context);
-            processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
+            synchronized (ticket.getAccountLock()) {
+                processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
+            }
             synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
@@ -184,7 +201,8 @@ public class ImapService extends Service {
             }
             throw e;
         } finally {
-            if (remoteStore != null) {
+            // Leave the pooled connections to the other syncs of the account, if any.
+            if (sSyncScheduler.release(ticket) && remoteStore != null) {
                 remoteStore.closeConnections();
             }
         }
@@ -243,6 +261,94 @@ public class ImapService extends Service {
         };
     }
 
+    /**
+     * Saves new messages to the provider in one transaction per {@link #SAVE_BATCH_SIZE}
+     * messages, instead of one per message, while their envelopes stream in. Messages that are
+     * already saved are updated right away through their own URI, so that the provider sends
+     * the notifications of a message update.
+     */
+    private static class MessageSaveBatch {
+        private static final int SAVE_BATCH_SIZE = 50;
+
+        private final Context mContext;
+        private final ArrayList<Long> mUnseenMessages;
+        private final ArrayList<EmailContent.Message> mMessages =
+                new ArrayList<EmailContent.Message>();
+        // For each queued message, the index of its first operation and whether it is unseen.
+        private final ArrayList<Integer> mFirstOps = new ArrayList<Integer>();
+        private final ArrayList<Boolean> mUnseen = new ArrayList<Boolean>();
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+
+        MessageSaveBatch(Context context, ArrayList<Long> unseenMessages) {
+            mContext = context;
+            mUnseenMessages = unseenMessages;
+        }
+
+        /**
+         * Queues a new message, saving the queue if it is full, or updates a changed one. Unseen
+         * messages are added to the unseen list once they are saved.
+         */
+        void add(EmailContent.Message message, boolean unseen) {
+            if (message.isSaved()) {
+                Utilities.saveOrUpdate(message, mContext);
+                if (unseen && mUnseenMessages != null) {
+                    mUnseenMessages.add(message.mId);
+                }
+                return;
+            }
+            mMessages.add(message);
+            mFirstOps.add(mOps.size());
+            mUnseen.add(unseen);
+            message.addSaveOps(mOps);
+            if (mMessages.size() >= SAVE_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Saves the queued messages.
+         */
+        void flush() {
+            if (mMessages.isEmpty()) {
+                return;
+            }
+            try {
+                try {
+                    final ContentProviderResult[] results = mContext.getContentResolver()
+                            .applyBatch(EmailContent.AUTHORITY, mOps);
+                    for (int i = 0; i < mMessages.size(); i++) {
+                        final Uri uri = results[mFirstOps.get(i)].uri;
+                        mMessages.get(i).mId = Long.parseLong(uri.getPathSegments().get(1));
+                    }
+                } catch (RemoteException e) {
+                    saveOneByOne(e);
+                } catch (OperationApplicationException e) {
+                    saveOneByOne(e);
+                }
+                for (int i = 0; i < mMessages.size(); i++) {
+                    if (mUnseen.get(i) && mUnseenMessages != null
+                            && mMessages.get(i).isSaved()) {
+                        mUnseenMessages.add(mMessages.get(i).mId);
+                    }
+                }
+            } finally {
+                // Don't apply the same operations again with the next batch
+                mMessages.clear();
+                mFirstOps.clear();
+                mUnseen.clear();
+                mOps.clear();
+            }
+        }
+
+        private void saveOneByOne(Exception e) {
+            LogUtils.w(Logging.LOG_TAG, e, "Batch save failed, saving messages one by one");
+            for (EmailContent.Message message : mMessages) {
+                Utilities.saveOrUpdate(message, mContext);
+            }
+        }
+    }
+
     /**
      * Load the structure and body of messages not yet synced
      * @param account the account we're syncing
@@ -293,59 +399,61 @@ public class ImapService extends Service {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
-        remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
-                new MessageRetrievalListener() {
-                    @Override
-                    public void messageRetrieved(Message message) {
-                        try {
-                            // Determine if the new message was already known (e.g. partial)
-                            // And create or reload the full message info
-                            final LocalMessageInfo localMessageInfo =
-                                    localMapCopy.get(message.getUid());
-                            final boolean localExists = localMessageInfo != null;
-
-                            if (!localExists && message.isSet(Flag.DELETED)) {
-                                // This is a deleted message that we don't have locally, so don't
-                                // create it
-                                return;
-                            }
+        final MessageSaveBatch saveBatch = new MessageSaveBatch(context, unseenMessages);
+        try {
+            remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
+                    new MessageRetrievalListener() {
+                        @Override
+                        public void messageRetrieved(Message message) {
+                            try {
+                                // Determine if the new message was already known (e.g. partial)
+                                // And create or reload the full message info
+                                final LocalMessageInfo localMessageInfo =
+                                        localMapCopy.get(message.getUid());
+                                final boolean localExists = localMessageInfo != null;
+
+                                if (!localExists && message.isSet(Flag.DELETED)) {
+                                    // This is a deleted message that we don't have locally,
+                                    // so don't create it
+                                    return;
+                                }
 
-                            final EmailContent.Message localMessage;
-                            if (!localExists) {
-                                localMessage = new EmailContent.Message();
-                            } else {
-                                localMessage = EmailContent.Message.restoreMessageWithId(
-                                        context, localMessageInfo.mId);
-                            }
+                                final EmailContent.Message localMessage;
+                                if (!localExists) {
+                                    localMessage = new EmailContent.Message();
+                                } else {
+                                    localMessage = EmailContent.Message.restoreMessageWithId(
+                                            context, localMessageInfo.mId);
+                                }
 
-                            if (localMessage != null) {
-                                try {
-                                    // Copy the fields that are available into the message
-                                    LegacyConversions.updateMessageFields(localMessage,
-                                            message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    Utilities.saveOrUpdate(localMessage, context);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
+                                if (localMessage != null) {
+                                    try {
+                                        // Copy the fields that are available into the message
+                                        LegacyConversions.updateMessageFields(localMessage,
+                                                message, account.mId, mailbox.mId);
+                                        // Queue the message for the local store; also track the
+                                        // "new" ness of the downloaded message
+                                        saveBatch.add(localMessage, !message.isSet(Flag.SEEN));
+                                    } catch (MessagingException me) {
+                                        LogUtils.e(Logging.LOG_TAG,
+                                                "Error while copying downloaded message." + me);
                                     }
-                                } catch (MessagingException me) {
-                                    LogUtils.e(Logging.LOG_TAG,
-                                            "Error while copying downloaded message." + me);
                                 }
                             }
+                            catch (Exception e) {
+                                LogUtils.e(Logging.LOG_TAG,
+                                        "Error while storing downloaded message." + e.toString());
+                            }
                         }
-                        catch (Exception e) {
-                            LogUtils.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
-                        }
-                    }
-
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
-                    }
-                });
 
+                        @Override
+                        public void loadAttachmentProgress(int progress) {
+                        }
+                    });
+        } finally {
+            // Save what was received even if the connection failed part way.
+            saveBatch.flush();
+        }
     }
 
     /**
@@ -359,7 +467,7 @@ public class ImapService extends Service {
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
+    private static void synchronizeMailboxGeneric(final Context context,
             final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
             final boolean uiRefresh)
             throws MessagingException {
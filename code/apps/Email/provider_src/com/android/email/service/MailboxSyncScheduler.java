@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides when a mailbox sync may run, so that a slow account does not hold up the others:
+ * <ul>
+ * <li>Syncs of different accounts never wait for each other.
+ * <li>At most {@code maxSyncsPerAccount} mailboxes of one account sync at the same time, so that
+ * an account does not need more connections than its store keeps.
+ * <li>Syncs of the same mailbox run one at a time, in the order they were requested.
+ * </ul>
+ * Every {@link #acquire} must be followed by exactly one {@link #release} of the returned
+ * ticket. The state of an account is dropped once none of its syncs is running or waiting.
+ */
+class MailboxSyncScheduler {
+
+    /**
+     * A sync admitted by {@link #acquire}.
+     */
+    static class Ticket {
+        private final long mAccountId;
+        private final long mMailboxId;
+        private final AccountState mAccount;
+        private final MailboxState mMailbox;
+
+        private Ticket(long accountId, long mailboxId, AccountState account,
+                MailboxState mailbox) {
+            mAccountId = accountId;
+            mMailboxId = mailboxId;
+            mAccount = account;
+            mMailbox = mailbox;
+        }
+
+        /**
+         * Returns an object that is the same for all syncs of the account that run at the same
+         * time. Hold it for work that must not run concurrently within an account, such as
+         * uploading pending changes.
+         */
+        Object getAccountLock() {
+            return mAccount;
+        }
+    }
+
+    private static class AccountState {
+        final Semaphore mPermits;
+        final HashMap<Long, MailboxState> mMailboxes = new HashMap<Long, MailboxState>();
+        // Syncs of the account that are running or waiting.
+        int mUsers;
+
+        AccountState(int permits) {
+            mPermits = new Semaphore(permits, true /* fair */);
+        }
+    }
+
+    private static class MailboxState {
+        final ReentrantLock mLock = new ReentrantLock(true /* fair */);
+        // Syncs of the mailbox that are running or waiting.
+        int mUsers;
+    }
+
+    private final int mMaxSyncsPerAccount;
+
+    // Guarded by itself; also guards the counts and maps of its values.
+    private final HashMap<Long, AccountState> mAccounts = new HashMap<Long, AccountState>();
+
+    MailboxSyncScheduler(int maxSyncsPerAccount) {
+        if (maxSyncsPerAccount < 1) {
+            throw new IllegalArgumentException("maxSyncsPerAccount " + maxSyncsPerAccount);
+        }
+        mMaxSyncsPerAccount = maxSyncsPerAccount;
+    }
+
+    /**
+     * Blocks until a sync of the given mailbox may run.
+     */
+    Ticket acquire(long accountId, long mailboxId) {
+        final AccountState account;
+        final MailboxState mailbox;
+        synchronized (mAccounts) {
+            AccountState a = mAccounts.get(accountId);
+            if (a == null) {
+                a = new AccountState(mMaxSyncsPerAccount);
+                mAccounts.put(accountId, a);
+            }
+            MailboxState m = a.mMailboxes.get(mailboxId);
+            if (m == null) {
+                m = new MailboxState();
+                a.mMailboxes.put(mailboxId, m);
+            }
+            a.mUsers++;
+            m.mUsers++;
+            account = a;
+            mailbox = m;
+        }
+        // Wait for our turn on the mailbox before taking one of the account's slots, so that
+        // repeated requests for a busy mailbox do not keep other mailboxes from syncing.
+        mailbox.mLock.lock();
+        account.mPermits.acquireUninterruptibly();
+        return new Ticket(accountId, mailboxId, account, mailbox);
+    }
+
+    /**
+     * Ends the sync admitted with the given ticket.
+     *
+     * @return whether this was the last sync of the account that was running or waiting
+     */
+    boolean release(Ticket ticket) {
+        ticket.mAccount.mPermits.release();
+        ticket.mMailbox.mLock.unlock();
+        synchronized (mAccounts) {
+            if (--ticket.mMailbox.mUsers == 0) {
+                ticket.mAccount.mMailboxes.remove(ticket.mMailboxId);
+            }
+            if (--ticket.mAccount.mUsers == 0) {
+                mAccounts.remove(ticket.mAccountId);
+                return true;
+            }
+            return false;
+        }
+    }
+}
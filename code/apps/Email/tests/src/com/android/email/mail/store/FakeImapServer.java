@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal IMAP server on the loopback interface, for measuring the client against a server
+ * that is far away. Every folder exists and holds messages with UIDs 1 to
+ * {@code messagesPerFolder}; every other command succeeds.
+ * <p>
+ * Each response is sent {@code latencyMs} after its command arrived, as if it had crossed the
+ * network both ways; commands sent without waiting for the previous response overlap their
+ * latency, as they would with a real server.
+ */
+public class FakeImapServer extends Thread {
+    private static final String HEADER_TEMPLATE = "Date: Mon, 1 Feb 2016 12:00:00 +0000\r\n"
+            + "Subject: Message %d\r\n"
+            + "From: sender@example.com\r\n"
+            + "To: user@example.com\r\n"
+            + "Message-ID: <%d@example.com>\r\n"
+            + "\r\n";
+
+    private final ServerSocket mServerSocket;
+    private final int mLatencyMs;
+    private final int mMessagesPerFolder;
+    private final AtomicInteger mCommandCount = new AtomicInteger();
+
+    public FakeImapServer(int latencyMs, int messagesPerFolder) throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mLatencyMs = latencyMs;
+        mMessagesPerFolder = messagesPerFolder;
+        setDaemon(true);
+        start();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of commands received so far, over all connections.
+     */
+    public int getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Socket socket = mServerSocket.accept();
+                final Thread session = new Thread() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                session.setDaemon(true);
+                session.start();
+            }
+        } catch (IOException e) {
+            // Closed.
+        }
+    }
+
+    private static class Command {
+        final long mReceivedTime;
+        final String mLine;
+
+        Command(long receivedTime, String line) {
+            mReceivedTime = receivedTime;
+            mLine = line;
+        }
+    }
+
+    /**
+     * Reads commands on the calling thread and answers them, in order, on another one.
+     */
+    private void serve(final Socket socket) {
+        final BlockingQueue<Command> commands = new LinkedBlockingQueue<Command>();
+        final Thread responder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final OutputStream out =
+                            new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    write(out, "* OK fake IMAP server ready");
+                    out.flush();
+                    while (true) {
+                        final Command command = commands.take();
+                        if (command.mLine == null) {
+                            break;
+                        }
+                        final long delay =
+                                command.mReceivedTime + mLatencyMs - SystemClock.elapsedRealtime();
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                        final boolean more = respond(out, command.mLine);
+                        out.flush();
+                        if (!more) {
+                            break;
+                        }
+                    }
+                } catch (Exception e) {
+                    // The client went away.
+                } finally {
+                    closeQuietly(socket);
+                }
+            }
+        };
+        responder.setDaemon(true);
+        responder.start();
+        try {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                mCommandCount.incrementAndGet();
+                commands.add(new Command(SystemClock.elapsedRealtime(), line));
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            commands.add(new Command(0, null));
+        }
+    }
+
+    /**
+     * Writes the response to one command.
+     *
+     * @return whether the connection stays open
+     */
+    private boolean respond(OutputStream out, String line) throws IOException {
+        final int space = line.indexOf(' ');
+        final String tag = line.substring(0, space);
+        final String command = line.substring(space + 1);
+        final String upperCommand = command.toUpperCase();
+        if (upperCommand.startsWith("CAPABILITY")) {
+            write(out, "* CAPABILITY IMAP4rev1");
+        } else if (upperCommand.startsWith("SELECT")) {
+            write(out, "* FLAGS (\\Seen \\Flagged)");
+            write(out, "* " + mMessagesPerFolder + " EXISTS");
+        } else if (upperCommand.startsWith("UID SEARCH")) {
+            final StringBuilder sb = new StringBuilder("* SEARCH");
+            for (int uid = 1; uid <= mMessagesPerFolder; uid++) {
+                sb.append(' ').append(uid);
+            }
+            write(out, sb.toString());
+        } else if (upperCommand.startsWith("UID FETCH")) {
+            final int setEnd = command.indexOf(' ', "UID FETCH ".length());
+            final boolean envelope = upperCommand.contains("HEADER.FIELDS");
+            for (String range : command.substring("UID FETCH ".length(), setEnd).split(",")) {
+                final int colon = range.indexOf(':');
+                final int first = Integer.parseInt(colon < 0 ? range : range.substring(0, colon));
+                final int last = colon < 0 ? first : Integer.parseInt(range.substring(colon + 1));
+                for (int uid = Math.min(first, last); uid <= Math.max(first, last); uid++) {
+                    if (uid <= mMessagesPerFolder) {
+                        writeFetch(out, uid, envelope);
+                    }
+                }
+            }
+        } else if (upperCommand.startsWith("LOGOUT")) {
+            write(out, "* BYE");
+            write(out, tag + " OK done");
+            return false;
+        }
+        write(out, tag + " OK done");
+        return true;
+    }
+
+    private static void writeFetch(OutputStream out, int uid, boolean envelope)
+            throws IOException {
+        if (!envelope) {
+            write(out, "* " + uid + " FETCH (UID " + uid + " FLAGS (\\Seen))");
+            return;
+        }
+        final String header = String.format(HEADER_TEMPLATE, uid, uid);
+        write(out, "* " + uid + " FETCH (UID " + uid + " FLAGS (\\Seen)"
+                + " INTERNALDATE \"01-Feb-2016 12:00:00 +0000\" RFC822.SIZE 2048"
+                + " BODY[HEADER.FIELDS (DATE SUBJECT FROM TO MESSAGE-ID)] {"
+                + header.length() + "}");
+        out.write(header.getBytes("US-ASCII"));
+        write(out, ")");
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes("US-ASCII"));
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.emailcommon.mail.FetchProfile;
+import com.android.emailcommon.mail.Flag;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+
+/**
+ * Measures how fast the envelopes of a large folder are fetched from a server with a long round
+ * trip, with and without pipelined UID FETCH commands in {@link ImapFolder}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.email.mail.store.ImapFetchPerformanceTest -w \
+ *         com.android.email.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class ImapFetchPerformanceTest extends AndroidTestCase {
+    private static final String TAG = "ImapFetchPerformanceTest";
+
+    private static final int MESSAGE_COUNT = 50000;
+    private static final int LATENCY_MS = 50;
+
+    public void testInitialSync_50kMessages() throws Exception {
+        final FakeImapServer server = new FakeImapServer(LATENCY_MS, MESSAGE_COUNT);
+        try {
+            final HostAuth hostAuth = new HostAuth();
+            hostAuth.setLogin("user", "password");
+            hostAuth.setConnection("imap", "127.0.0.1", server.getPort());
+            final Account account = new Account();
+            account.mHostAuthRecv = hostAuth;
+            final ImapStore store = (ImapStore) ImapStore.newInstance(account, getContext());
+
+            final long serialRate = fetchEnvelopes(store, 1);
+            final long pipelinedRate = fetchEnvelopes(store, ImapFolder.MAX_PIPELINED_FETCHES);
+            assertTrue(pipelinedRate > serialRate);
+            store.closeConnections();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Fetches the flags and envelopes of every message in the folder.
+     *
+     * @return the number of messages fetched per second
+     */
+    private long fetchEnvelopes(ImapStore store, int maxPipelinedFetches) throws Exception {
+        final ImapFolder folder = (ImapFolder) store.getFolder("INBOX");
+        folder.setMaxPipelinedFetchesForTest(maxPipelinedFetches);
+        folder.open(OpenMode.READ_WRITE);
+        try {
+            assertEquals(MESSAGE_COUNT, folder.getMessageCount());
+            final Message[] messages = new Message[MESSAGE_COUNT];
+            for (int i = 0; i < MESSAGE_COUNT; i++) {
+                messages[i] = folder.createMessage(Integer.toString(i + 1));
+            }
+            final FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            fp.add(FetchProfile.Item.ENVELOPE);
+            final int[] retrieved = new int[1];
+
+            final long start = SystemClock.elapsedRealtime();
+            folder.fetch(messages, fp, new MessageRetrievalListener() {
+                @Override
+                public void messageRetrieved(Message message) {
+                    retrieved[0]++;
+                }
+
+                @Override
+                public void loadAttachmentProgress(int progress) {
+                }
+            });
+            final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+
+            assertEquals(MESSAGE_COUNT, retrieved[0]);
+            assertEquals("Message 1", messages[0].getSubject());
+            assertTrue(messages[MESSAGE_COUNT - 1].isSet(Flag.SEEN));
+            final long rate = MESSAGE_COUNT * 1000L / elapsed;
+            Log.i(TAG, MESSAGE_COUNT + " messages, " + LATENCY_MS + " ms latency, "
+                    + maxPipelinedFetches + " fetches in flight: " + elapsed + " ms, " + rate
+                    + " messages/s");
+            return rate;
+        } finally {
+            folder.close(false);
+        }
+    }
+}
@@ -60,6 +60,7 @@ import com.android.emailcommon.utility.Utility;
 import org.apache.commons.io.IOUtils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.regex.Pattern;
 
@@ -1109,6 +1110,79 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertNull(text);
     }
 
+    public void testJoinMessageUidRanges() throws Exception {
+        final Message[] messages = new Message[] {
+                mFolder.createMessage("9"),
+                mFolder.createMessage("8"),
+                mFolder.createMessage("7"),
+                mFolder.createMessage("3"),
+                mFolder.createMessage("1"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("a"),
+                mFolder.createMessage("0"),
+                mFolder.createMessage("b"),
+                };
+        assertEquals("9:7,3,1:2,a,0,b", ImapStore.joinMessageUidRanges(messages, 0, 9));
+        assertEquals("8:7,3", ImapStore.joinMessageUidRanges(messages, 1, 4));
+        assertEquals("", ImapStore.joinMessageUidRanges(messages, 2, 2));
+
+        assertEquals(12345, ImapStore.parseUid("12345"));
+        assertEquals(0, ImapStore.parseUid("0"));
+        assertEquals(-1, ImapStore.parseUid(""));
+        assertEquals(-1, ImapStore.parseUid("012"));
+        assertEquals(-1, ImapStore.parseUid("1a"));
+    }
+
+    /**
+     * Fetching more messages than fit in one command sends several commands, newest messages
+     * first, before reading any response.
+     */
+    public void testFetchPipelinesBatches() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final int count = ImapFolder.FETCH_BATCH_SIZE * 2 + 1;
+        final Message[] messages = new Message[count];
+        for (int i = 0; i < count; i++) {
+            messages[i] = mFolder.createMessage(Integer.toString(i + 1));
+        }
+        // Each command answers for the last UID of its set.
+        final int firstBatchLast = count - ImapFolder.FETCH_BATCH_SIZE + 1;
+        final String[] uidSets = {
+                count + ":" + firstBatchLast,
+                (firstBatchLast - 1) + ":2",
+                "1" };
+        for (String uidSet : uidSets) {
+            final String lastUid = uidSet.substring(uidSet.indexOf(':') + 1);
+            mock.expect(getNextTag(false) + " UID FETCH " + uidSet + " \\(UID FLAGS\\)",
+                    new String[] {
+                    "* 1 fETCH (uID " + lastUid + " fLAGS (\\Seen))",
+                    getNextTag(true) + " oK SUCCESS"
+            });
+        }
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        final ArrayList<String> retrieved = new ArrayList<String>();
+        mFolder.fetch(messages, fp, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+                retrieved.add(message.getUid());
+            }
+
+            @Override
+            public void loadAttachmentProgress(int progress) {
+            }
+        });
+
+        assertEquals(Arrays.asList(Integer.toString(firstBatchLast), "2", "1"), retrieved);
+        assertTrue(messages[firstBatchLast - 1].isSet(Flag.SEEN));
+        assertTrue(messages[1].isSet(Flag.SEEN));
+        assertTrue(messages[0].isSet(Flag.SEEN));
+        assertFalse(messages[2].isSet(Flag.SEEN));
+    }
+
     /**
      * Confirm the IMAP parser won't crash when seeing an excess FETCH response line without UID.
      *
@@ -28,13 +28,19 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.utility.Utility;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
+    private static final String TAG = "ImapResponseParserTest";
+
     private static ImapResponseParser generateParser(int literalKeepInMemoryThreshold,
             String responses) {
         return new ImapResponseParser(new ByteArrayInputStream(Utility.toAscii(responses)),
@@ -392,4 +398,118 @@ public class ImapResponseParserTest extends AndroidTestCase {
         } catch (ByeException ok) {
         }
     }
+
+    /** Literals are copied out of the read buffer, into memory or into the temp file. */
+    public void testLiteralsFromBuffer() throws Exception {
+        final ImapResponseParser p = generateParser(7,
+                "* 1 FETCH (BODY[] {7}\r\n" +
+                "abcdefg BODY[TEXT] {8}\r\n" +
+                "hijklmno)\r\n");
+        final ImapList fetch = p.readResponse().getListOrEmpty(2);
+
+        final ImapString memory = fetch.getKeyedStringOrEmpty("BODY[]");
+        assertTrue(memory instanceof ImapMemoryLiteral);
+        assertEquals("abcdefg", memory.getString());
+
+        final ImapString file = fetch.getKeyedStringOrEmpty("BODY[TEXT]");
+        assertTrue(file instanceof ImapTempFileLiteral);
+        assertEquals("hijklmno", file.getString());
+
+        assertEquals("BODY[]", fetch.getStringOrEmpty(0).getString());
+        p.destroyResponses();
+    }
+
+    /**
+     * Parses FETCH BODY[] responses larger than the parser's read buffer, whose literals are
+     * kept in memory up to {@link ImapResponseParser#LITERAL_KEEP_IN_MEMORY_THRESHOLD} and in
+     * the temp file above it, and checks that every byte of the body comes through.
+     */
+    public void testParseLargeFetchBodyResponses() throws Exception {
+        for (final int size : new int[] { 1024, 64 * 1024, 3 * 1024 * 1024 }) {
+            final String body = makeBody(size);
+            final ImapResponseParser p = new ImapResponseParser(
+                    new ByteArrayInputStream(makeFetchBodyResponses(body)),
+                    new DiscourseLogger(64));
+            final ImapResponse fetch = p.readResponse();
+            assertTrue(fetch.isDataResponse(1, ImapConstants.FETCH));
+            final ImapList list = fetch.getListOrEmpty(2);
+            assertEquals(1, list.getKeyedStringOrEmpty("UID").getNumberOrZero());
+            assertEquals(size, list.getKeyedStringOrEmpty("RFC822.SIZE").getNumberOrZero());
+
+            final ImapString literal = list.getKeyedStringOrEmpty("BODY[]");
+            if (size > ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD) {
+                assertTrue(literal instanceof ImapTempFileLiteral);
+            } else {
+                assertTrue(literal instanceof ImapMemoryLiteral);
+            }
+            assertEquals(body, readFully(literal.getAsStream()));
+            assertTrue(p.readResponse().isOk());
+            p.destroyResponses();
+        }
+    }
+
+    /**
+     * Logs how long it takes to parse FETCH BODY[] responses of various sizes, from a body that
+     * fits the read buffer to one that goes to the temp file.
+     */
+    @LargeTest
+    public void testParseFetchBodyResponsesTime() throws Exception {
+        for (final int size : new int[] { 1024, 64 * 1024, 1024 * 1024, 3 * 1024 * 1024 }) {
+            final byte[] responses = makeFetchBodyResponses(makeBody(size));
+            final int passes = Math.max(5, 5 * 1024 * 1024 / size);
+            // Warm up.
+            parseFetchBodyResponses(responses);
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < passes; i++) {
+                parseFetchBodyResponses(responses);
+            }
+            final long elapsed = System.nanoTime() - start;
+            Log.i(TAG, size / 1024 + "KB body: " + (elapsed / passes / 1000)
+                    + " us per FETCH response");
+        }
+    }
+
+    private static void parseFetchBodyResponses(byte[] responses) throws Exception {
+        final ImapResponseParser p = new ImapResponseParser(new ByteArrayInputStream(responses),
+                new DiscourseLogger(64));
+        try {
+            p.readResponse();
+            p.readResponse();
+        } finally {
+            p.destroyResponses();
+        }
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return Utility.fromAscii(out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String makeBody(int size) {
+        final StringBuilder body = new StringBuilder(size);
+        while (body.length() < size) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit.\r\n");
+        }
+        body.setLength(size);
+        return body.toString();
+    }
+
+    /**
+     * Makes a FETCH response with the given body, followed by its completion.
+     */
+    private static byte[] makeFetchBodyResponses(String body) {
+        return Utility.toAscii("* 1 FETCH (UID 1 FLAGS (\\Seen) RFC822.SIZE " + body.length()
+                + " BODY[] {" + body.length() + "}\r\n" + body + ")\r\n"
+                + "A1 OK FETCH completed\r\n");
+    }
 }
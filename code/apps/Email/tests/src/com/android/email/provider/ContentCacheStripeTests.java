@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.email.provider.ContentCache.CacheToken;
+import com.android.mail.utils.MatrixCursorWithCachedColumns;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests of the lock stripes, size bound and statistics of ContentCache.  Unlike
+ * {@link ContentCacheTests}, these don't need the provider.
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.provider.ContentCacheStripeTests email
+ */
+@SmallTest
+public class ContentCacheStripeTests extends AndroidTestCase {
+    private static final String TAG = "ContentCacheStripeTests";
+
+    private static final String[] SIMPLE_PROJECTION = new String[] {"Foo"};
+
+    private static Cursor getOneRowCursor() {
+        return getOneRowCursor("Bar");
+    }
+
+    private static Cursor getOneRowCursor(String value) {
+        MatrixCursor cursor = new MatrixCursorWithCachedColumns(SIMPLE_PROJECTION, 1);
+        cursor.addRow(new Object[] {value});
+        return cursor;
+    }
+
+    private static Cursor put(ContentCache cache, String id, Cursor cursor) {
+        return cache.putCursor(cursor, id, SIMPLE_PROJECTION, cache.getCacheToken(id));
+    }
+
+    public void testStatistics() {
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 2);
+        assertNull(cache.getCachedCursor("1", SIMPLE_PROJECTION));
+        put(cache, "1", getOneRowCursor()).close();
+        cache.getCachedCursor("1", SIMPLE_PROJECTION).close();
+        put(cache, "2", getOneRowCursor()).close();
+        put(cache, "3", getOneRowCursor()).close();
+
+        ContentCache.Statistics stats = cache.getStatistics();
+        assertEquals(1, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+        // "1" made room for "3"
+        assertEquals(1, stats.getEvictionCount());
+        assertNull(cache.get("1"));
+    }
+
+    public void testEvictionBySize() {
+        // Each cursor takes about 2KB
+        final String value = new String(new char[1000]);
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 100, 5000, 1);
+        Cursor cursor1 = getOneRowCursor(value);
+        put(cache, "1", cursor1).close();
+        put(cache, "2", getOneRowCursor(value)).close();
+        assertEquals(2, cache.size());
+        assertTrue(cache.getByteSize() > 4000);
+
+        // The third doesn't fit along with the first two; the least recently used one goes
+        cache.getCachedCursor("1", SIMPLE_PROJECTION).close();
+        put(cache, "3", getOneRowCursor(value)).close();
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("1"));
+        assertNull(cache.get("2"));
+        assertTrue(cache.getByteSize() <= 5000);
+        assertEquals(1, cache.getStatistics().getEvictionCount());
+
+        // A cursor that is larger than the whole cache isn't cached at all
+        Cursor huge = getOneRowCursor(new String(new char[5000]));
+        assertSame(huge, put(cache, "4", huge));
+        assertNull(cache.get("4"));
+        assertFalse(cursor1.isClosed());
+    }
+
+    public void testTokensAcrossStripes() {
+        ContentCache cache = new ContentCache("Name", SIMPLE_PROJECTION, 256, Long.MAX_VALUE,
+                ContentCache.MAX_STRIPES);
+        // Take a token for many ids, so that they land in every stripe
+        CacheToken[] tokens = new CacheToken[32];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = cache.getCacheToken(Integer.toString(i));
+        }
+        // A write to one row only invalidates the tokens for that row
+        cache.lock("5");
+        assertFalse(tokens[5].isValid());
+        assertFalse(cache.getCacheToken("5").isValid());
+        for (int i = 0; i < tokens.length; i++) {
+            assertEquals(i != 5, tokens[i].isValid());
+        }
+        Cursor cursor = getOneRowCursor();
+        assertSame(cursor, cache.putCursor(cursor, "5", SIMPLE_PROJECTION, tokens[5]));
+        assertNull(cache.get("5"));
+        cache.unlock("5");
+        assertTrue(cache.getCacheToken("5").isValid());
+
+        // Invalidating the cache invalidates the tokens in every stripe
+        cache.invalidate();
+        for (int i = 0; i < tokens.length; i++) {
+            assertFalse(tokens[i].isValid());
+        }
+    }
+
+    /**
+     * Measures how many lookups per second a few threads get out of a cache, with a single stripe
+     * (a single lock, as the cache used to have) and with all stripes, while another thread keeps
+     * updating rows.
+     */
+    @LargeTest
+    public void testConcurrentLookups() throws Exception {
+        final int threads = 4;
+        final long single = measureLookups(1, threads);
+        final long striped = measureLookups(ContentCache.MAX_STRIPES, threads);
+        Log.i(TAG, threads + " threads: " + single + " lookups/s with one stripe, " + striped
+                + " lookups/s with " + ContentCache.MAX_STRIPES);
+    }
+
+    private long measureLookups(int stripes, int threadCount) throws Exception {
+        final int rows = 200;
+        final int lookupsPerThread = 200000;
+        final ContentCache cache =
+                new ContentCache("Bench", SIMPLE_PROJECTION, rows, Long.MAX_VALUE, stripes);
+        for (int i = 0; i < rows; i++) {
+            put(cache, Integer.toString(i), getOneRowCursor()).close();
+        }
+        final String[] ids = new String[rows];
+        for (int i = 0; i < rows; i++) {
+            ids[i] = Integer.toString(i);
+        }
+        final Thread[] readers = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final Random random = new Random(t);
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < lookupsPerThread; i++) {
+                        final String id = ids[random.nextInt(rows)];
+                        Cursor c = cache.getCachedCursor(id, SIMPLE_PROJECTION);
+                        if (c == null) {
+                            final CacheToken token = cache.getCacheToken(id);
+                            c = cache.putCursor(getOneRowCursor(), id, SIMPLE_PROJECTION, token);
+                        }
+                        assertEquals(1, c.getCount());
+                        c.close();
+                    }
+                }
+            };
+        }
+        // A writer, as sync would be
+        final AtomicBoolean done = new AtomicBoolean();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                final Random random = new Random();
+                while (!done.get()) {
+                    final String id = ids[random.nextInt(rows)];
+                    cache.lock(id);
+                    cache.unlock(id);
+                    Thread.yield();
+                }
+            }
+        };
+        final long start = System.nanoTime();
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        final long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+        done.set(true);
+        writer.join();
+        return (long) threadCount * lookupsPerThread * 1000 / elapsedMs;
+    }
+}
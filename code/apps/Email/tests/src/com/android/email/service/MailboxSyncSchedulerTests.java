@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.email.mail.Store;
+import com.android.email.mail.store.FakeImapServer;
+import com.android.email.mail.store.ImapStore;
+import com.android.emailcommon.mail.Folder;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.HostAuth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the MailboxSyncScheduler
+ *
+ * You can run this entire test case with:
+ *   runtest -c com.android.email.service.MailboxSyncSchedulerTests email
+ */
+@SmallTest
+public class MailboxSyncSchedulerTests extends AndroidTestCase {
+    private static final String TAG = "MailboxSyncSchedulerTests";
+
+    public void testAccountsDoNotBlockEachOther() {
+        final MailboxSyncScheduler scheduler = new MailboxSyncScheduler(1);
+        final MailboxSyncScheduler.Ticket first = scheduler.acquire(1, 10);
+        // Would block forever if accounts shared the single slot.
+        final MailboxSyncScheduler.Ticket second = scheduler.acquire(2, 20);
+        assertNotSame(first.getAccountLock(), second.getAccountLock());
+        assertTrue(scheduler.release(first));
+        assertTrue(scheduler.release(second));
+    }
+
+    public void testSyncsPerAccountAreBounded() throws Exception {
+        final MailboxSyncScheduler scheduler = new MailboxSyncScheduler(2);
+        final MailboxSyncScheduler.Ticket first = scheduler.acquire(1, 10);
+        final MailboxSyncScheduler.Ticket second = scheduler.acquire(1, 11);
+        assertSame(first.getAccountLock(), second.getAccountLock());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final Thread third = new Thread() {
+            @Override
+            public void run() {
+                final MailboxSyncScheduler.Ticket ticket = scheduler.acquire(1, 12);
+                started.countDown();
+                scheduler.release(ticket);
+            }
+        };
+        third.start();
+        assertFalse(started.await(200, TimeUnit.MILLISECONDS));
+
+        assertFalse(scheduler.release(first));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        third.join();
+        assertTrue(scheduler.release(second));
+    }
+
+    public void testSameMailboxRunsInRequestOrder() throws Exception {
+        final MailboxSyncScheduler scheduler = new MailboxSyncScheduler(2);
+        final MailboxSyncScheduler.Ticket first = scheduler.acquire(1, 10);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    final MailboxSyncScheduler.Ticket ticket = scheduler.acquire(1, 10);
+                    assertEquals(1, running.incrementAndGet());
+                    order.add(id);
+                    running.decrementAndGet();
+                    scheduler.release(ticket);
+                }
+            };
+            threads[i].start();
+            // Give the thread time to queue up behind the previous ones.
+            Thread.sleep(50);
+        }
+        // The mailbox is busy, even though the account has a free slot.
+        assertTrue(order.isEmpty());
+
+        assertFalse(scheduler.release(first));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3), order);
+    }
+
+    /**
+     * Measures the time it takes to sync 20 folders in each of 5 accounts against a local fake
+     * IMAP server that answers every command after a delay, once with every sync serialized as
+     * it used to be, and once with the scheduler.
+     */
+    @LargeTest
+    public void testSyncTime_5Accounts_20Folders() throws Exception {
+        final int accounts = 5;
+        final int folders = 20;
+        final FakeImapServer server =
+                new FakeImapServer(10 /* latencyMs */, 0 /* messagesPerFolder */);
+        final ExecutorService executor =
+                Executors.newFixedThreadPool(accounts * ImapStore.MAX_POOLED_CONNECTIONS);
+        try {
+            final Store[] stores = new Store[accounts];
+            for (int i = 0; i < accounts; i++) {
+                final HostAuth hostAuth = new HostAuth();
+                hostAuth.setLogin("user" + i, "password");
+                hostAuth.setConnection("imap", "127.0.0.1", server.getPort());
+                final Account account = new Account();
+                account.mId = i + 1;
+                account.mHostAuthRecv = hostAuth;
+                stores[i] = ImapStore.newInstance(account, getContext());
+            }
+
+            final long serializedTime = syncAll(executor, stores, folders, new Object());
+            final int serializedCommands = server.getCommandCount();
+            final long scheduledTime = syncAll(executor, stores, folders, null);
+            final int scheduledCommands = server.getCommandCount() - serializedCommands;
+
+            Log.i(TAG, accounts + " accounts x " + folders + " folders: serialized "
+                    + serializedTime + " ms (" + serializedCommands + " commands), scheduled "
+                    + scheduledTime + " ms (" + scheduledCommands + " commands)");
+            assertTrue(scheduledTime < serializedTime);
+        } finally {
+            executor.shutdownNow();
+            server.close();
+        }
+    }
+
+    /**
+     * Syncs every folder of every store on the executor, through a new scheduler or, if
+     * {@code globalLock} is not null, one at a time under that lock.
+     *
+     * @return the total time in milliseconds
+     */
+    private static long syncAll(ExecutorService executor, final Store[] stores, int folders,
+            final Object globalLock) throws Exception {
+        final MailboxSyncScheduler scheduler =
+                new MailboxSyncScheduler(ImapStore.MAX_POOLED_CONNECTIONS);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        final long start = System.currentTimeMillis();
+        for (int f = 0; f < folders; f++) {
+            for (int a = 0; a < stores.length; a++) {
+                final long accountId = a;
+                final Store store = stores[a];
+                final String folderName = "folder" + f;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (globalLock != null) {
+                            synchronized (globalLock) {
+                                syncFolder(store, folderName);
+                                store.closeConnections();
+                            }
+                            return;
+                        }
+                        final MailboxSyncScheduler.Ticket ticket =
+                                scheduler.acquire(accountId, folderName.hashCode());
+                        try {
+                            syncFolder(store, folderName);
+                        } finally {
+                            if (scheduler.release(ticket)) {
+                                store.closeConnections();
+                            }
+                        }
+                    }
+                }));
+            }
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * The remote part of a sync of an empty folder: select it and search for messages.
+     */
+    private static void syncFolder(Store store, String folderName) {
+        try {
+            final Folder folder = store.getFolder(folderName);
+            folder.open(OpenMode.READ_WRITE);
+            assertEquals(0, folder.getMessages(0, System.currentTimeMillis(), null).length);
+            folder.close(false);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
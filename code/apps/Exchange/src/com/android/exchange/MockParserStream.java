@@ -32,7 +32,7 @@ public class MockParserStream extends InputStream {
     int pos = 0;
     Object value;
 
-    MockParserStream (int[] _array) {
+    public MockParserStream (int[] _array) {
         array = _array;
     }
 
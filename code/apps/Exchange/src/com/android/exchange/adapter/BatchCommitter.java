@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.AsyncTask;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+
+import com.android.exchange.Eas;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the operations of a sync to a provider in batches, each on a background thread while
+ * the caller builds the next one.
+ * <p>
+ * Callers add the operations of one item (e.g. a message and its body and attachments) to
+ * {@link #getOps()} and then call {@link #endItem}. Batches are only cut between items, so back
+ * references within an item stay valid. A batch is handed off once it reaches the byte or
+ * operation limit of its authority; both limits adapt to how long the provider takes to apply
+ * a batch, and carry over from one sync to the next.
+ * <p>
+ * Batches are applied one at a time, in order. Once a batch fails, no later batch is applied and
+ * the failure is thrown from the next call to {@link #endItem} or {@link #finish}, so whatever
+ * the caller adds last (typically the new sync key) is only applied if everything else was.
+ */
+public class BatchCommitter {
+    private static final String TAG = Eas.LOG_TAG;
+
+    // Binder transactions are limited to 1MB for the whole process, so stay well below that.
+    @VisibleForTesting
+    static final int MAX_BATCH_BYTES = 512 * 1024;
+    @VisibleForTesting
+    static final int MIN_BATCH_BYTES = 32 * 1024;
+    @VisibleForTesting
+    static final int MAX_BATCH_OPS = 500;
+    @VisibleForTesting
+    static final int MIN_BATCH_OPS = 10;
+    // How long one batch should keep the provider's database locked.
+    @VisibleForTesting
+    static final long TARGET_BATCH_MS = 200;
+    // Rough size of an operation without its strings: uri, selection and column names.
+    private static final int OP_OVERHEAD_BYTES = 256;
+
+    /**
+     * Throughput counters and the current batch limits for one authority, i.e. one collection
+     * type.
+     */
+    public static class Stats {
+        private final String mAuthority;
+        private final AtomicLong mBatches = new AtomicLong();
+        private final AtomicLong mOps = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mMillis = new AtomicLong();
+        private final AtomicLong mTooLarge = new AtomicLong();
+        private volatile int mMaxOps = 50;
+        private volatile int mMaxBytes = MAX_BATCH_BYTES / 2;
+
+        private Stats(String authority) {
+            mAuthority = authority;
+        }
+
+        public long getBatchCount() {
+            return mBatches.get();
+        }
+
+        public long getOpCount() {
+            return mOps.get();
+        }
+
+        /**
+         * Returns the estimated size of the operations applied, or 0 if it is not known.
+         */
+        public long getByteCount() {
+            return mBytes.get();
+        }
+
+        /**
+         * Returns the total time spent applying batches.
+         */
+        public long getMillis() {
+            return mMillis.get();
+        }
+
+        /**
+         * Returns the number of batches that failed with a {@link TransactionTooLargeException}.
+         */
+        public long getTooLargeCount() {
+            return mTooLarge.get();
+        }
+
+        public int getMaxOps() {
+            return mMaxOps;
+        }
+
+        public int getMaxBytes() {
+            return mMaxBytes;
+        }
+
+        private void recordBatch(int ops, long bytes, long millis) {
+            mBatches.incrementAndGet();
+            mOps.addAndGet(ops);
+            mBytes.addAndGet(bytes);
+            mMillis.addAndGet(millis);
+        }
+
+        /**
+         * Moves the operation limit toward what the provider applies in {@link #TARGET_BATCH_MS},
+         * and the byte limit up toward {@link #MAX_BATCH_BYTES} after a full batch went through.
+         */
+        private void adapt(int ops, long bytes, long millis) {
+            final int maxOps = mMaxOps;
+            if (millis > TARGET_BATCH_MS) {
+                mMaxOps = Math.max(MIN_BATCH_OPS, (int) (ops * TARGET_BATCH_MS / millis));
+            } else if (ops >= maxOps && millis < TARGET_BATCH_MS / 2) {
+                mMaxOps = Math.min(MAX_BATCH_OPS, maxOps * 2);
+            }
+            final int maxBytes = mMaxBytes;
+            if (bytes >= maxBytes && millis <= TARGET_BATCH_MS) {
+                mMaxBytes = Math.min(MAX_BATCH_BYTES, maxBytes + maxBytes / 4);
+            }
+        }
+
+        private void tooLarge(long bytes) {
+            mTooLarge.incrementAndGet();
+            if (bytes > 0) {
+                mMaxBytes = (int) Math.max(MIN_BATCH_BYTES, Math.min(mMaxBytes, bytes / 2));
+            }
+        }
+
+        @Override
+        public String toString() {
+            final long millis = mMillis.get();
+            final long ops = mOps.get();
+            return mAuthority + ": " + mBatches.get() + " batches, " + ops + " ops, "
+                    + (mBytes.get() / 1024) + "KB in " + millis + "ms ("
+                    + (millis > 0 ? ops * 1000 / millis : 0) + " ops/s), " + mTooLarge.get()
+                    + " too large; limits " + mMaxOps + " ops, " + (mMaxBytes / 1024) + "KB";
+        }
+    }
+
+    private static final HashMap<String, Stats> sStats = new HashMap<String, Stats>();
+
+    /**
+     * Returns the throughput counters of the given authority.
+     */
+    public static Stats getStats(String authority) {
+        synchronized (sStats) {
+            Stats stats = sStats.get(authority);
+            if (stats == null) {
+                stats = new Stats(authority);
+                sStats.put(authority, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Applies the operations in a single batch on the calling thread, counting it in the
+     * throughput of the authority. For callers that need all their operations in one
+     * transaction, or the results of all of them.
+     */
+    public static ContentProviderResult[] applyBatch(ContentResolver resolver, String authority,
+            ArrayList<ContentProviderOperation> ops)
+            throws RemoteException, OperationApplicationException {
+        return applyBatch(resolver, getStats(authority), ops, 0);
+    }
+
+    private static ContentProviderResult[] applyBatch(ContentResolver resolver, Stats stats,
+            ArrayList<ContentProviderOperation> ops, long bytes)
+            throws RemoteException, OperationApplicationException {
+        final long start = SystemClock.elapsedRealtime();
+        final ContentProviderResult[] results;
+        try {
+            results = resolver.applyBatch(stats.mAuthority, ops);
+        } catch (TransactionTooLargeException e) {
+            stats.tooLarge(bytes);
+            throw e;
+        }
+        stats.recordBatch(ops.size(), bytes, SystemClock.elapsedRealtime() - start);
+        return results;
+    }
+
+    private final ContentResolver mResolver;
+    private final Stats mStats;
+    private final boolean mOneItemPerBatch;
+    private final Executor mExecutor;
+
+    private ArrayList<ContentProviderOperation> mOps = new ArrayList<ContentProviderOperation>();
+    private int mOpsAtItemStart;
+    private long mBytes;
+    // The batch being applied, if any.
+    private FutureTask<Void> mPending;
+
+    /**
+     * @param oneItemPerBatch whether to apply every item in a batch of its own, e.g. to retry
+     *         after a batch turned out to be too large anyway
+     */
+    public BatchCommitter(ContentResolver resolver, String authority, boolean oneItemPerBatch) {
+        this(resolver, authority, oneItemPerBatch, AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    @VisibleForTesting
+    BatchCommitter(ContentResolver resolver, String authority, boolean oneItemPerBatch,
+            Executor executor) {
+        mResolver = resolver;
+        mStats = getStats(authority);
+        mOneItemPerBatch = oneItemPerBatch;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the list to add the operations of the current item to. The list changes whenever a
+     * batch is handed off, so get it again for every item.
+     */
+    public ArrayList<ContentProviderOperation> getOps() {
+        return mOps;
+    }
+
+    /**
+     * Ends the current item, and hands off the batch if it is full.
+     *
+     * @param payloadBytes the size of the strings and blobs in the operations of the item;
+     *         strings take two bytes per char
+     */
+    public void endItem(long payloadBytes) throws RemoteException, OperationApplicationException {
+        mBytes += payloadBytes + (mOps.size() - mOpsAtItemStart) * OP_OVERHEAD_BYTES;
+        mOpsAtItemStart = mOps.size();
+        if (mOneItemPerBatch || mOps.size() >= mStats.mMaxOps || mBytes >= mStats.mMaxBytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Applies the last batch, and waits until all are applied.
+     */
+    public void finish() throws RemoteException, OperationApplicationException {
+        if (mOps.size() > mOpsAtItemStart) {
+            endItem(0);
+        }
+        flush();
+        awaitPending();
+        LogUtils.d(TAG, "%s", mStats);
+    }
+
+    /**
+     * Waits for the batch being applied, if any, without reporting its failure. Call this when
+     * giving up on the commit, before retrying it.
+     */
+    public void abandon() {
+        try {
+            awaitPending();
+        } catch (RemoteException e) {
+            // The caller already failed.
+        } catch (OperationApplicationException e) {
+            // The caller already failed.
+        } catch (RuntimeException e) {
+            // The caller already failed.
+        }
+    }
+
+    private void flush() throws RemoteException, OperationApplicationException {
+        // Only one batch at a time, so that they are applied in order.
+        awaitPending();
+        if (mOps.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> ops = mOps;
+        final long bytes = mBytes;
+        mOps = new ArrayList<ContentProviderOperation>(ops.size());
+        mOpsAtItemStart = 0;
+        mBytes = 0;
+        mPending = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws RemoteException, OperationApplicationException {
+                final long start = SystemClock.elapsedRealtime();
+                applyBatch(mResolver, mStats, ops, bytes);
+                mStats.adapt(ops.size(), bytes, SystemClock.elapsedRealtime() - start);
+                return null;
+            }
+        });
+        mExecutor.execute(mPending);
+    }
+
+    private void awaitPending() throws RemoteException, OperationApplicationException {
+        final FutureTask<Void> pending = mPending;
+        if (pending == null) {
+            return;
+        }
+        mPending = null;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    pending.get();
+                    return;
+                } catch (InterruptedException e) {
+                    // The batch is being applied either way; don't lose track of it.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            } else if (cause instanceof OperationApplicationException) {
+                throw (OperationApplicationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
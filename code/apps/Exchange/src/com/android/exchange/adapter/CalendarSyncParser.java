@@ -1254,7 +1254,8 @@ public class CalendarSyncParser extends AbstractSyncParser {
             throws RemoteException, OperationApplicationException {
         if (!ops.isEmpty()) {
             try {
-                ContentProviderResult[] result = contentResolver.applyBatch(authority, ops);
+                ContentProviderResult[] result =
+                        BatchCommitter.applyBatch(contentResolver, authority, ops);
                 //mService.userLog("Results: " + result.length);
                 return result;
             } catch (IllegalArgumentException e) {
@@ -842,7 +842,8 @@ public class ContactsSyncParser extends AbstractSyncParser {
         public void execute(final Context context) {
             try {
                 if (!isEmpty()) {
-                    mResults = context.getContentResolver().applyBatch(
+                    // One batch, since the results are looked up by index.
+                    mResults = BatchCommitter.applyBatch(context.getContentResolver(),
                             ContactsContract.AUTHORITY, this);
                 }
             } catch (RemoteException e) {
@@ -45,6 +45,7 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -86,10 +87,6 @@ public class EmailSyncParser extends AbstractSyncParser {
     // Max times to retry when we get a TransactionTooLargeException exception
     private static final int MAX_RETRIES = 10;
 
-    // Max number of ops per batch. It could end up more than this but once we detect we are at or
-    // above this number, we flush.
-    private static final int MAX_OPS_PER_BATCH = 50;
-
     private boolean mFetchNeeded = false;
 
     private final Map<String, Integer> mMessageUpdateStatus = new HashMap();
@@ -218,12 +215,14 @@ public class EmailSyncParser extends AbstractSyncParser {
                     skipParser(tag);
                     break;
                 case Tags.EMAIL2_CONVERSATION_ID:
-                    msg.mServerConversationId =
-                            Base64.encodeToString(getValueBytes(), Base64.URL_SAFE);
+                    final ByteBuffer conversationId = getValueView();
+                    msg.mServerConversationId = Base64.encodeToString(conversationId.array(),
+                            conversationId.arrayOffset(), conversationId.remaining(),
+                            Base64.URL_SAFE);
                     break;
                 case Tags.EMAIL2_CONVERSATION_INDEX:
                     // Ignore this byte array since we're not constructing a tree.
-                    getValueBytes();
+                    getValueView();
                     break;
                 case Tags.EMAIL2_LAST_VERB_EXECUTED:
                     int val = getValueInt();
@@ -788,44 +787,55 @@ public class EmailSyncParser extends AbstractSyncParser {
     }
 
     /**
-     * Commit all changes. This results in a Binder IPC call which has constraint on the size of
+     * Commit all changes. This results in Binder IPC calls which have a constraint on the size of
      * the data, the docs say it currently 1MB. We set a limit to the size of the message we fetch
      * with {@link Eas#EAS12_TRUNCATION_SIZE} & {@link Eas#EAS12_TRUNCATION_SIZE} which are at 200k
      * or bellow. As long as these limits are bellow 500k, we should be able to apply a single
      * message (the transaction size is about double the message size because Java strings are 16
      * bit.
      * <b/>
-     * We first try to apply the changes in normal chunk size {@link #MAX_OPS_PER_BATCH}. If we get
-     * a {@link TransactionTooLargeException} we try again with but this time, we apply each change
-     * immediately.
+     * The changes are applied by a {@link BatchCommitter}, in batches sized by their estimated
+     * size and by how long the provider takes to apply them, while the next batch is built. If we
+     * get a {@link TransactionTooLargeException} anyway we try again, but this time we apply each
+     * change in a batch of its own.
      */
     @Override
     public void commit() throws RemoteException, OperationApplicationException {
         try {
-            commitImpl(MAX_OPS_PER_BATCH);
+            commitImpl(false);
         } catch (TransactionTooLargeException e1) {
             // Try again but apply batch after every message. The max message size defined in
             // Eas.EAS12_TRUNCATION_SIZE or Eas.EAS2_5_TRUNCATION_SIZE is small enough to fit
             // in a single Binder call.
             LogUtils.w(TAG, e1, "Transaction too large, retrying in single mode");
             try {
-                commitImpl(1);
+                commitImpl(true);
             } catch (TransactionTooLargeException e2) {
                 LogUtils.wtf(TAG, e2, "Transaction too large with batch size one");
             }
         }
     }
 
-    public void commitImpl(int maxOpsPerBatch)
+    public void commitImpl(boolean oneItemPerBatch)
             throws RemoteException, OperationApplicationException {
-        // Use a batch operation to handle the changes
-        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        final BatchCommitter committer =
+                new BatchCommitter(mContentResolver, EmailContent.AUTHORITY, oneItemPerBatch);
+        boolean finished = false;
+        try {
+            commitImpl(committer);
+            finished = true;
+        } finally {
+            if (!finished) {
+                committer.abandon();
+            }
+        }
+    }
 
+    private void commitImpl(final BatchCommitter committer)
+            throws RemoteException, OperationApplicationException {
         // Maximum size of message text per fetch
         int numFetched = fetchedEmails.size();
-        LogUtils.d(TAG, "commitImpl: maxOpsPerBatch=%d numFetched=%d numNew=%d "
-                + "numDeleted=%d numChanged=%d",
-                maxOpsPerBatch,
+        LogUtils.d(TAG, "commitImpl: numFetched=%d numNew=%d numDeleted=%d numChanged=%d",
                 numFetched,
                 newEmails.size(),
                 deletedEmails.size(),
@@ -854,6 +864,7 @@ public class EmailSyncParser extends AbstractSyncParser {
             if (id != null) {
                 LogUtils.i(TAG, "Fetched body successfully for %s", id);
                 final String[] bindArgument = new String[] {id};
+                final ArrayList<ContentProviderOperation> ops = committer.getOps();
                 ops.add(ContentProviderOperation.newUpdate(EmailContent.Body.CONTENT_URI)
                         .withSelection(EmailContent.Body.SELECTION_BY_MESSAGE_KEY, bindArgument)
                         .withValue(EmailContent.BodyColumns.TEXT_CONTENT, msg.mText)
@@ -863,62 +874,69 @@ public class EmailSyncParser extends AbstractSyncParser {
                         .withValue(MessageColumns.FLAG_LOADED,
                                 EmailContent.Message.FLAG_LOADED_COMPLETE)
                         .build());
+                committer.endItem(2L * length(msg.mText));
             }
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
         }
 
         for (EmailContent.Message msg: newEmails) {
-            msg.addSaveOps(ops);
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
+            msg.addSaveOps(committer.getOps());
+            committer.endItem(estimateSaveBytes(msg));
         }
 
         for (Long id : deletedEmails) {
-            ops.add(ContentProviderOperation.newDelete(
+            committer.getOps().add(ContentProviderOperation.newDelete(
                     ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, id)).build());
             AttachmentUtilities.deleteAllAttachmentFiles(mContext, mAccount.mId, id);
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
+            committer.endItem(0);
         }
 
-        if (!changedEmails.isEmpty()) {
-            // Server wins in a conflict...
-            for (ServerChange change : changedEmails) {
-                ContentValues cv = new ContentValues();
-                if (change.read != null) {
-                    cv.put(EmailContent.MessageColumns.FLAG_READ, change.read);
-                }
-                if (change.flag != null) {
-                    cv.put(EmailContent.MessageColumns.FLAG_FAVORITE, change.flag);
-                }
-                if (change.flags != null) {
-                    cv.put(EmailContent.MessageColumns.FLAGS, change.flags);
-                }
-                ops.add(ContentProviderOperation.newUpdate(
-                        ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, change.id))
-                        .withValues(cv)
-                        .build());
+        // Server wins in a conflict...
+        for (ServerChange change : changedEmails) {
+            ContentValues cv = new ContentValues();
+            if (change.read != null) {
+                cv.put(EmailContent.MessageColumns.FLAG_READ, change.read);
+            }
+            if (change.flag != null) {
+                cv.put(EmailContent.MessageColumns.FLAG_FAVORITE, change.flag);
+            }
+            if (change.flags != null) {
+                cv.put(EmailContent.MessageColumns.FLAGS, change.flags);
             }
-            applyBatchIfNeeded(ops, maxOpsPerBatch, false);
+            committer.getOps().add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, change.id))
+                    .withValues(cv)
+                    .build());
+            committer.endItem(0);
         }
 
-        // We only want to update the sync key here
+        // We only want to update the sync key here, once everything else has been applied
         ContentValues mailboxValues = new ContentValues();
         mailboxValues.put(Mailbox.SYNC_KEY, mMailbox.mSyncKey);
-        ops.add(ContentProviderOperation.newUpdate(
+        committer.getOps().add(ContentProviderOperation.newUpdate(
                 ContentUris.withAppendedId(Mailbox.CONTENT_URI, mMailbox.mId))
                 .withValues(mailboxValues).build());
 
-        applyBatchIfNeeded(ops, maxOpsPerBatch, true);
+        committer.finish();
         userLog(mMailbox.mDisplayName, " SyncKey saved as: ", mMailbox.mSyncKey);
     }
 
-    // Check if there at least MAX_OPS_PER_BATCH ops in queue and flush if there are.
-    // If force is true, flush regardless of size.
-    private void applyBatchIfNeeded(ArrayList<ContentProviderOperation> ops, int maxOpsPerBatch,
-            boolean force)
-            throws RemoteException, OperationApplicationException {
-        if (force ||  ops.size() >= maxOpsPerBatch) {
-            mContentResolver.applyBatch(EmailContent.AUTHORITY, ops);
-            ops.clear();
+    /**
+     * Estimates the size of the strings that {@link EmailContent.Message#addSaveOps} writes for
+     * the message; the body and the addresses make up nearly all of it.
+     */
+    private static long estimateSaveBytes(final EmailContent.Message msg) {
+        long chars = length(msg.mText) + length(msg.mHtml) + length(msg.mSnippet)
+                + length(msg.mSubject) + length(msg.mFrom) + length(msg.mTo) + length(msg.mCc)
+                + length(msg.mBcc) + length(msg.mReplyTo) + length(msg.mMeetingInfo);
+        if (msg.mAttachments != null) {
+            for (EmailContent.Attachment att : msg.mAttachments) {
+                chars += length(att.mFileName) + length(att.mLocation) + length(att.mContentId);
+            }
         }
+        return 2 * chars;
+    }
+
+    private static int length(final String s) {
+        return s == null ? 0 : s.length();
     }
 }
@@ -26,15 +26,14 @@ import com.android.exchange.utility.FileLogger;
 import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
 
 /**
  * Extremely fast and lightweight WBXML parser, implementing only the subset of WBXML that
@@ -52,6 +51,9 @@ import java.util.Deque;
  *      Processing instructions
  *      Attribute encoding
  *
+ * Parsing allocates nothing per tag or per value: the stack of open tags is an int array, and
+ * values are read into a buffer that is reused for the next value.  Strings are only created
+ * when asked for with {@link #getValue()}.
  */
 public abstract class Parser {
     private static final boolean LOG_VERBOSE = false;
@@ -69,6 +71,8 @@ public abstract class Parser {
     private static final int NOT_ENDED = Integer.MIN_VALUE;
     private static final int EOF_BYTE = -1;
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     private boolean capture = false;
 
     private ArrayList<Integer> captureArray;
@@ -76,48 +80,13 @@ public abstract class Parser {
     // The input stream for this parser
     private InputStream in;
 
-    // The stack of names of tags being processed; used when debug = true
-    private String[] nameArray = new String[32];
-
-    public class Tag {
-        private final int mPage;
-        private final int mIndex;
-        // Whether the tag is associated with content (a value)
-        public final boolean mNoContent;
-        private final String mName;
-
-        public Tag(final int page, final int id) {
-            mPage = page;
-            // The tag is in the low 6 bits
-            mIndex = id & Tags.PAGE_MASK;
-            // If the high bit is set, there is content (a value) to be read
-            mNoContent = (id & Wbxml.WITH_CONTENT) == 0;
-            if (Tags.isGlobalTag(mIndex)) {
-                mName = "unsupported-WBXML";
-            } else if (!Tags.isValidTag(mPage, mIndex)) {
-                mName = "unknown";
-            } else {
-                mName = Tags.getTagName(mPage, mIndex);
-            }
-        }
-
-        public int getTagNum() {
-            if (Tags.isGlobalTag(mIndex)) {
-                return mIndex;
-            }
-            return (mPage << Tags.PAGE_SHIFT) | mIndex;
-        }
-
-        @Override
-        public String toString() {
-            return mName;
-        }
-    }
-
-    // The stack of tags being processed
-    private final Deque<Tag> startTagArray = new ArrayDeque<Tag>();
+    // The stack of tags being processed, in the format of getTagNum(); the top is at
+    // startTagDepth - 1
+    private int[] startTagArray = new int[16];
+    private int startTagDepth;
 
-    private Tag startTag;
+    // The tag last started or ended, in the format of getTagNum()
+    private int startTag;
 
     // The type of the last token read (eg, TEXT, OPAQUE, END, etc).
     private int type;
@@ -133,11 +102,13 @@ public abstract class Parser {
     // Whether the current tag is associated with content (a value)
     public boolean noContent;
 
-    // The value read, as a String
-    private String text;
+    // The value read (UTF-8 for TEXT, raw for OPAQUE) is in value[0..valueLength). The buffer is
+    // reused for every value, and grows as needed.
+    private byte[] value = new byte[256];
+    private int valueLength;
 
-    // The value read, as bytes
-    private byte[] bytes;
+    // A view of value, handed out by getValueView()
+    private ByteBuffer valueView = ByteBuffer.wrap(value);
 
     // TODO: Define a new parse exception type rather than lumping these in as IOExceptions.
 
@@ -227,26 +198,26 @@ public abstract class Parser {
      * @throws IOException
      */
     public byte[] getValueBytes() throws IOException {
-        final String name = startTag.toString();
-
-        getNext();
-        // This means there was no value given, just <Foo/>; we'll return empty array
-        if (type == END) {
-            log("No value for tag: " + name);
-            return new byte[0];
-        } else if (type != OPAQUE && type != TEXT) {
-            throw new EasParserException("Expected OPAQUE or TEXT data for tag " + name);
-        }
+        readValue(true);
+        return Arrays.copyOf(value, valueLength);
+    }
 
-        // Save the value
-        final byte[] val = type == OPAQUE ? bytes : text.getBytes("UTF-8");
-        // Read the next token; it had better be the end of the current tag
-        getNext();
-        // If not, throw an exception
-        if (type != END) {
-            throw new EasParserException("No END found for tag " + name);
+    /**
+     * Like {@link #getValueBytes()}, but without copying the value: returns a view of the
+     * parser's own buffer, positioned at the start of the value and limited to its end.  The
+     * view and its contents are only valid until the parser is next used, and must not be
+     * modified.
+     *
+     * @return the value of the current tag
+     * @throws IOException
+     */
+    public ByteBuffer getValueView() throws IOException {
+        readValue(true);
+        if (valueView.array() != value) {
+            valueView = ByteBuffer.wrap(value);
         }
-        return val;
+        valueView.limit(valueLength).position(0);
+        return valueView;
     }
 
     /**
@@ -257,26 +228,8 @@ public abstract class Parser {
      * @throws IOException
      */
     public String getValue() throws IOException {
-        final String name = startTag.toString();
-
-        getNext();
-        // This means there was no value given, just <Foo/>; we'll return empty string for now
-        if (type == END) {
-            log("No value for tag: " + name);
-            return "";
-        } else if (type != TEXT) {
-            throw new EasParserException("Expected TEXT data for tag " + name);
-        }
-
-        // Save the value
-        final String val = text;
-        // Read the next token; it had better be the end of the current tag
-        getNext();
-        // If not, throw an exception
-        if (type != END) {
-            throw new EasParserException("No END found for tag " + name);
-        }
-        return val;
+        readValue(false);
+        return valueLength == 0 ? "" : new String(value, 0, valueLength, UTF_8);
     }
 
     /**
@@ -288,20 +241,71 @@ public abstract class Parser {
      * @throws IOException
      */
     public int getValueInt() throws IOException {
-        final String val = getValue();
-        if (val.length() == 0) {
+        readValue(false);
+        if (valueLength == 0) {
             return 0;
         }
 
+        // Parse plain ASCII numbers, which is what servers send, without making a String.
+        final boolean negative = value[0] == '-';
+        int i = (negative || value[0] == '+') ? 1 : 0;
+        if (i < valueLength && valueLength - i <= 9) {
+            int num = 0;
+            for (; i < valueLength; i++) {
+                final int digit = value[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                num = num * 10 + digit;
+            }
+            if (i == valueLength) {
+                return negative ? -num : num;
+            }
+        }
+
+        // Anything else gets the full treatment, including the exception.
+        final String val = new String(value, 0, valueLength, UTF_8);
         int num;
         try {
             num = Integer.parseInt(val);
         } catch (NumberFormatException e) {
-            throw new EasParserException("Tag " + startTag + ": " + e.getMessage());
+            throw new EasParserException("Tag " + getTagName(startTag) + ": " + e.getMessage());
         }
         return num;
     }
 
+    /**
+     * Read the value of the current tag into {@link #value}, and the end of the tag.  Sets
+     * {@link #valueLength} to 0 if there was no value.
+     *
+     * @param allowOpaque whether OPAQUE data is accepted as well as TEXT
+     * @throws IOException
+     */
+    private void readValue(final boolean allowOpaque) throws IOException {
+        final int thisTag = startTag;
+
+        getNext();
+        // This means there was no value given, just <Foo/>; we'll return an empty value
+        if (type == END) {
+            if (EasService.getProtocolLogging()) {
+                log("No value for tag: " + getTagName(thisTag));
+            }
+            valueLength = 0;
+            return;
+        } else if (type != TEXT && (type != OPAQUE || !allowOpaque)) {
+            throw new EasParserException((allowOpaque ? "Expected OPAQUE or TEXT data for tag "
+                    : "Expected TEXT data for tag ") + getTagName(thisTag));
+        }
+
+        // Read the next token; it had better be the end of the current tag. This doesn't touch
+        // the value we just read.
+        getNext();
+        // If not, throw an exception
+        if (type != END) {
+            throw new EasParserException("No END found for tag " + getTagName(thisTag));
+        }
+    }
+
     /**
      * Return the next tag found in the stream; special tags END and END_DOCUMENT are used to
      * mark the end of the current tag and end of document.  If we hit end of document without
@@ -317,10 +321,10 @@ public abstract class Parser {
         while (getNext() != DONE) {
             // If we're a start, set tag to include the page and return it
             if (type == START) {
-                tag = startTag.getTagNum();
+                tag = startTag;
                 return tag;
             // If we're at the ending tag we're looking for, return the END signal
-            } else if (type == END && startTag.getTagNum() == endingTag) {
+            } else if (type == END && startTag == endingTag) {
                 return END;
             }
         }
@@ -341,10 +345,10 @@ public abstract class Parser {
      * @throws IOException
      */
     public void skipTag() throws IOException {
-        final int thisTag = startTag.getTagNum();
+        final int thisTag = startTag;
         // Just loop until we hit the end of the current tag
         while (getNext() != DONE) {
-            if (type == END && startTag.getTagNum() == thisTag) {
+            if (type == END && startTag == thisTag) {
                 return;
             }
         }
@@ -400,7 +404,7 @@ public abstract class Parser {
         } else {
             logStr = str;
         }
-        final char [] charArray = new char[startTagArray.size() * 2];
+        final char [] charArray = new char[startTagDepth * 2];
         Arrays.fill(charArray, ' ');
         final String indent = new String(charArray);
         LogUtils.d(LOG_TAG, "%s", indent + logStr);
@@ -415,6 +419,32 @@ public abstract class Parser {
         }
     }
 
+    /**
+     * @return the name of a tag in the format of {@link #getTagNum}, for logging
+     */
+    private static String getTagName(final int tagNum) {
+        final int page = tagNum >>> Tags.PAGE_SHIFT;
+        final int index = tagNum & Tags.PAGE_MASK;
+        if (Tags.isGlobalTag(tagNum)) {
+            return "unsupported-WBXML";
+        } else if (!Tags.isValidTag(page, index)) {
+            return "unknown";
+        }
+        return Tags.getTagName(page, index);
+    }
+
+    /**
+     * @return the tag number for a tag token read on a page: the page number shifted PAGE_SHIFT
+     * bits OR'd with the tag in the low 6 bits, or just the tag for global tags
+     */
+    private static int getTagNum(final int page, final int id) {
+        final int index = id & Tags.PAGE_MASK;
+        if (Tags.isGlobalTag(index)) {
+            return index;
+        }
+        return (page << Tags.PAGE_SHIFT) | index;
+    }
+
     protected void pushTag(final int id) {
         page = id >>> Tags.PAGE_SHIFT;
         push(id);
@@ -422,16 +452,24 @@ public abstract class Parser {
 
     protected void pop() {
         // Retrieve the now-current startTag from our stack
-        startTag = startTagArray.removeFirst();
-        log("</" + startTag + '>');
+        startTag = startTagArray[--startTagDepth];
+        if (EasService.getProtocolLogging()) {
+            log("</" + getTagName(startTag) + '>');
+        }
     }
 
     private void push(final int id) {
-        startTag = new Tag(page, id);
-        noContent = startTag.mNoContent;
-        log("<" + startTag + (noContent ? '/' : "") + '>');
+        startTag = getTagNum(page, id);
+        // If the high bit is set, there is content (a value) to be read
+        noContent = (id & Wbxml.WITH_CONTENT) == 0;
+        if (EasService.getProtocolLogging()) {
+            log("<" + getTagName(startTag) + (noContent ? '/' : "") + '>');
+        }
         // Save the startTag to our stack
-        startTagArray.addFirst(startTag);
+        if (startTagDepth == startTagArray.length) {
+            startTagArray = Arrays.copyOf(startTagArray, startTagDepth * 2);
+        }
+        startTagArray[startTagDepth++] = startTag;
     }
 
     /**
@@ -443,11 +481,8 @@ public abstract class Parser {
      * @throws IOException
      */
     private final int getNext() throws IOException {
-        bytes = null;
-        text = null;
-
         if (noContent) {
-            startTagArray.removeFirst();
+            startTagDepth--;
             type = END;
             noContent = false;
             return type;
@@ -463,7 +498,9 @@ public abstract class Parser {
                 // invalid data from the server so throw an exception here.
                 throw new EasParserException("Unknown code page " + page);
             }
-            logVerbose("Page: " + page);
+            if (LOG_VERBOSE) {
+                logVerbose("Page: " + page);
+            }
             id = read();
         }
 
@@ -481,19 +518,24 @@ public abstract class Parser {
             case Wbxml.STR_I:
                 // Inline string
                 type = TEXT;
-                text = readInlineString();
-                log(startTag + ": " + text);
+                readInlineString();
+                if (EasService.getProtocolLogging()) {
+                    log(getTagName(startTag) + ": " + new String(value, 0, valueLength, UTF_8));
+                }
                 break;
 
             case Wbxml.OPAQUE:
                 // Integer length + opaque data
                 type = OPAQUE;
                 final int length = readInt();
-                bytes = new byte[length];
+                ensureValueCapacity(length);
                 for (int i = 0; i < length; i++) {
-                    bytes[i] = (byte)readByte();
+                    value[i] = (byte)readByte();
+                }
+                valueLength = length;
+                if (EasService.getProtocolLogging()) {
+                    log(getTagName(startTag) + ": (opaque:" + length + ") ");
                 }
-                log(startTag + ": (opaque:" + length + ") ");
                 break;
 
             default:
@@ -526,7 +568,9 @@ public abstract class Parser {
         if (capture) {
             captureArray.add(i);
         }
-        logVerbose("Byte: " + i);
+        if (LOG_VERBOSE) {
+            logVerbose("Byte: " + i);
+        }
         return i;
     }
 
@@ -561,13 +605,12 @@ public abstract class Parser {
     }
 
     /**
-     * Read an inline string from the stream
+     * Read an inline string from the stream into {@link #value}, as UTF-8 bytes.
      *
-     * @return the String as parsed from the stream
      * @throws IOException
      */
-    private String readInlineString() throws IOException {
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(256);
+    private void readInlineString() throws IOException {
+        int length = 0;
         while (true) {
             final int i = read();
             if (i == 0) {
@@ -575,11 +618,17 @@ public abstract class Parser {
             } else if (i == EOF_BYTE) {
                 throw new EofException();
             }
-            outputStream.write(i);
+            if (length == value.length) {
+                ensureValueCapacity(length + 1);
+            }
+            value[length++] = (byte) i;
+        }
+        valueLength = length;
+    }
+
+    private void ensureValueCapacity(final int capacity) {
+        if (capacity > value.length) {
+            value = Arrays.copyOf(value, Math.max(capacity, value.length * 2));
         }
-        outputStream.flush();
-        final String res = outputStream.toString("UTF-8");
-        outputStream.close();
-        return res;
     }
 }
@@ -36,9 +36,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Deque;
 
 public class Serializer {
     private static final String TAG = Eas.LOG_TAG;
@@ -47,8 +45,12 @@ public class Serializer {
 
     private final OutputStream mOutput;
     private int mPendingTag = NOT_PENDING;
-    private final Deque<String> mNameStack = new ArrayDeque<String>();
+    // The tags started but not ended yet; the top is at mTagDepth - 1
+    private int[] mTagStack = new int[16];
+    private int mTagDepth = 0;
     private int mTagPage = 0;
+    // Reused for encoding inline strings and copying opaque data
+    private byte[] mBuffer = new byte[256];
 
     public Serializer() throws IOException {
         this(new ByteArrayOutputStream(), true);
@@ -91,7 +93,7 @@ public class Serializer {
         } else {
             logStr = str;
         }
-        final char [] charArray = new char[mNameStack.size() * 2];
+        final char [] charArray = new char[mTagDepth * 2];
         Arrays.fill(charArray, ' ');
         final String indent = new String(charArray);
         LogUtils.d(TAG, "%s%s", indent, logStr);
@@ -101,7 +103,7 @@ public class Serializer {
     }
 
     public void done() throws IOException {
-        if (mNameStack.size() != 0 || mPendingTag != NOT_PENDING) {
+        if (mTagDepth != 0 || mPendingTag != NOT_PENDING) {
             throw new IOException("Done received with unclosed tags");
         }
         mOutput.flush();
@@ -128,21 +130,32 @@ public class Serializer {
         }
 
         mOutput.write(degenerated ? tag : tag | Wbxml.WITH_CONTENT);
-        String name = "unknown";
-        if (!Tags.isValidPage(page)) {
-            log("Unrecognized page " + page);
-        } else if (!Tags.isValidTag(page, tag)) {
-            log("Unknown tag " + tag + " on page " + page);
-        } else {
-            name = Tags.getTagName(page, tag);
+        if (EasService.getProtocolLogging()) {
+            if (!Tags.isValidPage(page)) {
+                log("Unrecognized page " + page);
+            } else if (!Tags.isValidTag(page, tag)) {
+                log("Unknown tag " + tag + " on page " + page);
+            }
+            log("<" + getTagName(mPendingTag) + (degenerated ? "/>" : ">"));
         }
-        log("<" + name + (degenerated ? "/>" : ">"));
         if (!degenerated) {
-            mNameStack.addFirst(name);
+            if (mTagDepth == mTagStack.length) {
+                mTagStack = Arrays.copyOf(mTagStack, mTagDepth * 2);
+            }
+            mTagStack[mTagDepth++] = mPendingTag;
         }
         mPendingTag = NOT_PENDING;
     }
 
+    private static String getTagName(final int tag) {
+        final int page = tag >> Tags.PAGE_SHIFT;
+        final int index = tag & Tags.PAGE_MASK;
+        if (!Tags.isValidTag(page, index)) {
+            return "unknown";
+        }
+        return Tags.getTagName(page, index);
+    }
+
     public Serializer start(final int tag) throws IOException {
         checkPendingTag(false);
         mPendingTag = tag;
@@ -153,9 +166,14 @@ public class Serializer {
         if (mPendingTag >= 0) {
             checkPendingTag(true);
         } else {
+            if (mTagDepth == 0) {
+                throw new IllegalStateException("End received with no open tags");
+            }
             mOutput.write(Wbxml.END);
-            final String tagName = mNameStack.removeFirst();
-            log("</" + tagName + '>');
+            final int tag = mTagStack[--mTagDepth];
+            if (EasService.getProtocolLogging()) {
+                log("</" + getTagName(tag) + '>');
+            }
         }
         return this;
     }
@@ -184,8 +202,10 @@ public class Serializer {
             throw new IOException("Null text write for pending tag: " + mPendingTag);
         }
         checkPendingTag(false);
-        writeInlineString(mOutput, text);
-        log(text);
+        writeInlineString(text);
+        if (EasService.getProtocolLogging()) {
+            log(text);
+        }
         return this;
     }
 
@@ -195,12 +215,18 @@ public class Serializer {
      */
     public Serializer opaque(final InputStream is, final int length) throws IOException {
         writeOpaqueHeader(length);
-        log("opaque: " + length);
+        if (EasService.getProtocolLogging()) {
+            log("opaque: " + length);
+        }
         // Now write out the opaque data in batches
-        final byte[] buffer = new byte[BUFFER_SIZE];
+        if (length > 0) {
+            ensureBufferCapacity(Math.min(BUFFER_SIZE, length));
+        }
+        final byte[] buffer = mBuffer;
         int totalBytesRead = 0;
         while (totalBytesRead < length) {
-            final int bytesRead = is.read(buffer, 0, Math.min(BUFFER_SIZE, length));
+            final int bytesRead = is.read(buffer, 0,
+                    Math.min(buffer.length, length - totalBytesRead));
             if (bytesRead == -1) {
                 throw new IOException("Invalid opaque data block; read "
                         + totalBytesRead + " bytes but expected " + length);
@@ -231,28 +257,60 @@ public class Serializer {
     }
 
     @VisibleForTesting
-    static void writeInteger(final OutputStream out, int i) throws IOException {
-        final byte[] buf = new byte[5];
-        int idx = 0;
-
-        do {
-            buf[idx++] = (byte) (i & 0x7f);
-            // Use >>> to shift in 0s so loop terminates
-            i = i >>> 7;
-        } while (i != 0);
-
-        while (idx > 1) {
-            out.write(buf[--idx] | 0x80);
+    static void writeInteger(final OutputStream out, final int i) throws IOException {
+        // Count the 7 bit groups after the first one, then write them most significant first.
+        // Use >>> to shift in 0s so loop terminates
+        int shift = 0;
+        while (((i >>> shift) & ~0x7f) != 0) {
+            shift += 7;
+        }
+        for (; shift > 0; shift -= 7) {
+            out.write(((i >>> shift) & 0x7f) | 0x80);
         }
-        out.write(buf[0]);
+        out.write(i & 0x7f);
     }
 
-    private static void writeInlineString(final OutputStream out, final String s)
-        throws IOException {
-        out.write(Wbxml.STR_I);
-        final byte[] data = s.getBytes("UTF-8");
-        out.write(data);
-        out.write(0);
+    /**
+     * Writes s as a 0-terminated UTF-8 string, encoding it into {@link #mBuffer} rather than a
+     * new array.  Unpaired surrogates become '?', as with String.getBytes("UTF-8").
+     */
+    private void writeInlineString(final String s) throws IOException {
+        final int length = s.length();
+        // A char takes at most 3 bytes; a surrogate pair takes 4 bytes for 2 chars.
+        ensureBufferCapacity(length * 3 + 2);
+        final byte[] buf = mBuffer;
+        int n = 0;
+        buf[n++] = (byte) Wbxml.STR_I;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xc0 | (c >> 6));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[n++] = (byte) (0xf0 | (cp >> 18));
+                buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buf[n++] = '?';
+            } else {
+                buf[n++] = (byte) (0xe0 | (c >> 12));
+                buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        buf[n++] = 0;
+        mOutput.write(buf, 0, n);
+    }
+
+    private void ensureBufferCapacity(final int capacity) {
+        if (capacity > mBuffer.length) {
+            mBuffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+        }
     }
 
     /**
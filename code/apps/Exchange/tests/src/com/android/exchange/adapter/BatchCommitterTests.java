@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.exchange.adapter;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * You can run this entire test case with:
+ *   runtest -c com.android.exchange.adapter.BatchCommitterTests exchange
+ */
+@SmallTest
+public class BatchCommitterTests extends AndroidTestCase {
+    private static final Uri URI = Uri.parse("content://batchcommitter/item");
+
+    /**
+     * Records the batches it is given, and fails the one at {@link #mFailAt} if set.
+     */
+    private static class RecordingResolver extends MockContentResolver {
+        final List<ArrayList<ContentProviderOperation>> mBatches =
+                Collections.synchronizedList(new ArrayList<ArrayList<ContentProviderOperation>>());
+        int mFailAt = -1;
+        RemoteException mFailure;
+
+        @Override
+        public ContentProviderResult[] applyBatch(String authority,
+                ArrayList<ContentProviderOperation> ops)
+                throws RemoteException, OperationApplicationException {
+            if (mBatches.size() == mFailAt) {
+                mBatches.add(new ArrayList<ContentProviderOperation>(ops));
+                throw mFailure;
+            }
+            mBatches.add(new ArrayList<ContentProviderOperation>(ops));
+            final ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(1);
+            }
+            return results;
+        }
+    }
+
+    private static ArrayList<ContentProviderOperation> addItems(BatchCommitter committer,
+            int items, int opsPerItem, long bytesPerItem) throws Exception {
+        final ArrayList<ContentProviderOperation> all = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < items; i++) {
+            for (int j = 0; j < opsPerItem; j++) {
+                final ContentProviderOperation op =
+                        ContentProviderOperation.newInsert(URI).withValue("item", i).build();
+                committer.getOps().add(op);
+                all.add(op);
+            }
+            committer.endItem(bytesPerItem);
+        }
+        return all;
+    }
+
+    public void testBatchesAreCutBetweenItems() throws Exception {
+        final RecordingResolver resolver = new RecordingResolver();
+        final BatchCommitter committer = new BatchCommitter(resolver, "cut", false);
+        final ArrayList<ContentProviderOperation> all = addItems(committer, 100, 3, 0);
+        committer.finish();
+
+        final ArrayList<ContentProviderOperation> applied =
+                new ArrayList<ContentProviderOperation>();
+        for (ArrayList<ContentProviderOperation> batch : resolver.mBatches) {
+            assertEquals(0, batch.size() % 3);
+            applied.addAll(batch);
+        }
+        assertTrue(resolver.mBatches.size() > 1);
+        assertEquals(all, applied);
+        final BatchCommitter.Stats stats = BatchCommitter.getStats("cut");
+        assertEquals(resolver.mBatches.size(), stats.getBatchCount());
+        assertEquals(300, stats.getOpCount());
+    }
+
+    public void testBatchesAreCutBySize() throws Exception {
+        final RecordingResolver resolver = new RecordingResolver();
+        final BatchCommitter committer = new BatchCommitter(resolver, "size", false);
+        addItems(committer, 10, 1, BatchCommitter.MAX_BATCH_BYTES / 2);
+        committer.finish();
+
+        for (ArrayList<ContentProviderOperation> batch : resolver.mBatches) {
+            assertTrue(batch.size() <= 2);
+        }
+    }
+
+    public void testOneItemPerBatch() throws Exception {
+        final RecordingResolver resolver = new RecordingResolver();
+        final BatchCommitter committer = new BatchCommitter(resolver, "single", true);
+        addItems(committer, 5, 2, 0);
+        committer.getOps().add(ContentProviderOperation.newDelete(URI).build());
+        committer.finish();
+
+        assertEquals(6, resolver.mBatches.size());
+        assertEquals(1, resolver.mBatches.get(5).size());
+    }
+
+    public void testFailureStopsLaterBatches() throws Exception {
+        final RecordingResolver resolver = new RecordingResolver();
+        resolver.mFailAt = 0;
+        resolver.mFailure = new RemoteException();
+        final BatchCommitter committer = new BatchCommitter(resolver, "failure", true);
+        try {
+            addItems(committer, 5, 1, 0);
+            committer.finish();
+            fail("Expected RemoteException");
+        } catch (RemoteException e) {
+            assertSame(resolver.mFailure, e);
+        }
+        // The failure is reported before another batch is handed off.
+        assertEquals(1, resolver.mBatches.size());
+    }
+
+    public void testTooLargeShrinksByteLimit() throws Exception {
+        final RecordingResolver resolver = new RecordingResolver();
+        resolver.mFailAt = 0;
+        resolver.mFailure = new TransactionTooLargeException();
+        final BatchCommitter.Stats stats = BatchCommitter.getStats("toolarge");
+        final int maxBytes = stats.getMaxBytes();
+        final long tooLarge = stats.getTooLargeCount();
+        final BatchCommitter committer = new BatchCommitter(resolver, "toolarge", false);
+        try {
+            addItems(committer, 1, 1, maxBytes);
+            committer.finish();
+            fail("Expected TransactionTooLargeException");
+        } catch (TransactionTooLargeException e) {
+            // Expected
+        }
+        assertEquals(tooLarge + 1, stats.getTooLargeCount());
+        assertTrue(stats.getMaxBytes() < maxBytes);
+        assertTrue(stats.getMaxBytes() >= BatchCommitter.MIN_BATCH_BYTES);
+    }
+}
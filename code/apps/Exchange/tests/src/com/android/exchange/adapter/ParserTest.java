@@ -17,20 +17,28 @@
 package com.android.exchange.adapter;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
+import android.util.Log;
 
+import com.android.exchange.MockParserStream;
 import com.android.exchange.service.EasService;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Deque;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 @SmallTest
 public class ParserTest extends AndroidTestCase {
+    private static final String TAG = "ParserTest";
+
     public class TestParser extends Parser {
         private Deque<Object> mExpectedData;
 
@@ -241,4 +249,207 @@ public class ParserTest extends AndroidTestCase {
             // expected
         }
     }
+
+    @SmallTest
+    public void testValueView() throws Exception {
+        // <Tag>0x11 0x22 0x33</Tag> <Tag>"DF"</Tag> <Tag/>
+        final String values = "03 01 6A 00 45 4D C3 03 11 22 33 01 4D 03 44 46 00 01 0D 01";
+        final Parser parser = new TestParser(getTestInputStream(values), null);
+        assertEquals(0x05, parser.nextTag(Parser.START_DOCUMENT));
+        assertEquals(0x0D, parser.nextTag(Parser.START_DOCUMENT));
+        assertEquals("112233", byteArrayToHexString(toByteArray(parser.getValueView())));
+        assertEquals(0x0D, parser.nextTag(Parser.START_DOCUMENT));
+        assertEquals("4446", byteArrayToHexString(toByteArray(parser.getValueView())));
+        assertEquals(0x0D, parser.nextTag(Parser.START_DOCUMENT));
+        assertEquals(0, parser.getValueView().remaining());
+    }
+
+    @SmallTest
+    public void testLongUtf8Text() throws Exception {
+        // Longer than the parser's initial value buffer, with multi-byte characters.
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("\u00e9\u4e2d\ud83d\ude00");
+        }
+        final Serializer s = new Serializer();
+        s.data(0x0B, sb.toString()).done();
+        testParserHelper(byteArrayToHexString(s.toByteArray()), new Object[] {sb.toString()});
+    }
+
+    private static byte[] toByteArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static final int STRING = 1;
+    private static final int INT = 2;
+    private static final int BODY = 3;
+
+    /** The fields of each item, as {tag, kind}, roughly as an Exchange server sends them. */
+    private static final int[][] EMAIL_FIELDS = {
+            { Tags.EMAIL_TO, STRING }, { Tags.EMAIL_FROM, STRING },
+            { Tags.EMAIL_SUBJECT, STRING }, { Tags.EMAIL_DATE_RECEIVED, STRING },
+            { Tags.EMAIL_DISPLAY_TO, STRING }, { Tags.EMAIL_IMPORTANCE, INT },
+            { Tags.EMAIL_READ, INT }, { Tags.EMAIL_MESSAGE_CLASS, STRING },
+            { Tags.BASE_BODY, BODY } };
+    private static final int[][] CONTACTS_FIELDS = {
+            { Tags.CONTACTS_FIRST_NAME, STRING }, { Tags.CONTACTS_LAST_NAME, STRING },
+            { Tags.CONTACTS_EMAIL1_ADDRESS, STRING },
+            { Tags.CONTACTS_MOBILE_TELEPHONE_NUMBER, STRING },
+            { Tags.CONTACTS_COMPANY_NAME, STRING }, { Tags.CONTACTS_JOB_TITLE, STRING } };
+    private static final int[][] CALENDAR_FIELDS = {
+            { Tags.CALENDAR_TIME_ZONE, STRING }, { Tags.CALENDAR_DTSTAMP, STRING },
+            { Tags.CALENDAR_START_TIME, STRING }, { Tags.CALENDAR_END_TIME, STRING },
+            { Tags.CALENDAR_SUBJECT, STRING }, { Tags.CALENDAR_LOCATION, STRING },
+            { Tags.CALENDAR_UID, STRING }, { Tags.CALENDAR_ALL_DAY_EVENT, INT },
+            { Tags.CALENDAR_BUSY_STATUS, INT }, { Tags.CALENDAR_SENSITIVITY, INT },
+            { Tags.CALENDAR_REMINDER_MINS_BEFORE, INT }, { Tags.BASE_BODY, BODY } };
+
+    /**
+     * Serializes Sync responses with the items EmailSyncParser, ContactsSyncParser and
+     * CalendarSyncParser handle, and parses them back through a MockParserStream as captured with
+     * captureOn(), reading every value the way those parsers do.
+     */
+    @SmallTest
+    public void testSyncResponseRoundTrip() throws Exception {
+        EasService.setProtocolLogging(false);
+        checkSyncResponse(EMAIL_FIELDS);
+        checkSyncResponse(CONTACTS_FIELDS);
+        checkSyncResponse(CALENDAR_FIELDS);
+    }
+
+    private static void checkSyncResponse(int[][] fields) throws Exception {
+        final ArrayList<Object> expected = new ArrayList<Object>();
+        final int[] captured = makeSyncResponse(fields, 200, expected);
+        assertEquals(expected, parseSyncResponse(captured, getKinds(fields)));
+    }
+
+    /**
+     * Parses captured Sync responses of 1000 email, contacts and calendar items, the size of a
+     * large initial sync, and logs how long serializing and parsing them takes.
+     */
+    @LargeTest
+    public void testSyncResponseParseTime() throws Exception {
+        EasService.setProtocolLogging(false);
+        logSyncResponseTime("Email", EMAIL_FIELDS);
+        logSyncResponseTime("Contacts", CONTACTS_FIELDS);
+        logSyncResponseTime("Calendar", CALENDAR_FIELDS);
+    }
+
+    private static void logSyncResponseTime(String name, int[][] fields) throws Exception {
+        final int items = 1000;
+        final int passes = 5;
+        final int[] kinds = getKinds(fields);
+        final ArrayList<Object> values = new ArrayList<Object>();
+        // Warm up.
+        final int[] captured = makeSyncResponse(fields, items, values);
+        parseSyncResponse(captured, kinds);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            makeSyncResponse(fields, items, new ArrayList<Object>());
+        }
+        final long serializeTime = (System.nanoTime() - start) / passes;
+
+        start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            parseSyncResponse(captured, kinds);
+        }
+        final long parseTime = (System.nanoTime() - start) / passes;
+
+        Log.i(TAG, name + ", " + items + " items, " + values.size() + " values, "
+                + captured.length + " bytes: serialize " + (serializeTime / 1000) + " us, parse "
+                + (parseTime / 1000) + " us");
+    }
+
+    /**
+     * Returns the kind of the value of each tag of a Sync response with the given fields.
+     */
+    private static int[] getKinds(int[][] fields) {
+        final int[] kinds = new int[Tags.mPages.length << Tags.PAGE_SHIFT];
+        kinds[Tags.SYNC_SYNC_KEY] = STRING;
+        kinds[Tags.SYNC_STATUS] = INT;
+        kinds[Tags.SYNC_SERVER_ID] = STRING;
+        kinds[Tags.BASE_TYPE] = INT;
+        kinds[Tags.BASE_DATA] = STRING;
+        for (int[] field : fields) {
+            kinds[field[0]] = field[1];
+        }
+        return kinds;
+    }
+
+    /**
+     * Makes a Sync response adding {@code items} items with the given fields, in the format
+     * recorded by {@link Parser#captureOn()}.
+     *
+     * @param values receives the values written, as Strings or Integers by kind
+     */
+    private static int[] makeSyncResponse(int[][] fields, int items, List<Object> values)
+            throws IOException {
+        final StringBuilder body = new StringBuilder();
+        while (body.length() < 2048) {
+            body.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit. ");
+        }
+        final Serializer s = new Serializer();
+        s.start(Tags.SYNC_SYNC).start(Tags.SYNC_COLLECTIONS).start(Tags.SYNC_COLLECTION);
+        s.data(Tags.SYNC_SYNC_KEY, "1234567890").data(Tags.SYNC_STATUS, "1");
+        values.add("1234567890");
+        values.add(1);
+        s.start(Tags.SYNC_COMMANDS);
+        for (int i = 0; i < items; i++) {
+            s.start(Tags.SYNC_ADD).data(Tags.SYNC_SERVER_ID, "1:" + i);
+            values.add("1:" + i);
+            s.start(Tags.SYNC_APPLICATION_DATA);
+            for (int[] field : fields) {
+                if (field[1] == BODY) {
+                    s.start(Tags.BASE_BODY).data(Tags.BASE_TYPE, "1");
+                    s.data(Tags.BASE_DATA, body.toString()).end();
+                    values.add(1);
+                    values.add(body.toString());
+                } else if (field[1] == INT) {
+                    s.data(field[0], Integer.toString(i % 3));
+                    values.add(i % 3);
+                } else {
+                    s.data(field[0], "Value " + i + " of tag " + field[0]);
+                    values.add("Value " + i + " of tag " + field[0]);
+                }
+            }
+            s.end().end(); // SYNC_APPLICATION_DATA, SYNC_ADD
+        }
+        s.end().end().end().end().done();
+        final byte[] bytes = s.toByteArray();
+        final int[] captured = new int[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            captured[i] = bytes[i] & 0xFF;
+        }
+        return captured;
+    }
+
+    /**
+     * Parses a Sync response, reading each value the way its kind says.
+     *
+     * @return the values read, as Strings or Integers by kind
+     */
+    private static List<Object> parseSyncResponse(int[] captured, final int[] kinds)
+            throws Exception {
+        final ArrayList<Object> values = new ArrayList<Object>();
+        final Parser parser = new Parser(new MockParserStream(captured)) {
+            @Override
+            public boolean parse() throws IOException {
+                assertEquals(Tags.SYNC_SYNC, nextTag(START_DOCUMENT));
+                // MockParserStream fails rather than report its end, so stop at the end of Sync.
+                while (nextTag(Tags.SYNC_SYNC) != END) {
+                    if (kinds[tag] == STRING) {
+                        values.add(getValue());
+                    } else if (kinds[tag] == INT) {
+                        values.add(getValueInt());
+                    }
+                }
+                return true;
+            }
+        };
+        parser.parse();
+        return values;
+    }
 }
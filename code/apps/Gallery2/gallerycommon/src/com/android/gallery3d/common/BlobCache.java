@@ -52,9 +52,28 @@
 // [20] Blob
 //
 // Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// support concurrent use by multiple threads, unless it is created with
+// concurrentReads set to true. In that mode any number of threads can call
+// lookup() while one thread at a time calls the other methods:
+//
+// - The data files are mapped read-only in segments of SEGMENT_SIZE bytes, as
+//   far as they hold data. The writer maps the next segment before appending
+//   into it, and extends the file to cover it. Once mapped, the data files
+//   are never truncated, so that readers can't access pages past the end of
+//   file. A flip just starts overwriting the new active file from the
+//   beginning.
+// - Readers probe the mapped index and copy blobs out of the mapped data files
+//   without taking any lock. They may see an index entry before its blob is
+//   written, or a blob that is being overwritten; both are caught by the key,
+//   offset and checksum checks in the blob header, and are reported as misses.
+// - Writers hold an internal lock. A reader that finds a blob in the inactive
+//   region only copies it to the active region if that lock is free.
+// - If a data file can't be mapped, the cache keeps its contents and falls
+//   back to taking the lock for every lookup.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
+// public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+//         int version, boolean concurrentReads) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
@@ -71,10 +90,12 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.Adler32;
 
 public class BlobCache implements Closeable {
@@ -103,6 +124,11 @@ public class BlobCache implements Closeable {
     private static final int BH_LENGTH = 16;
     private static final int BLOB_HEADER_SIZE = 20;
 
+    // The data files are mapped in segments of this size for concurrent readers.
+    private static final int SEGMENT_SHIFT = 22;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final MappedByteBuffer[] NO_SEGMENTS = new MappedByteBuffer[0];
+
     private RandomAccessFile mIndexFile;
     private RandomAccessFile mDataFile0;
     private RandomAccessFile mDataFile1;
@@ -111,7 +137,8 @@ public class BlobCache implements Closeable {
 
     private int mMaxEntries;
     private int mMaxBytes;
-    private int mActiveRegion;
+    // Volatile so that concurrent readers see flips; see lookupConcurrently().
+    private volatile int mActiveRegion;
     private int mActiveEntries;
     private int mActiveBytes;
     private int mVersion;
@@ -124,6 +151,17 @@ public class BlobCache implements Closeable {
     private byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
     private Adler32 mAdler32 = new Adler32();
 
+    // Only used when the cache is created with concurrentReads.
+    private final boolean mConcurrentReads;
+    private final ReentrantLock mWriteLock = new ReentrantLock();
+    // Whether lookups read the mapped data files; false if mapping failed.
+    private volatile boolean mMapped;
+    // Set once the data files were mapped; they must not shrink after that.
+    private boolean mKeepDataFiles;
+    // Replaced, never modified, when the writer maps more of a data file.
+    private volatile MappedByteBuffer[] mSegments0 = NO_SEGMENTS;
+    private volatile MappedByteBuffer[] mSegments1 = NO_SEGMENTS;
+
     // Creates the cache. Three files will be created:
     // path + ".idx", path + ".0", and path + ".1"
     // The ".0" file and the ".1" file each stores data for a region. Each of
@@ -137,20 +175,32 @@ public class BlobCache implements Closeable {
 
     public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
             int version) throws IOException {
+        this(path, maxEntries, maxBytes, reset, version, false);
+    }
+
+    // If "concurrentReads" is true, lookup(LookupRequest) can be called from
+    // several threads at once, concurrently with the other methods. See the
+    // comment at the top of the file. This maps the data the files hold, so it
+    // takes up to 2 * maxBytes of address space.
+    public BlobCache(String path, int maxEntries, int maxBytes, boolean reset,
+            int version, boolean concurrentReads) throws IOException {
+        mConcurrentReads = concurrentReads;
         mIndexFile = new RandomAccessFile(path + ".idx", "rw");
         mDataFile0 = new RandomAccessFile(path + ".0", "rw");
         mDataFile1 = new RandomAccessFile(path + ".1", "rw");
         mVersion = version;
 
-        if (!reset && loadIndex()) {
-            return;
-        }
+        if (reset || !loadIndex()) {
+            resetCache(maxEntries, maxBytes);
 
-        resetCache(maxEntries, maxBytes);
+            if (!loadIndex()) {
+                closeAll();
+                throw new IOException("unable to load index");
+            }
+        }
 
-        if (!loadIndex()) {
-            closeAll();
-            throw new IOException("unable to load index");
+        if (mConcurrentReads) {
+            mapDataFiles();
         }
     }
 
@@ -174,8 +224,13 @@ public class BlobCache implements Closeable {
     // called after this is called.
     @Override
     public void close() {
-        syncAll();
-        closeAll();
+        mWriteLock.lock();
+        try {
+            syncAll();
+            closeAll();
+        } finally {
+            mWriteLock.unlock();
+        }
     }
 
     private void closeAll() {
@@ -281,10 +336,66 @@ public class BlobCache implements Closeable {
         }
     }
 
+    // Maps the data both files hold for concurrent readers. If that fails,
+    // lookups take the lock instead.
+    private void mapDataFiles() {
+        mMapped = true;
+        mapSegments(mActiveRegion, mActiveBytes);
+        try {
+            mapSegments(1 - mActiveRegion,
+                    (int) Math.min(mInactiveDataFile.length(), mMaxBytes));
+        } catch (IOException ex) {
+            fallBackToLocking(ex);
+        }
+    }
+
+    // Maps the segments of the data file of the region that hold the bytes
+    // before end, unless they are mapped already. Must be called by the
+    // writer; readers see the new segments once they are all mapped.
+    private void mapSegments(int region, int end) {
+        if (!mMapped) {
+            return;
+        }
+        MappedByteBuffer[] segments = getSegments(region);
+        int count = (int) (((long) end + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+        if (count <= segments.length) {
+            return;
+        }
+        RandomAccessFile file = (region == 0) ? mDataFile0 : mDataFile1;
+        try {
+            mKeepDataFiles = true;
+            long mappedEnd = Math.min((long) count << SEGMENT_SHIFT, mMaxBytes);
+            if (file.length() < mappedEnd) {
+                file.setLength(mappedEnd);
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segments, count);
+            for (int i = segments.length; i < count; i++) {
+                long start = (long) i << SEGMENT_SHIFT;
+                grown[i] = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        start, Math.min(SEGMENT_SIZE, mappedEnd - start));
+            }
+            if (region == 0) {
+                mSegments0 = grown;
+            } else {
+                mSegments1 = grown;
+            }
+        } catch (IOException ex) {
+            fallBackToLocking(ex);
+        }
+    }
+
+    private void fallBackToLocking(IOException ex) {
+        Log.w(TAG, "cannot map data file, lookups will take the lock", ex);
+        mMapped = false;
+    }
+
     private void setActiveVariables() throws IOException {
         mActiveDataFile = (mActiveRegion == 0) ? mDataFile0 : mDataFile1;
         mInactiveDataFile = (mActiveRegion == 1) ? mDataFile0 : mDataFile1;
-        mActiveDataFile.setLength(mActiveBytes);
+        if (!mKeepDataFiles) {
+            // Once the data files are mapped, they must not shrink.
+            mActiveDataFile.setLength(mActiveBytes);
+        }
         mActiveDataFile.seek(mActiveBytes);
 
         mActiveHashStart = INDEX_HEADER_SIZE;
@@ -325,6 +436,11 @@ public class BlobCache implements Closeable {
 
     // Flip the active region and the inactive region.
     private void flipRegion() throws IOException {
+        if (mConcurrentReads) {
+            // Readers may switch to the new active region before the flip is
+            // done, so drop its old entries first.
+            clearHash(getHashStart(1 - mActiveRegion));
+        }
         mActiveRegion = 1 - mActiveRegion;
         mActiveEntries = 0;
         mActiveBytes = DATA_HEADER_SIZE;
@@ -364,30 +480,42 @@ public class BlobCache implements Closeable {
             throw new RuntimeException("blob is too large!");
         }
 
-        if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
-                || mActiveEntries * 2 >= mMaxEntries) {
-            flipRegion();
-        }
+        mWriteLock.lock();
+        try {
+            if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes
+                    || mActiveEntries * 2 >= mMaxEntries) {
+                flipRegion();
+            }
 
-        if (!lookupInternal(key, mActiveHashStart)) {
-            // If we don't have an existing entry with the same key, increase
-            // the entry count.
-            mActiveEntries++;
-            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-        }
+            if (!lookupInternal(key, mActiveHashStart)) {
+                // If we don't have an existing entry with the same key, increase
+                // the entry count.
+                mActiveEntries++;
+                writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            }
 
-        insertInternal(key, data, data.length);
-        updateIndexHeader();
+            insertInternal(key, data, data.length);
+            updateIndexHeader();
+        } finally {
+            mWriteLock.unlock();
+        }
     }
 
     public void clearEntry(long key) throws IOException {
-        if (!lookupInternal(key, mActiveHashStart)) {
-            return; // Nothing to clear
+        mWriteLock.lock();
+        try {
+            if (!lookupInternal(key, mActiveHashStart)) {
+                return; // Nothing to clear
+            }
+            byte[] header = mBlobHeader;
+            Arrays.fill(header, (byte) 0);
+            mActiveDataFile.seek(mFileOffset);
+            mActiveDataFile.write(header);
+            // New blobs are appended at the file pointer.
+            mActiveDataFile.seek(mActiveBytes);
+        } finally {
+            mWriteLock.unlock();
         }
-        byte[] header = mBlobHeader;
-        Arrays.fill(header, (byte) 0);
-        mActiveDataFile.seek(mFileOffset);
-        mActiveDataFile.write(header);
     }
 
     // Appends the data to the active file. It also updates the hash entry.
@@ -395,6 +523,7 @@ public class BlobCache implements Closeable {
     // pointed by mSlotOffset.
     private void insertInternal(long key, byte[] data, int length)
             throws IOException {
+        mapSegments(mActiveRegion, mActiveBytes + BLOB_HEADER_SIZE + length);
         byte[] header = mBlobHeader;
         int sum = checkSum(data);
         writeLong(header, BH_KEY, key);
@@ -420,10 +549,11 @@ public class BlobCache implements Closeable {
     // accepting LookupRequest to avoid repeated memory allocation.
     private LookupRequest mLookupRequest = new LookupRequest();
     public byte[] lookup(long key) throws IOException {
-        mLookupRequest.key = key;
-        mLookupRequest.buffer = null;
-        if (lookup(mLookupRequest)) {
-            return mLookupRequest.buffer;
+        LookupRequest req = mConcurrentReads ? new LookupRequest() : mLookupRequest;
+        req.key = key;
+        req.buffer = null;
+        if (lookup(req)) {
+            return req.buffer;
         } else {
             return null;
         }
@@ -440,6 +570,21 @@ public class BlobCache implements Closeable {
     // This method tries not to throw IOException even if the data file is
     // corrupted, but it can still throw IOException if things get strange.
     public boolean lookup(LookupRequest req) throws IOException {
+        if (mConcurrentReads) {
+            if (mMapped) {
+                return lookupConcurrently(req);
+            }
+            mWriteLock.lock();
+            try {
+                return lookupLocked(req);
+            } finally {
+                mWriteLock.unlock();
+            }
+        }
+        return lookupLocked(req);
+    }
+
+    private boolean lookupLocked(LookupRequest req) throws IOException {
         // Look up in the active region first.
         if (lookupInternal(req.key, mActiveHashStart)) {
             if (getBlob(mActiveDataFile, mFileOffset, req)) {
@@ -479,6 +624,160 @@ public class BlobCache implements Closeable {
     }
 
 
+    // The lock-free version of lookup(LookupRequest), used when the cache was
+    // created with concurrentReads. It only reads the mapped index and data
+    // files, and keeps its state on the stack.
+    private boolean lookupConcurrently(LookupRequest req) {
+        final int activeRegion = mActiveRegion;
+        int offset = findBlob(req.key, getHashStart(activeRegion));
+        if (offset != 0 && readBlob(getSegments(activeRegion), offset, req)) {
+            return true;
+        }
+
+        offset = findBlob(req.key, getHashStart(1 - activeRegion));
+        if (offset != 0 && readBlob(getSegments(1 - activeRegion), offset, req)) {
+            // Copy the blob over to the active region like lookup() does, but
+            // never wait for a writer to do so.
+            if (mWriteLock.tryLock()) {
+                try {
+                    copyToActiveRegion(req);
+                } finally {
+                    mWriteLock.unlock();
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private int getHashStart(int region) {
+        return INDEX_HEADER_SIZE + region * mMaxEntries * 12;
+    }
+
+    private MappedByteBuffer[] getSegments(int region) {
+        return region == 0 ? mSegments0 : mSegments1;
+    }
+
+    // Probes the specified hash region for the key without modifying it.
+    // Returns the file offset of the blob, or 0 if the key is not found.
+    private int findBlob(long key, int hashStart) {
+        int slot = (int) (key % mMaxEntries);
+        if (slot < 0) slot += mMaxEntries;
+        for (int i = 0; i < mMaxEntries; i++) {
+            int offset = hashStart + slot * 12;
+            int candidateOffset = mIndexBuffer.getInt(offset + 8);
+            if (candidateOffset == 0) {
+                return 0;
+            }
+            if (mIndexBuffer.getLong(offset) == key) {
+                return candidateOffset;
+            }
+            if (++slot >= mMaxEntries) {
+                slot = 0;
+            }
+        }
+        return 0;
+    }
+
+    // Copies the blob at the specified offset of the mapped data file to
+    // req.buffer, like getBlob(). The blob may be overwritten by the writer
+    // while this runs, so any mismatch is a miss rather than a corruption.
+    private boolean readBlob(MappedByteBuffer[] segments, int offset,
+            LookupRequest req) {
+        if (offset < DATA_HEADER_SIZE
+                || offset > mMaxBytes - BLOB_HEADER_SIZE) {
+            return false;
+        }
+        byte[] header = new byte[BLOB_HEADER_SIZE];
+        if (!readSegments(segments, offset, header, BLOB_HEADER_SIZE)) {
+            return false;
+        }
+        long blobKey = readLong(header, BH_KEY);
+        if (blobKey == 0 || blobKey != req.key) {
+            return false;
+        }
+        int sum = readInt(header, BH_CHECKSUM);
+        if (readInt(header, BH_OFFSET) != offset) {
+            return false;
+        }
+        int length = readInt(header, BH_LENGTH);
+        if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
+            return false;
+        }
+        if (req.buffer == null || req.buffer.length < length) {
+            req.buffer = new byte[length];
+        }
+        if (!readSegments(segments, offset + BLOB_HEADER_SIZE, req.buffer, length)) {
+            return false;
+        }
+        req.length = length;
+        return adler32(req.buffer, 0, length) == sum;
+    }
+
+    // Copies length bytes at the specified offset of a mapped data file to
+    // dst. They may span segments. Returns false if they aren't all mapped.
+    private static boolean readSegments(MappedByteBuffer[] segments, int offset,
+            byte[] dst, int length) {
+        int copied = 0;
+        while (copied < length) {
+            int index = offset >> SEGMENT_SHIFT;
+            if (index >= segments.length) {
+                return false;
+            }
+            // Bulk reads need a position, which can't be shared between threads.
+            ByteBuffer src = segments[index].duplicate();
+            int start = offset - (index << SEGMENT_SHIFT);
+            int count = Math.min(length - copied, src.capacity() - start);
+            if (count <= 0) {
+                return false;
+            }
+            src.position(start);
+            src.get(dst, copied, count);
+            offset += count;
+            copied += count;
+        }
+        return true;
+    }
+
+    // Appends a blob found in the inactive region to the active region.
+    // Must be called with mWriteLock held.
+    private void copyToActiveRegion(LookupRequest req) {
+        if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes
+                || mActiveEntries * 2 >= mMaxEntries) {
+            return;
+        }
+        // Another thread may have copied it, or a flip may have happened.
+        if (lookupInternal(req.key, mActiveHashStart)) {
+            return;
+        }
+        try {
+            insertInternal(req.key, req.buffer, req.length);
+            mActiveEntries++;
+            writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+            updateIndexHeader();
+        } catch (Throwable t) {
+            Log.e(TAG, "cannot copy over");
+        }
+    }
+
+    // Same as Adler32, without the shared state of mAdler32.
+    static int adler32(byte[] data, int offset, int length) {
+        long a = 1;
+        long b = 0;
+        int end = offset + length;
+        while (offset < end) {
+            // a and b can't overflow a long within a chunk of this size.
+            int chunkEnd = Math.min(end, offset + 65536);
+            for (; offset < chunkEnd; offset++) {
+                a += data[offset] & 0xff;
+                b += a;
+            }
+            a %= 65521;
+            b %= 65521;
+        }
+        return (int) ((b << 16) | a);
+    }
+
     // Copies the blob for the specified offset in the specified file to
     // req.buffer. If req.buffer is null or too small, allocate a buffer and
     // assign it to req.buffer.
@@ -575,6 +874,7 @@ public class BlobCache implements Closeable {
     }
 
     public void syncIndex() {
+        // The index buffer is written by insert(), which holds mWriteLock.
         try {
             mIndexBuffer.force();
         } catch (Throwable t) {
@@ -19,11 +19,12 @@ package com.android.gallery3d.util;
 import android.util.Log;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreadPool {
     @SuppressWarnings("unused")
@@ -37,11 +38,22 @@ public class ThreadPool {
     public static final int MODE_CPU = 1;
     public static final int MODE_NETWORK = 2;
 
+    // Priority classes. Queued jobs of a lower class run first, and jobs of
+    // the same class run in the order they were submitted.
+    public static final int PRIORITY_VISIBLE = 0;  // shown on screen right now
+    public static final int PRIORITY_DEFAULT = 1;
+    public static final int PRIORITY_PREFETCH = 2; // may be shown soon
+    // Cancelled jobs that are still queued are moved ahead of everything
+    // else, so that they are dropped (and their listeners called) right away.
+    private static final int PRIORITY_CANCELLED = -1;
+
     public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
     ResourceCounter mCpuCounter = new ResourceCounter(2);
     ResourceCounter mNetworkCounter = new ResourceCounter(2);
 
+    private final AtomicLong mSequence = new AtomicLong();
+
     // A Job is like a Callable, but it has an addition JobContext parameter.
     public interface Job<T> {
         public T run(JobContext jc);
@@ -89,7 +101,7 @@ public class ThreadPool {
     public ThreadPool(int initPoolSize, int maxPoolSize) {
         mExecutor = new ThreadPoolExecutor(
                 initPoolSize, maxPoolSize, KEEP_ALIVE_TIME,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
                 new PriorityThreadFactory("thread-pool",
                 android.os.Process.THREAD_PRIORITY_BACKGROUND));
         // SPRD:Add 20150505 by Spreadst for bug434569, RejectedExecutionException is thrown in monkey
@@ -110,7 +122,13 @@ public class ThreadPool {
     // Submit a job to the thread pool. The listener will be called when the
     // job is finished (or cancelled).
     public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        Worker<T> w = new Worker<T>(job, listener);
+        return submit(job, listener, PRIORITY_DEFAULT);
+    }
+
+    // Same as above, with one of the PRIORITY_* classes. The priority only
+    // decides which queued job starts next; it doesn't preempt running jobs.
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener, int priority) {
+        Worker<T> w = new Worker<T>(job, listener, priority, mSequence.getAndIncrement());
         // SPRD:Add 20150505 by Spreadst for bug434569, RejectedExecutionException is thrown in monkey
         // Add to judge whether ThreadPoolExecutor is shutdown or not.
         if (!isExecutorShutDown()) {
@@ -135,7 +153,8 @@ public class ThreadPool {
         return ((ThreadPoolExecutor) mExecutor).isShutdown();
     }
 
-    private class Worker<T> implements Runnable, Future<T>, JobContext {
+    private class Worker<T> implements Runnable, Future<T>, JobContext,
+            Comparable<Worker<?>> {
         @SuppressWarnings("hiding")
         private static final String TAG = "Worker";
         private Job<T> mJob;
@@ -146,10 +165,25 @@ public class ThreadPool {
         private boolean mIsDone;
         private T mResult;
         private int mMode;
+        // Only changed while the worker is out of the queue.
+        private int mPriority;
+        private final long mSequence;
 
-        public Worker(Job<T> job, FutureListener<T> listener) {
+        public Worker(Job<T> job, FutureListener<T> listener, int priority, long sequence) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        // Called by the executor queue.
+        @Override
+        public int compareTo(Worker<?> another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1
+                    : (mSequence == another.mSequence ? 0 : 1);
         }
 
         // This is called by a thread in the thread pool.
@@ -181,6 +215,14 @@ public class ThreadPool {
         public synchronized void cancel() {
             if (mIsCancelled) return;
             mIsCancelled = true;
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) mExecutor;
+            if (!executor.isShutdown() && executor.remove(this)) {
+                // Still queued: requeue it at the head. It returns right away
+                // from run() without running the job.
+                mPriority = PRIORITY_CANCELLED;
+                executor.execute(this);
+                return;
+            }
             if (mWaitOnResource != null) {
                 synchronized (mWaitOnResource) {
                     mWaitOnResource.notifyAll();
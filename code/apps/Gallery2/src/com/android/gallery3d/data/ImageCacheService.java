@@ -42,7 +42,7 @@ public class ImageCacheService {
     public ImageCacheService(Context context) {
         mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE,
                 IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-                IMAGE_CACHE_VERSION);
+                IMAGE_CACHE_VERSION, true);
     }
 
     /**
@@ -68,9 +68,9 @@ public class ImageCacheService {
             LookupRequest request = new LookupRequest();
             request.key = cacheKey;
             request.buffer = buffer.data;
-            synchronized (mCache) {
-                if (!mCache.lookup(request)) return false;
-            }
+            // The cache is opened with concurrent reads, so decoder threads
+            // don't wait for each other here.
+            if (!mCache.lookup(request)) return false;
             if (isSameKey(key, request.buffer)) {
                 buffer.data = request.buffer;
                 buffer.offset = key.length;
@@ -31,6 +31,7 @@ import com.android.gallery3d.glrenderer.TiledTexture;
 import com.android.gallery3d.util.Future;
 import com.android.gallery3d.util.FutureListener;
 import com.android.gallery3d.util.JobLimiter;
+import com.android.gallery3d.util.ThreadPool;
 
 public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
     @SuppressWarnings("unused")
@@ -296,8 +297,12 @@ public class AlbumSlidingWindow implements AlbumDataLoader.DataListener {
 
         @Override
         protected Future<Bitmap> submitBitmapTask(FutureListener<Bitmap> l) {
+            // Let the thumbnails on screen jump ahead of the prefetched ones.
             return mThreadPool.submit(
-                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this);
+                    mItem.requestImage(MediaItem.TYPE_MICROTHUMBNAIL), this,
+                    isActiveSlot(mSlotIndex)
+                            ? ThreadPool.PRIORITY_VISIBLE
+                            : ThreadPool.PRIORITY_PREFETCH);
         }
 
         @Override
@@ -38,6 +38,15 @@ public class CacheManager {
     // This can only be called from data thread.
     public static BlobCache getCache(Context context, String filename,
             int maxEntries, int maxBytes, int version) {
+        return getCache(context, filename, maxEntries, maxBytes, version, false);
+    }
+
+    // Same as above, but if concurrentReads is true, the cache is created in
+    // the mode where lookups can run on several threads without locking. If
+    // its data files can't be mapped, lookups take a lock instead. It has no
+    // effect if the cache has already been created.
+    public static BlobCache getCache(Context context, String filename,
+            int maxEntries, int maxBytes, int version, boolean concurrentReads) {
         synchronized (sCacheMap) {
             if (!sOldCheckDone) {
                 removeOldFilesIfNecessary(context);
@@ -57,7 +66,7 @@ public class CacheManager {
                 String path = cacheDir.getAbsolutePath() + "/" + filename;
                 try {
                     cache = new BlobCache(path, maxEntries, maxBytes, false,
-                            version);
+                            version, concurrentReads);
                     sCacheMap.put(filename, cache);
                 } catch (IOException e) {
                     Log.e(TAG, "Cannot instantiate cache!", e);
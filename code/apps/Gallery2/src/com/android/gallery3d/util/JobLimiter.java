@@ -20,6 +20,7 @@ import com.android.gallery3d.common.Utils;
 import com.android.gallery3d.util.ThreadPool.Job;
 import com.android.gallery3d.util.ThreadPool.JobContext;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 
 // Limit the number of concurrent jobs that has been submitted into a ThreadPool
@@ -44,10 +45,12 @@ public class JobLimiter implements FutureListener {
         private Future<T> mDelegate;
         private FutureListener<T> mListener;
         private T mResult;
+        private final int mPriority;
 
-        public JobWrapper(Job<T> job, FutureListener<T> listener) {
+        public JobWrapper(Job<T> job, FutureListener<T> listener, int priority) {
             mJob = job;
             mListener = listener;
+            mPriority = priority;
         }
 
         public synchronized void setFuture(Future<T> future) {
@@ -133,8 +136,15 @@ public class JobLimiter implements FutureListener {
         mLimit = limit;
     }
 
-    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
-        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener);
+    public <T> Future<T> submit(Job<T> job, FutureListener<T> listener) {
+        return submit(job, listener, ThreadPool.PRIORITY_DEFAULT);
+    }
+
+    // Jobs waiting for the limit are started in the order of their
+    // ThreadPool.PRIORITY_* class, and then in the order they are submitted.
+    public synchronized <T> Future<T> submit(Job<T> job, FutureListener<T> listener,
+            int priority) {
+        JobWrapper<T> future = new JobWrapper<T>(Utils.checkNotNull(job), listener, priority);
         mJobs.addLast(future);
         submitTasksIfAllowed();
         return future;
@@ -143,12 +153,27 @@ public class JobLimiter implements FutureListener {
     @SuppressWarnings({"rawtypes", "unchecked"})
     private void submitTasksIfAllowed() {
         while (mLimit > 0 && !mJobs.isEmpty()) {
-            JobWrapper wrapper = mJobs.removeFirst();
-            if (!wrapper.isCancelled()) {
-                --mLimit;
-                wrapper.setFuture(mPool.submit(wrapper, this));
+            JobWrapper wrapper = removeNextJob();
+            if (wrapper == null) break;
+            --mLimit;
+            wrapper.setFuture(mPool.submit(wrapper, this, wrapper.mPriority));
+        }
+    }
+
+    // Removes and returns the first job of the highest priority, dropping
+    // the cancelled jobs on the way. Returns null if there is none left.
+    private JobWrapper<?> removeNextJob() {
+        JobWrapper<?> next = null;
+        for (Iterator<JobWrapper<?>> it = mJobs.iterator(); it.hasNext();) {
+            JobWrapper<?> wrapper = it.next();
+            if (wrapper.isCancelled()) {
+                it.remove();
+            } else if (next == null || wrapper.mPriority < next.mPriority) {
+                next = wrapper;
             }
         }
+        if (next != null) mJobs.remove(next);
+        return next;
     }
 
     @Override
@@ -42,6 +42,7 @@ import android.os.Handler;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
@@ -51,6 +52,7 @@ import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.Thunk;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -58,17 +60,30 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.res.TypedArray;//qiuyaobo,20161125
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * <p>Icons are looked up in memory, then in a {@link MappedIconStore} of decoded icons, then in
+ * the {@link IconDB}, and finally loaded from the package manager. Lookups don't block each
+ * other; changes to the cache and the DB are serialized on the IconCache.
  */
 public class IconCache {
 
     private static final String TAG = "Launcher.IconCache";
 
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // The icons kept in memory take up to this fraction of the heap
+    private static final int MEMORY_CACHE_HEAP_FRACTION = 4;
+
+    private static final String ICON_STORE_FILE = "app_icons.store";
+    // The store has room for the icons of this many apps, in high and low resolution. Beyond
+    // that, it drops the oldest icons to make room.
+    private static final int ICON_STORE_APP_COUNT = 500;
+    // Room for the key and label of a stored icon
+    private static final int ICON_STORE_RECORD_OVERHEAD = 512;
 
     // Empty class name is used for storing package default entry.
     private static final String EMPTY_CLASS_NAME = ".";
@@ -93,10 +108,16 @@ public class IconCache {
     private final PackageManager mPackageManager;
     @Thunk final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<ComponentKey, CacheEntry> mCache =
-            new HashMap<ComponentKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final LruCache<ComponentKey, CacheEntry> mCache;
+    // Change whenever the entry of a key, or the entries of a package, are replaced or removed,
+    // so that a lookup which started before doesn't put back what it read. Changed with
+    // mCacheLock held, and never shrinks, so that a generation which was read can't come back.
+    private final ConcurrentHashMap<ComponentKey, Integer> mGenerations =
+            new ConcurrentHashMap<ComponentKey, Integer>();
+    private final Object mCacheLock = new Object();
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
+    @Thunk final MappedIconStore mIconStore;
 
     @Thunk final Handler mWorkerHandler;
 
@@ -110,19 +131,56 @@ public class IconCache {
     private final BitmapFactory.Options mLowResOptions;
 
     private String mSystemState;
+    private final Object mLowResLock = new Object();
     private Bitmap mLowResBitmap;
     private Canvas mLowResCanvas;
     private Paint mLowResPaint;
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
+        this(context, inv, new MappedIconStore(new File(context.getCacheDir(), ICON_STORE_FILE),
+                getIconStoreCapacity(inv.iconBitmapSize), "dpi=" + inv.fillResIconDpi));
+    }
+
+    /**
+     * Returns the size of a store with room for the icons of {@link #ICON_STORE_APP_COUNT} apps.
+     */
+    static int getIconStoreCapacity(int iconBitmapSize) {
+        int lowResSize = iconBitmapSize / LOW_RES_SCALE_FACTOR;
+        long appBytes = 4L * (iconBitmapSize * iconBitmapSize + lowResSize * lowResSize)
+                + 2 * ICON_STORE_RECORD_OVERHEAD;
+        return (int) Math.min(Integer.MAX_VALUE, appBytes * ICON_STORE_APP_COUNT);
+    }
+
+    /**
+     * Creates a cache backed by the given store, which it takes over.
+     */
+    IconCache(Context context, InvariantDeviceProfile inv, MappedIconStore iconStore) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context);
+        mIconStore = iconStore;
+
+        int maxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_FRACTION);
+        mCache = new LruCache<ComponentKey, CacheEntry>(maxBytes) {
+            @Override
+            protected int sizeOf(ComponentKey key, CacheEntry entry) {
+                // Entries are never changed once cached, so the size stays the same
+                return entry.icon == null ? 1 : entry.icon.getByteCount();
+            }
+        };
 
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        // Map the store ahead of the loader, which looks up icons on the same thread
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mIconStore.open();
+            }
+        });
 
         mActivityBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color);
         mPackageBgColor = context.getResources().getColor(R.color.quantum_panel_bg_color_dark);
@@ -198,22 +256,70 @@ public class IconCache {
      * Remove any records for the supplied ComponentName.
      */
     public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
-        mCache.remove(new ComponentKey(componentName, user));
+        synchronized (mCacheLock) {
+            ComponentKey key = new ComponentKey(componentName, user);
+            invalidateLocked(key);
+            mCache.remove(key);
+        }
     }
 
     /**
      * Remove any records for the supplied package name from memory.
      */
     private void removeFromMemCacheLocked(String packageName, UserHandleCompat user) {
-        HashSet<ComponentKey> forDeletion = new HashSet<ComponentKey>();
-        for (ComponentKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
+        synchronized (mCacheLock) {
+            invalidateLocked(getPackageKey(packageName, user));
+            for (ComponentKey key: mCache.snapshot().keySet()) {
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mCache.remove(key);
+                }
             }
         }
-        for (ComponentKey condemned: forDeletion) {
-            mCache.remove(condemned);
+    }
+
+    /**
+     * Returns a number that changes whenever the entry of the key, or the entries of its
+     * package, are replaced or removed.
+     */
+    private int getGeneration(ComponentKey key) {
+        ComponentKey packageKey = getPackageKey(key.componentName.getPackageName(), key.user);
+        // Both only grow, so the sum changes whenever one of them does
+        return getGenerationOf(key) + getGenerationOf(packageKey);
+    }
+
+    private int getGenerationOf(ComponentKey key) {
+        Integer generation = mGenerations.get(key);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Makes lookups of the key which are in progress drop what they read. A package key covers
+     * all the entries of the package, which may have fallen back on the package icon.
+     */
+    private void invalidateLocked(ComponentKey key) {
+        mGenerations.put(key, getGenerationOf(key) + 1);
+    }
+
+    /**
+     * Puts an entry that was just loaded in the cache, unless its entry was replaced or removed
+     * since {@param generation} was read, as it may no longer be current then.
+     */
+    private void putIfUnchanged(ComponentKey key, CacheEntry entry, int generation) {
+        synchronized (mCacheLock) {
+            if (getGeneration(key) == generation) {
+                mCache.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Puts a changed entry in the cache, in place of any lookup of it in progress.
+     */
+    private void replaceEntryLocked(ComponentKey key, CacheEntry entry) {
+        synchronized (mCacheLock) {
+            invalidateLocked(key);
+            mCache.put(key, entry);
         }
     }
 
@@ -250,7 +356,7 @@ public class IconCache {
             Log.w(TAG, ex.toString());
         }
         /* @} */
-
+        mIconStore.removeAll(getStoreGroup(packageName, userSerial));
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -315,6 +421,7 @@ public class IconCache {
         final int systemStateIndex = c.getColumnIndex(IconDB.COLUMN_SYSTEM_STATE);
 
         HashSet<Integer> itemsToRemove = new HashSet<Integer>();
+        HashSet<ComponentName> componentsToRemove = new HashSet<ComponentName>();
         Stack<LauncherActivityInfoCompat> appsToUpdate = new Stack<>();
 
         while (c.moveToNext()) {
@@ -325,6 +432,7 @@ public class IconCache {
                 if (!ignorePackages.contains(component.getPackageName())) {
                     remove(component, user);
                     itemsToRemove.add(c.getInt(rowIndex));
+                    componentsToRemove.add(component);
                 }
                 continue;
             }
@@ -343,6 +451,7 @@ public class IconCache {
             if (app == null) {
                 remove(component, user);
                 itemsToRemove.add(c.getInt(rowIndex));
+                componentsToRemove.add(component);
             } else {
                 appsToUpdate.add(app);
             }
@@ -358,7 +467,9 @@ public class IconCache {
                 Log.w(TAG, ex.toString());
             }
             /* @} */
-
+            for (ComponentName component : componentsToRemove) {
+                removeFromStore(component, userSerial);
+            }
         }
 
         // Insert remaining apps.
@@ -396,21 +507,41 @@ public class IconCache {
             Log.w(TAG, ex.toString());
         }
         /* @} */
+        removeFromStore(key, userSerial);
+    }
+
+    /**
+     * Reloads the icon and label of {@param app} into memory, and updates its row in the DB.
+     */
+    @Thunk synchronized void updateIconInDB(LauncherActivityInfoCompat app, long userSerial) {
+        String cn = app.getComponentName().flattenToString();
+        ContentValues values = updateCacheAndGetContentValues(app, true);
+
+        /*SPRD:bug 521372 When the memory is too high, some of the applications are crash @{ */
+        try {
+            mIconDb.getWritableDatabase().update(IconDB.TABLE_NAME, values,
+                    IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
+                    new String[] {cn, Long.toString(userSerial)});
+        } catch (SQLException ex) {
+            Log.w(TAG, ex.toString());
+        }
+        /* @} */
+        removeFromStore(app.getComponentName(), userSerial);
     }
 
     @Thunk ContentValues updateCacheAndGetContentValues(LauncherActivityInfoCompat app,
             boolean replaceExisting) {
         final ComponentKey key = new ComponentKey(app.getComponentName(), app.getUser());
-        CacheEntry entry = null;
+        // Cached entries are shared with lookups, so build a new one
+        CacheEntry entry = new CacheEntry();
         if (!replaceExisting) {
-            entry = mCache.get(key);
+            CacheEntry cached = mCache.get(key);
             // We can't reuse the entry if the high-res icon is not present.
-            if (entry == null || entry.isLowResIcon || entry.icon == null) {
-                entry = null;
+            if (cached != null && !cached.isLowResIcon) {
+                entry.icon = cached.icon;
             }
         }
-        if (entry == null) {
-            entry = new CacheEntry();
+        if (entry.icon == null) {
             entry.icon = Utilities.createIconBitmap(app.getBadgedIcon(mIconDpi), mContext);
             
             //qiuyaobo,20161125,begin
@@ -419,7 +550,7 @@ public class IconCache {
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
-        mCache.put(new ComponentKey(app.getComponentName(), app.getUser()), entry);
+        replaceEntryLocked(key, entry);
 
         return newContentValues(entry.icon, entry.title.toString(), mActivityBgColor);
     }
@@ -464,10 +595,10 @@ public class IconCache {
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application,
+    public void getTitleAndIcon(AppInfo application,
             LauncherActivityInfoCompat info, boolean useLowResIcon) {
         UserHandleCompat user = info == null ? application.user : info.getUser();
-        CacheEntry entry = cacheLocked(application.componentName, info, user,
+        CacheEntry entry = getEntry(application.componentName, info, user,
                 false, useLowResIcon);
         application.title = Utilities.trim(entry.title);
         application.iconBitmap = getNonNullIcon(entry, user);
@@ -478,8 +609,8 @@ public class IconCache {
     /**
      * Updates {@param application} only if a valid entry is found.
      */
-    public synchronized void updateTitleAndIcon(AppInfo application) {
-        CacheEntry entry = cacheLocked(application.componentName, null, application.user,
+    public void updateTitleAndIcon(AppInfo application) {
+        CacheEntry entry = getEntry(application.componentName, null, application.user,
                 false, application.usingLowResIcon);
         if (entry.icon != null && !isDefaultIcon(entry.icon, application.user)) {
             application.title = Utilities.trim(entry.title);
@@ -492,7 +623,7 @@ public class IconCache {
     /**
      * Returns a high res icon for the given intent and user
      */
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -501,7 +632,7 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, user, true, false /* useLowRes */);
+        CacheEntry entry = getEntry(component, launcherActInfo, user, true, false /* useLowRes */);
         return entry.icon;
     }
 
@@ -509,7 +640,7 @@ public class IconCache {
      * Fill in {@param shortcutInfo} with the icon and label for {@param intent}. If the
      * corresponding activity is not found, it reverts to the package icon.
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
             UserHandleCompat user, boolean useLowResIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
@@ -528,10 +659,10 @@ public class IconCache {
     /**
      * Fill in {@param shortcutInfo} with the icon and label for {@param info}
      */
-    public synchronized void getTitleAndIcon(
+    public void getTitleAndIcon(
             ShortcutInfo shortcutInfo, ComponentName component, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePkgIcon, boolean useLowResIcon) {
-        CacheEntry entry = cacheLocked(component, info, user, usePkgIcon, useLowResIcon);
+        CacheEntry entry = getEntry(component, info, user, usePkgIcon, useLowResIcon);
         shortcutInfo.setIcon(getNonNullIcon(entry, user));
         shortcutInfo.title = Utilities.trim(entry.title);
         shortcutInfo.usingFallbackIcon = isDefaultIcon(entry.icon, user);
@@ -541,38 +672,42 @@ public class IconCache {
     /**
      * Fill in {@param appInfo} with the icon and label for {@param packageName}
      */
-    public synchronized void getTitleAndIconForApp(
+    public void getTitleAndIconForApp(
             String packageName, UserHandleCompat user, boolean useLowResIcon,
             PackageItemInfo infoOut) {
-        CacheEntry entry = getEntryForPackageLocked(packageName, user, useLowResIcon);
+        CacheEntry entry = getEntryForPackage(packageName, user, useLowResIcon);
         infoOut.iconBitmap = getNonNullIcon(entry, user);
         infoOut.title = Utilities.trim(entry.title);
         infoOut.usingLowResIcon = entry.isLowResIcon;
         infoOut.contentDescription = entry.contentDescription;
     }
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        synchronized (mDefaultIcons) {
+            if (!mDefaultIcons.containsKey(user)) {
+                mDefaultIcons.put(user, makeDefaultIcon(user));
+            }
+            return mDefaultIcons.get(user);
         }
-        return mDefaultIcons.get(user);
     }
 
     public boolean isDefaultIcon(Bitmap icon, UserHandleCompat user) {
-        return mDefaultIcons.get(user) == icon;
+        synchronized (mDefaultIcons) {
+            return mDefaultIcons.get(user) == icon;
+        }
     }
 
     /**
      * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * The new entry is only added to the cache once it is filled out.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
+    private CacheEntry getEntry(ComponentName componentName, LauncherActivityInfoCompat info,
             UserHandleCompat user, boolean usePackageIcon, boolean useLowResIcon) {
         ComponentKey cacheKey = new ComponentKey(componentName, user);
+        final int generation = getGeneration(cacheKey);
         CacheEntry entry = mCache.get(cacheKey);
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
             entry = new CacheEntry();
-            mCache.put(cacheKey, entry);
 
             // Check the DB first.
             if (!getEntryFromDB(componentName, user, entry, useLowResIcon)) {
@@ -585,7 +720,7 @@ public class IconCache {
 				                                
                 } else {
                     if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackageLocked(
+                        CacheEntry packageEntry = getEntryForPackage(
                                 componentName.getPackageName(), user, false);
                         if (packageEntry != null) {
                             if (DEBUG) Log.d(TAG, "using package default icon for " +
@@ -607,6 +742,7 @@ public class IconCache {
                 entry.title = info.getLabel();
                 entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
             }
+            putIfUnchanged(cacheKey, entry, generation);
         }
         return entry;
     }
@@ -619,24 +755,33 @@ public class IconCache {
             Bitmap icon, CharSequence title) {
         removeFromMemCacheLocked(packageName, user);
 
-        CacheEntry entry = getEntryForPackageLocked(packageName, user, false);
-        if (!TextUtils.isEmpty(title)) {
-            entry.title = title;
-        }
-        if (icon != null) {
-            entry.icon = Utilities.createIconBitmap(icon, mContext);
+        CacheEntry packageEntry = getEntryForPackage(packageName, user, false);
+        ComponentKey cacheKey = getPackageKey(packageName, user);
+        if (mCache.get(cacheKey) != packageEntry) {
+            // Not cached, as the package isn't installed and isn't in the DB
+            return;
         }
+        CacheEntry entry = new CacheEntry();
+        entry.title = TextUtils.isEmpty(title) ? packageEntry.title : title;
+        entry.contentDescription = packageEntry.contentDescription;
+        entry.icon = icon == null ? packageEntry.icon : Utilities.createIconBitmap(icon, mContext);
+        entry.isLowResIcon = packageEntry.isLowResIcon;
+        replaceEntryLocked(cacheKey, entry);
+    }
+
+    private static ComponentKey getPackageKey(String packageName, UserHandleCompat user) {
+        ComponentName cn = new ComponentName(packageName, packageName + EMPTY_CLASS_NAME);
+        return new ComponentKey(cn, user);
     }
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
-     *
      */
-    private CacheEntry getEntryForPackageLocked(String packageName, UserHandleCompat user,
+    private CacheEntry getEntryForPackage(String packageName, UserHandleCompat user,
             boolean useLowResIcon) {
-        ComponentName cn = new ComponentName(packageName, packageName + EMPTY_CLASS_NAME);
-        ComponentKey cacheKey = new ComponentKey(cn, user);
+        ComponentKey cacheKey = getPackageKey(packageName, user);
+        ComponentName cn = cacheKey.componentName;
+        final int generation = getGeneration(cacheKey);
         CacheEntry entry = mCache.get(cacheKey);
 
         if (entry == null || (entry.isLowResIcon && !useLowResIcon)) {
@@ -677,7 +822,7 @@ public class IconCache {
 
             // Only add a filled-out entry to the cache
             if (entryUpdated) {
-                mCache.put(cacheKey, entry);
+                putIfUnchanged(cacheKey, entry, generation);
             }
         }
         return entry;
@@ -716,11 +861,26 @@ public class IconCache {
             Log.w(TAG, ex.toString());
         }
         /* @} */
-
+        removeFromStore(componentName, userSerial);
     }
 
+    /**
+     * Fills {@param entry} from the icon store, or else from the DB, copying what it finds in
+     * the DB to the store.
+     */
     private boolean getEntryFromDB(ComponentName component, UserHandleCompat user,
             CacheEntry entry, boolean lowRes) {
+        final long userSerial = mUserManager.getSerialNumberForUser(user);
+        final String storeKey = getStoreKey(component, userSerial, lowRes);
+        MappedIconStore.StoredIcon stored = mIconStore.get(storeKey);
+        if (stored != null) {
+            entry.icon = stored.icon;
+            entry.isLowResIcon = lowRes;
+            setTitle(entry, stored.label, user);
+            return true;
+        }
+        final int storeGeneration = mIconStore.getGeneration(storeKey);
+
         /*SPRD:bug 521372 When the memory is too high, some of the applications are crash @{ */
         Cursor c = null;
         try {
@@ -728,8 +888,7 @@ public class IconCache {
                     new String[] {lowRes ? IconDB.COLUMN_ICON_LOW_RES : IconDB.COLUMN_ICON,
                             IconDB.COLUMN_LABEL},
                     IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                    new String[] {component.flattenToString(),
-                        Long.toString(mUserManager.getSerialNumberForUser(user))},
+                    new String[] {component.flattenToString(), Long.toString(userSerial)},
                     null, null, null);
         } catch (SQLException ex) {
             Log.w(TAG, ex.toString());
@@ -740,12 +899,10 @@ public class IconCache {
             if (c.moveToNext()) {
                 entry.icon = loadIconNoResize(c, 0, lowRes ? mLowResOptions : null);
                 entry.isLowResIcon = lowRes;
-                entry.title = c.getString(1);
-                if (entry.title == null) {
-                    entry.title = "";
-                    entry.contentDescription = "";
-                } else {
-                    entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                String label = c.getString(1);
+                setTitle(entry, label, user);
+                if (entry.icon != null) {
+                    mIconStore.put(storeKey, entry.icon, label, storeGeneration);
                 }
                 return true;
             }
@@ -755,6 +912,34 @@ public class IconCache {
         return false;
     }
 
+    private void setTitle(CacheEntry entry, String label, UserHandleCompat user) {
+        if (label == null) {
+            entry.title = "";
+            entry.contentDescription = "";
+        } else {
+            entry.title = label;
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(label, user);
+        }
+    }
+
+    private static String getStoreGroup(String packageName, long userSerial) {
+        return userSerial + "/" + packageName + "/";
+    }
+
+    private static String getStoreKey(ComponentName component, long userSerial,
+            boolean lowRes) {
+        return getStoreGroup(component.getPackageName(), userSerial)
+                + component.getClassName() + (lowRes ? "#low" : "");
+    }
+
+    /**
+     * Drops the stored copies of a component's icons, after its DB row was written or deleted.
+     */
+    private void removeFromStore(ComponentName component, long userSerial) {
+        mIconStore.remove(getStoreKey(component, userSerial, false));
+        mIconStore.remove(getStoreKey(component, userSerial, true));
+    }
+
     public static class IconLoadRequest {
         private final Runnable mRunnable;
         private final Handler mHandler;
@@ -794,18 +979,7 @@ public class IconCache {
         public void run() {
             if (!mAppsToUpdate.isEmpty()) {
                 LauncherActivityInfoCompat app = mAppsToUpdate.pop();
-                String cn = app.getComponentName().flattenToString();
-                ContentValues values = updateCacheAndGetContentValues(app, true);
-
-                /*SPRD:bug 521372 When the memory is too high, some of the applications are crash @{ */
-                try {
-                    mIconDb.getWritableDatabase().update(IconDB.TABLE_NAME, values,
-                            IconDB.COLUMN_COMPONENT + " = ? AND " + IconDB.COLUMN_USER + " = ?",
-                            new String[] {cn, Long.toString(mUserSerial)});
-                } catch (SQLException ex) {
-                    Log.w(TAG, ex.toString());
-                }
-                /* @} */
+                updateIconInDB(app, mUserSerial);
 
                 mUpdatedPackages.add(app.getComponentName().getPackageName());
 
@@ -907,7 +1081,7 @@ public class IconCache {
                   icon.getWidth() / LOW_RES_SCALE_FACTOR,
                   icon.getHeight() / LOW_RES_SCALE_FACTOR, true)));
         } else {
-            synchronized (this) {
+            synchronized (mLowResLock) {
                 if (mLowResBitmap == null) {
                     mLowResBitmap = Bitmap.createBitmap(icon.getWidth() / LOW_RES_SCALE_FACTOR,
                             icon.getHeight() / LOW_RES_SCALE_FACTOR, Bitmap.Config.RGB_565);
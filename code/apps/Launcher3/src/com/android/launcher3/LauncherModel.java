@@ -108,6 +108,8 @@ public class LauncherModel extends BroadcastReceiver
     @Thunk LoaderTask mLoaderTask;
     @Thunk boolean mIsLoaderTaskRunning;
     @Thunk boolean mHasLoaderCompletedOnce;
+    // Timings of the last workspace load, see LoaderStages
+    @Thunk volatile LoaderStages mLastLoaderStages;
 
     private static final String MIGRATE_AUTHORITY = "com.android.launcher2.settings";
 
@@ -1515,6 +1517,8 @@ public class LauncherModel extends BroadcastReceiver
         private boolean mStopped;
         @Thunk boolean mLoadAndBindStepFinished;
         private int mFlags;
+        // Set while the workspace is loaded and bound
+        private LoaderStages mStages;
 
         LoaderTask(Context context, int flags) {
             mContext = context;
@@ -1534,17 +1538,31 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             if (!mWorkspaceLoaded) {
-                loadWorkspace();
-                synchronized (LoaderTask.this) {
-                    if (mStopped) {
-                        return;
+                mStages = new LoaderStages(LauncherAppsCompat.getInstance(mContext));
+            }
+            try {
+                if (!mWorkspaceLoaded) {
+                    loadWorkspace();
+                    synchronized (LoaderTask.this) {
+                        if (mStopped) {
+                            return;
+                        }
+                        mWorkspaceLoaded = true;
                     }
-                    mWorkspaceLoaded = true;
                 }
-            }
 
-            // Bind the workspace
-            bindWorkspace(-1);
+                // Bind the workspace
+                bindWorkspace(-1);
+            } finally {
+                if (mStages != null) {
+                    // Don't leave icons loading into items that may be bound already
+                    mStages.finish();
+                    mLastLoaderStages = mStages;
+                    mStages = null;
+                    Launcher.addDumpLog(TAG, "loadAndBindWorkspace: " + mLastLoaderStages,
+                            DEBUG_LOADERS);
+                }
+            }
         }
 
         private void waitForIdle() {
@@ -1707,6 +1725,13 @@ public class LauncherModel extends BroadcastReceiver
 
         // check & update map of what's occupied; used to discard overlapping/invalid items
         private boolean checkItemPlacement(LongArrayMap<ItemInfo[][]> occupied, ItemInfo item) {
+            final long start = System.nanoTime();
+            boolean placed = updateItemPlacement(occupied, item);
+            mStages.addTime(LoaderStages.STAGE_PLACEMENT, start);
+            return placed;
+        }
+
+        private boolean updateItemPlacement(LongArrayMap<ItemInfo[][]> occupied, ItemInfo item) {
             LauncherAppState app = LauncherAppState.getInstance();
             InvariantDeviceProfile profile = app.getInvariantDeviceProfile();
             final int countX = (int) profile.numColumns;
@@ -1892,6 +1917,31 @@ public class LauncherModel extends BroadcastReceiver
                         allUsers.put(mUserManager.getSerialNumberForUser(user), user);
                     }
 
+                    final LoaderStages stages = mStages;
+                    final long stageStart = System.nanoTime();
+                    // Read the targets of all items first, so that they are resolved on the
+                    // stage threads by the time the items get loaded below
+                    while (!mStopped && c.moveToNext()) {
+                        int itemType = c.getInt(itemTypeIndex);
+                        if (itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION &&
+                                itemType != LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+                            continue;
+                        }
+                        UserHandleCompat itemUser = allUsers.get(c.getInt(profileIdIndex));
+                        String uri = c.getString(intentIndex);
+                        if (itemUser != null && uri != null) {
+                            try {
+                                stages.prefetchActivity(Intent.parseUri(uri, 0), itemUser,
+                                        itemType == LauncherSettings.Favorites
+                                                .ITEM_TYPE_APPLICATION);
+                            } catch (URISyntaxException e) {
+                                // Reported when the item is loaded
+                            }
+                        }
+                    }
+                    c.moveToPosition(-1);
+                    stages.addTime(LoaderStages.STAGE_CURSOR, stageStart);
+
                     ShortcutInfo info;
                     String intentDescription;
                     LauncherAppWidgetInfo appWidgetInfo;
@@ -1927,10 +1977,10 @@ public class LauncherModel extends BroadcastReceiver
                                     intent = Intent.parseUri(intentDescription, 0);
                                     ComponentName cn = intent.getComponent();
                                     if (cn != null && cn.getPackageName() != null) {
-                                        boolean validPkg = launcherApps.isPackageEnabledForProfile(
-                                                cn.getPackageName(), user);
-                                        boolean validComponent = validPkg &&
-                                                launcherApps.isActivityEnabledForProfile(cn, user);
+                                        LoaderStages.ResolvedActivity target =
+                                                stages.getActivity(intent, user, false);
+                                        boolean validPkg = target.packageEnabled;
+                                        boolean validComponent = target.activityEnabled;
 
                                         if (validComponent) {
                                             if (restored) {
@@ -2045,7 +2095,7 @@ public class LauncherModel extends BroadcastReceiver
                                     continue;
                                 }
 
-                                boolean useLowResIcon = container >= 0 &&
+                                final boolean useLowResIcon = container >= 0 &&
                                         c.getInt(rankIndex) >= FolderIcon.NUM_ITEMS_IN_PREVIEW;
 
                                 if (itemReplaced) {
@@ -2073,9 +2123,26 @@ public class LauncherModel extends BroadcastReceiver
                                     }
                                 } else if (itemType ==
                                         LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getAppShortcutInfo(manager, intent, user, context, c,
-                                            cursorIconInfo.iconIndex, titleIndex,
-                                            allowMissingTarget, useLowResIcon);
+                                    // The title and icon are looked up on the stage threads
+                                    final ComponentName component = intent.getComponent();
+                                    final LauncherActivityInfoCompat lai = component == null
+                                            ? null : stages.getActivity(intent, user, true).info;
+                                    info = component == null ? null : newAppShortcutInfo(
+                                            component, lai, user, allowMissingTarget);
+                                    if (info != null) {
+                                        final ShortcutInfo appInfo = info;
+                                        final byte[] savedIcon =
+                                                c.getBlob(cursorIconInfo.iconIndex);
+                                        final String savedTitle = c.getString(titleIndex);
+                                        stages.fetchIcon(id, new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                loadAppShortcutIcon(appInfo, component, lai,
+                                                        context, savedIcon, savedTitle, true,
+                                                        useLowResIcon);
+                                            }
+                                        });
+                                    }
                                 } else {
                                     info = getShortcutInfo(c, context, titleIndex, cursorIconInfo);
 
@@ -2678,6 +2745,12 @@ public class LauncherModel extends BroadcastReceiver
             sortWorkspaceItemsSpatially(currentWorkspaceItems);
             sortWorkspaceItemsSpatially(otherWorkspaceItems);
 
+            // Only wait for the icons of the current page, the others load while it is bound
+            final LoaderStages stages = mStages;
+            if (stages != null) {
+                stages.awaitIcons(currentWorkspaceItems);
+            }
+
             // Tell the workspace that we're about to start binding items
             r = new Runnable() {
                 public void run() {
@@ -2705,6 +2778,15 @@ public class LauncherModel extends BroadcastReceiver
                 };
                 runOnMainThread(r);
             }
+            if (stages != null) {
+                r = new Runnable() {
+                    public void run() {
+                        stages.onFirstPageBound();
+                    }
+                };
+                runOnMainThread(r);
+                stages.awaitAllIcons();
+            }
 
             // Load all the remaining pages (if we are loading synchronously, we want to defer this
             // work until after the first render)
@@ -3666,25 +3748,56 @@ public class LauncherModel extends BroadcastReceiver
             return null;
         }
 
-        Intent newIntent = new Intent(intent.getAction(), null);
-        newIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        newIntent.setComponent(componentName);
-        LauncherActivityInfoCompat lai = mLauncherApps.resolveActivity(newIntent, user);
+        LauncherActivityInfoCompat lai = mLauncherApps.resolveActivity(
+                LoaderStages.getLauncherIntent(intent), user);
+        final ShortcutInfo info = newAppShortcutInfo(componentName, lai, user,
+                allowMissingTarget);
+        if (info != null) {
+            loadAppShortcutIcon(info, componentName, lai, context,
+                    c != null ? c.getBlob(iconIndex) : null,
+                    c != null ? c.getString(titleIndex) : null, c != null, useLowResIcon);
+        }
+        return info;
+    }
+
+    /**
+     * Make an ShortcutInfo object for an application, without its title and icon, which
+     * {@link #loadAppShortcutIcon} fills in.
+     */
+    private ShortcutInfo newAppShortcutInfo(ComponentName componentName,
+            LauncherActivityInfoCompat lai, UserHandleCompat user, boolean allowMissingTarget) {
         if ((lai == null) && !allowMissingTarget) {
             Log.d(TAG, "Missing activity found in getShortcutInfo: " + componentName);
             return null;
         }
 
         final ShortcutInfo info = new ShortcutInfo();
-        mIconCache.getTitleAndIcon(info, componentName, lai, user, false, useLowResIcon);
-        if (mIconCache.isDefaultIcon(info.getIcon(mIconCache), user) && c != null) {
-            Bitmap icon = Utilities.createIconBitmap(c, iconIndex, context);
-            info.setIcon(icon == null ? mIconCache.getDefaultIcon(user) : icon);
+        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
+        info.user = user;
+        if (lai != null) {
+            info.flags = AppInfo.initFlags(lai);
+        }
+        return info;
+    }
+
+    /**
+     * Fills in the title and icon of an application shortcut. Can be called on any thread.
+     *
+     * @param fromDb whether savedIcon and savedTitle were read from the db, and should be used
+     *               in place of missing data
+     */
+    @Thunk void loadAppShortcutIcon(ShortcutInfo info, ComponentName componentName,
+            LauncherActivityInfoCompat lai, Context context, byte[] savedIcon, String savedTitle,
+            boolean fromDb, boolean useLowResIcon) {
+        mIconCache.getTitleAndIcon(info, componentName, lai, info.user, false, useLowResIcon);
+        if (mIconCache.isDefaultIcon(info.getIcon(mIconCache), info.user) && fromDb) {
+            Bitmap icon = Utilities.createIconBitmap(savedIcon, context);
+            info.setIcon(icon == null ? mIconCache.getDefaultIcon(info.user) : icon);
         }
 
         // from the db
-        if (TextUtils.isEmpty(info.title) && c != null) {
-            info.title =  Utilities.trim(c.getString(titleIndex));
+        if (TextUtils.isEmpty(info.title) && fromDb) {
+            info.title =  Utilities.trim(savedTitle);
         }
 
         // fall back to the class name of the activity
@@ -3692,13 +3805,7 @@ public class LauncherModel extends BroadcastReceiver
             info.title = componentName.getClassName();
         }
 
-        info.itemType = LauncherSettings.Favorites.ITEM_TYPE_APPLICATION;
-        info.user = user;
         info.contentDescription = mUserManager.getBadgedLabelForUser(info.title, info.user);
-        if (lai != null) {
-            info.flags = AppInfo.initFlags(lai);
-        }
-        return info;
     }
 
     static ArrayList<ItemInfo> filterItemInfos(Iterable<ItemInfo> infos,
@@ -3838,6 +3945,33 @@ public class LauncherModel extends BroadcastReceiver
                 && (provider.provider.getPackageName() != null);
     }
 
+    /**
+     * Returns the stage timings of the last workspace load, or null if the workspace wasn't
+     * loaded yet.
+     */
+    LoaderStages getLastLoaderStages() {
+        return mLastLoaderStages;
+    }
+
+    /**
+     * Loads the workspace again on the worker thread, reading the favorites and screens through
+     * the content resolver of the given context, and binds it to the current callbacks. Tests
+     * use it to run the loader over their own database.
+     */
+    void loadAndBindWorkspace(Context context) {
+        synchronized (mLock) {
+            stopLoaderLocked();
+            mWorkspaceLoaded = false;
+            final LoaderTask task = new LoaderTask(context, LOADER_FLAG_NONE);
+            sWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    task.loadAndBindWorkspace();
+                }
+            });
+        }
+    }
+
     public void dumpState() {
         Log.d(TAG, "mCallbacks=" + mCallbacks);
         AppInfo.dumpApplicationInfoList(TAG, "mAllAppsList.data", mBgAllAppsList.data);
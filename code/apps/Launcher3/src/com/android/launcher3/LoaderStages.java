@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.launcher3.compat.LauncherActivityInfoCompat;
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs the slow parts of loading the workspace on a few threads while the loader thread walks
+ * the favorites: a first pass over the cursor starts resolving every target package and
+ * activity ahead of the items that need them, and the icons of applications are fetched while
+ * the rest of the items are loaded and placed. The loader then only waits for the icons of the
+ * page it binds first, and binds the other pages once all icons are in.
+ *
+ * <p>Each stage adds up the time spent in it, see {@link #toString()}.
+ *
+ * <p>Called on the loader thread, but for {@link #onFirstPageBound} and the getters.
+ */
+class LoaderStages {
+    private static final String TAG = "Launcher.LoaderStages";
+
+    static final int STAGE_CURSOR = 0;
+    static final int STAGE_RESOLVE = 1;
+    static final int STAGE_ICONS = 2;
+    static final int STAGE_PLACEMENT = 3;
+    private static final String[] STAGE_NAMES = {"cursor", "resolve", "icons", "placement"};
+
+    private static final int MAX_THREADS = 4;
+
+    /** What the launcher knows about the target activity of an item. */
+    static class ResolvedActivity {
+        final boolean packageEnabled;
+        final boolean activityEnabled;
+        final boolean resolved;
+        final LauncherActivityInfoCompat info;
+
+        ResolvedActivity(boolean packageEnabled, boolean activityEnabled, boolean resolved,
+                LauncherActivityInfoCompat info) {
+            this.packageEnabled = packageEnabled;
+            this.activityEnabled = activityEnabled;
+            this.resolved = resolved;
+            this.info = info;
+        }
+    }
+
+    private final LauncherAppsCompat mLauncherApps;
+    private final ExecutorService mExecutor;
+    private final HashMap<ComponentKey, Future<ResolvedActivity>> mActivities = new HashMap<>();
+    private final LongArrayMap<Future<?>> mIconFetches = new LongArrayMap<>();
+    private final AtomicLongArray mStageNanos = new AtomicLongArray(STAGE_NAMES.length);
+    private final long mStartMillis = SystemClock.uptimeMillis();
+    private volatile long mFirstPageBoundMillis = -1;
+    private volatile long mLoadedMillis = -1;
+
+    LoaderStages(LauncherAppsCompat launcherApps) {
+        mLauncherApps = launcherApps;
+        int threads = Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors());
+        mExecutor = Executors.newFixedThreadPool(Math.max(2, threads), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "launcher-loader-stage-" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Starts resolving the target of an item, unless it was already. Only applications need
+     * their activity info, other shortcuts only check that the package and activity are
+     * enabled.
+     */
+    void prefetchActivity(Intent intent, UserHandleCompat user, boolean needsInfo) {
+        final ComponentName cn = intent.getComponent();
+        if (cn == null || cn.getPackageName() == null) {
+            return;
+        }
+        final ComponentKey key = new ComponentKey(cn, user);
+        if (!mActivities.containsKey(key)) {
+            mActivities.put(key, mExecutor.submit(newResolveTask(intent, user, needsInfo)));
+        }
+    }
+
+    /**
+     * Returns the target of an item, waiting for it if it was prefetched and resolving it on
+     * this thread otherwise.
+     */
+    ResolvedActivity getActivity(Intent intent, UserHandleCompat user, boolean needsInfo) {
+        final ComponentKey key = new ComponentKey(intent.getComponent(), user);
+        Future<ResolvedActivity> future = mActivities.get(key);
+        ResolvedActivity activity = null;
+        if (future != null) {
+            try {
+                activity = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to resolve " + key.componentName, e.getCause());
+            }
+        }
+        if (activity == null || (needsInfo && !activity.resolved)) {
+            try {
+                activity = newResolveTask(intent, user, needsInfo).call();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return activity;
+    }
+
+    /**
+     * Runs the icon lookup of the item with the given id on the stage threads.
+     */
+    void fetchIcon(long id, final Runnable fetch) {
+        mIconFetches.put(id, mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                fetch.run();
+                addTime(STAGE_ICONS, start);
+            }
+        }));
+    }
+
+    /**
+     * Waits for the icons of the given items, and of the items in the given folders.
+     */
+    void awaitIcons(Iterable<? extends ItemInfo> items) {
+        for (ItemInfo item : items) {
+            if (item instanceof FolderInfo) {
+                awaitIcons(((FolderInfo) item).contents);
+            } else {
+                awaitIcon(mIconFetches.get(item.id));
+            }
+        }
+    }
+
+    /**
+     * Waits for all the icons fetched so far.
+     */
+    void awaitAllIcons() {
+        for (Future<?> future : mIconFetches) {
+            awaitIcon(future);
+        }
+    }
+
+    /**
+     * Waits for all the icons and lets the threads go. The stages are not used afterwards, so
+     * that nothing is written to the items once they are bound.
+     */
+    void finish() {
+        awaitAllIcons();
+        mExecutor.shutdown();
+        mLoadedMillis = SystemClock.uptimeMillis() - mStartMillis;
+    }
+
+    /**
+     * Adds the time since the given {@link System#nanoTime()} to a stage.
+     */
+    void addTime(int stage, long startNanos) {
+        mStageNanos.addAndGet(stage, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Called on the UI thread once the first page was bound.
+     */
+    void onFirstPageBound() {
+        mFirstPageBoundMillis = SystemClock.uptimeMillis() - mStartMillis;
+    }
+
+    long getStageMillis(int stage) {
+        return mStageNanos.get(stage) / 1000000;
+    }
+
+    /**
+     * Returns the time from the start of the load until the first page was bound, or -1 if it
+     * wasn't bound yet.
+     */
+    long getFirstPageBoundMillis() {
+        return mFirstPageBoundMillis;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STAGE_NAMES.length; i++) {
+            sb.append(STAGE_NAMES[i]).append(' ').append(getStageMillis(i)).append("ms, ");
+        }
+        return sb.append("first page bound after ").append(mFirstPageBoundMillis)
+                .append("ms, loaded after ").append(mLoadedMillis).append("ms").toString();
+    }
+
+    private Callable<ResolvedActivity> newResolveTask(final Intent intent,
+            final UserHandleCompat user, final boolean needsInfo) {
+        return new Callable<ResolvedActivity>() {
+            @Override
+            public ResolvedActivity call() {
+                final long start = System.nanoTime();
+                final ComponentName cn = intent.getComponent();
+                boolean packageEnabled = mLauncherApps.isPackageEnabledForProfile(
+                        cn.getPackageName(), user);
+                boolean activityEnabled = packageEnabled &&
+                        mLauncherApps.isActivityEnabledForProfile(cn, user);
+                LauncherActivityInfoCompat info = needsInfo
+                        ? mLauncherApps.resolveActivity(getLauncherIntent(intent), user) : null;
+                addTime(STAGE_RESOLVE, start);
+                return new ResolvedActivity(packageEnabled, activityEnabled, needsInfo, info);
+            }
+        };
+    }
+
+    /**
+     * Returns the intent that resolves the launcher activity of an application item.
+     */
+    static Intent getLauncherIntent(Intent intent) {
+        Intent launcherIntent = new Intent(intent.getAction(), null);
+        launcherIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        launcherIntent.setComponent(intent.getComponent());
+        return launcherIntent;
+    }
+
+    private static void awaitIcon(Future<?> future) {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The item looks its icon up again when it is bound
+            Log.w(TAG, "Failed to load an icon", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decoded icons from the {@link IconCache} database, kept as raw pixels in a memory-mapped
+ * file, so that loading an icon on a cold start copies its pixels into a bitmap instead of
+ * querying SQLite and decoding a PNG.
+ *
+ * <p>The file only ever holds a copy of database rows. It is started over when its layout or
+ * its state (like the icon density) changes, and when another process already has it open.
+ * Records are appended; removing one clears a flag in place. When the file fills up, the live
+ * records are moved to its start, dropping the oldest ones if that doesn't free enough room.
+ * The index from keys to records is rebuilt by scanning the file when it is opened.
+ *
+ * <p>Keys are made of a group, ending with '/', and a name without '/'. Icons can be removed
+ * one at a time or a group at a time.
+ *
+ * <p>Reads run concurrently with each other, and are serialized with writes.
+ */
+class MappedIconStore {
+    private static final String TAG = "Launcher.MappedIconStore";
+
+    private static final int MAGIC = 0x49434f4e;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 256;
+
+    // Record layout: length, live flag, config, has alpha, width, height, then the key and
+    // label as length prefixed UTF-8, then the pixels. The length is written last, and a zero
+    // length ends the file.
+    private static final int OFFSET_LIVE = 4;
+    private static final int RECORD_HEADER_SIZE = 11;
+
+    private static final int MOVE_CHUNK_SIZE = 64 * 1024;
+
+    private static final Bitmap.Config[] CONFIGS = {
+            Bitmap.Config.ARGB_8888, Bitmap.Config.RGB_565, Bitmap.Config.ALPHA_8 };
+    private static final int[] BYTES_PER_PIXEL = { 4, 2, 1 };
+
+    // Files mapped by stores in this process. A second descriptor on a file would drop the lock
+    // that keeps other processes out when it is closed.
+    private static final HashSet<File> sOpenFiles = new HashSet<>();
+
+    static class StoredIcon {
+        final Bitmap icon;
+        final String label;
+
+        StoredIcon(Bitmap icon, String label) {
+            this.icon = icon;
+            this.label = label;
+        }
+    }
+
+    private final File mFile;
+    private final int mCapacity;
+    private final String mState;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    // Changes when all records are dropped
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // Changes for keys and groups when their records are removed. Changed with the write lock
+    // held, and never shrinks, so that a generation which was read can't come back.
+    private final ConcurrentHashMap<String, Integer> mGenerations = new ConcurrentHashMap<>();
+
+    // Guarded by mLock
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+    private volatile boolean mOpened;
+
+    /**
+     * @param file the file to map, created if needed
+     * @param capacity the size of the file, in bytes
+     * @param state describes what the icons depend on, the file is started over when it changes
+     */
+    MappedIconStore(File file, int capacity, String state) {
+        mFile = file;
+        mCapacity = capacity;
+        mState = state;
+    }
+
+    /**
+     * Returns a number that changes whenever the record for the key is removed. Callers that
+     * read an icon from elsewhere pass it back to {@link #put}, so that a copy that was
+     * invalidated while they read it isn't stored.
+     */
+    int getGeneration(String key) {
+        // Each term only grows, so the sum changes whenever one of them does
+        return mGeneration.get() + getGenerationOf(key) + getGenerationOf(getGroup(key));
+    }
+
+    /**
+     * Maps the file and indexes its records. Call this on a background thread before looking
+     * up icons; until then, lookups miss and nothing is stored.
+     */
+    void open() {
+        ensureOpen();
+    }
+
+    /**
+     * Returns the number of icons stored.
+     */
+    int getCount() {
+        mLock.readLock().lock();
+        try {
+            return mIndex.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the icon and label stored for the key, or null.
+     */
+    StoredIcon get(String key) {
+        if (!mOpened) {
+            return null;
+        }
+        mLock.readLock().lock();
+        try {
+            Integer offset = mIndex.get(key);
+            if (offset == null || mBuffer == null) {
+                return null;
+            }
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset + OFFSET_LIVE + 1);
+            Bitmap.Config config = CONFIGS[record.get()];
+            boolean hasAlpha = record.get() != 0;
+            int width = record.getShort();
+            int height = record.getShort();
+            readString(record);
+            String label = readString(record);
+
+            Bitmap icon = Bitmap.createBitmap(width, height, config);
+            record.limit(record.position() + icon.getByteCount());
+            icon.copyPixelsFromBuffer(record);
+            icon.setHasAlpha(hasAlpha);
+            return new StoredIcon(icon, label);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the icon and label for the key, replacing any previous record, unless its record
+     * was removed since {@param generation} was read.
+     */
+    void put(String key, Bitmap icon, String label, int generation) {
+        int config = getConfigIndex(icon);
+        if (config < 0) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] labelBytes = (label == null ? "" : label).getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE || labelBytes.length > Short.MAX_VALUE) {
+            return;
+        }
+        int length = RECORD_HEADER_SIZE + 2 + keyBytes.length + 2 + labelBytes.length
+                + icon.getByteCount();
+        if (length > mCapacity - HEADER_SIZE || !mOpened) {
+            return;
+        }
+
+        mLock.writeLock().lock();
+        try {
+            if (mBuffer == null || getGeneration(key) != generation) {
+                return;
+            }
+            removeLocked(key);
+            if (length > mCapacity - mEnd) {
+                compactLocked(length);
+            }
+
+            int offset = mEnd;
+            int end = offset + length;
+            if (end + 4 <= mCapacity) {
+                mBuffer.putInt(end, 0);
+            }
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset + OFFSET_LIVE);
+            record.put((byte) 1)
+                    .put((byte) config)
+                    .put((byte) (icon.hasAlpha() ? 1 : 0))
+                    .putShort((short) icon.getWidth())
+                    .putShort((short) icon.getHeight());
+            writeString(record, keyBytes);
+            writeString(record, labelBytes);
+            record.limit(end);
+            icon.copyPixelsToBuffer(record);
+            mBuffer.putInt(offset, length);
+
+            mIndex.put(key, offset);
+            mEnd = end;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the record for the key, if any.
+     */
+    void remove(String key) {
+        // Opens the file even before open() is called, so that the record can't outlive its row
+        ensureOpen();
+        mLock.writeLock().lock();
+        try {
+            invalidateLocked(key);
+            if (mBuffer != null) {
+                removeLocked(key);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the records for all keys of the group.
+     */
+    void removeAll(String group) {
+        ensureOpen();
+        mLock.writeLock().lock();
+        try {
+            invalidateLocked(group);
+            if (mBuffer == null) {
+                return;
+            }
+            Iterator<String> keys = mIndex.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.startsWith(group)) {
+                    mBuffer.put(mIndex.get(key) + OFFSET_LIVE, (byte) 0);
+                    keys.remove();
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the file. The store can't be used afterwards.
+     */
+    void close() {
+        mLock.writeLock().lock();
+        try {
+            mOpened = true;
+            mBuffer = null;
+            mIndex.clear();
+            if (mRaf != null) {
+                try {
+                    // Also releases the lock on the file
+                    mRaf.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close " + mFile, e);
+                }
+                mRaf = null;
+                synchronized (sOpenFiles) {
+                    sOpenFiles.remove(mFile);
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Maps the file unless it was already, and returns whether the store can be used.
+     */
+    private boolean ensureOpen() {
+        if (!mOpened) {
+            mLock.writeLock().lock();
+            try {
+                if (!mOpened) {
+                    openLocked();
+                    mOpened = true;
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+        return mBuffer != null;
+    }
+
+    private void openLocked() {
+        synchronized (sOpenFiles) {
+            if (!sOpenFiles.add(mFile)) {
+                Log.w(TAG, mFile + " is in use in this process, not storing icons");
+                return;
+            }
+        }
+        boolean sameSize;
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            FileLock lock = null;
+            try {
+                lock = mRaf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Should not happen, as this process only maps the file once
+            }
+            if (lock == null) {
+                Log.w(TAG, mFile + " is in use, not storing icons");
+                closeQuietly();
+                return;
+            }
+            sameSize = mRaf.length() == mCapacity;
+            mRaf.setLength(mCapacity);
+            mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map " + mFile, e);
+            closeQuietly();
+            return;
+        }
+
+        if (sameSize && readHeaderLocked()) {
+            scanLocked();
+        } else {
+            resetLocked();
+        }
+    }
+
+    private void closeQuietly() {
+        mBuffer = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+            mRaf = null;
+        }
+        synchronized (sOpenFiles) {
+            sOpenFiles.remove(mFile);
+        }
+    }
+
+    private boolean readHeaderLocked() {
+        ByteBuffer header = mBuffer.duplicate();
+        if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+            return false;
+        }
+        int stateLength = header.getShort(header.position());
+        return stateLength >= 0 && stateLength + 2 <= header.remaining()
+                && mState.equals(readString(header));
+    }
+
+    /**
+     * Drops all records and writes a fresh header.
+     */
+    private void resetLocked() {
+        mGeneration.incrementAndGet();
+        mIndex.clear();
+        ByteBuffer header = mBuffer.duplicate();
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        writeString(header, mState.getBytes(StandardCharsets.UTF_8));
+        mBuffer.putInt(HEADER_SIZE, 0);
+        mEnd = HEADER_SIZE;
+    }
+
+    /**
+     * Moves the live records to the start of the file, dropping the oldest ones if that doesn't
+     * leave {@param length} bytes at the end.
+     */
+    private void compactLocked(int length) {
+        int liveBytes = 0;
+        for (int offset : mIndex.values()) {
+            liveBytes += mBuffer.getInt(offset);
+        }
+        int toDrop = liveBytes + length - (mCapacity - HEADER_SIZE);
+
+        // The file doesn't add up while records move; a crash until it does starts it over
+        mBuffer.putInt(0, 0);
+        byte[] chunk = new byte[MOVE_CHUNK_SIZE];
+        int dropped = 0;
+        int to = HEADER_SIZE;
+        for (int from = HEADER_SIZE; from < mEnd; ) {
+            int recordLength = mBuffer.getInt(from);
+            if (mBuffer.get(from + OFFSET_LIVE) != 0) {
+                String key = readKeyLocked(from);
+                if (toDrop > 0) {
+                    mIndex.remove(key);
+                    toDrop -= recordLength;
+                    dropped++;
+                } else {
+                    moveLocked(from, to, recordLength, chunk);
+                    mIndex.put(key, to);
+                    to += recordLength;
+                }
+            }
+            from += recordLength;
+        }
+        mEnd = to;
+        if (mEnd + 4 <= mCapacity) {
+            mBuffer.putInt(mEnd, 0);
+        }
+        mBuffer.putInt(0, MAGIC);
+        if (Launcher.LOGD) {
+            Log.d(TAG, "Icon store is full, kept " + mIndex.size() + " icons, dropped " + dropped);
+        }
+    }
+
+    /**
+     * Copies {@param length} bytes at {@param from} to {@param to}, which comes before it.
+     */
+    private void moveLocked(int from, int to, int length, byte[] chunk) {
+        if (from == to) {
+            return;
+        }
+        ByteBuffer source = mBuffer.duplicate();
+        ByteBuffer target = mBuffer.duplicate();
+        source.position(from);
+        target.position(to);
+        for (int moved = 0; moved < length; ) {
+            int count = Math.min(chunk.length, length - moved);
+            source.get(chunk, 0, count);
+            target.put(chunk, 0, count);
+            moved += count;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the records in the file.
+     */
+    private void scanLocked() {
+        int offset = HEADER_SIZE;
+        while (offset + RECORD_HEADER_SIZE <= mCapacity) {
+            int length = mBuffer.getInt(offset);
+            if (length < RECORD_HEADER_SIZE || length > mCapacity - offset) {
+                break;
+            }
+            if (mBuffer.get(offset + OFFSET_LIVE) != 0) {
+                String key = readValidKeyLocked(offset, length);
+                if (key == null) {
+                    // Not something we wrote, ignore the rest of the file
+                    break;
+                }
+                mIndex.put(key, offset);
+            }
+            offset += length;
+        }
+        mEnd = offset;
+        if (offset + 4 <= mCapacity) {
+            mBuffer.putInt(offset, 0);
+        }
+        if (Launcher.LOGD) Log.d(TAG, "Opened " + mIndex.size() + " icons, " + mEnd + " bytes");
+    }
+
+    /**
+     * Returns the key of the record, or null if its fields don't add up to its length.
+     */
+    private String readValidKeyLocked(int offset, int length) {
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(offset + OFFSET_LIVE + 1);
+        record.limit(offset + length);
+        int config = record.get();
+        if (config < 0 || config >= CONFIGS.length) {
+            return null;
+        }
+        record.get();
+        int width = record.getShort();
+        int height = record.getShort();
+        int keyLength = record.getShort(record.position());
+        if (width <= 0 || height <= 0 || keyLength < 0 || keyLength + 2 > record.remaining()) {
+            return null;
+        }
+        String key = readString(record);
+        if (record.remaining() < 2) {
+            return null;
+        }
+        int labelLength = record.getShort(record.position());
+        if (labelLength < 0 || labelLength + 2 > record.remaining()) {
+            return null;
+        }
+        readString(record);
+        return record.remaining() == width * height * BYTES_PER_PIXEL[config] ? key : null;
+    }
+
+    private String readKeyLocked(int offset) {
+        ByteBuffer record = mBuffer.duplicate();
+        record.position(offset + RECORD_HEADER_SIZE);
+        return readString(record);
+    }
+
+    private int getGenerationOf(String keyOrGroup) {
+        Integer generation = mGenerations.get(keyOrGroup);
+        return generation == null ? 0 : generation;
+    }
+
+    private void invalidateLocked(String keyOrGroup) {
+        mGenerations.put(keyOrGroup, getGenerationOf(keyOrGroup) + 1);
+    }
+
+    private static String getGroup(String key) {
+        return key.substring(0, key.lastIndexOf('/') + 1);
+    }
+
+    private void removeLocked(String key) {
+        Integer offset = mIndex.remove(key);
+        if (offset != null) {
+            mBuffer.put(offset + OFFSET_LIVE, (byte) 0);
+        }
+    }
+
+    /**
+     * Returns the index of the icon's config in {@link #CONFIGS}, or -1 if the icon can't be
+     * stored as is.
+     */
+    private static int getConfigIndex(Bitmap icon) {
+        if (icon.isRecycled() || icon.getWidth() > Short.MAX_VALUE
+                || icon.getHeight() > Short.MAX_VALUE) {
+            return -1;
+        }
+        for (int i = 0; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == icon.getConfig()) {
+                // Rows must be packed, as they are when a bitmap is created from the pixels
+                return icon.getByteCount() == icon.getWidth() * icon.getHeight()
+                        * BYTES_PER_PIXEL[i] ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -129,7 +129,14 @@ public final class Utilities {
     }
 
     public static Bitmap createIconBitmap(Cursor c, int iconIndex, Context context) {
-        byte[] data = c.getBlob(iconIndex);
+        return createIconBitmap(c.getBlob(iconIndex), context);
+    }
+
+    /**
+     * Returns a bitmap suitable for the all apps view from an icon saved in the db, or null if
+     * it can't be decoded.
+     */
+    public static Bitmap createIconBitmap(byte[] data, Context context) {
         try {
             return createIconBitmap(BitmapFactory.decodeByteArray(data, 0, data.length), context);
         } catch (Exception e) {
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The compressed previews of one size, packed one after the other into a memory-mapped file.
+ * {@link WidgetPreviewLoader} keeps the offset of each preview in its database, and hands all
+ * the offsets of a size to the atlas when it is opened, so that loading a preview copies its
+ * bytes out of the mapping instead of querying SQLite.
+ *
+ * <p>Previews are only appended. The space of replaced and removed previews is reclaimed when
+ * the file fills up, by starting it over. Each record holds its key, so that an offset left
+ * over from before the file was started over is not taken for another preview.
+ *
+ * <p>Reads run concurrently with each other, and are serialized with writes.
+ */
+class WidgetPreviewAtlas {
+    private static final String TAG = "Launcher.WidgetPreviewAtlas";
+
+    private static final int MAGIC = 0x57505641;
+    private static final int FORMAT_VERSION = 2;
+
+    // Header layout: magic, format version, end of the last record
+    private static final int OFFSET_END = 8;
+    private static final int HEADER_SIZE = 16;
+
+    // Record layout: length of the data, length of the key, the key in UTF-8, then the data
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File mFile;
+    private final int mCapacity;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    // Guarded by mLock
+    private final HashMap<String, Integer> mIndex = new HashMap<>();
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+
+    /**
+     * @param file the file to map, created if needed
+     * @param capacity the size of the file, in bytes
+     */
+    WidgetPreviewAtlas(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Maps the file, and returns whether the previews it held were kept. When they weren't, the
+     * offsets kept for them are stale.
+     */
+    boolean open() {
+        mLock.writeLock().lock();
+        try {
+            boolean sameSize;
+            try {
+                mRaf = new RandomAccessFile(mFile, "rw");
+                sameSize = mRaf.length() == mCapacity;
+                mRaf.setLength(mCapacity);
+                mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to map " + mFile, e);
+                closeLocked();
+                return false;
+            }
+
+            if (sameSize && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == FORMAT_VERSION) {
+                mEnd = mBuffer.getInt(OFFSET_END);
+                if (mEnd >= HEADER_SIZE && mEnd <= mCapacity) {
+                    return true;
+                }
+            }
+            resetLocked();
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a preview that was stored at the offset before, and returns false if the file
+     * doesn't hold it there.
+     */
+    boolean add(String key, int offset) {
+        mLock.writeLock().lock();
+        try {
+            if (mBuffer == null || offset < HEADER_SIZE || offset > mEnd - RECORD_HEADER_SIZE) {
+                return false;
+            }
+            int length = mBuffer.getInt(offset);
+            int keyLength = mBuffer.getInt(offset + 4);
+            if (length <= 0 || keyLength <= 0
+                    || (long) keyLength + length > mEnd - offset - RECORD_HEADER_SIZE
+                    || !keyEquals(offset + RECORD_HEADER_SIZE, keyLength, key)) {
+                return false;
+            }
+            mIndex.put(key, offset);
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the preview stored for the key, or null.
+     */
+    byte[] get(String key) {
+        mLock.readLock().lock();
+        try {
+            Integer offset = mIndex.get(key);
+            if (offset == null || mBuffer == null) {
+                return null;
+            }
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset);
+            byte[] data = new byte[record.getInt()];
+            int keyLength = record.getInt();
+            record.position(record.position() + keyLength);
+            record.get(data);
+            return data;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the preview for the key, and returns its offset, or -1 if the file has no room
+     * left for it.
+     */
+    int put(String key, byte[] data) {
+        mLock.writeLock().lock();
+        try {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (mBuffer == null || (long) keyBytes.length + data.length
+                    > mCapacity - mEnd - RECORD_HEADER_SIZE) {
+                return -1;
+            }
+            int offset = mEnd;
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset);
+            record.putInt(data.length).putInt(keyBytes.length).put(keyBytes).put(data);
+            mEnd = record.position();
+            mBuffer.putInt(OFFSET_END, mEnd);
+            mIndex.put(key, offset);
+            return offset;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the previews of the keys that start with the prefix and end with the suffix.
+     */
+    void remove(String keyPrefix, String keySuffix) {
+        mLock.writeLock().lock();
+        try {
+            Iterator<String> keys = mIndex.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (key.startsWith(keyPrefix) && key.endsWith(keySuffix)) {
+                    keys.remove();
+                }
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all previews, to make room for new ones.
+     */
+    void reset() {
+        mLock.writeLock().lock();
+        try {
+            if (mBuffer != null) {
+                resetLocked();
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bytes used by previews, including the ones that were replaced.
+     */
+    int getUsedBytes() {
+        mLock.readLock().lock();
+        try {
+            return mEnd - HEADER_SIZE;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Unmaps the file. The atlas can't be used afterwards.
+     */
+    void close() {
+        mLock.writeLock().lock();
+        try {
+            closeLocked();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private boolean keyEquals(int position, int length, String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mBuffer.get(position + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void closeLocked() {
+        mBuffer = null;
+        mIndex.clear();
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + mFile, e);
+            }
+            mRaf = null;
+        }
+    }
+
+    private void resetLocked() {
+        mIndex.clear();
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, FORMAT_VERSION);
+        mEnd = HEADER_SIZE;
+        mBuffer.putInt(OFFSET_END, mEnd);
+    }
+}
@@ -35,6 +35,7 @@ import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,6 +44,9 @@ import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class WidgetPreviewLoader {
 
@@ -53,8 +57,19 @@ public class WidgetPreviewLoader {
     //SPRD:517628 the float value offset the size of widget bitmap
     private final float OFFSET = 15f;
 
+    private static final String ATLAS_FILE_PREFIX = "widget_previews_";
+    private static final int ATLAS_CAPACITY = 32 * 1024 * 1024;
+
+    // Opening the widget tray asks for every visible preview at once; they are loaded a few at
+    // a time rather than all competing for the CPU and the disk
+    private static final int PREVIEW_LOAD_THREADS = 3;
+    private static final int PREVIEW_LOAD_KEEP_ALIVE_SECONDS = 5;
+
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
+    // The preview atlases by preview size, opened on first use
+    private final HashMap<String, WidgetPreviewAtlas> mAtlases = new HashMap<>();
+
     /**
      * Weak reference objects, do not prevent their referents from being made finalizable,
      * finalized, and then reclaimed.
@@ -73,6 +88,7 @@ public class WidgetPreviewLoader {
 
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
     @Thunk final Handler mWorkerHandler;
+    private final ThreadPoolExecutor mPreviewExecutor;
 
     public WidgetPreviewLoader(Context context, IconCache iconCache) {
         mContext = context;
@@ -83,10 +99,14 @@ public class WidgetPreviewLoader {
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
         mProfileBadgeMargin = context.getResources()
                 .getDimensionPixelSize(R.dimen.profile_badge_margin);
+        mPreviewExecutor = new ThreadPoolExecutor(PREVIEW_LOAD_THREADS, PREVIEW_LOAD_THREADS,
+                PREVIEW_LOAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mPreviewExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
+     * Loads or generates the widget preview on a small pool of background threads. Must be
      * called on UI thread
      *
      * @param o either {@link LauncherAppWidgetProviderInfo} or {@link ResolveInfo}
@@ -98,16 +118,17 @@ public class WidgetPreviewLoader {
         WidgetCacheKey key = getObjectKey(o, size);
 
         PreviewLoadTask task = new PreviewLoadTask(key, o, previewWidth, previewHeight, caller);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        task.executeOnExecutor(mPreviewExecutor);
         return new PreviewLoadRequest(task);
     }
 
     /**
-     * The DB holds the generated previews for various components. Previews can also have different
-     * sizes (landscape vs portrait).
+     * The DB holds where the generated previews for various components are in the atlas of their
+     * size, see {@link WidgetPreviewAtlas}. Previews can also have different sizes (landscape vs
+     * portrait).
      */
     private static class CacheDb extends SQLiteOpenHelper {
-        private static final int DB_VERSION = 3;
+        private static final int DB_VERSION = 4;
 
         private static final String TABLE_NAME = "shortcut_and_widget_previews";
         private static final String COLUMN_COMPONENT = "componentName";
@@ -116,7 +137,7 @@ public class WidgetPreviewLoader {
         private static final String COLUMN_PACKAGE = "packageName";
         private static final String COLUMN_LAST_UPDATED = "lastUpdated";
         private static final String COLUMN_VERSION = "version";
-        private static final String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
+        private static final String COLUMN_ATLAS_OFFSET = "atlas_offset";
 
         public CacheDb(Context context) {
             super(context, LauncherFiles.WIDGET_PREVIEWS_DB, null, DB_VERSION);
@@ -131,7 +152,7 @@ public class WidgetPreviewLoader {
                     COLUMN_PACKAGE + " TEXT NOT NULL, " +
                     COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
                     COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
-                    COLUMN_PREVIEW_BITMAP + " BLOB, " +
+                    COLUMN_ATLAS_OFFSET + " INTEGER NOT NULL, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ", " + COLUMN_SIZE + ") " +
                     ");");
         }
@@ -170,14 +191,38 @@ public class WidgetPreviewLoader {
     }
 
     @Thunk void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
+        byte[] data = Utilities.flattenBitmap(preview);
+        if (data == null) {
+            return;
+        }
+        long userSerial = mUserManager.getSerialNumberForUser(key.user);
+        String atlasKey = getAtlasKey(key.componentName, userSerial);
+        int offset;
+        synchronized (mAtlases) {
+            // Writers put and start the atlas over one at a time, so no preview lands between
+            // the reset and dropping the offsets into the old atlas
+            WidgetPreviewAtlas atlas = getAtlas(key.size);
+            offset = atlas.put(atlasKey, data);
+            if (offset < 0) {
+                // Start the atlas over, along with the offsets that point into it
+                if (DEBUG) Log.d(TAG, "Preview atlas " + key.size + " is full, starting over");
+                atlas.reset();
+                removeAtlasOffsets(key.size);
+                offset = atlas.put(atlasKey, data);
+            }
+        }
+        if (offset < 0) {
+            return;
+        }
+
         ContentValues values = new ContentValues();
         values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToShortString());
-        values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
+        values.put(CacheDb.COLUMN_USER, userSerial);
         values.put(CacheDb.COLUMN_SIZE, key.size);
         values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
         values.put(CacheDb.COLUMN_VERSION, versions[0]);
         values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
+        values.put(CacheDb.COLUMN_ATLAS_OFFSET, offset);
 
         try {
             mDb.getWritableDatabase().insertWithOnConflict(CacheDb.TABLE_NAME, null, values,
@@ -195,6 +240,11 @@ public class WidgetPreviewLoader {
         synchronized(mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        synchronized (mAtlases) {
+            for (WidgetPreviewAtlas atlas : mAtlases.values()) {
+                atlas.remove(packageName + "/", "#" + userSerial);
+            }
+        }
 
         try {
             mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME,
@@ -294,45 +344,80 @@ public class WidgetPreviewLoader {
     }
 
     /**
-     * Reads the preview bitmap from the DB or null if the preview is not in the DB.
+     * Reads the preview bitmap from its atlas or null if the preview is not in the atlas.
      */
-    @Thunk Bitmap readFromDb(WidgetCacheKey key, Bitmap recycle, PreviewLoadTask loadTask) {
-        Cursor cursor = null;
+    @Thunk Bitmap readFromAtlas(WidgetCacheKey key, Bitmap recycle, PreviewLoadTask loadTask) {
+        byte[] data = getAtlas(key.size).get(getAtlasKey(key.componentName,
+                mUserManager.getSerialNumberForUser(key.user)));
+        // If cancelled, skip decoding the preview into a bitmap
+        if (data == null || loadTask.isCancelled()) {
+            return null;
+        }
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inBitmap = recycle;
         try {
-            cursor = mDb.getReadableDatabase().query(
-                    CacheDb.TABLE_NAME,
-                    new String[] { CacheDb.COLUMN_PREVIEW_BITMAP },
-                    CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?",
-                    new String[] {
-                            key.componentName.flattenToString(),
-                            Long.toString(mUserManager.getSerialNumberForUser(key.user)),
-                            key.size
-                    },
-                    null, null, null);
-            // If cancelled, skip getting the blob and decoding it into a bitmap
-            if (loadTask.isCancelled()) {
-                return null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the atlas of the previews of the given size. The first time, maps its file and
+     * reads where all its previews are from the DB at once.
+     */
+    private WidgetPreviewAtlas getAtlas(String size) {
+        synchronized (mAtlases) {
+            WidgetPreviewAtlas atlas = mAtlases.get(size);
+            if (atlas == null) {
+                atlas = new WidgetPreviewAtlas(
+                        new File(mContext.getCacheDir(), ATLAS_FILE_PREFIX + size),
+                        ATLAS_CAPACITY);
+                if (atlas.open()) {
+                    loadAtlasOffsets(atlas, size);
+                } else {
+                    removeAtlasOffsets(size);
+                }
+                mAtlases.put(size, atlas);
             }
-            if (cursor.moveToNext()) {
-                byte[] blob = cursor.getBlob(0);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inBitmap = recycle;
-                try {
-                    if (!loadTask.isCancelled()) {
-                        return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
-                    }
-                } catch (Exception e) {
-                    return null;
+            return atlas;
+        }
+    }
+
+    private void loadAtlasOffsets(WidgetPreviewAtlas atlas, String size) {
+        Cursor c = null;
+        try {
+            c = mDb.getReadableDatabase().query(CacheDb.TABLE_NAME,
+                    new String[] {CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_USER,
+                        CacheDb.COLUMN_ATLAS_OFFSET},
+                    CacheDb.COLUMN_SIZE + " = ?", new String[] {size}, null, null, null);
+            while (c.moveToNext()) {
+                ComponentName cn = ComponentName.unflattenFromString(c.getString(0));
+                if (cn != null) {
+                    // Stale offsets are ignored, and replaced when the preview is generated
+                    atlas.add(getAtlasKey(cn, c.getLong(1)), c.getInt(2));
                 }
             }
         } catch (SQLException e) {
-            Log.w(TAG, "Error loading preview from DB", e);
+            Log.w(TAG, "Error loading previews from DB", e);
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            if (c != null) {
+                c.close();
             }
         }
-        return null;
+    }
+
+    private void removeAtlasOffsets(String size) {
+        try {
+            mDb.getWritableDatabase().delete(CacheDb.TABLE_NAME,
+                    CacheDb.COLUMN_SIZE + " = ?", new String[] {size});
+        } catch (SQLException e) {
+            Log.e(TAG, "Unable to delete items from DB", e);
+        }
+    }
+
+    private static String getAtlasKey(ComponentName cn, long userSerial) {
+        return cn.flattenToString() + "#" + userSerial;
     }
 
     @Thunk Bitmap generatePreview(Launcher launcher, Object info, Bitmap recycle,
@@ -624,7 +709,7 @@ public class WidgetPreviewLoader {
             if (isCancelled()) {
                 return unusedBitmap;
             }
-            Bitmap preview = readFromDb(mKey, unusedBitmap, this);
+            Bitmap preview = readFromAtlas(mKey, unusedBitmap, this);
             // Only consider generating the preview if we have not cancelled the task already
             if (!isCancelled() && preview == null) {
                 // Fetch the version info before we generate the preview, so that, in-case the
@@ -17,24 +17,64 @@ package com.android.launcher3.allapps;
 
 import android.os.Handler;
 
-import com.android.launcher3.AppInfo;
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.util.ComponentKey;
 
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.regex.Pattern;
 
 /**
  * The default search implementation.
+ *
+ * <p>The words of the app titles are kept in a sorted index, so that a query only looks at the
+ * apps with a word starting with one of its words. When a query extends the previous one, as it
+ * does while typing, only the previous results are checked again. The index follows the list of
+ * apps, which changes when packages do; only the apps that were added or renamed since the last
+ * search are indexed again.
+ *
+ * <p>Titles and queries are compared lower-cased and without diacritics.
  */
 public class DefaultAppSearchAlgorithm {
 
     private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+    private static final Pattern DIACRITICS_PATTERN = Pattern.compile("\\p{Mn}+");
+
+    /** An app with the words of its title, as indexed. */
+    private static final class IndexedApp {
+        final ItemInfo info;
+        final CharSequence title;
+        final String[] words;
+        int position;
+
+        IndexedApp(ItemInfo info) {
+            this.info = info;
+            this.title = info.title;
+            LinkedHashSet<String> words = new LinkedHashSet<>();
+            for (String word : SPLIT_PATTERN.split(normalize(info.title))) {
+                words.add(word);
+            }
+            this.words = words.toArray(new String[words.size()]);
+        }
+    }
 
     private final List<ItemInfo> mApps;
     protected final Handler mResultHandler;
 
+    // The apps in the order of mApps when they were last indexed
+    private IndexedApp[] mIndexedApps = new IndexedApp[0];
+    private final HashMap<ItemInfo, IndexedApp> mAppMap = new HashMap<>();
+    private final TreeMap<String, ArrayList<IndexedApp>> mWordIndex = new TreeMap<>();
+
+    // The last query, normalized, and the positions of the apps it matched
+    private String mLastQuery;
+    private BitSet mLastResult;
+
     public DefaultAppSearchAlgorithm(List<ItemInfo> apps) {
         mApps = apps;
         mResultHandler = new Handler();
@@ -59,23 +99,59 @@ public class DefaultAppSearchAlgorithm {
     }
 
     protected ArrayList<ComponentKey> getTitleMatchResult(String query) {
+        updateIndex();
+
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
-        final String queryTextLower = query.toLowerCase();
-        final String[] queryWords = SPLIT_PATTERN.split(queryTextLower);
+        final String normalizedQuery = normalize(query);
+        final String[] queryWords = SPLIT_PATTERN.split(normalizedQuery);
 
-        final ArrayList<ComponentKey> result = new ArrayList<>();
-        for (ItemInfo info : mApps) {
-            if (matches(info, queryWords)) {
-                result.add(info.toComponentKey());
+        final BitSet matches;
+        if (mLastQuery != null && normalizedQuery.startsWith(mLastQuery)) {
+            // Every word of the query is the same or longer than in the last one, so it can only
+            // match fewer apps
+            matches = (BitSet) mLastResult.clone();
+        } else {
+            matches = getCandidates(queryWords);
+        }
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            if (!matches(mIndexedApps[i], queryWords)) {
+                matches.clear(i);
             }
         }
+        mLastQuery = normalizedQuery;
+        mLastResult = matches;
+
+        final ArrayList<ComponentKey> result = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            result.add(mIndexedApps[i].info.toComponentKey());
+        }
         return result;
     }
 
-    protected boolean matches(ItemInfo info, String[] queryWords) {
-        String title = info.title.toString();
-        String[] words = SPLIT_PATTERN.split(title.toLowerCase());
+    /**
+     * Returns the positions of the apps with a word starting with the longest word of the query,
+     * which narrows the apps down the most.
+     */
+    private BitSet getCandidates(String[] queryWords) {
+        String longest = "";
+        for (String word : queryWords) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        final BitSet candidates = new BitSet(mIndexedApps.length);
+        for (ArrayList<IndexedApp> apps :
+                mWordIndex.subMap(longest, longest + Character.MAX_VALUE).values()) {
+            for (IndexedApp app : apps) {
+                candidates.set(app.position);
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean matches(IndexedApp app, String[] queryWords) {
+        final String[] words = app.words;
         for (int qi = 0; qi < queryWords.length; qi++) {
             boolean foundMatch = false;
             for (int i = 0; i < words.length; i++) {
@@ -92,4 +168,76 @@ public class DefaultAppSearchAlgorithm {
         }
         return true;
     }
+
+    /**
+     * Brings the index up to date with the list of apps, indexing only the apps that were added
+     * or renamed since.
+     */
+    private void updateIndex() {
+        final int count = mApps.size();
+        boolean changed = count != mIndexedApps.length;
+        for (int i = 0; i < count && !changed; i++) {
+            ItemInfo info = mApps.get(i);
+            changed = mIndexedApps[i].info != info || mIndexedApps[i].title != info.title;
+        }
+        if (!changed) {
+            return;
+        }
+
+        final IndexedApp[] indexedApps = new IndexedApp[count];
+        final HashMap<ItemInfo, IndexedApp> removed = new HashMap<>(mAppMap);
+        mAppMap.clear();
+        for (int i = 0; i < count; i++) {
+            ItemInfo info = mApps.get(i);
+            IndexedApp app = removed.remove(info);
+            if (app == null || app.title != info.title) {
+                if (app != null) {
+                    removeFromIndex(app);
+                }
+                app = new IndexedApp(info);
+                addToIndex(app);
+            }
+            app.position = i;
+            indexedApps[i] = app;
+            mAppMap.put(info, app);
+        }
+        for (IndexedApp app : removed.values()) {
+            removeFromIndex(app);
+        }
+        mIndexedApps = indexedApps;
+        mLastQuery = null;
+        mLastResult = null;
+    }
+
+    private void addToIndex(IndexedApp app) {
+        for (String word : app.words) {
+            ArrayList<IndexedApp> apps = mWordIndex.get(word);
+            if (apps == null) {
+                apps = new ArrayList<>(1);
+                mWordIndex.put(word, apps);
+            }
+            apps.add(app);
+        }
+    }
+
+    private void removeFromIndex(IndexedApp app) {
+        for (String word : app.words) {
+            ArrayList<IndexedApp> apps = mWordIndex.get(word);
+            if (apps != null && apps.remove(app) && apps.isEmpty()) {
+                mWordIndex.remove(word);
+            }
+        }
+    }
+
+    /**
+     * Lower-cases the text and strips its diacritics, so that "Café" is found by "cafe".
+     */
+    private static String normalize(CharSequence text) {
+        if (text == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(text.toString().toLowerCase(),
+                Normalizer.Form.NFD);
+        return DIACRITICS_PATTERN.matcher(decomposed).replaceAll("");
+    }
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * Tests the {@link IconCache} lookups through its {@link MappedIconStore}, and measures binding
+ * the icons of a few hundred apps on a cold start.
+ */
+public class IconCacheTest extends AndroidTestCase {
+
+    private static final String TAG = "IconCacheTest";
+
+    // Components of these packages are not installed, so their icons only come from the DB
+    private static final String PACKAGE_PREFIX = "com.android.launcher3.tests.app";
+    private static final int APP_COUNT = 320;
+    private static final int THREAD_COUNT = 4;
+
+    private InvariantDeviceProfile mProfile;
+    private UserHandleCompat mUser;
+    private long mUserSerial;
+    private File mStoreFile;
+    private final ArrayList<MappedIconStore> mStores = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProfile = new InvariantDeviceProfile(getContext());
+        mUser = UserHandleCompat.myUserHandle();
+        mUserSerial = UserManagerCompat.getInstance(getContext()).getSerialNumberForUser(mUser);
+        mStoreFile = new File(getContext().getCacheDir(), "test_app_icons.store");
+        mStoreFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        IconCache cache = newIconCache();
+        for (int i = 0; i < APP_COUNT; i++) {
+            cache.removeIconsForPkg(PACKAGE_PREFIX + i, mUser);
+        }
+        for (MappedIconStore store : mStores) {
+            store.close();
+        }
+        mStoreFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testStoredIconIsInvalidated() {
+        ComponentName component = getComponent(0);
+
+        IconCache cache = newIconCache();
+        cache.preloadIcon(component, makeIcon(Color.RED), mProfile.fillResIconDpi, "First",
+                mUserSerial);
+        Bitmap decoded = bind(cache, component).getIcon(cache);
+        assertEquals(Color.RED, getFillColor(decoded));
+        closeStores();
+
+        // Served from the store, which the lookup above filled
+        cache = newIconCache();
+        ShortcutInfo info = bind(cache, component);
+        assertEquals("First", info.title);
+        assertTrue(decoded.sameAs(info.getIcon(cache)));
+        closeStores();
+
+        // Writing the DB drops the stored copy
+        cache = newIconCache();
+        cache.preloadIcon(component, makeIcon(Color.BLUE), mProfile.fillResIconDpi, "Second",
+                mUserSerial);
+        info = bind(cache, component);
+        assertEquals("Second", info.title);
+        assertEquals(Color.BLUE, getFillColor(info.getIcon(cache)));
+        closeStores();
+
+        cache = newIconCache();
+        assertEquals(Color.BLUE, getFillColor(bind(cache, component).getIcon(cache)));
+    }
+
+    @SmallTest
+    public void testFullStoreKeepsNewestIcons() {
+        Bitmap icon = makeIcon(Color.RED);
+        // Room for four icons, but not five
+        int capacity = 4 * icon.getByteCount() + 1024;
+        MappedIconStore store = newStore(capacity);
+        for (int i = 0; i < 4; i++) {
+            putIcon(store, i, icon);
+        }
+        store.remove(getStoreKey(1));
+
+        // The removed icon makes room
+        putIcon(store, 4, icon);
+        assertEquals(4, store.getCount());
+        assertNotNull(store.get(getStoreKey(0)));
+        assertNull(store.get(getStoreKey(1)));
+
+        // Then the oldest icon does
+        putIcon(store, 5, icon);
+        assertEquals(4, store.getCount());
+        assertNull(store.get(getStoreKey(0)));
+        closeStores();
+
+        store = newStore(capacity);
+        assertEquals(4, store.getCount());
+        for (int i = 2; i <= 5; i++) {
+            MappedIconStore.StoredIcon stored = store.get(getStoreKey(i));
+            assertEquals("App " + i, stored.label);
+            assertTrue(icon.sameAs(stored.icon));
+        }
+    }
+
+    @SmallTest
+    public void testRemovingIconOnlyDropsItsOwnLookups() {
+        Bitmap icon = makeIcon(Color.RED);
+        MappedIconStore store = newStore(IconCache.getIconStoreCapacity(icon.getWidth()));
+
+        int generation = store.getGeneration(getStoreKey(0));
+        store.remove(getStoreKey(1));
+        store.put(getStoreKey(0), icon, "App 0", generation);
+        assertNotNull(store.get(getStoreKey(0)));
+
+        generation = store.getGeneration(getStoreKey(0));
+        store.remove(getStoreKey(0));
+        store.put(getStoreKey(0), icon, "App 0", generation);
+        assertNull(store.get(getStoreKey(0)));
+
+        String lowResKey = getStoreKey(0) + "#low";
+        generation = store.getGeneration(lowResKey);
+        store.removeAll("0/" + PACKAGE_PREFIX + "0/");
+        store.put(lowResKey, icon, "App 0", generation);
+        assertNull(store.get(lowResKey));
+    }
+
+    /**
+     * Measures looking up the icons of {@link #APP_COUNT} apps as the loader does on a cold
+     * start: decoding them from the DB, copying them from the store in a new process, with the
+     * lookups split over a few threads, and from memory.
+     */
+    @LargeTest
+    public void testColdStartBinding() throws Exception {
+        final ComponentName[] components = new ComponentName[APP_COUNT];
+        IconCache cache = newIconCache();
+        for (int i = 0; i < APP_COUNT; i++) {
+            components[i] = getComponent(i);
+            cache.preloadIcon(components[i], makeIcon(Color.HSVToColor(
+                    new float[] {i * 360f / APP_COUNT, 0.8f, 0.9f})),
+                    mProfile.fillResIconDpi, "App " + i, mUserSerial);
+        }
+        closeStores();
+
+        // Nothing stored yet, every icon is decoded and written to the store, which has room
+        // for all of them
+        cache = newIconCache();
+        long begin = System.nanoTime();
+        final Bitmap[] decoded = new Bitmap[APP_COUNT];
+        for (int i = 0; i < APP_COUNT; i++) {
+            decoded[i] = bind(cache, components[i]).getIcon(cache);
+        }
+        final long databaseUs = (System.nanoTime() - begin) / 1000;
+        assertEquals(APP_COUNT, mStores.get(0).getCount());
+
+        begin = System.nanoTime();
+        bindAll(cache, components, 0, APP_COUNT);
+        final long memoryUs = (System.nanoTime() - begin) / 1000;
+        closeStores();
+
+        cache = newIconCache();
+        begin = System.nanoTime();
+        final Bitmap[] mapped = new Bitmap[APP_COUNT];
+        for (int i = 0; i < APP_COUNT; i++) {
+            mapped[i] = bind(cache, components[i]).getIcon(cache);
+        }
+        final long mappedUs = (System.nanoTime() - begin) / 1000;
+        closeStores();
+        for (int i = 0; i < APP_COUNT; i++) {
+            assertTrue(decoded[i].sameAs(mapped[i]));
+        }
+
+        final IconCache parallelCache = newIconCache();
+        Thread[] threads = new Thread[THREAD_COUNT];
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int from = APP_COUNT * t / THREAD_COUNT;
+            final int to = APP_COUNT * (t + 1) / THREAD_COUNT;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    bindAll(parallelCache, components, from, to);
+                }
+            };
+        }
+        begin = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long parallelUs = (System.nanoTime() - begin) / 1000;
+
+        Log.i(TAG, APP_COUNT + " icons of " + mProfile.iconBitmapSize + "px: database "
+                + databaseUs + " us, mapped " + mappedUs + " us, mapped on " + THREAD_COUNT
+                + " threads " + parallelUs + " us, memory " + memoryUs + " us");
+    }
+
+    private IconCache newIconCache() {
+        MappedIconStore store = newStore(IconCache.getIconStoreCapacity(
+                mProfile.iconBitmapSize));
+        return new IconCache(getContext(), mProfile, store);
+    }
+
+    /**
+     * Returns a store of the given size, opened as the cache does on the worker thread.
+     */
+    private MappedIconStore newStore(int capacity) {
+        MappedIconStore store = new MappedIconStore(mStoreFile, capacity,
+                "dpi=" + mProfile.fillResIconDpi);
+        mStores.add(store);
+        store.open();
+        return store;
+    }
+
+    private static String getStoreKey(int index) {
+        return "0/" + PACKAGE_PREFIX + index + "/" + getComponent(index).getClassName();
+    }
+
+    private static void putIcon(MappedIconStore store, int index, Bitmap icon) {
+        String key = getStoreKey(index);
+        store.put(key, icon, "App " + index, store.getGeneration(key));
+    }
+
+    /**
+     * Closes the stores, so that the next cache maps the file again, like a new process.
+     */
+    private void closeStores() {
+        for (MappedIconStore store : mStores) {
+            store.close();
+        }
+        mStores.clear();
+    }
+
+    private static ComponentName getComponent(int index) {
+        String packageName = PACKAGE_PREFIX + index;
+        return new ComponentName(packageName, packageName + ".MainActivity");
+    }
+
+    private ShortcutInfo bind(IconCache cache, ComponentName component) {
+        ShortcutInfo info = new ShortcutInfo();
+        cache.getTitleAndIcon(info, component, null, mUser, false, false);
+        return info;
+    }
+
+    private void bindAll(IconCache cache, ComponentName[] components, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertNotNull(bind(cache, components[i]).getIcon(cache));
+        }
+    }
+
+    /**
+     * Returns the color of an opaque pixel of the circle drawn by {@link #makeIcon}.
+     */
+    private static int getFillColor(Bitmap icon) {
+        return icon.getPixel(icon.getWidth() / 2, icon.getHeight() / 10);
+    }
+
+    private Bitmap makeIcon(int color) {
+        int size = mProfile.iconBitmapSize;
+        Bitmap icon = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(icon);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(color);
+        canvas.drawCircle(size / 2f, size / 2f, size * 0.45f, paint);
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(size / 3f);
+        canvas.drawText(Integer.toHexString(color), size / 8f, size / 2f, paint);
+        return icon;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.launcher3.LauncherSettings.Favorites;
+import com.android.launcher3.LauncherSettings.WorkspaceScreens;
+import com.android.launcher3.compat.LauncherActivityInfoCompat;
+import com.android.launcher3.compat.LauncherAppsCompat;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.model.WidgetsModel;
+import com.android.launcher3.util.LongArrayMap;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the {@link LoaderStages} of the workspace loader, and measures the time until the first
+ * page of a large workspace is bound by {@link LauncherModel}.
+ */
+public class LoaderStagesTest extends AndroidTestCase {
+
+    private static final String TAG = "LoaderStagesTest";
+
+    private static final int PAGE_COUNT = 16;
+    private static final long LOAD_TIMEOUT_SECONDS = 60;
+
+    private LauncherAppsCompat mLauncherApps;
+    private UserHandleCompat mUser;
+    private long mUserSerial;
+    private List<LauncherActivityInfoCompat> mActivities;
+    private LauncherModel mModel;
+    private LauncherModel.Callbacks mOldCallbacks;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mLauncherApps = LauncherAppsCompat.getInstance(getContext());
+        mUser = UserHandleCompat.myUserHandle();
+        mUserSerial = UserManagerCompat.getInstance(getContext()).getSerialNumberForUser(mUser);
+        mActivities = mLauncherApps.getActivityList(null, mUser);
+        assertFalse(mActivities.isEmpty());
+        if (LauncherAppState.getInstanceNoCreate() == null) {
+            LauncherAppState.setApplicationContext(getContext());
+        }
+        mModel = LauncherAppState.getInstance().getModel();
+        mOldCallbacks = mModel.getCallback();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // Give the workspace back to the launcher, loaded from its own database
+        mModel.initialize(mOldCallbacks);
+        LauncherAppState.getInstance().reloadWorkspace();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testActivityIsResolvedOnce() {
+        Intent intent = getIntent(mActivities.get(0));
+        LoaderStages stages = new LoaderStages(mLauncherApps);
+        try {
+            stages.prefetchActivity(intent, mUser, false);
+            LoaderStages.ResolvedActivity target = stages.getActivity(intent, mUser, false);
+            assertTrue(target.packageEnabled);
+            assertTrue(target.activityEnabled);
+            assertNull(target.info);
+
+            // Applications need the activity info, which the shortcut lookup above skipped
+            target = stages.getActivity(intent, mUser, true);
+            assertTrue(target.activityEnabled);
+            assertEquals(intent.getComponent(), target.info.getComponentName());
+        } finally {
+            stages.finish();
+        }
+        assertTrue(stages.getStageMillis(LoaderStages.STAGE_RESOLVE) >= 0);
+    }
+
+    /**
+     * Runs the loader over a workspace of {@link #PAGE_COUNT} full pages of applications, and
+     * logs how long it took until the first page was bound and until all icons were loaded.
+     */
+    @LargeTest
+    public void testTimeToFirstPageBound() throws Exception {
+        SQLiteDatabase db = createWorkspace();
+        try {
+            final Context context = newWorkspaceContext(db);
+            final BindingCallbacks callbacks = new BindingCallbacks();
+            mModel.initialize(callbacks);
+
+            // Once untimed, so that the icon cache holds the icons for the timed pass
+            LoaderStages stages = loadAndBindWorkspace(context, callbacks);
+            assertEquals(getItemCount(), callbacks.boundItems);
+
+            callbacks.boundItems = 0;
+            stages = loadAndBindWorkspace(context, callbacks);
+            assertEquals(getItemCount(), callbacks.boundItems);
+            assertTrue(stages.getFirstPageBoundMillis() >= 0);
+
+            Log.i(TAG, callbacks.boundItems + " items on " + PAGE_COUNT + " pages: " + stages);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Runs the loader of the model and waits until it has bound the workspace and its stages
+     * are done.
+     */
+    private LoaderStages loadAndBindWorkspace(Context context, BindingCallbacks callbacks)
+            throws InterruptedException {
+        final LoaderStages previous = mModel.getLastLoaderStages();
+        callbacks.finished = new CountDownLatch(1);
+        mModel.loadAndBindWorkspace(context);
+
+        // The stages are recorded on the worker thread once the workspace is bound
+        final CountDownLatch loaded = new CountDownLatch(1);
+        LauncherModel.runOnWorkerThread(new Runnable() {
+            @Override
+            public void run() {
+                loaded.countDown();
+            }
+        });
+        assertTrue(loaded.await(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(callbacks.finished.await(LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final LoaderStages stages = mModel.getLastLoaderStages();
+        assertNotNull(stages);
+        assertNotSame(previous, stages);
+        return stages;
+    }
+
+    private int getItemCount() {
+        InvariantDeviceProfile profile = LauncherAppState.getInstance().getInvariantDeviceProfile();
+        return PAGE_COUNT * profile.numColumns * profile.numRows;
+    }
+
+    /**
+     * Creates the favorites and screens of a workspace whose pages are full of applications.
+     */
+    private SQLiteDatabase createWorkspace() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE " + Favorites.TABLE_NAME + " ("
+                + Favorites._ID + " INTEGER PRIMARY KEY," + Favorites.TITLE + " TEXT,"
+                + Favorites.INTENT + " TEXT," + Favorites.CONTAINER + " INTEGER,"
+                + Favorites.SCREEN + " INTEGER,"
+                + Favorites.CELLX + " INTEGER," + Favorites.CELLY + " INTEGER,"
+                + Favorites.SPANX + " INTEGER," + Favorites.SPANY + " INTEGER,"
+                + Favorites.ITEM_TYPE + " INTEGER,"
+                + Favorites.APPWIDGET_ID + " INTEGER NOT NULL DEFAULT -1,"
+                + Favorites.ICON_TYPE + " INTEGER," + Favorites.ICON_PACKAGE + " TEXT,"
+                + Favorites.ICON_RESOURCE + " TEXT," + Favorites.ICON + " BLOB,"
+                + Favorites.APPWIDGET_PROVIDER + " TEXT,"
+                + Favorites.RESTORED + " INTEGER NOT NULL DEFAULT 0,"
+                + Favorites.PROFILE_ID + " INTEGER,"
+                + Favorites.RANK + " INTEGER NOT NULL DEFAULT 0,"
+                + Favorites.OPTIONS + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE " + WorkspaceScreens.TABLE_NAME + " ("
+                + WorkspaceScreens._ID + " INTEGER PRIMARY KEY,"
+                + WorkspaceScreens.SCREEN_RANK + " INTEGER)");
+
+        InvariantDeviceProfile profile = LauncherAppState.getInstance().getInvariantDeviceProfile();
+        int index = 0;
+        for (int screen = 0; screen < PAGE_COUNT; screen++) {
+            ContentValues screenValues = new ContentValues();
+            screenValues.put(WorkspaceScreens._ID, screen);
+            screenValues.put(WorkspaceScreens.SCREEN_RANK, screen);
+            db.insert(WorkspaceScreens.TABLE_NAME, null, screenValues);
+
+            for (int y = 0; y < profile.numRows; y++) {
+                for (int x = 0; x < profile.numColumns; x++) {
+                    LauncherActivityInfoCompat lai =
+                            mActivities.get(index++ % mActivities.size());
+                    ContentValues values = new ContentValues();
+                    values.put(Favorites.ITEM_TYPE, Favorites.ITEM_TYPE_APPLICATION);
+                    values.put(Favorites.INTENT, getIntent(lai).toUri(0));
+                    values.put(Favorites.CONTAINER, Favorites.CONTAINER_DESKTOP);
+                    values.put(Favorites.PROFILE_ID, mUserSerial);
+                    values.put(Favorites.SCREEN, screen);
+                    values.put(Favorites.CELLX, x);
+                    values.put(Favorites.CELLY, y);
+                    values.put(Favorites.SPANX, 1);
+                    values.put(Favorites.SPANY, 1);
+                    db.insert(Favorites.TABLE_NAME, null, values);
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Returns a context whose content resolver serves the launcher tables from the given
+     * database, so that the loader reads it instead of the launcher's own.
+     */
+    private Context newWorkspaceContext(final SQLiteDatabase db) {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(LauncherProvider.AUTHORITY, new MockContentProvider(getContext()) {
+            @Override
+            public Cursor query(Uri uri, String[] projection, String selection,
+                    String[] selectionArgs, String sortOrder) {
+                return db.query(uri.getPathSegments().get(0), projection, selection,
+                        selectionArgs, null, null, sortOrder);
+            }
+
+            @Override
+            public int update(Uri uri, ContentValues values, String selection,
+                    String[] selectionArgs) {
+                return db.update(uri.getPathSegments().get(0), values, selection,
+                        selectionArgs);
+            }
+
+            @Override
+            public int delete(Uri uri, String selection, String[] selectionArgs) {
+                return db.delete(uri.getPathSegments().get(0), selection, selectionArgs);
+            }
+        });
+        return new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+    }
+
+    private static Intent getIntent(LauncherActivityInfoCompat lai) {
+        return new Intent(Intent.ACTION_MAIN)
+                .addCategory(Intent.CATEGORY_LAUNCHER)
+                .setComponent(lai.getComponentName());
+    }
+
+    /**
+     * Stands in for the launcher, counting the items bound to the workspace.
+     */
+    private static class BindingCallbacks implements LauncherModel.Callbacks {
+        volatile int boundItems;
+        volatile CountDownLatch finished;
+
+        @Override
+        public boolean setLoadOnResume() {
+            return false;
+        }
+
+        @Override
+        public int getCurrentWorkspaceScreen() {
+            return 0;
+        }
+
+        @Override
+        public void startBinding() {
+        }
+
+        @Override
+        public void bindItems(ArrayList<ItemInfo> shortcuts, int start, int end,
+                boolean forceAnimateIcons) {
+            boundItems += end - start;
+        }
+
+        @Override
+        public void bindScreens(ArrayList<Long> orderedScreenIds) {
+        }
+
+        @Override
+        public void bindAddScreens(ArrayList<Long> orderedScreenIds) {
+        }
+
+        @Override
+        public void bindFolders(LongArrayMap<FolderInfo> folders) {
+        }
+
+        @Override
+        public void finishBindingItems() {
+            finished.countDown();
+        }
+
+        @Override
+        public void bindAppWidget(LauncherAppWidgetInfo info) {
+        }
+
+        @Override
+        public void bindAllApplications(ArrayList<AppInfo> apps) {
+        }
+
+        @Override
+        public void bindAllApplications2Folder(ArrayList<AppInfo> apps,
+                ArrayList<ItemInfo> items) {
+        }
+
+        @Override
+        public void bindAppsAdded(ArrayList<Long> newScreens, ArrayList<ItemInfo> addNotAnimated,
+                ArrayList<ItemInfo> addAnimated, ArrayList<AppInfo> addedApps) {
+        }
+
+        @Override
+        public void bindAppsUpdated(ArrayList<AppInfo> apps) {
+        }
+
+        @Override
+        public void bindShortcutsChanged(ArrayList<ShortcutInfo> updated,
+                ArrayList<ShortcutInfo> removed, UserHandleCompat user) {
+        }
+
+        @Override
+        public void bindWidgetsRestored(ArrayList<LauncherAppWidgetInfo> widgets) {
+        }
+
+        @Override
+        public void bindRestoreItemsChange(HashSet<ItemInfo> updates) {
+        }
+
+        @Override
+        public void bindComponentsRemoved(ArrayList<String> packageNames,
+                ArrayList<AppInfo> appInfos, UserHandleCompat user, int reason) {
+        }
+
+        @Override
+        public void bindAllPackages(WidgetsModel model) {
+        }
+
+        @Override
+        public void bindSearchablesChanged() {
+        }
+
+        @Override
+        public boolean isAllAppsButtonRank(int rank) {
+            return false;
+        }
+
+        @Override
+        public void onPageBoundSynchronously(int page) {
+        }
+
+        @Override
+        public void dumpLogsToLocalData() {
+        }
+    }
+}
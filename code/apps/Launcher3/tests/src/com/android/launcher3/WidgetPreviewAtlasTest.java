@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests the {@link WidgetPreviewAtlas}, and measures loading the previews shown when the widget
+ * tray opens, from database blobs as before and from an atlas.
+ */
+public class WidgetPreviewAtlasTest extends AndroidTestCase {
+
+    private static final String TAG = "WidgetPreviewAtlasTest";
+
+    private static final int CAPACITY = 64 * 1024;
+    private static final int TRAY_CAPACITY = 32 * 1024 * 1024;
+    private static final int PREVIEW_COUNT = 240;
+    private static final int LOAD_THREADS = 3;
+
+    private File mFile;
+    private final ArrayList<WidgetPreviewAtlas> mAtlases = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_widget_previews.atlas");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (WidgetPreviewAtlas atlas : mAtlases) {
+            atlas.close();
+        }
+        mFile.delete();
+        super.tearDown();
+    }
+
+    @SmallTest
+    public void testPreviewsAreKeptWhenReopened() {
+        WidgetPreviewAtlas atlas = newAtlas(CAPACITY);
+        assertFalse(atlas.open());
+        int first = atlas.put("com.example/.Clock#0", new byte[] {1, 2, 3});
+        int second = atlas.put("com.example/.Notes#0", new byte[] {4, 5});
+        assertTrue(first >= 0);
+        assertTrue(second > first);
+        atlas.close();
+
+        atlas = newAtlas(CAPACITY);
+        assertTrue(atlas.open());
+        assertNull(atlas.get("com.example/.Clock#0"));
+        assertTrue(atlas.add("com.example/.Clock#0", first));
+        assertTrue(Arrays.equals(new byte[] {1, 2, 3}, atlas.get("com.example/.Clock#0")));
+
+        // Offsets of another preview, or not at a preview, are rejected
+        assertFalse(atlas.add("com.example/.Notes#0", first));
+        assertFalse(atlas.add("com.example/.Notes#0", second + 1));
+        assertFalse(atlas.add("com.example/.Notes#0", CAPACITY));
+        assertNull(atlas.get("com.example/.Notes#0"));
+    }
+
+    @SmallTest
+    public void testStartsOverWhenFull() {
+        WidgetPreviewAtlas atlas = newAtlas(CAPACITY);
+        atlas.open();
+        byte[] data = new byte[CAPACITY / 3];
+        assertTrue(atlas.put("a#0", data) >= 0);
+        assertTrue(atlas.put("b#0", data) >= 0);
+        assertEquals(-1, atlas.put("c#0", data));
+
+        atlas.reset();
+        assertNull(atlas.get("a#0"));
+        assertEquals(0, atlas.getUsedBytes());
+        int offset = atlas.put("c#0", data);
+        assertTrue(offset >= 0);
+
+        // Offsets from before the reset don't match the previews written since
+        atlas.close();
+        atlas = newAtlas(CAPACITY);
+        assertTrue(atlas.open());
+        assertFalse(atlas.add("a#0", offset));
+        assertTrue(atlas.add("c#0", offset));
+    }
+
+    @SmallTest
+    public void testRejectsOffsetOfKeyWithSameHash() {
+        // Both keys have the same hash code
+        assertEquals("Aa#0".hashCode(), "BB#0".hashCode());
+        WidgetPreviewAtlas atlas = newAtlas(CAPACITY);
+        atlas.open();
+        int offset = atlas.put("Aa#0", new byte[] {1});
+        atlas.close();
+
+        atlas = newAtlas(CAPACITY);
+        assertTrue(atlas.open());
+        assertFalse(atlas.add("BB#0", offset));
+        assertTrue(atlas.add("Aa#0", offset));
+    }
+
+    @SmallTest
+    public void testRemovesPackageOfUser() {
+        WidgetPreviewAtlas atlas = newAtlas(CAPACITY);
+        atlas.open();
+        atlas.put("com.example/.Clock#0", new byte[] {1});
+        atlas.put("com.example/.Clock#10", new byte[] {2});
+        atlas.put("com.example.other/.Clock#0", new byte[] {3});
+
+        atlas.remove("com.example/", "#0");
+        assertNull(atlas.get("com.example/.Clock#0"));
+        assertNotNull(atlas.get("com.example/.Clock#10"));
+        assertNotNull(atlas.get("com.example.other/.Clock#0"));
+    }
+
+    /**
+     * Measures loading the previews of a full widget tray: one database query per preview on
+     * the unbounded task pool, as the loader did, and from an atlas whose offsets were read in
+     * one query, on a few threads.
+     */
+    @LargeTest
+    public void testTrayOpenLatency() throws Exception {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE previews (component TEXT PRIMARY KEY, "
+                + "preview_bitmap BLOB, atlas_offset INTEGER)");
+        WidgetPreviewAtlas atlas = newAtlas(TRAY_CAPACITY);
+        atlas.open();
+        Bitmap preview = Bitmap.createBitmap(320, 240, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(preview);
+        final String[] keys = new String[PREVIEW_COUNT];
+        for (int i = 0; i < PREVIEW_COUNT; i++) {
+            canvas.drawColor(Color.rgb(i, 255 - i, i * 7));
+            byte[] data = Utilities.flattenBitmap(preview);
+            keys[i] = "com.example" + i + "/.Widget#0";
+            ContentValues values = new ContentValues();
+            values.put("component", keys[i]);
+            values.put("preview_bitmap", data);
+            values.put("atlas_offset", atlas.put(keys[i], data));
+            db.insert("previews", null, values);
+        }
+        atlas.close();
+
+        try {
+            ExecutorService unbounded = Executors.newCachedThreadPool();
+            long begin = System.nanoTime();
+            int loaded = loadAll(unbounded, keys, db, null);
+            final long dbUs = (System.nanoTime() - begin) / 1000;
+            unbounded.shutdown();
+            assertEquals(PREVIEW_COUNT, loaded);
+
+            ExecutorService bounded = Executors.newFixedThreadPool(LOAD_THREADS);
+            begin = System.nanoTime();
+            atlas = newAtlas(TRAY_CAPACITY);
+            assertTrue(atlas.open());
+            Cursor c = db.query("previews", new String[] {"component", "atlas_offset"},
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    assertTrue(atlas.add(c.getString(0), c.getInt(1)));
+                }
+            } finally {
+                c.close();
+            }
+            loaded = loadAll(bounded, keys, null, atlas);
+            final long atlasUs = (System.nanoTime() - begin) / 1000;
+            bounded.shutdown();
+            assertEquals(PREVIEW_COUNT, loaded);
+
+            Log.i(TAG, PREVIEW_COUNT + " previews, " + atlas.getUsedBytes() / 1024
+                    + " KB: loaded from the database in " + dbUs + " us, from the atlas in "
+                    + atlasUs + " us");
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Loads and decodes the previews of the keys, from the database if given or the atlas
+     * otherwise, and returns how many were loaded.
+     */
+    private static int loadAll(ExecutorService executor, String[] keys,
+            final SQLiteDatabase db, final WidgetPreviewAtlas atlas) throws Exception {
+        ArrayList<Future<Bitmap>> previews = new ArrayList<>();
+        for (final String key : keys) {
+            previews.add(executor.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    byte[] data = db != null ? query(db, key) : atlas.get(key);
+                    return BitmapFactory.decodeByteArray(data, 0, data.length);
+                }
+            }));
+        }
+        int loaded = 0;
+        for (Future<Bitmap> preview : previews) {
+            if (preview.get() != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    private static byte[] query(SQLiteDatabase db, String key) {
+        Cursor c = db.query("previews", new String[] {"preview_bitmap"}, "component = ?",
+                new String[] {key}, null, null, null);
+        try {
+            return c.moveToNext() ? c.getBlob(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private WidgetPreviewAtlas newAtlas(int capacity) {
+        WidgetPreviewAtlas atlas = new WidgetPreviewAtlas(mFile, capacity);
+        mAtlases.add(atlas);
+        return atlas;
+    }
+}
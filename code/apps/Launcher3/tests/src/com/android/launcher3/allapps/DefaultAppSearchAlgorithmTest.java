@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.launcher3.allapps;
+
+import android.content.ComponentName;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+
+/**
+ * Tests the {@link DefaultAppSearchAlgorithm} index, and measures the time a search takes on
+ * each keystroke with thousands of apps.
+ */
+public class DefaultAppSearchAlgorithmTest extends AndroidTestCase {
+
+    private static final String TAG = "DefaultAppSearchAlgorithmTest";
+
+    private static final Pattern SPLIT_PATTERN = Pattern.compile("[\\s|\\p{javaSpaceChar}]+");
+
+    private static final String[] WORDS = {"photo", "Éditeur", "music", "mail", "maps", "café",
+            "calendar", "camera", "notes", "news", "note", "player", "pro", "lite", "cloud",
+            "clock", "weather", "wallet", "bank", "book", "chat", "Zoë", "tv", "radio"};
+
+    private final ArrayList<ItemInfo> mApps = new ArrayList<>();
+    private DefaultAppSearchAlgorithm mAlgorithm;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            // The results are posted to a handler of this thread
+            Looper.prepare();
+        }
+        mAlgorithm = new DefaultAppSearchAlgorithm(mApps);
+    }
+
+    @SmallTest
+    public void testMatchesWordPrefixes() {
+        mApps.add(newApp("Google Maps"));
+        mApps.add(newApp("Calendar"));
+        mApps.add(newApp("Café Finder"));
+        mApps.add(newApp("Camera"));
+
+        assertResult("ca", 1, 2, 3);
+        assertResult("cam", 3);
+        assertResult("cafe", 2);
+        assertResult("CAFÉ fin", 2);
+        assertResult("maps goo", 0);
+        assertResult("maps x");
+        assertResult(" ", 0, 1, 2, 3);
+    }
+
+    @SmallTest
+    public void testNarrowsPreviousResult() {
+        mApps.add(newApp("Music Player"));
+        mApps.add(newApp("Mail"));
+        mApps.add(newApp("Maps"));
+
+        assertResult("m", 0, 1, 2);
+        assertResult("ma", 1, 2);
+        assertResult("mai", 1);
+        assertResult("ma", 1, 2);
+        assertResult("music p", 0);
+        assertResult("music pa");
+    }
+
+    @SmallTest
+    public void testIndexFollowsAppChanges() {
+        mApps.add(newApp("Notes"));
+        mApps.add(newApp("News"));
+        assertResult("n", 0, 1);
+
+        // Installed, renamed and removed apps are found from the next search on
+        mApps.add(1, newApp("Navigation"));
+        assertResult("n", 0, 1, 2);
+        mApps.get(2).title = "Headlines";
+        assertResult("n", 0, 1);
+        assertResult("head", 2);
+        mApps.remove(0);
+        assertResult("n", 0);
+        assertResult("notes");
+    }
+
+    /**
+     * Measures typing queries into the search box of a few thousand apps, half of them in a
+     * work profile too, with the index and with a scan that splits every title.
+     */
+    @LargeTest
+    public void testKeystrokeLatency() {
+        final int appCount = 3000;
+        for (int i = 0; i < appCount; i++) {
+            ItemInfo app = newApp(WORDS[i % WORDS.length] + " "
+                    + WORDS[(i / WORDS.length) % WORDS.length] + " " + Integer.toString(i, 36));
+            mApps.add(app);
+            if (i % 2 == 0) {
+                // Work profile apps have the same title
+                mApps.add(newApp(app.title.toString()));
+            }
+        }
+        final String[] queries = {"calendar notes", "maps", "cafe pro", "zoe tv 1", "editeur",
+                "photo book a"};
+
+        int keystrokes = 0;
+        long indexedNs = 0;
+        long maxIndexedNs = 0;
+        long scanNs = 0;
+        for (String query : queries) {
+            for (int length = 1; length <= query.length(); length++) {
+                String typed = query.substring(0, length);
+                long begin = System.nanoTime();
+                ArrayList<ComponentKey> result = mAlgorithm.getTitleMatchResult(typed);
+                long indexed = System.nanoTime() - begin;
+
+                begin = System.nanoTime();
+                int expected = scan(typed);
+                scanNs += System.nanoTime() - begin;
+
+                assertEquals(typed, expected, result.size());
+                indexedNs += indexed;
+                maxIndexedNs = Math.max(maxIndexedNs, indexed);
+                keystrokes++;
+            }
+        }
+
+        Log.i(TAG, mApps.size() + " apps, " + keystrokes + " keystrokes: indexed "
+                + indexedNs / keystrokes / 1000 + " us on average, " + maxIndexedNs / 1000
+                + " us at most (first search builds the index), scanning "
+                + scanNs / keystrokes / 1000 + " us on average");
+    }
+
+    private void assertResult(String query, int... expectedPositions) {
+        ArrayList<ComponentKey> result = mAlgorithm.getTitleMatchResult(query);
+        assertEquals(query, expectedPositions.length, result.size());
+        for (int i = 0; i < expectedPositions.length; i++) {
+            assertEquals(query, mApps.get(expectedPositions[i]).toComponentKey(), result.get(i));
+        }
+    }
+
+    /**
+     * Counts the matches of a query by splitting every title, as the search did before it was
+     * indexed.
+     */
+    private int scan(String query) {
+        final String[] queryWords = SPLIT_PATTERN.split(fold(query));
+        int count = 0;
+        for (ItemInfo info : mApps) {
+            String[] words = SPLIT_PATTERN.split(fold(info.title.toString()));
+            boolean matches = true;
+            for (String queryWord : queryWords) {
+                boolean foundMatch = false;
+                for (String word : words) {
+                    if (word.startsWith(queryWord)) {
+                        foundMatch = true;
+                        break;
+                    }
+                }
+                if (!foundMatch) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String fold(String text) {
+        return Normalizer.normalize(text.toLowerCase(), Normalizer.Form.NFD)
+                .replaceAll("\\p{Mn}+", "");
+    }
+
+    private ItemInfo newApp(String title) {
+        final ComponentKey key = new ComponentKey(
+                new ComponentName("com.example.app" + mApps.size(), "Main"),
+                UserHandleCompat.myUserHandle());
+        ItemInfo info = new ItemInfo() {
+            @Override
+            public ComponentKey toComponentKey() {
+                return key;
+            }
+        };
+        info.title = title;
+        return info;
+    }
+}
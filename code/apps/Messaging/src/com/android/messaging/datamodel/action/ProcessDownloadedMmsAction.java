@@ -51,6 +51,7 @@ import com.google.common.io.Files;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -243,9 +244,11 @@ public class ProcessDownloadedMmsAction extends Action {
             if (resultCode == Activity.RESULT_OK) {
                 final Uri contentUri = actionParameters.getParcelable(KEY_CONTENT_URI);
                 final File downloadedFile = MmsFileProvider.getFile(contentUri);
-                byte[] downloadedData = null;
+                ByteBuffer downloadedData = null;
                 try {
-                    downloadedData = Files.toByteArray(downloadedFile);
+                    // Map the pdu rather than read it, so that the data of large parts are
+                    // not copied to the heap. The mapping outlives the file deleted below.
+                    downloadedData = Files.map(downloadedFile);
                 } catch (final FileNotFoundException e) {
                     LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
                             + downloadedFile.getAbsolutePath());
@@ -26,6 +26,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -151,6 +153,30 @@ public class PduComposer {
      * the PDU is invalid.
      */
     public byte[] make() {
+        if (!compose()) {
+            return null;
+        }
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message like {@link #make()}, and write it to out without
+     * copying it to a new array first. Nothing is written if the message is
+     * longer than maxLength.
+     *
+     * @return the length of the message. Return -1 if the PDU is invalid.
+     */
+    public int make(final OutputStream out, final int maxLength) throws IOException {
+        if (!compose()) {
+            return -1;
+        }
+        if (mMessage.size() <= maxLength) {
+            mMessage.writeTo(out);
+        }
+        return mMessage.size();
+    }
+
+    private boolean compose() {
         // Get Message-type.
         final int type = mPdu.getMessageType();
 
@@ -158,34 +184,34 @@ public class PduComposer {
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
                 if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
                 if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
                 if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
                 if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
+                    return false;
                 }
                 break;
             default:
-                return null;
+                return false;
         }
 
-        return mMessage.toByteArray();
+        return true;
     }
 
     /**
@@ -196,6 +222,23 @@ public class PduComposer {
         mPosition = mPosition + length;
     }
 
+    /**
+     * Copy the remaining bytes of buf to mMessage, without copying them to
+     * an array of their own first.
+     */
+    protected void arraycopy(final ByteBuffer buf) {
+        if (buf.hasArray()) {
+            arraycopy(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
+        final byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
+        while (buf.hasRemaining()) {
+            final int len = Math.min(buffer.length, buf.remaining());
+            buf.get(buffer, 0, len);
+            arraycopy(buffer, 0, len);
+        }
+    }
+
     /**
      * Append a byte to mMessage.
      */
@@ -1046,11 +1089,11 @@ public class PduComposer {
             final int headerLength = attachment.getLength();
 
             int dataLength = 0; // Just for safety...
-            final byte[] partData = part.getData();
+            final ByteBuffer partData = part.getDataBuffer();
 
             if (partData != null) {
-                arraycopy(partData, 0, partData.length);
-                dataLength = partData.length;
+                dataLength = partData.remaining();
+                arraycopy(partData);
             } else {
                 InputStream cr = null;
                 try {
@@ -1187,8 +1230,14 @@ public class PduComposer {
          * Append current message to the message before.
          */
         void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
+            // Write the buffer out as is, rather than a copy of it.
+            try {
+                toCopy.currentMessage.writeTo(mMessage);
+            } catch (final IOException e) {
+                // Not thrown by ByteArrayOutputStream.
+                throw new RuntimeException(e);
+            }
+            mPosition = mPosition + toCopy.currentPosition;
 
             toCopy = null;
         }
@@ -23,9 +23,8 @@ import android.util.SparseArray;
 import com.android.messaging.mmslib.InvalidHeaderValueException;
 import com.android.messaging.util.ContentType;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class PduParser {
@@ -73,9 +72,9 @@ public class PduParser {
     private static final int THE_LAST_PART = 1;
 
     /**
-     * The pdu data.
+     * The pdu data. Part data are read-only slices of it.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private ByteBuffer mPduDataStream = null;
 
     /**
      * Store pdu headers
@@ -109,7 +108,21 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        this(pduDataStream != null ? ByteBuffer.wrap(pduDataStream) : null,
+                parseContentDisposition);
+    }
+
+    /**
+     * Constructor. The pdu data are parsed from the position to the limit of the buffer, which
+     * can be a heap buffer or e.g. a mapped file, and are not copied: the data of the parsed
+     * parts are slices of the buffer (see {@link PduPart#getDataBuffer()}), so the buffer must
+     * not be modified while the parts are in use. The position of the buffer is not changed.
+     *
+     * @param pduDataStream           pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduDataStream, boolean parseContentDisposition) {
+        mPduDataStream = pduDataStream != null ? pduDataStream.slice() : null;
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -152,10 +165,10 @@ public class PduParser {
             //489220 begin
             String szValue = new String(mHeaders.getTextString(PduHeaders.CONTENT_TYPE));
             if ("text/plain".equalsIgnoreCase(szValue)) {
-                int startPos = mPduDataStream.available();
+                int startPos = mPduDataStream.remaining();
                 byte[] bytes = new byte[1024];
                 try {
-                    int nLen = mPduDataStream.read(bytes);
+                    int nLen = read(mPduDataStream, bytes, 0, bytes.length);
                     bytes[nLen] = 0;
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -289,15 +302,15 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream) {
+    protected PduHeaders parseHeaders(ByteBuffer pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
         boolean keepParsing = true;
         PduHeaders headers = new PduHeaders();
 
-        while (keepParsing && (pduDataStream.available() > 0)) {
-            pduDataStream.mark(1);
+        while (keepParsing && (pduDataStream.remaining() > 0)) {
+            pduDataStream.mark();
             int headerField = extractByteValue(pduDataStream);
             /* parse custom text header */
             if ((headerField >= TEXT_MIN) && (headerField <= TEXT_MAX)) {
@@ -639,7 +652,7 @@ public class PduParser {
 
                 case PduHeaders.MESSAGE_CLASS: {
                     /* Message-class-value = Class-identifier | Token-text */
-                    pduDataStream.mark(1);
+                    pduDataStream.mark();
                     int messageClass = extractByteValue(pduDataStream);
                     if (LOCAL_LOGV) {
                         Log.v(LOG_TAG, "parseHeaders: headerField: " + headerField +
@@ -897,7 +910,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(ByteBuffer pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
@@ -909,7 +922,7 @@ public class PduParser {
             int headerLength = parseUnsignedInt(pduDataStream);
             int dataLength = parseUnsignedInt(pduDataStream);
             PduPart part = new PduPart();
-            int startPos = pduDataStream.available();
+            int startPos = pduDataStream.remaining();
             if (startPos <= 0) {
                 // Invalid part.
                 return null;
@@ -937,7 +950,7 @@ public class PduParser {
             }
 
             /* parse part's headers */
-            int endPos = pduDataStream.available();
+            int endPos = pduDataStream.remaining();
             int partHeaderLen = headerLength - (startPos - endPos);
             if (partHeaderLen > 0) {
                 if (false == parsePartHeaders(pduDataStream, part, partHeaderLen)) {
@@ -962,12 +975,11 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
+                ByteBuffer partData = slice(pduDataStream, dataLength);
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MMS_MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    PduBody childBody = parseParts(partData);
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
@@ -977,10 +989,11 @@ public class PduParser {
                         String encoding = new String(partDataEncoding);
                         if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
                             // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
+                            partData = wrap(Base64.decodeBase64(toArray(partData)));
                         } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
                             // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
+                            partData = wrap(QuotedPrintable.decodeQuotedPrintable(
+                                    toArray(partData)));
                         } else {
                             // "binary" is the default encoding.
                         }
@@ -1023,7 +1036,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(ByteBuffer pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -1031,7 +1044,7 @@ public class PduParser {
          */
         assert (null != pduDataStream);
         int result = 0;
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         if (temp == -1) {
             return temp;
         }
@@ -1039,7 +1052,7 @@ public class PduParser {
         while ((temp & 0x80) != 0) {
             result = result << 7;
             result |= temp & 0x7F;
-            temp = pduDataStream.read();
+            temp = read(pduDataStream);
             if (temp == -1) {
                 return temp;
             }
@@ -1057,7 +1070,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(ByteBuffer pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1067,7 +1080,7 @@ public class PduParser {
          * Uintvar-integer = 1*5 OCTET
          */
         assert (null != pduDataStream);
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         int first = temp & 0xFF;
 
@@ -1087,16 +1100,16 @@ public class PduParser {
      * @return the EncodedStringValue
      */
     protected static EncodedStringValue parseEncodedStringValue(
-            ByteArrayInputStream pduDataStream) {
+            ByteBuffer pduDataStream) {
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
          */
         assert (null != pduDataStream);
-        pduDataStream.mark(1);
+        pduDataStream.mark();
         EncodedStringValue returnValue = null;
         int charset = 0;
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         int first = temp & 0xFF;
         if (first == 0) {
@@ -1132,7 +1145,7 @@ public class PduParser {
      * @param stringType    TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(ByteBuffer pduDataStream,
                                            int stringType) {
         assert (null != pduDataStream);
         /**
@@ -1152,19 +1165,19 @@ public class PduParser {
 
         // Mark supposed beginning of Text-string
         // We will have to mark again if first char is QUOTE or QUOTED_STRING_FLAG
-        pduDataStream.mark(1);
+        pduDataStream.mark();
 
         // Check first char
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         if ((TYPE_QUOTED_STRING == stringType) &&
                 (QUOTED_STRING_FLAG == temp)) {
             // Mark again if QUOTED_STRING_FLAG and ignore it
-            pduDataStream.mark(1);
+            pduDataStream.mark();
         } else if ((TYPE_TEXT_STRING == stringType) &&
                 (QUOTE == temp)) {
             // Mark again if QUOTE and ignore it
-            pduDataStream.mark(1);
+            pduDataStream.mark();
         } else {
             // Otherwise go back to origin
             pduDataStream.reset();
@@ -1256,44 +1269,117 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] getWapString(ByteBuffer pduDataStream,
                                          int stringType) {
         assert (null != pduDataStream);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int temp = pduDataStream.read();
+        // Count the characters to keep first, so that they are copied only once.
+        int start = pduDataStream.position();
+        int size = 0;
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         while ((-1 != temp) && ('\0' != temp)) {
             // check each of the character
-            if (stringType == TYPE_TOKEN_STRING) {
-                if (isTokenCharacter(temp)) {
-                    out.write(temp);
-                }
-            } else {
-                if (isText(temp)) {
-                    out.write(temp);
-                }
+            if (isWapStringCharacter(temp, stringType)) {
+                size++;
             }
 
-            temp = pduDataStream.read();
+            temp = read(pduDataStream);
             assert (-1 != temp);
         }
 
-        if (out.size() > 0) {
-            return out.toByteArray();
+        if (size > 0) {
+            byte[] out = new byte[size];
+            for (int i = start, n = 0; n < size; i++) {
+                int ch = pduDataStream.get(i) & 0xFF;
+                if (isWapStringCharacter(ch, stringType)) {
+                    out[n++] = (byte) ch;
+                }
+            }
+            return out;
         }
 
         return null;
     }
 
+    private static boolean isWapStringCharacter(int ch, int stringType) {
+        if (stringType == TYPE_TOKEN_STRING) {
+            return isTokenCharacter(ch);
+        } else {
+            return isText(ch);
+        }
+    }
+
+    /**
+     * Read a byte from the buffer like {@link java.io.InputStream#read()}.
+     *
+     * @param pduDataStream pdu data buffer
+     * @return the byte, or -1 at the end of the buffer
+     */
+    private static int read(ByteBuffer pduDataStream) {
+        return pduDataStream.hasRemaining() ? pduDataStream.get() & 0xFF : -1;
+    }
+
+    /**
+     * Read bytes from the buffer like {@link java.io.InputStream#read(byte[], int, int)}.
+     *
+     * @return the number of bytes read, or -1 at the end of the buffer
+     */
+    private static int read(ByteBuffer pduDataStream, byte[] b, int off, int len) {
+        if (!pduDataStream.hasRemaining()) {
+            return -1;
+        }
+        len = Math.min(len, pduDataStream.remaining());
+        pduDataStream.get(b, off, len);
+        return len;
+    }
+
+    /**
+     * Skip up to length bytes of the buffer.
+     *
+     * @return the number of bytes skipped
+     */
+    private static int skip(ByteBuffer pduDataStream, int length) {
+        int skipped = Math.max(0, Math.min(length, pduDataStream.remaining()));
+        pduDataStream.position(pduDataStream.position() + skipped);
+        return skipped;
+    }
+
+    /**
+     * Return the next length bytes of the buffer as a read-only slice, without copying them,
+     * and skip them. If the buffer is shorter, the available bytes are copied to an array of
+     * length bytes instead, as reading them into such an array used to do.
+     */
+    private static ByteBuffer slice(ByteBuffer pduDataStream, int length) {
+        if (pduDataStream.remaining() < length) {
+            byte[] data = new byte[length];
+            read(pduDataStream, data, 0, length);
+            return ByteBuffer.wrap(data);
+        }
+        ByteBuffer slice = pduDataStream.slice();
+        slice.limit(length);
+        skip(pduDataStream, length);
+        return slice.asReadOnlyBuffer();
+    }
+
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] array = new byte[data.remaining()];
+        data.duplicate().get(array);
+        return array;
+    }
+
+    private static ByteBuffer wrap(byte[] data) {
+        return data != null ? ByteBuffer.wrap(data) : null;
+    }
+
     /**
      * Extract a byte value from the input stream.
      *
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(ByteBuffer pduDataStream) {
         assert (null != pduDataStream);
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         return temp & 0xFF;
     }
@@ -1304,7 +1390,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(ByteBuffer pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1313,7 +1399,7 @@ public class PduParser {
          * and with the value in the remaining least significant bits.
          */
         assert (null != pduDataStream);
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         return temp & 0x7F;
     }
@@ -1324,7 +1410,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(ByteBuffer pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1336,7 +1422,7 @@ public class PduParser {
          * Short-length = <Any octet 0-30>
          */
         assert (null != pduDataStream);
-        int temp = pduDataStream.read();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         int count = temp & 0xFF;
 
@@ -1347,7 +1433,7 @@ public class PduParser {
         long result = 0;
 
         for (int i = 0; i < count; i++) {
-            temp = pduDataStream.read();
+            temp = read(pduDataStream);
             assert (-1 != temp);
             result <<= 8;
             result += (temp & 0xFF);
@@ -1362,14 +1448,14 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(ByteBuffer pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
          */
         assert (null != pduDataStream);
-        pduDataStream.mark(1);
-        int temp = pduDataStream.read();
+        pduDataStream.mark();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         pduDataStream.reset();
         if (temp > SHORT_INTEGER_MAX) {
@@ -1386,10 +1472,9 @@ public class PduParser {
      * @param length        area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(ByteBuffer pduDataStream, int length) {
         assert (null != pduDataStream);
-        byte[] area = new byte[length];
-        int readLen = pduDataStream.read(area, 0, length);
+        int readLen = skip(pduDataStream, length);
         if (readLen < length) { //The actually read length is lower than the length
             return -1;
         } else {
@@ -1405,7 +1490,7 @@ public class PduParser {
      * @param map           to store parameters of Content-Type field
      * @param length        length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(ByteBuffer pduDataStream,
                                                  SparseArray<Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1428,11 +1513,11 @@ public class PduParser {
         assert (null != pduDataStream);
         assert (length > 0);
 
-        int startPos = pduDataStream.available();
+        int startPos = pduDataStream.remaining();
         int tempPos = 0;
         int lastLen = length;
         while (0 < lastLen) {
-            int param = pduDataStream.read();
+            int param = read(pduDataStream);
             assert (-1 != param);
             lastLen--;
 
@@ -1452,7 +1537,7 @@ public class PduParser {
                  */
                 case PduPart.P_TYPE:
                 case PduPart.P_CT_MR_TYPE:
-                    pduDataStream.mark(1);
+                    pduDataStream.mark();
                     int first = extractByteValue(pduDataStream);
                     pduDataStream.reset();
                     if (first > TEXT_MAX) {
@@ -1473,7 +1558,7 @@ public class PduParser {
                         }
                     }
 
-                    tempPos = pduDataStream.available();
+                    tempPos = pduDataStream.remaining();
                     lastLen = length - (startPos - tempPos);
                     break;
 
@@ -1497,7 +1582,7 @@ public class PduParser {
                         map.put(PduPart.P_START, start);
                     }
 
-                    tempPos = pduDataStream.available();
+                    tempPos = pduDataStream.remaining();
                     lastLen = length - (startPos - tempPos);
                     break;
 
@@ -1516,7 +1601,7 @@ public class PduParser {
                  * Equivalent to the special RFC2616 charset value "*"
                  */
                 case PduPart.P_CHARSET:
-                    pduDataStream.mark(1);
+                    pduDataStream.mark();
                     int firstValue = extractByteValue(pduDataStream);
                     pduDataStream.reset();
                     //Check first char
@@ -1541,7 +1626,7 @@ public class PduParser {
                         }
                     }
 
-                    tempPos = pduDataStream.available();
+                    tempPos = pduDataStream.remaining();
                     lastLen = length - (startPos - tempPos);
                     break;
 
@@ -1560,7 +1645,7 @@ public class PduParser {
                         map.put(PduPart.P_NAME, name);
                     }
 
-                    tempPos = pduDataStream.available();
+                    tempPos = pduDataStream.remaining();
                     lastLen = length - (startPos - tempPos);
                     break;
                 default:
@@ -1588,7 +1673,7 @@ public class PduParser {
      * @param map           to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(ByteBuffer pduDataStream,
                                              SparseArray<Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1599,8 +1684,8 @@ public class PduParser {
         assert (null != pduDataStream);
 
         byte[] contentType = null;
-        pduDataStream.mark(1);
-        int temp = pduDataStream.read();
+        pduDataStream.mark();
+        int temp = read(pduDataStream);
         assert (-1 != temp);
         pduDataStream.reset();
 
@@ -1608,9 +1693,9 @@ public class PduParser {
 
         if (cur < TEXT_MIN) {
             int length = parseValueLength(pduDataStream);
-            int startPos = pduDataStream.available();
-            pduDataStream.mark(1);
-            temp = pduDataStream.read();
+            int startPos = pduDataStream.remaining();
+            pduDataStream.mark();
+            temp = read(pduDataStream);
             assert (-1 != temp);
             pduDataStream.reset();
             int first = (temp & 0xFF);
@@ -1631,7 +1716,7 @@ public class PduParser {
                 return (PduContentTypes.contentTypes[0]).getBytes(); //"*/*"
             }
 
-            int endPos = pduDataStream.available();
+            int endPos = pduDataStream.remaining();
             int parameterLen = length - (startPos - endPos);
             if (parameterLen > 0) {//have parameters
                 parseContentTypeParams(pduDataStream, map, parameterLen);
@@ -1659,7 +1744,7 @@ public class PduParser {
      * @param length        length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected boolean parsePartHeaders(ByteBuffer pduDataStream,
                                        PduPart part, int length) {
         assert (null != pduDataStream);
         assert (null != part);
@@ -1681,11 +1766,11 @@ public class PduParser {
          * and the corresponding WSP part headers in media object parts
          * contain the corresponding definitions.
          */
-        int startPos = pduDataStream.available();
+        int startPos = pduDataStream.remaining();
         int tempPos = 0;
         int lastLen = length;
         while (0 < lastLen) {
-            int header = pduDataStream.read();
+            int header = read(pduDataStream);
             assert (-1 != header);
             lastLen--;
 
@@ -1702,7 +1787,7 @@ public class PduParser {
                             part.setContentLocation(contentLocation);
                         }
 
-                        tempPos = pduDataStream.available();
+                        tempPos = pduDataStream.remaining();
                         lastLen = length - (startPos - tempPos);
                         break;
                     case PduPart.P_CONTENT_ID:
@@ -1715,7 +1800,7 @@ public class PduParser {
                             part.setContentId(contentId);
                         }
 
-                        tempPos = pduDataStream.available();
+                        tempPos = pduDataStream.remaining();
                         lastLen = length - (startPos - tempPos);
                         break;
                     case PduPart.P_DEP_CONTENT_DISPOSITION:
@@ -1733,10 +1818,10 @@ public class PduParser {
                         */
                         if (mParseContentDisposition) {
                             int len = parseValueLength(pduDataStream);
-                            pduDataStream.mark(1);
-                            int thisStartPos = pduDataStream.available();
+                            pduDataStream.mark();
+                            int thisStartPos = pduDataStream.remaining();
                             int thisEndPos = 0;
-                            int value = pduDataStream.read();
+                            int value = read(pduDataStream);
 
                             if (value == PduPart.P_DISPOSITION_FROM_DATA) {
                                 part.setContentDisposition(PduPart.DISPOSITION_FROM_DATA);
@@ -1752,24 +1837,23 @@ public class PduParser {
                             }
 
                             /* get filename parameter and skip other parameters */
-                            thisEndPos = pduDataStream.available();
+                            thisEndPos = pduDataStream.remaining();
                             if (thisStartPos - thisEndPos < len) {
-                                value = pduDataStream.read();
+                                value = read(pduDataStream);
                                 if (value == PduPart.P_FILENAME) { //filename is text-string
                                     part.setFilename(parseWapString(pduDataStream
                                             , TYPE_TEXT_STRING));
                                 }
 
                                 /* skip other parameters */
-                                thisEndPos = pduDataStream.available();
+                                thisEndPos = pduDataStream.remaining();
                                 if (thisStartPos - thisEndPos < len) {
                                     int last = len - (thisStartPos - thisEndPos);
-                                    byte[] temp = new byte[last];
-                                    pduDataStream.read(temp, 0, last);
+                                    skip(pduDataStream, last);
                                 }
                             }
 
-                            tempPos = pduDataStream.available();
+                            tempPos = pduDataStream.remaining();
                             lastLen = length - (startPos - tempPos);
                         }
                         break;
@@ -1796,7 +1880,7 @@ public class PduParser {
                     part.setContentTransferEncoding(tempValue);
                 }
 
-                tempPos = pduDataStream.available();
+                tempPos = pduDataStream.remaining();
                 lastLen = length - (startPos - tempPos);
             } else {
                 if (LOCAL_LOGV) {
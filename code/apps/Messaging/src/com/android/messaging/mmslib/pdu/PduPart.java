@@ -20,6 +20,8 @@ package com.android.messaging.mmslib.pdu;
 import android.net.Uri;
 import android.util.SparseArray;
 
+import java.nio.ByteBuffer;
+
 /**
  * The pdu part.
  */
@@ -117,6 +119,11 @@ public class PduPart {
      */
     private byte[] mPartData = null;
 
+    /**
+     * Part data that have not been copied to mPartData, e.g. a slice of the parsed pdu.
+     */
+    private ByteBuffer mPartDataBuffer = null;
+
     private static final String TAG = "PduPart";
 
     /**
@@ -133,17 +140,71 @@ public class PduPart {
      */
     public void setData(final byte[] data) {
         mPartData = data;
+        mPartDataBuffer = null;
+    }
+
+    /**
+     * Set part data without copying them. The data are the bytes between the position and the
+     * limit of the buffer, and must not be modified while the part is in use.
+     *
+     * @param data the data
+     */
+    public void setData(final ByteBuffer data) {
+        if (data != null && data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+                && data.remaining() == data.array().length) {
+            setData(data.array());
+            return;
+        }
+        mPartData = null;
+        mPartDataBuffer = (data != null) ? data.slice() : null;
     }
 
     /**
      * @return The part data or null if the data wasn't set or
-     * the data is stored as Uri.
+     * the data is stored as Uri. If the data were set as a buffer, they
+     * are copied to an array the first time this is called; use
+     * {@link #getDataBuffer} or {@link #getDataLength} to avoid that.
      * @see #getDataUri
      */
     public byte[] getData() {
+        if (mPartData == null && mPartDataBuffer != null) {
+            mPartData = new byte[mPartDataBuffer.remaining()];
+            mPartDataBuffer.duplicate().get(mPartData);
+            mPartDataBuffer = null;
+        }
         return mPartData;
     }
 
+    /**
+     * @return A new buffer over the part data, without copying them, or null
+     * if the data wasn't set or the data is stored as Uri.
+     * @see #getData
+     */
+    public ByteBuffer getDataBuffer() {
+        if (mPartDataBuffer != null) {
+            return mPartDataBuffer.duplicate();
+        }
+        return (mPartData != null) ? ByteBuffer.wrap(mPartData) : null;
+    }
+
+    /**
+     * @return Whether the part data are stored in this part rather than as Uri.
+     */
+    public boolean hasData() {
+        return mPartData != null || mPartDataBuffer != null;
+    }
+
+    /**
+     * @return The length of the part data, or 0 if the data wasn't set or
+     * the data is stored as Uri.
+     */
+    public int getDataLength() {
+        if (mPartDataBuffer != null) {
+            return mPartDataBuffer.remaining();
+        }
+        return (mPartData != null) ? mPartData.length : 0;
+    }
+
     /**
      * Set data uri. The data are stored as Uri.
      *
@@ -63,6 +63,7 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.Exception;
 import java.lang.String;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Map;
@@ -810,7 +811,8 @@ public class PduPersister {
         }
 
         String contentType = getPartContentType(part);
-        final byte[] data = part.getData();
+        // Don't copy the data out of the part just to check that they are there.
+        final boolean hasData = part.hasData();
 
         if (LOCAL_LOGV) {
             LogUtil.v(TAG, "PduPersister.persistPart part: " + uri + " contentType: " +
@@ -823,17 +825,17 @@ public class PduPersister {
             if (ContentType.IMAGE_JPG.equals(contentType)) {
                 contentType = ContentType.IMAGE_JPEG;
             }
-            if (contentType.equals("/") && data != null) {
+            if (contentType.equals("/") && hasData) {
                 if (containsTag(part, EXTENDS_TAG_AMR)) {
                     contentType = ContentType.AUDIO_AMR;
                 }
             }
-            if (ContentType.APP_OCT.equals(contentType) && data != null) {
+            if (ContentType.APP_OCT.equals(contentType) && hasData) {
                 if (containsTag(part, EXTENDS_TAG_OGG)) {
                     contentType = ContentType.AUDIO_OGG;
                 } else {
                 final String encodedDataString = new EncodedStringValue(
-                        charset, data).getString();
+                        charset, part.getData()).getString();
                 if (encodedDataString != null
                             && encodedDataString.startsWith(BEGIN_VCALENDAR)) {
                         contentType = ContentType.TEXT_VCALENDAR;
@@ -848,12 +850,13 @@ public class PduPersister {
 
             // On somes phones, a vcard comes in as text/plain instead of text/v-card.
             // Fix it if necessary.
-            if (ContentType.TEXT_PLAIN.equals(contentType) && data != null) {
+            if (ContentType.TEXT_PLAIN.equals(contentType) && hasData) {
                 // There might be a more efficient way to just check the beginning of the string
                 // without encoding the whole thing, but we're concerned that with various
                 // characters sets, just comparing the byte data to BEGIN_VCARD would not be
                 // reliable.
-                final String encodedDataString = new EncodedStringValue(charset, data).getString();
+                final String encodedDataString =
+                        new EncodedStringValue(charset, part.getData()).getString();
                 if (encodedDataString != null && encodedDataString.startsWith(BEGIN_VCARD)) {
                     contentType = ContentType.TEXT_VCARD;
                     part.setContentType(contentType.getBytes());
@@ -904,6 +907,24 @@ public class PduPersister {
         return res;
     }
 
+    /**
+     * Write the data of a part, which may be a slice of a large pdu that isn't on the heap,
+     * without copying them to a single array.
+     */
+    private static void writeData(final OutputStream os, final ByteBuffer data)
+            throws IOException {
+        if (data.hasArray()) {
+            os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        final byte[] buffer = new byte[8192];
+        while (data.hasRemaining()) {
+            final int len = Math.min(buffer.length, data.remaining());
+            data.get(buffer, 0, len);
+            os.write(buffer, 0, len);
+        }
+    }
+
     /**
      * Save data of the part into storage. The source data may be given
      * by a byte[] or a Uri. If it's a byte[], directly save it
@@ -928,7 +949,6 @@ public class PduPersister {
         String path = null;
 
         try {
-            final byte[] data = part.getData();
             final int charset = part.getCharset();
             if (ContentType.TEXT_PLAIN.equals(contentType)
                     || ContentType.APP_SMIL.equals(contentType)
@@ -936,6 +956,7 @@ public class PduPersister {
                 // Some phone could send MMS with a text part having empty data
                 // Let's just skip those parts.
                 // EncodedStringValue() throws NPE if data is empty
+                final byte[] data = part.getData();
                 if (data != null) {
                     final ContentValues cv = new ContentValues();
                     cv.put(Mms.Part.TEXT, new EncodedStringValue(charset, data).getString());
@@ -982,7 +1003,7 @@ public class PduPersister {
                     if (os == null) {
                         throw new MmsException("Failed to create output stream on " + uri);
                     }
-                    if (data == null) {
+                    if (!part.hasData()) {
                         dataUri = part.getDataUri();
                         if ((dataUri == null) || (dataUri == uri)) {
                             Log.w(TAG, "Can't find data for this part.");
@@ -1021,9 +1042,10 @@ public class PduPersister {
                             LogUtil.v(TAG, "Saving data to: " + uri);
                         }
                         if (!isDrm) {
-                            if (fileSize == 0) os.write(data);
+                            if (fileSize == 0) writeData(os, part.getDataBuffer());
                         } else {
                             dataUri = uri;
+                            final byte[] data = part.getData();
                             final byte[] convertedData = drmConvertSession.convert(data, data.length);
                             if (convertedData != null) {
                                 os.write(convertedData, 0, convertedData.length);
@@ -1289,7 +1311,7 @@ public class PduPersister {
         // Only update the data when:
         // 1. New binary data supplied or
         // 2. The Uri of the part is different from the current one.
-        if ((part.getData() != null)
+        if (part.hasData()
                 || (uri != part.getDataUri())) {
             persistData(part, uri, contentType, preOpenedFiles);
         }
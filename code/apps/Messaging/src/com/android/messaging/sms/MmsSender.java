@@ -50,6 +50,7 @@ import com.android.messaging.util.PhoneUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Class that sends chat message via MMS.
@@ -201,32 +202,30 @@ public class MmsSender {
         final Uri contentUri = MmsFileProvider.buildRawMmsUri();
         final File tempFile = MmsFileProvider.getFile(contentUri);
         FileOutputStream writer = null;
+        boolean written = false;
         try {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
             writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            // Written straight from the composer's buffer, which can be large for video, once
+            // it is known to fit.
+            final int maxSize = MmsConfig.get(subId).getMaxMessageSize();
+            final int pduLength = new PduComposer(context, pdu).make(writer, maxSize);
+            if (pduLength < 0) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduLength > maxSize) {
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
+            written = true;
         } catch (final IOException e) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
             LogUtil.e(TAG, "Cannot create temporary file " + tempFile.getAbsolutePath(), e);
             throw new MmsFailureException(
                     MmsUtils.MMS_REQUEST_AUTO_RETRY, "Cannot create raw mms file");
         } catch (final OutOfMemoryError e) {
-            if (tempFile != null) {
-                tempFile.delete();
-            }
             LogUtil.e(TAG, "Out of memory in composing PDU", e);
             throw new MmsFailureException(
                     MmsUtils.MMS_REQUEST_MANUAL_RETRY,
@@ -239,6 +238,9 @@ public class MmsSender {
                     // no action we can take here
                 }
             }
+            if (!written && tempFile != null) {
+                tempFile.delete();
+            }
         }
         return contentUri;
     }
@@ -295,6 +297,14 @@ public class MmsSender {
     }
 
     public static RetrieveConf parseRetrieveConf(byte[] data, int subId) {
+        return parseRetrieveConf(data != null ? ByteBuffer.wrap(data) : null, subId);
+    }
+
+    /**
+     * Parse a downloaded pdu without copying it. The data of the parts are slices of data
+     * (see {@link PduParser#PduParser(ByteBuffer, boolean)}), which can be a mapped file.
+     */
+    public static RetrieveConf parseRetrieveConf(ByteBuffer data, int subId) {
         if (data != null) {
             final GenericPdu pdu = new PduParser(
                     data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse();
@@ -117,13 +117,13 @@ import com.google.common.base.Joiner;
 
 import android.app.ActivityManager;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -915,7 +915,7 @@ public class MmsUtils {
 
         pb.addPart(part);
 
-        return part.getData().length;
+        return part.getDataLength();
     }
 
     private static int addPicturePart(final Context context, final PduBody pb, final int index,
@@ -972,7 +972,7 @@ public class MmsUtils {
                 LogUtil.e(TAG, "Can't resize image: not enough memory?", e);
                 throw e;
             }
-            imageSize = part.getData().length;
+            imageSize = part.getDataLength();
         }
 
         setPartContentLocationAndId(part, srcName);
@@ -3768,7 +3768,11 @@ public class MmsUtils {
      * @param pdu The parsed pdu, used to construct a dump file name
      */
     public static void dumpPdu(final byte[] rawPdu, final GenericPdu pdu) {
-        if (rawPdu == null || rawPdu.length < 1) {
+        dumpPdu(rawPdu != null ? ByteBuffer.wrap(rawPdu) : null, pdu);
+    }
+
+    public static void dumpPdu(final ByteBuffer rawPdu, final GenericPdu pdu) {
+        if (rawPdu == null || !rawPdu.hasRemaining()) {
             return;
         }
         final String dumpFileName = MmsUtils.MMS_DUMP_PREFIX + getDumpFileId(pdu);
@@ -3776,12 +3780,13 @@ public class MmsUtils {
         if (dumpFile != null) {
             try {
                 final FileOutputStream fos = new FileOutputStream(dumpFile);
-                final BufferedOutputStream bos = new BufferedOutputStream(fos);
                 try {
-                    bos.write(rawPdu);
-                    bos.flush();
+                    final ByteBuffer data = rawPdu.duplicate();
+                    while (data.hasRemaining()) {
+                        fos.getChannel().write(data);
+                    }
                 } finally {
-                    bos.close();
+                    fos.close();
                 }
                 DebugUtils.ensureReadable(dumpFile);
             } catch (final IOException e) {
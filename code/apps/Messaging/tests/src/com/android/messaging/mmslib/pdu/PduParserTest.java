@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.messaging.BugleTestCase;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Class for testing PduParser.
+ */
+@SmallTest
+public class PduParserTest extends BugleTestCase {
+    private static final String TAG = "PduParserTest";
+
+    // Well-known content types, see PduContentTypes.
+    private static final int TEXT_PLAIN = 0x03;
+    private static final int IMAGE_JPEG = 0x1E;
+    private static final int MULTIPART_ALTERNATIVE = 0x26;
+
+    public void testParseRetrieveConf() {
+        final byte[] media = randomBytes(100 * 1024);
+        final byte[] pdu = makeRetrieveConf(media);
+
+        final PduBody body = parseBody(ByteBuffer.wrap(pdu));
+        assertEquals(3, body.getPartsNum());
+        assertPart(body.getPart(0), "text/plain", "text.txt", "hello world".getBytes());
+        assertPart(body.getPart(1), "image/jpeg", "media.jpg", media);
+        // The first part of a multipart.alternative part replaces it.
+        assertPart(body.getPart(2), "text/plain", "alt.txt", "alternative".getBytes());
+    }
+
+    public void testPartDataAreSlicesOfPdu() {
+        final byte[] media = randomBytes(1024);
+        final byte[] pdu = makeRetrieveConf(media);
+
+        final PduPart part = parseBody(ByteBuffer.wrap(pdu)).getPart(1);
+        assertEquals(media.length, part.getDataLength());
+        final ByteBuffer data = part.getDataBuffer();
+        assertTrue(data.isReadOnly());
+
+        // Changing the pdu shows through the part.
+        final int offset = indexOf(pdu, media);
+        pdu[offset] ^= 0xFF;
+        assertEquals(pdu[offset], data.get(0));
+    }
+
+    public void testParseBufferWithOffset() {
+        final byte[] media = randomBytes(1024);
+        final byte[] pdu = makeRetrieveConf(media);
+        final ByteBuffer buffer = ByteBuffer.allocate(pdu.length + 20);
+        buffer.position(10);
+        buffer.put(pdu);
+        buffer.flip();
+        buffer.position(10);
+
+        final PduBody body = parseBody(buffer);
+        assertPart(body.getPart(1), "image/jpeg", "media.jpg", media);
+        // The position of the buffer is left alone.
+        assertEquals(10, buffer.position());
+    }
+
+    /**
+     * Parses a pdu straight from a mapped file: the media part is a view of the mapping, not a
+     * copy on the heap.
+     */
+    public void testParseMappedPdu() throws Exception {
+        final File file = new File(getTestContext().getCacheDir(), "pdu_parser_test");
+        try {
+            final byte[] media = randomBytes(1024 * 1024);
+            Files.write(makeRetrieveConf(media), file);
+            final ByteBuffer mapped = Files.map(file);
+
+            final PduPart part = parseBody(mapped).getPart(1);
+            final ByteBuffer data = part.getDataBuffer();
+            assertTrue(data.isDirect());
+            assertTrue(data.isReadOnly());
+            assertEquals(ByteBuffer.wrap(media), data);
+            assertPart(part, "image/jpeg", "media.jpg", media);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Parses pdus of a few MB from the heap and from a mapped file, and logs the time it takes
+     * and how much the heap grows while the parsed body is held. Neither should depend on the
+     * size of the media.
+     */
+    @LargeTest
+    public void testParseLargePdusTime() throws Exception {
+        final File file = new File(getTestContext().getCacheDir(), "pdu_parser_test");
+        try {
+            for (final int size : new int[] { 1, 4, 8 }) {
+                final byte[] pdu = makeRetrieveConf(randomBytes(size * 1024 * 1024));
+                Files.write(pdu, file);
+                logParse("heap " + size + "MB", ByteBuffer.wrap(pdu));
+                logParse("mapped " + size + "MB", Files.map(file));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void logParse(final String name, final ByteBuffer pdu) {
+        final int passes = 10;
+        // Warm up.
+        parseBody(pdu);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            parseBody(pdu).getPart(1).getDataBuffer();
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        final long before = runtime.totalMemory() - runtime.freeMemory();
+        final PduBody body = parseBody(pdu);
+        runtime.gc();
+        final long retained = runtime.totalMemory() - runtime.freeMemory() - before;
+        Log.i(TAG, name + ": " + (elapsed / passes / 1000) + " us per parse, heap grew "
+                + retained / 1024 + " KB for " + body.getPartsNum() + " parts");
+    }
+
+    private static PduBody parseBody(final ByteBuffer pdu) {
+        final GenericPdu parsed = new PduParser(pdu, true).parse();
+        assertTrue(parsed instanceof RetrieveConf);
+        return ((RetrieveConf) parsed).getBody();
+    }
+
+    private static void assertPart(final PduPart part, final String contentType,
+            final String contentLocation, final byte[] data) {
+        assertEquals(contentType, new String(part.getContentType()));
+        assertEquals(contentLocation, new String(part.getContentLocation()));
+        assertTrue(part.hasData());
+        assertEquals(data.length, part.getDataLength());
+        assertTrue(Arrays.equals(data, part.getData()));
+    }
+
+    /**
+     * Makes an m-retrieve-conf with a multipart.mixed body of a text part, a jpeg part with
+     * the given data, and a multipart.alternative part.
+     */
+    private static byte[] makeRetrieveConf(final byte[] media) {
+        final ByteArrayOutputStream alternative = new ByteArrayOutputStream();
+        writeUintvar(alternative, 1);
+        writePart(alternative, TEXT_PLAIN, "alt.txt", "alternative".getBytes());
+
+        final ByteArrayOutputStream pdu = new ByteArrayOutputStream();
+        final byte[] headers = {
+                (byte) PduHeaders.MESSAGE_TYPE, (byte) PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF,
+                (byte) PduHeaders.TRANSACTION_ID, 't', 'x', 0,
+                (byte) PduHeaders.MMS_VERSION, (byte) (0x80 | PduHeaders.MMS_VERSION_1_2),
+                (byte) PduHeaders.DATE, 4, 0x57, 0x00, 0x00, 0x00,
+                // Content-Type: application/vnd.wap.multipart.mixed, last header.
+                (byte) PduHeaders.CONTENT_TYPE, (byte) 0xA3 };
+        pdu.write(headers, 0, headers.length);
+        writeUintvar(pdu, 3);
+        writePart(pdu, TEXT_PLAIN, "text.txt", "hello world".getBytes());
+        writePart(pdu, IMAGE_JPEG, "media.jpg", media);
+        writePart(pdu, MULTIPART_ALTERNATIVE, "alt", alternative.toByteArray());
+        return pdu.toByteArray();
+    }
+
+    private static void writePart(final ByteArrayOutputStream out, final int contentType,
+            final String contentLocation, final byte[] data) {
+        final ByteArrayOutputStream headers = new ByteArrayOutputStream();
+        headers.write(0x80 | contentType);
+        headers.write(PduPart.P_CONTENT_LOCATION);
+        headers.write(contentLocation.getBytes(), 0, contentLocation.length());
+        headers.write(0);
+
+        writeUintvar(out, headers.size());
+        writeUintvar(out, data.length);
+        out.write(headers.toByteArray(), 0, headers.size());
+        out.write(data, 0, data.length);
+    }
+
+    private static void writeUintvar(final ByteArrayOutputStream out, int value) {
+        final byte[] bytes = new byte[5];
+        int count = 0;
+        do {
+            bytes[count++] = (byte) (value & 0x7F);
+            value >>>= 7;
+        } while (value != 0);
+        for (int i = count - 1; i >= 0; i--) {
+            out.write(bytes[i] | (i > 0 ? 0x80 : 0));
+        }
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static int indexOf(final byte[] array, final byte[] target) {
+        outer:
+        for (int i = 0; i <= array.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (array[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
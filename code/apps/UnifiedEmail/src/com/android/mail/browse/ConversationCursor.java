@@ -55,13 +55,11 @@ import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -255,27 +253,24 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         return mUnderlyingCursor != null ? mUnderlyingCursor.conversationIds() : null;
     }
 
-    private static class UnderlyingRowData {
-        public final String innerUri;
-        public Conversation conversation;
-
-        public UnderlyingRowData(String innerUri, Conversation conversation) {
-            this.innerUri = innerUri;
-            this.conversation = conversation;
-        }
-    }
-
     /**
      * Simple wrapper for a cursor that provides methods for quickly determining
      * the existence of a row.
+     * <p>
+     * Only the {@link Conversation} objects of the rows around the one last looked at are kept, in
+     * a {@link ConversationWindow}; when the list is idle, a background task builds the ones that
+     * are missing, starting in the direction of the last scroll. The positions of conversations by
+     * id and uri are found with a {@link ConversationPositionIndex}, which that task builds once
+     * the window is full, so opening a folder doesn't read every row of it. Until then, lookups
+     * are answered from the window when they can, and only build the index when they can't.
      */
     private static class UnderlyingCursorWrapper extends ThreadSafeCursorWrapper
             implements DrawIdler.IdleListener {
 
         /**
-         * An AsyncTask that will fill as much of the cache as possible until either the cache is
-         * full or the task is cancelled. If not cancelled and we're not done caching, it will
-         * schedule another iteration to run upon completion.
+         * An AsyncTask that will build the conversations missing from the window until either
+         * the window is full or the task is cancelled, and then build the position index if it
+         * hasn't been built yet.
          * <p>
          * Generally, only one task instance per {@link UnderlyingCursorWrapper} will run at a time.
          * But if an old task is cancelled, it may continue to execute at most one iteration (due
@@ -283,6 +278,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
          */
         private class CacheLoaderTask extends AsyncTask<Void, Void, Void> {
             private final int mStartPos;
+            private int mBuilt;
 
             CacheLoaderTask(int startPosition) {
                 mStartPos = startPosition;
@@ -295,29 +291,24 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     if (DEBUG) LogUtils.i(LOG_TAG, "in cache job pos=%s c=%s", mStartPos,
                             getWrappedCursor());
                     final int count = getCount();
-                    while (true) {
-                        // It is possible for two instances of this loop to execute at once if
-                        // an earlier task is cancelled but gets preempted. As written, this loop
-                        // safely shares mCachePos without mutexes by only reading it once and
-                        // writing it once (writing based on the previously-read value).
-                        // The most that can happen is that one row's values is read twice.
-                        final int pos = mCachePos;
-                        if (isCancelled() || pos >= count) {
+                    while (!isCancelled()) {
+                        // If two instances of this loop run at once, both may build the same
+                        // conversation; the window keeps whichever is added first.
+                        final int pos = mWindow.nextPrefetchPosition(count);
+                        if (pos < 0) {
                             break;
                         }
-
-                        final UnderlyingRowData rowData = mRowCache.get(pos);
-                        if (rowData.conversation == null) {
-                            // We are running in a background thread.  Set the position to the row
-                            // we are interested in.
-                            if (moveToPosition(pos)) {
-                                rowData.conversation = new Conversation(
-                                        UnderlyingCursorWrapper.this);
-                            }
+                        // We are running in a background thread.  Set the position to the row
+                        // we are interested in.
+                        if (!moveToPosition(pos)) {
+                            break;
                         }
-                        mCachePos = pos + 1;
+                        mWindow.put(pos, new Conversation(UnderlyingCursorWrapper.this));
+                        mBuilt++;
+                    }
+                    if (!isCancelled()) {
+                        getIndex();
                     }
-                    System.gc();
                 } finally {
                     Utils.traceEndSection();
                 }
@@ -327,7 +318,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             @Override
             protected void onPostExecute(Void result) {
                 mCacheLoaderTask = null;
-                LogUtils.i(LOG_TAG, "ConversationCursor caching complete pos=%s", mCachePos);
+                LogUtils.i(LOG_TAG, "ConversationCursor caching complete startPos=%s built=%s",
+                        mStartPos, mBuilt);
             }
 
         }
@@ -355,23 +347,15 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
          * {@link CacheLoaderTask#doInBackground(Void...)} for notes on thread safety.
          */
         private CacheLoaderTask mCacheLoaderTask;
-        /**
-         * The current row that the cache task is working on, or should work on next.
-         * <p>
-         * Not synchronized; see comments in {@link CacheLoaderTask#doInBackground(Void...)} for
-         * notes on thread safety.
-         */
-        private int mCachePos;
         private boolean mCachingEnabled;
         private final NewCursorUpdateObserver mCursorUpdateObserver;
         private boolean mUpdateObserverRegistered = false;
 
-        // Ideally these two objects could be combined into a Map from
-        // conversationId -> position, but the cached values uses the conversation
-        // uri as a key.
-        private final Map<String, Integer> mConversationUriPositionMap;
-        private final Map<Long, Integer> mConversationIdPositionMap;
-        private final List<UnderlyingRowData> mRowCache;
+        private final ConversationWindow mWindow =
+                new ConversationWindow(ConversationWindow.DEFAULT_SIZE);
+        /** Built by {@link #getIndex()}, under {@link #mIndexLock}. */
+        private volatile ConversationPositionIndex mIndex;
+        private final Object mIndexLock = new Object();
 
         private boolean mCursorUpdated = false;
 
@@ -389,83 +373,60 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 mUpdateObserverRegistered = true;
             }
 
-            final long start = SystemClock.uptimeMillis();
-            final Map<String, Integer> uriPositionMap;
-            final Map<Long, Integer> idPositionMap;
-            final UnderlyingRowData[] cache;
-            final int count;
-            Utils.traceBeginSection("blockingCaching");
-            if (super.moveToFirst()) {
-                count = super.getCount();
-                cache = new UnderlyingRowData[count];
-                int i = 0;
-
-                uriPositionMap = Maps.newHashMapWithExpectedSize(count);
-                idPositionMap = Maps.newHashMapWithExpectedSize(count);
-
-                do {
-                    final String innerUriString;
-                    final long convId;
-
-                    innerUriString = super.getString(URI_COLUMN_INDEX);
-                    convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
-
-                    if (DEBUG_DUPLICATE_KEYS) {
-                        if (uriPositionMap.containsKey(innerUriString)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation uri key: %s. " +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    innerUriString, getPosition(), i,
-                                    uriPositionMap.get(innerUriString));
-                        }
-                        if (idPositionMap.containsKey(convId)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    convId, getPosition(), i, idPositionMap.get(convId));
-                        }
-                    }
-
-                    uriPositionMap.put(innerUriString, i);
-                    idPositionMap.put(convId, i);
-
-                    cache[i] = new UnderlyingRowData(
-                            innerUriString,
-                            null /* conversation */);
-                } while (super.moveToPosition(++i));
+            // Later, when the idler signals that the activity is idle, start a task to cache
+            // the conversations around the visible ones.
+        }
 
-                if (uriPositionMap.size() != count || idPositionMap.size() != count) {
-                    if (DEBUG_DUPLICATE_KEYS)  {
-                        throw new IllegalStateException("Unexpected map sizes: cursorN=" + count
-                                + " uriN=" + uriPositionMap.size() + " idN="
-                                + idPositionMap.size());
-                    } else {
-                        LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
-                                "uri position map size: %d, id position map size: %d", count,
-                                uriPositionMap.size(), idPositionMap.size());
+        /**
+         * Returns the index of the positions of conversations, building it on the calling thread
+         * if this is the first time it is needed.
+         */
+        private ConversationPositionIndex getIndex() {
+            ConversationPositionIndex index = mIndex;
+            if (index != null) {
+                return index;
+            }
+            synchronized (mIndexLock) {
+                if (mIndex == null) {
+                    final long start = SystemClock.uptimeMillis();
+                    Utils.traceBeginSection("buildPositionIndex");
+                    // Building the index moves this thread's position; put it back after.
+                    final int position = getPosition();
+                    try {
+                        mIndex = ConversationPositionIndex.build(getWrappedCursor() != null
+                                ? this : null, UIProvider.CONVERSATION_ID_COLUMN, URI_COLUMN_INDEX);
+                    } finally {
+                        moveToPosition(position);
+                        Utils.traceEndSection();
+                    }
+                    LogUtils.i(LOG_TAG, "*** ConversationCursor position index took %sms n=%s",
+                            SystemClock.uptimeMillis() - start, mIndex.getCount());
+                    final int duplicates = mIndex.getDuplicateCount();
+                    if (duplicates > 0) {
+                        if (DEBUG_DUPLICATE_KEYS) {
+                            throw new IllegalStateException("Duplicate keys: cursorN="
+                                    + mIndex.getCount() + " duplicateN=" + duplicates);
+                        } else {
+                            LogUtils.e(LOG_TAG, "Duplicate keys.  Cursor size: %d, rows with a "
+                                    + "duplicate id or uri: %d", mIndex.getCount(), duplicates);
+                        }
                     }
                 }
-            } else {
-                count = 0;
-                cache = new UnderlyingRowData[0];
-                uriPositionMap = Maps.newHashMap();
-                idPositionMap = Maps.newHashMap();
+                return mIndex;
             }
-            mConversationUriPositionMap = Collections.unmodifiableMap(uriPositionMap);
-            mConversationIdPositionMap = Collections.unmodifiableMap(idPositionMap);
-
-            mRowCache = Collections.unmodifiableList(Arrays.asList(cache));
-            final long end = SystemClock.uptimeMillis();
-            LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s", (end-start),
-                    count);
-
-            Utils.traceEndSection();
+        }
 
-            // Later, when the idler signals that the activity is idle, start a task to cache
-            // conversations in pieces.
-            mCachePos = 0;
+        /**
+         * Builds the index of the positions of conversations now, e.g. on a background thread
+         * before handing the cursor to the UI thread.
+         */
+        public void buildIndex() {
+            getIndex();
         }
 
         /**
-         * Resumes caching at {@link #mCachePos}.
+         * Starts building the conversations missing from the window, and the position index if
+         * it hasn't been built yet.
          *
          * @return true if we actually resumed, false if we're done or stopped
          */
@@ -474,8 +435,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 throw new IllegalStateException("unexpected existing task: " + mCacheLoaderTask);
             }
 
-            if (mCachingEnabled && mCachePos < getCount()) {
-                mCacheLoaderTask = new CacheLoaderTask(mCachePos);
+            if (mCachingEnabled
+                    && (mIndex == null || mWindow.nextPrefetchPosition(getCount()) >= 0)) {
+                mCacheLoaderTask = new CacheLoaderTask(mWindow.getAnchor());
                 mCacheLoaderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 return true;
             }
@@ -484,8 +446,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
         private void pauseCaching() {
             if (mCacheLoaderTask != null) {
-                LogUtils.i(LOG_TAG, "Cancelling caching startPos=%s pos=%s",
-                        mCacheLoaderTask.mStartPos, mCachePos);
+                LogUtils.i(LOG_TAG, "Cancelling caching startPos=%s built=%s",
+                        mCacheLoaderTask.mStartPos, mCacheLoaderTask.mBuilt);
                 mCacheLoaderTask.cancel(false /* interrupt */);
                 mCacheLoaderTask = null;
             }
@@ -497,28 +459,40 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         public boolean contains(String uri) {
-            return mConversationUriPositionMap.containsKey(uri);
+            return getPosition(uri) >= 0;
         }
 
         public Set<Long> conversationIds() {
-            return mConversationIdPositionMap.keySet();
+            return getIndex().conversationIds();
         }
 
         public int getPosition(long conversationId) {
-            final Integer position = mConversationIdPositionMap.get(conversationId);
-            return position != null ? position.intValue() : -1;
+            if (mIndex == null) {
+                // Conversations near the visible ones are the ones usually looked up
+                final int position = mWindow.findPosition(conversationId);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+            return getIndex().getPosition(conversationId);
         }
 
         public int getPosition(String conversationUri) {
-            final Integer position = mConversationUriPositionMap.get(conversationUri);
-            return position != null ? position.intValue() : -1;
+            if (mIndex == null) {
+                final int position = mWindow.findPosition(conversationUri);
+                if (position >= 0) {
+                    return position;
+                }
+            }
+            return getIndex().getPosition(conversationUri);
         }
 
         public String getInnerUri() {
             /* SPRD: Modify for bug530135 {@ */
             int position = getPosition();
-            if (position >= 0 && position < mRowCache.size()) {
-                return mRowCache.get(getPosition()).innerUri;
+            if (position >= 0 && position < getCount()) {
+                final ConversationPositionIndex index = mIndex;
+                return index != null ? index.getUri(position) : getString(URI_COLUMN_INDEX);
             }
             return "";
             /* @} */
@@ -527,17 +501,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public Conversation getConversation() {
             /* SPRD: Modify for bug530135 {@ */
             int position = getPosition();
-            if (position >= 0 && position < mRowCache.size()) {
-                return mRowCache.get(getPosition()).conversation;
+            if (position >= 0 && position < getCount()) {
+                return mWindow.get(position);
             }
             return null;
         }
 
         public void cacheConversation(Conversation conversation) {
-            final UnderlyingRowData rowData = mRowCache.get(getPosition());
-            if (rowData.conversation == null) {
-                rowData.conversation = conversation;
-            }
+            mWindow.put(getPosition(), conversation);
         }
 
         private void notifyConversationUIPositionChange() {
@@ -574,7 +545,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     // begin/resume caching
                     final boolean resumed = resumeCaching();
                     if (resumed) {
-                        LogUtils.i(LOG_TAG, "Resuming caching, pos=%s idler=%s", mCachePos, idler);
+                        LogUtils.i(LOG_TAG, "Resuming caching, pos=%s idler=%s",
+                                mWindow.getAnchor(), idler);
                     }
                 } else {
                     // pause caching
@@ -601,6 +573,11 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             final UnderlyingCursorWrapper result = doQuery(false);
             // Make sure window is full
             result.getCount();
+            if (mDeletedCount > 0) {
+                // resetCursor() looks up the locally deleted conversations in the new cursor on
+                // the UI thread; only then is the index needed before the idle task builds it
+                result.buildIndex();
+            }
             return result;
         }
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.Cursor;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Maps the conversation ids and uris of a cursor to their positions, in open-addressed arrays of
+ * primitives rather than maps of boxed keys, so that a large folder costs a few arrays instead of
+ * two objects per conversation for every key.
+ * <p>
+ * Instances are immutable once built, and safe to share between threads.
+ */
+class ConversationPositionIndex {
+    private final int mCount;
+    private final int mMask;
+    // Slots of the id table: the key, and the position plus one, 0 meaning empty.
+    private final long[] mIds;
+    private final int[] mIdSlots;
+    // Slots of the uri table: the position plus one. The uri itself is looked up in mUris.
+    private final int[] mUriSlots;
+    private final String[] mUris;
+    private int mIdCount;
+    private int mDuplicateCount;
+    private Set<Long> mIdSet;
+
+    private ConversationPositionIndex(int count) {
+        mCount = count;
+        int capacity = 16;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        mMask = capacity - 1;
+        mIds = new long[capacity];
+        mIdSlots = new int[capacity];
+        mUriSlots = new int[capacity];
+        mUris = new String[count];
+    }
+
+    /**
+     * Reads the id and uri of every row of the cursor. This moves the cursor; callers that care
+     * about its position must restore it.
+     */
+    public static ConversationPositionIndex build(Cursor cursor, int idColumn, int uriColumn) {
+        final int count = cursor != null ? cursor.getCount() : 0;
+        final ConversationPositionIndex index = new ConversationPositionIndex(count);
+        for (int i = 0; i < count && cursor.moveToPosition(i); i++) {
+            final String uri = cursor.getString(uriColumn);
+            index.mUris[i] = uri;
+            final boolean newId = index.putId(cursor.getLong(idColumn), i);
+            final boolean newUri = index.putUri(uri, i);
+            if (!newId || !newUri) {
+                index.mDuplicateCount++;
+            }
+        }
+        return index;
+    }
+
+    private static int hash(long id) {
+        final long h = (id ^ (id >>> 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32);
+    }
+
+    private static int hash(String uri) {
+        final int h = uri.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return false if the id was already there, in which case the later position wins
+     */
+    private boolean putId(long id, int position) {
+        int slot = hash(id) & mMask;
+        while (mIdSlots[slot] != 0) {
+            if (mIds[slot] == id) {
+                mIdSlots[slot] = position + 1;
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mIds[slot] = id;
+        mIdSlots[slot] = position + 1;
+        mIdCount++;
+        return true;
+    }
+
+    /**
+     * @return false if the uri was already there, in which case the later position wins
+     */
+    private boolean putUri(String uri, int position) {
+        if (uri == null) {
+            return true;
+        }
+        int slot = hash(uri) & mMask;
+        while (mUriSlots[slot] != 0) {
+            if (uri.equals(mUris[mUriSlots[slot] - 1])) {
+                mUriSlots[slot] = position + 1;
+                return false;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mUriSlots[slot] = position + 1;
+        return true;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the number of rows whose id or uri was already used by an earlier row. Lookups of
+     * such a key find the last row with it.
+     */
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    /**
+     * @return the position of the conversation with the given id, or -1 if there is none
+     */
+    public int getPosition(long id) {
+        int slot = hash(id) & mMask;
+        while (mIdSlots[slot] != 0) {
+            if (mIds[slot] == id) {
+                return mIdSlots[slot] - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the position of the conversation with the given uri, or -1 if there is none
+     */
+    public int getPosition(String uri) {
+        if (uri == null) {
+            return -1;
+        }
+        int slot = hash(uri) & mMask;
+        while (mUriSlots[slot] != 0) {
+            final int position = mUriSlots[slot] - 1;
+            if (uri.equals(mUris[position])) {
+                return position;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the uri of the conversation at the given position
+     */
+    public String getUri(int position) {
+        return mUris[position];
+    }
+
+    /**
+     * Returns an unmodifiable view of the conversation ids.
+     */
+    public Set<Long> conversationIds() {
+        if (mIdSet == null) {
+            mIdSet = new IdSet();
+        }
+        return mIdSet;
+    }
+
+    private class IdSet extends AbstractSet<Long> {
+        @Override
+        public int size() {
+            return mIdCount;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Long && getPosition(((Long) o).longValue()) >= 0;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                private int mSlot = advance(0);
+
+                private int advance(int slot) {
+                    while (slot < mIdSlots.length && mIdSlots[slot] == 0) {
+                        slot++;
+                    }
+                    return slot;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return mSlot < mIdSlots.length;
+                }
+
+                @Override
+                public Long next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    final long id = mIds[mSlot];
+                    mSlot = advance(mSlot + 1);
+                    return id;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import com.android.mail.providers.Conversation;
+
+/**
+ * Holds the {@link Conversation} objects of the rows around the one last looked at, so that the
+ * memory and the time spent building them don't grow with the size of the folder.
+ * <p>
+ * The window follows the direction of the last move: most of it lies ahead of the last position
+ * looked at, and a little of it behind, for a list that is flung one way and then nudged back.
+ * Each position maps to a fixed slot, so a conversation is dropped as soon as the window moves
+ * past it.
+ * <p>
+ * All methods are thread safe: the UI thread looks up and adds conversations while a background
+ * task fills in the rest of the window, see {@link #nextPrefetchPosition}.
+ */
+class ConversationWindow {
+    static final int DEFAULT_SIZE = 128;
+
+    private final Conversation[] mConversations;
+    private final int[] mPositions;
+    private final int mMask;
+    private final int mAhead;
+    private final int mBehind;
+    private int mAnchor;
+    private int mDirection = 1;
+
+    /**
+     * @param size the number of conversations to hold; rounded up to a power of two
+     */
+    ConversationWindow(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        mConversations = new Conversation[capacity];
+        mPositions = new int[capacity];
+        mMask = capacity - 1;
+        mBehind = capacity / 4;
+        mAhead = capacity - mBehind - 1;
+        for (int i = 0; i < capacity; i++) {
+            mPositions[i] = -1;
+        }
+    }
+
+    /**
+     * Returns the conversation at the given position, or null if it hasn't been built yet, and
+     * moves the window there.
+     */
+    public synchronized Conversation get(int position) {
+        if (position > mAnchor) {
+            mDirection = 1;
+        } else if (position < mAnchor) {
+            mDirection = -1;
+        }
+        mAnchor = position;
+        final int slot = position & mMask;
+        return mPositions[slot] == position ? mConversations[slot] : null;
+    }
+
+    /**
+     * Keeps the conversation built for the given position, unless that position is outside the
+     * window or already has one.
+     */
+    public synchronized void put(int position, Conversation conversation) {
+        if (!inWindow(position)) {
+            return;
+        }
+        final int slot = position & mMask;
+        if (mPositions[slot] != position || mConversations[slot] == null) {
+            mPositions[slot] = position;
+            mConversations[slot] = conversation;
+        }
+    }
+
+    /**
+     * Returns the next position to build a conversation for: the nearest one without a
+     * conversation ahead of the last position looked at, then behind it.
+     *
+     * @param count the number of rows in the cursor
+     * @return the position, or -1 if the window is full
+     */
+    public synchronized int nextPrefetchPosition(int count) {
+        for (int i = 0; i <= mAhead; i++) {
+            final int position = mAnchor + mDirection * i;
+            if (position < 0 || position >= count) {
+                break;
+            }
+            if (mPositions[position & mMask] != position) {
+                return position;
+            }
+        }
+        for (int i = 1; i <= mBehind; i++) {
+            final int position = mAnchor - mDirection * i;
+            if (position < 0 || position >= count) {
+                break;
+            }
+            if (mPositions[position & mMask] != position) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the conversation with the given id, or -1 if the window doesn't
+     * hold it. Doesn't move the window.
+     */
+    public synchronized int findPosition(long conversationId) {
+        for (int slot = 0; slot < mConversations.length; slot++) {
+            final Conversation conversation = mConversations[slot];
+            if (conversation != null && conversation.id == conversationId) {
+                return mPositions[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the conversation with the given uri, or -1 if the window doesn't
+     * hold it. Doesn't move the window.
+     */
+    public synchronized int findPosition(String conversationUri) {
+        for (int slot = 0; slot < mConversations.length; slot++) {
+            final Conversation conversation = mConversations[slot];
+            if (conversation != null && conversation.uri != null
+                    && conversation.uri.toString().equals(conversationUri)) {
+                return mPositions[slot];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the last position looked at.
+     */
+    public synchronized int getAnchor() {
+        return mAnchor;
+    }
+
+    private boolean inWindow(int position) {
+        final int offset = (position - mAnchor) * mDirection;
+        return offset <= mAhead && offset >= -mBehind;
+    }
+}
@@ -363,6 +363,16 @@ public final class HtmlSanitizer {
             .toFactory();
     /* @} */
 
+    /**
+     * Logs errors resulting from exceptionally bizarre inputs.
+     */
+    private static final Handler<String> BAD_HTML_HANDLER = new Handler<String>() {
+        public void handle(final String x) {
+            Log.wtf(LOG_TAG, "Mangled HTML content cannot be parsed: " + x);
+            throw new AssertionError(x);
+        }
+    };
+
     private HtmlSanitizer() {}
 
     /**
@@ -386,17 +396,8 @@ public final class HtmlSanitizer {
         final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
 
         // create the renderer that will write the sanitized HTML to the builder
-        final HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
-                htmlBuilder,
-                Handler.PROPAGATE,
-                // log errors resulting from exceptionally bizarre inputs
-                new Handler<String>() {
-                    public void handle(final String x) {
-                        Log.wtf(LOG_TAG, "Mangled HTML content cannot be parsed: " + x);
-                        throw new AssertionError(x);
-                    }
-                }
-        );
+        final HtmlStreamRenderer renderer =
+                HtmlStreamRenderer.create(htmlBuilder, Handler.PROPAGATE, BAD_HTML_HANDLER);
 
         // create a thread-specific policy
         final org.owasp.html.HtmlSanitizer.Policy policy = POLICY_DEFINITION.apply(renderer);
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.mail.providers.Conversation;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests of the {@link ConversationWindow} and {@link ConversationPositionIndex} that back the
+ * underlying cursor of a {@link ConversationCursor}.
+ */
+@SmallTest
+public class ConversationWindowTests extends AndroidTestCase {
+    private static final String TAG = "ConversationWindowTests";
+
+    private static Conversation makeConversation(int position) {
+        return new Conversation.Builder().setId(position).build();
+    }
+
+    private static MatrixCursor makeCursor(int count) {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "uri" }, count);
+        for (int i = 0; i < count; i++) {
+            // Ids in descending order, like a folder sorted by date
+            cursor.addRow(new Object[] { 1000000L - i, "content://test/conversation/" + i });
+        }
+        return cursor;
+    }
+
+    public void testWindowKeepsConversations() {
+        final ConversationWindow window = new ConversationWindow(16);
+        final Conversation conversation = makeConversation(3);
+        assertNull(window.get(3));
+        window.put(3, conversation);
+        assertSame(conversation, window.get(3));
+
+        // The first conversation built for a position wins
+        window.put(3, makeConversation(3));
+        assertSame(conversation, window.get(3));
+    }
+
+    public void testWindowFindsConversations() {
+        final ConversationWindow window = new ConversationWindow(16);
+        final Uri uri = Uri.parse("content://test/conversation/7");
+        window.get(7);
+        window.put(7, new Conversation.Builder().setId(70).setUri(uri).build());
+        assertEquals(7, window.findPosition(70));
+        assertEquals(7, window.findPosition(uri.toString()));
+        assertEquals(-1, window.findPosition(71));
+        assertEquals(-1, window.findPosition("content://test/conversation/8"));
+        // Looking up doesn't move the window
+        assertEquals(7, window.getAnchor());
+    }
+
+    public void testWindowFollowsScrollDirection() {
+        final ConversationWindow window = new ConversationWindow(16);
+        final int count = 1000;
+        window.get(100);
+        window.get(101);
+        // Scrolling down: the nearest missing rows ahead come first
+        assertEquals(101, window.nextPrefetchPosition(count));
+        window.put(101, makeConversation(101));
+        assertEquals(102, window.nextPrefetchPosition(count));
+
+        // Fill the window; it holds the anchor, 11 rows ahead of it and 4 behind
+        int position;
+        final Set<Integer> built = new HashSet<Integer>();
+        while ((position = window.nextPrefetchPosition(count)) >= 0) {
+            assertTrue(built.add(position));
+            window.put(position, makeConversation(position));
+        }
+        assertEquals(15, built.size());
+        assertTrue(built.contains(101 + 11));
+        assertTrue(built.contains(101 - 4));
+        assertFalse(built.contains(101 - 5));
+
+        // Scrolling back up
+        window.get(99);
+        assertEquals(99 - 3, window.nextPrefetchPosition(count));
+        // A row outside the window doesn't push out one inside it
+        window.put(99 + 16, makeConversation(99 + 16));
+        assertNotNull(window.get(99));
+    }
+
+    public void testWindowStopsAtEnds() {
+        final ConversationWindow window = new ConversationWindow(16);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, window.nextPrefetchPosition(5));
+            window.put(i, makeConversation(i));
+        }
+        assertEquals(-1, window.nextPrefetchPosition(5));
+        assertEquals(-1, window.nextPrefetchPosition(0));
+    }
+
+    public void testIndex() {
+        final MatrixCursor cursor = makeCursor(100);
+        final ConversationPositionIndex index = ConversationPositionIndex.build(cursor, 0, 1);
+        assertEquals(100, index.getCount());
+        assertEquals(0, index.getDuplicateCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, index.getPosition(1000000L - i));
+            assertEquals(i, index.getPosition("content://test/conversation/" + i));
+            assertEquals("content://test/conversation/" + i, index.getUri(i));
+        }
+        assertEquals(-1, index.getPosition(5L));
+        assertEquals(-1, index.getPosition("content://test/conversation/100"));
+        assertEquals(-1, index.getPosition((String) null));
+
+        final Set<Long> ids = index.conversationIds();
+        assertEquals(100, ids.size());
+        assertTrue(ids.contains(1000000L));
+        assertFalse(ids.contains(1L));
+        assertEquals(100, new HashSet<Long>(ids).size());
+    }
+
+    public void testIndexDuplicates() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "uri" });
+        cursor.addRow(new Object[] { 1L, "content://test/conversation/1" });
+        cursor.addRow(new Object[] { 2L, "content://test/conversation/2" });
+        cursor.addRow(new Object[] { 1L, "content://test/conversation/1" });
+        final ConversationPositionIndex index = ConversationPositionIndex.build(cursor, 0, 1);
+        assertEquals(1, index.getDuplicateCount());
+        assertEquals(2, index.conversationIds().size());
+        // The last row with a key wins, as it did with a HashMap
+        assertEquals(2, index.getPosition(1L));
+        assertEquals(2, index.getPosition("content://test/conversation/1"));
+    }
+
+    public void testEmptyIndex() {
+        final ConversationPositionIndex index = ConversationPositionIndex.build(null, 0, 1);
+        assertEquals(0, index.getCount());
+        assertEquals(-1, index.getPosition(1L));
+        assertTrue(index.conversationIds().isEmpty());
+    }
+
+    /**
+     * Measures the index of a 100,000 conversation folder, and filling the window after a jump
+     * into the middle of it.
+     */
+    @LargeTest
+    public void testLargeFolder() {
+        final int count = 100000;
+        final MatrixCursor cursor = makeCursor(count);
+
+        long start = System.nanoTime();
+        final ConversationPositionIndex index = ConversationPositionIndex.build(cursor, 0, 1);
+        final long indexUs = (System.nanoTime() - start) / 1000;
+        assertEquals(count / 2, index.getPosition(1000000L - count / 2));
+
+        final ConversationWindow window = new ConversationWindow(ConversationWindow.DEFAULT_SIZE);
+        start = System.nanoTime();
+        window.get(count / 2);
+        int built = 0;
+        int position;
+        while ((position = window.nextPrefetchPosition(count)) >= 0) {
+            window.put(position, makeConversation(position));
+            built++;
+        }
+        final long windowUs = (System.nanoTime() - start) / 1000;
+        assertEquals(ConversationWindow.DEFAULT_SIZE, built);
+
+        Log.i(TAG, count + " conversations: index " + indexUs + " us, window of " + built
+                + " conversations " + windowUs + " us");
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+/**
+ * These test cases verify that the kinds of HTML that real email is made of, large newsletters
+ * and long chains of quoted replies, keep their structure through the sanitizer while their
+ * unsafe parts are stripped, and measure how long sanitizing them takes.
+ */
+@SmallTest
+public class HtmlSanitizerCorpusTest extends AndroidTestCase {
+    private static final String TAG = "HtmlSanitizerCorpusTest";
+
+    /**
+     * Every nested table and image of a newsletter is kept; scripts, event handlers and the
+     * title are stripped.
+     */
+    public void testNewsletter() {
+        final int rows = 200;
+        final String sanitized = HtmlSanitizer.sanitizeHtml(makeNewsletter(rows));
+        assertEquals(rows + 1, countOf(sanitized, "<table"));
+        assertEquals(rows + 1, countOf(sanitized, "</table>"));
+        assertEquals(rows + 1, countOf(sanitized, "<img"));
+        assertTrue(sanitized.contains("Deal of the day " + (rows - 1)));
+        assertFalse(sanitized.contains("<script"));
+        assertFalse(sanitized.contains("document.write"));
+        assertFalse(sanitized.contains("onclick"));
+        assertFalse(sanitized.contains("Weekly deals"));
+    }
+
+    /**
+     * Every level of a deep reply chain stays nested, and each quote can be toggled.
+     */
+    public void testReplyChain() {
+        final int depth = 30;
+        final String sanitized = HtmlSanitizer.sanitizeHtml(makeReplyChain(depth));
+        assertEquals(depth, countOf(sanitized, "<blockquote"));
+        assertEquals(depth, countOf(sanitized, "</blockquote>"));
+        assertEquals(depth, countOf(sanitized, "class=\"elided-text\""));
+        assertTrue(sanitized.contains("Reply number " + (depth - 1)));
+    }
+
+    /**
+     * Logs how long the sanitizer takes on a large newsletter, a long reply chain and a short
+     * personal message.
+     */
+    @LargeTest
+    public void testSanitizeCorpusTime() {
+        logSanitizeTime("newsletter", makeNewsletter(200));
+        logSanitizeTime("reply chain", makeReplyChain(30));
+        logSanitizeTime("short message", makeReplyChain(0));
+    }
+
+    private static void logSanitizeTime(String name, String html) {
+        final int passes = 20;
+        // Warm up.
+        HtmlSanitizer.sanitizeHtml(html);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            HtmlSanitizer.sanitizeHtml(html);
+        }
+        final long elapsed = System.nanoTime() - start;
+        Log.i(TAG, name + " (" + html.length() + " chars): " + (elapsed / passes / 1000)
+                + " us per message");
+    }
+
+    private static int countOf(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns a marketing email laid out the way mass mailers do it: a style block, then rows of
+     * nested tables with inline styles, images and tracked links.
+     */
+    private static String makeNewsletter(int rows) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><meta charset=\"utf-8\"><title>Weekly deals</title>")
+                .append("<style>td { font-family: Arial; } .hide { display: none; }</style>")
+                .append("</head><body style=\"margin:0;padding:0;background-color:#f4f4f4\">")
+                .append("<table width=\"100%\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\"")
+                .append(" bgcolor=\"#f4f4f4\"><tr><td align=\"center\">");
+        for (int i = 0; i < rows; i++) {
+            sb.append("<table width=\"600\" cellpadding=\"0\" cellspacing=\"0\" border=\"0\"")
+                    .append(" style=\"width:600px;max-width:600px;background:#ffffff\"><tr>")
+                    .append("<td valign=\"top\" style=\"padding:20px 10px 20px 20px\">")
+                    .append("<a href=\"https://click.example.com/track?u=1234&amp;id=").append(i)
+                    .append("\" onclick=\"track(").append(i).append(")\" target=\"_blank\">")
+                    .append("<img src=\"https://img.example.com/product").append(i)
+                    .append(".jpg\" width=\"180\" height=\"120\" alt=\"Product ").append(i)
+                    .append("\" border=\"0\" style=\"display:block;border:0;outline:none\">")
+                    .append("</a></td><td valign=\"top\" style=\"padding:20px 20px 20px 10px;")
+                    .append("font-family:Helvetica,Arial,sans-serif;font-size:14px;")
+                    .append("line-height:20px;color:#333333\">")
+                    .append("<h2 style=\"margin:0 0 10px 0;font-size:18px\">Deal of the day ")
+                    .append(i).append("</h2><p>Save <b>").append(i % 50)
+                    .append("%</b> on everything &mdash; this week only. ")
+                    .append("<font color=\"#cc0000\" face=\"Arial\">Limited stock!</font></p>")
+                    .append("<a href=\"https://shop.example.com/item/").append(i)
+                    .append("\" style=\"background:#0066cc;color:#ffffff;padding:8px 16px;")
+                    .append("text-decoration:none;border-radius:4px\">Shop now</a>")
+                    .append("</td></tr></table>");
+        }
+        sb.append("<img src=\"https://open.example.com/pixel.gif\" width=\"1\" height=\"1\">")
+                .append("<script>document.write('tracking');</script>")
+                .append("</td></tr></table></body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * Returns a short message followed by the given number of nested, quoted replies.
+     */
+    private static String makeReplyChain(int depth) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<div dir=\"ltr\">Sounds good, see you <i>tomorrow</i>.<br><br>")
+                .append("<div class=\"gmail_signature\">-- <br>Sam</div></div>");
+        for (int i = 0; i < depth; i++) {
+            sb.append("<div class=\"gmail_quote\">On Mon, Feb 1, 2016 at 12:0").append(i % 10)
+                    .append(" PM, Someone &lt;<a href=\"mailto:someone@example.com\">")
+                    .append("someone@example.com</a>&gt; wrote:<br>")
+                    .append("<blockquote class=\"gmail_quote\" style=\"margin:0 0 0 .8ex;")
+                    .append("border-left:1px #ccc solid;padding-left:1ex\">")
+                    .append("<div dir=\"ltr\">Reply number ").append(i)
+                    .append(", with a <a href=\"http://www.example.com/").append(i)
+                    .append("\">link</a> and some <span style=\"color:red\">styled</span>")
+                    .append(" text.</div>");
+        }
+        for (int i = 0; i < depth; i++) {
+            sb.append("</blockquote></div>");
+        }
+        return sb.toString();
+    }
+}
@@ -61,6 +61,10 @@ public class CalendarInstancesHelper {
     private CalendarDatabaseHelper mDbHelper;
     private MetaData mMetaData;
     private CalendarCache mCalendarCache;
+    // Only used with the database lock held.
+    private final RecurrenceProcessor mRecurrenceProcessor = new RecurrenceProcessor();
+    private final RecurrenceExpansionCache mExpansionCache =
+            new RecurrenceExpansionCache(RecurrenceExpansionCache.DEFAULT_MAX_DATES);
 
     private static final String SQL_WHERE_GET_EVENTS_ENTRIES =
             "((" + Events.DTSTART + " <= ? AND "
@@ -164,7 +168,6 @@ public class CalendarInstancesHelper {
     protected void performInstanceExpansion(long begin, long end, String localTimezone,
             Cursor entries) {
         // TODO: this only knows how to work with events that have been synced with the server
-        RecurrenceProcessor rp = new RecurrenceProcessor();
 
         // Key into the instance values to hold the original event concatenated
         // with calendar id.
@@ -331,8 +334,12 @@ public class CalendarInstancesHelper {
                         }
                     }
 
-                    long[] dates;
-                    dates = rp.expand(eventTime, recur, begin, end);
+                    // Recurrences expanded before, e.g. when one of their exceptions changed,
+                    // come from the cache; only the part of the window it lacks is expanded.
+                    String expansionKey = RecurrenceExpansionCache.getKey(eventTimezone, allDay,
+                            dtstartMillis, rruleStr, rdateStr, exruleStr, exdateStr);
+                    long[] dates = mExpansionCache.expand(mRecurrenceProcessor, expansionKey,
+                            eventTime, recur, begin, end);
 
                     // Initialize the "eventTime" timezone outside the loop.
                     // This is used in computeTimezoneDependentFields().
@@ -553,6 +560,14 @@ public class CalendarInstancesHelper {
         }
     }
 
+    /**
+     * Forget the cached recurrence expansions, e.g. because the timezone
+     * database changed.  The database lock must be held.
+     */
+    public void clearExpansionCacheLocked() {
+        mExpansionCache.clear();
+    }
+
     /**
      * Make instances for the given range.
      */
@@ -676,6 +676,8 @@ public class CalendarProvider2 extends SQLiteContentProvider implements OnAccoun
             updateEventsStartEndFromEventRawTimesLocked();
             updateTimezoneDatabaseVersion(timeZoneDatabaseVersion);
             mCalendarCache.writeTimezoneInstances(localTimezone);
+            // Recurrences may expand differently under the new timezone rules
+            mInstancesHelper.clearExpansionCacheLocked();
             regenerateInstancesTable();
             mDb.setTransactionSuccessful();
         } finally {
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.calendar;
+
+import com.android.calendarcommon2.DateException;
+import com.android.calendarcommon2.RecurrenceProcessor;
+import com.android.calendarcommon2.RecurrenceSet;
+
+import android.text.format.Time;
+import android.util.LruCache;
+
+/**
+ * Remembers the start times that recurrences expanded to, so that expanding
+ * the same recurrence again -- when one of its exceptions changes, when a
+ * sync rewrites it without changing its rule, or when the Instances table is
+ * rebuilt -- doesn't run the {@link RecurrenceProcessor} again.
+ *
+ * <p>Entries are keyed by everything the start times depend on (see
+ * {@link #getKey}), so an edited recurrence simply misses, and its old entry
+ * ages out. Each entry covers a contiguous range; a request that reaches past
+ * it only expands the part that is missing, and the entry grows to cover both.
+ *
+ * <p>Not thread safe; callers hold the database lock, like the rest of
+ * {@link CalendarInstancesHelper}.
+ */
+class RecurrenceExpansionCache {
+    /** Upper bound on the number of start times held, over all recurrences. */
+    static final int DEFAULT_MAX_DATES = 64 * 1024;
+
+    private static final long[] EMPTY_DATES = new long[0];
+
+    /** Start times of one recurrence within [begin, end], in ascending order. */
+    private static final class Expansion {
+        final long begin;
+        final long end;
+        final long[] dates;
+
+        Expansion(long begin, long end, long[] dates) {
+            this.begin = begin;
+            this.end = end;
+            this.dates = dates;
+        }
+    }
+
+    private final LruCache<String, Expansion> mExpansions;
+    private int mHitCount;
+    private int mExtendCount;
+    private int mMissCount;
+
+    RecurrenceExpansionCache(int maxDates) {
+        mExpansions = new LruCache<String, Expansion>(maxDates) {
+            @Override
+            protected int sizeOf(String key, Expansion value) {
+                // Count the entry itself too, so that empty expansions aren't free
+                return value.dates.length + 1;
+            }
+        };
+    }
+
+    /**
+     * Builds the key of a recurrence from everything that its start times
+     * depend on.
+     */
+    static String getKey(String timezone, boolean allDay, long dtstartMillis, String rrule,
+            String rdate, String exrule, String exdate) {
+        return timezone + '|' + allDay + '|' + dtstartMillis + '|' + rrule + '|' + rdate + '|'
+                + exrule + '|' + exdate;
+    }
+
+    /**
+     * Returns the start times of the recurrence within [begin, end], as
+     * {@link RecurrenceProcessor#expand} does, reusing and extending what was
+     * expanded for the same key before.
+     *
+     * @param rp the processor to expand with on a miss
+     * @param key the key of the recurrence, from {@link #getKey}
+     * @param dtstart the start of the recurrence, in its own timezone
+     * @param recur the recurrence
+     * @param begin window start (ms)
+     * @param end window end (ms)
+     */
+    long[] expand(RecurrenceProcessor rp, String key, Time dtstart, RecurrenceSet recur,
+            long begin, long end) throws DateException {
+        final Expansion cached = mExpansions.get(key);
+        if (cached != null && cached.begin <= begin && end <= cached.end) {
+            mHitCount++;
+            return slice(cached.dates, begin, end);
+        }
+
+        if (cached == null || end < cached.begin || begin > cached.end) {
+            // Nothing to build on: expand the window, and remember it instead
+            mMissCount++;
+            final long[] dates = rp.expand(dtstart, recur, begin, end);
+            mExpansions.put(key, new Expansion(begin, end, dates));
+            return dates;
+        }
+
+        // The window overlaps what we have; only expand the parts sticking out
+        mExtendCount++;
+        long[] dates = cached.dates;
+        if (begin < cached.begin) {
+            dates = merge(rp.expand(dtstart, recur, begin, cached.begin), dates);
+        }
+        if (end > cached.end) {
+            dates = merge(dates, rp.expand(dtstart, recur, cached.end, end));
+        }
+        mExpansions.put(key, new Expansion(Math.min(begin, cached.begin),
+                Math.max(end, cached.end), dates));
+        return slice(dates, begin, end);
+    }
+
+    /**
+     * Forgets every expansion, for when the rules that turn recurrences into
+     * times may have changed, like the timezone database.
+     */
+    void clear() {
+        mExpansions.evictAll();
+    }
+
+    int getHitCount() {
+        return mHitCount;
+    }
+
+    int getExtendCount() {
+        return mExtendCount;
+    }
+
+    int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the dates within [begin, end] of the given ascending dates.
+     */
+    private static long[] slice(long[] dates, long begin, long end) {
+        final int from = lowerBound(dates, begin);
+        int to = lowerBound(dates, end);
+        while (to < dates.length && dates[to] == end) {
+            to++;
+        }
+        if (from == 0 && to == dates.length) {
+            return dates;
+        }
+        if (from >= to) {
+            return EMPTY_DATES;
+        }
+        final long[] result = new long[to - from];
+        System.arraycopy(dates, from, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the index of the first date not before the given one.
+     */
+    private static int lowerBound(long[] dates, long date) {
+        int low = 0;
+        int high = dates.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (dates[mid] < date) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Merges two ascending arrays of dates, dropping the dates both contain,
+     * as adjacent windows both contain the dates on their shared boundary.
+     */
+    private static long[] merge(long[] a, long[] b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        final long[] merged = new long[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length || j < b.length) {
+            final long next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                next = a[i++];
+            } else if (i >= a.length || b[j] < a[i]) {
+                next = b[j++];
+            } else {
+                next = a[i++];
+                j++;
+            }
+            merged[n++] = next;
+        }
+        if (n == merged.length) {
+            return merged;
+        }
+        final long[] result = new long[n];
+        System.arraycopy(merged, 0, result, 0, n);
+        return result;
+    }
+}
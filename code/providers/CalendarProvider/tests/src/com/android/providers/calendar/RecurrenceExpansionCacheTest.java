@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.calendar;
+
+import com.android.calendarcommon2.DateException;
+import com.android.calendarcommon2.RecurrenceProcessor;
+import com.android.calendarcommon2.RecurrenceSet;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class RecurrenceExpansionCacheTest extends TestCase {
+    private static final String TAG = "RecurrenceExpansionCacheTest";
+
+    private static final String TIMEZONE = "America/Los_Angeles";
+    private static final long WEEK = DateUtils.WEEK_IN_MILLIS;
+
+    private static final String[] RRULES = {
+            "FREQ=DAILY",
+            "FREQ=WEEKLY;BYDAY=MO,WE,FR",
+            "FREQ=WEEKLY;INTERVAL=2;BYDAY=TU,TH",
+            "FREQ=MONTHLY;BYMONTHDAY=15",
+            "FREQ=MONTHLY;BYDAY=-1FR",
+            "FREQ=YEARLY",
+    };
+
+    /** Counts the expansions that reach the processor. */
+    private static class CountingProcessor extends RecurrenceProcessor {
+        int mExpandCount;
+
+        @Override
+        public long[] expand(Time dtstart, RecurrenceSet recur, long rangeStartMillis,
+                long rangeEndMillis) throws DateException {
+            mExpandCount++;
+            return super.expand(dtstart, recur, rangeStartMillis, rangeEndMillis);
+        }
+    }
+
+    private static Time buildStart(long millis) {
+        final Time time = new Time(TIMEZONE);
+        time.set(millis);
+        return time;
+    }
+
+    private static long getStartMillis() {
+        final Time time = new Time(TIMEZONE);
+        time.set(0, 0, 9, 4, 0, 2016);
+        return time.normalize(true);
+    }
+
+    /**
+     * Returns a time to start windows at, so that no instance falls right on their edges.
+     */
+    private static long getWindowMillis() {
+        return getStartMillis() + 437 * DateUtils.SECOND_IN_MILLIS;
+    }
+
+    @SmallTest
+    public void testRepeatedExpansionIsCached() throws Exception {
+        final long start = getStartMillis();
+        final long base = getWindowMillis();
+        final RecurrenceSet recur = new RecurrenceSet("FREQ=DAILY", null, null, null);
+        final String key = RecurrenceExpansionCache.getKey(TIMEZONE, false, start, "FREQ=DAILY",
+                null, null, null);
+        final CountingProcessor rp = new CountingProcessor();
+        final RecurrenceExpansionCache cache = new RecurrenceExpansionCache(1000);
+
+        final long[] expected = rp.expand(buildStart(start), recur, base, base + 4 * WEEK);
+        assertEquals(1, rp.mExpandCount);
+
+        long[] dates = cache.expand(rp, key, buildStart(start), recur, base, base + 4 * WEEK);
+        assertTrue(Arrays.equals(expected, dates));
+        assertEquals(2, rp.mExpandCount);
+
+        dates = cache.expand(rp, key, buildStart(start), recur, base, base + 4 * WEEK);
+        assertTrue(Arrays.equals(expected, dates));
+        assertEquals(2, rp.mExpandCount);
+        assertEquals(1, cache.getHitCount());
+
+        // A window within the cached one is served from it too
+        dates = cache.expand(rp, key, buildStart(start), recur, base + WEEK, base + 2 * WEEK);
+        assertTrue(Arrays.equals(
+                rp.expand(buildStart(start), recur, base + WEEK, base + 2 * WEEK), dates));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @SmallTest
+    public void testSlidingWindowIsExtended() throws Exception {
+        final long start = getStartMillis();
+        final long base = getWindowMillis();
+        final String rrule = "FREQ=WEEKLY;BYDAY=MO,WE,FR";
+        final RecurrenceSet recur = new RecurrenceSet(rrule, null, null, null);
+        final String key = RecurrenceExpansionCache.getKey(TIMEZONE, false, start, rrule,
+                null, null, null);
+        final RecurrenceProcessor rp = new RecurrenceProcessor();
+        final RecurrenceExpansionCache cache = new RecurrenceExpansionCache(1000);
+
+        cache.expand(rp, key, buildStart(start), recur, base, base + 4 * WEEK);
+
+        // Adjacent and overlapping windows on both sides
+        long[] dates = cache.expand(rp, key, buildStart(start), recur,
+                base + 4 * WEEK, base + 8 * WEEK);
+        assertTrue(Arrays.equals(
+                rp.expand(buildStart(start), recur, base + 4 * WEEK, base + 8 * WEEK), dates));
+        dates = cache.expand(rp, key, buildStart(start), recur, base - 2 * WEEK, base + WEEK);
+        assertTrue(Arrays.equals(
+                rp.expand(buildStart(start), recur, base - 2 * WEEK, base + WEEK), dates));
+        assertEquals(2, cache.getExtendCount());
+
+        // The cache now covers the union, without duplicates on the boundaries
+        dates = cache.expand(rp, key, buildStart(start), recur, base - 2 * WEEK,
+                base + 8 * WEEK);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertTrue(Arrays.equals(
+                rp.expand(buildStart(start), recur, base - 2 * WEEK, base + 8 * WEEK), dates));
+    }
+
+    @SmallTest
+    public void testDisjointWindowReplaces() throws Exception {
+        final long start = getStartMillis();
+        final long base = getWindowMillis();
+        final RecurrenceSet recur = new RecurrenceSet("FREQ=DAILY", null, null, null);
+        final String key = RecurrenceExpansionCache.getKey(TIMEZONE, false, start, "FREQ=DAILY",
+                null, null, null);
+        final RecurrenceProcessor rp = new RecurrenceProcessor();
+        final RecurrenceExpansionCache cache = new RecurrenceExpansionCache(1000);
+
+        cache.expand(rp, key, buildStart(start), recur, base, base + WEEK);
+        cache.expand(rp, key, buildStart(start), recur, base + 10 * WEEK, base + 11 * WEEK);
+        cache.expand(rp, key, buildStart(start), recur, base + 10 * WEEK, base + 11 * WEEK);
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @SmallTest
+    public void testKeyCoversRecurrence() {
+        final String key = RecurrenceExpansionCache.getKey(TIMEZONE, false, 0, "FREQ=DAILY",
+                null, null, null);
+        assertFalse(key.equals(RecurrenceExpansionCache.getKey("UTC", false, 0, "FREQ=DAILY",
+                null, null, null)));
+        assertFalse(key.equals(RecurrenceExpansionCache.getKey(TIMEZONE, true, 0, "FREQ=DAILY",
+                null, null, null)));
+        assertFalse(key.equals(RecurrenceExpansionCache.getKey(TIMEZONE, false, 1, "FREQ=DAILY",
+                null, null, null)));
+        assertFalse(key.equals(RecurrenceExpansionCache.getKey(TIMEZONE, false, 0, "FREQ=DAILY",
+                null, null, "20160105T170000Z")));
+    }
+
+    @SmallTest
+    public void testEviction() throws Exception {
+        final long start = getStartMillis();
+        final long base = getWindowMillis();
+        final RecurrenceSet recur = new RecurrenceSet("FREQ=DAILY", null, null, null);
+        final RecurrenceProcessor rp = new RecurrenceProcessor();
+        // Room for about one week of daily instances
+        final RecurrenceExpansionCache cache = new RecurrenceExpansionCache(10);
+
+        cache.expand(rp, "a", buildStart(start), recur, base, base + WEEK);
+        cache.expand(rp, "b", buildStart(start), recur, base, base + WEEK);
+        cache.expand(rp, "a", buildStart(start), recur, base, base + WEEK);
+        assertEquals(3, cache.getMissCount());
+
+        cache.clear();
+        cache.expand(rp, "a", buildStart(start), recur, base, base + WEEK);
+        assertEquals(4, cache.getMissCount());
+    }
+
+    /**
+     * Measures expanding a calendar of 5,000 recurring events over the default two month
+     * window, expanding it again as when the Instances table is rebuilt, and sliding the
+     * window by a month.
+     */
+    @LargeTest
+    public void testExpansionSpeed() throws Exception {
+        final int count = 5000;
+        final long start = getStartMillis();
+        final long windowBegin = getWindowMillis() + 26 * WEEK;
+        final long windowEnd = windowBegin + 9 * WEEK;
+        final long slideEnd = windowEnd + 4 * WEEK;
+
+        final Time[] starts = new Time[count];
+        final RecurrenceSet[] recurs = new RecurrenceSet[count];
+        final String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            final String rrule = RRULES[i % RRULES.length];
+            final long dtstart = start + (i / RRULES.length) * DateUtils.HOUR_IN_MILLIS / 4;
+            starts[i] = buildStart(dtstart);
+            recurs[i] = new RecurrenceSet(rrule, null, null, null);
+            keys[i] = RecurrenceExpansionCache.getKey(TIMEZONE, false, dtstart, rrule,
+                    null, null, null);
+        }
+
+        final RecurrenceProcessor rp = new RecurrenceProcessor();
+        final RecurrenceExpansionCache cache = new RecurrenceExpansionCache(
+                RecurrenceExpansionCache.DEFAULT_MAX_DATES * 4);
+
+        long begin = System.nanoTime();
+        int instances = 0;
+        for (int i = 0; i < count; i++) {
+            instances += rp.expand(starts[i], recurs[i], windowBegin, windowEnd).length;
+        }
+        final long uncachedUs = (System.nanoTime() - begin) / 1000;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            cache.expand(rp, keys[i], starts[i], recurs[i], windowBegin, windowEnd);
+        }
+        final long coldUs = (System.nanoTime() - begin) / 1000;
+
+        begin = System.nanoTime();
+        int cachedInstances = 0;
+        for (int i = 0; i < count; i++) {
+            cachedInstances += cache.expand(rp, keys[i], starts[i], recurs[i],
+                    windowBegin, windowEnd).length;
+        }
+        final long warmUs = (System.nanoTime() - begin) / 1000;
+        assertEquals(instances, cachedInstances);
+        assertEquals(count, cache.getHitCount());
+
+        begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            cache.expand(rp, keys[i], starts[i], recurs[i], windowEnd, slideEnd);
+        }
+        final long slideUs = (System.nanoTime() - begin) / 1000;
+        assertEquals(count, cache.getExtendCount());
+
+        Log.i(TAG, count + " recurrences, " + instances + " instances: uncached " + uncachedUs
+                + " us, cold " + coldUs + " us, cached " + warmUs + " us, slide by 4 weeks "
+                + slideUs + " us");
+    }
+}
@@ -22,6 +22,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
+import com.android.providers.contacts.HanziToPinyin.TokenBuffer;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.lang.Character.UnicodeBlock;
@@ -426,10 +427,20 @@ public class ContactLocaleUtils {
         static char charinstead;
         static char[] mChar;
         /* @} */
+        // Name lookup keys are built on several threads, each with its own buffer.
+        private static final ThreadLocal<TokenBuffer> sTokenBuffer =
+                new ThreadLocal<TokenBuffer>() {
+                    @Override
+                    protected TokenBuffer initialValue() {
+                        return new TokenBuffer();
+                    }
+                };
+
         public static Iterator<String> getPinyinNameLookupKeys(String name) {
             // TODO : Reduce the object allocation.
             HashSet<String> keys = new HashSet<String>();
-            ArrayList<Token> tokens = HanziToPinyin.getInstance().getTokens(name);
+            final TokenBuffer tokens = sTokenBuffer.get();
+            HanziToPinyin.getInstance().getTokens(name, tokens);
             final int tokenCount = tokens.size();
             final StringBuilder keyPinyin = new StringBuilder();
             final StringBuilder keyInitial = new StringBuilder();
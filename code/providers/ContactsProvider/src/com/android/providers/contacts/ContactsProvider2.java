@@ -280,6 +280,12 @@ public class ContactsProvider2 extends AbstractContactsProvider
     /** Maximum length of a phone number that can be inserted into the database */
     private static final int PHONE_NUMBER_LENGTH_LIMIT = 1000;
 
+    /**
+     * Maximum number of changed contacts the fast scrolling index cache is updated for.  With
+     * more changes, the cached indexes are recomputed from scratch when they are queried.
+     */
+    private static final int FAST_SCROLLING_INDEX_UPDATE_LIMIT = 1000;
+
     /**
      * Default expiration duration for pre-authorized URIs.  May be overridden from a secure
      * setting.
@@ -1595,6 +1601,8 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
     private boolean mVisibleTouched = false;
 
+    private boolean mFastScrollingIndexUpdateNeeded;
+
     private boolean mSyncToNetwork;
 
     private LocaleSet mCurrentLocales;
@@ -2282,6 +2290,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
         return PhotoProcessor.getMaxDisplayPhotoSize();
     }
 
+    @VisibleForTesting
+    public AbstractContactAggregator getContactAggregatorForTest() {
+        return mContactAggregator;
+    }
+
+    @VisibleForTesting
+    int getFastScrollingIndexCacheMissCountForTest() {
+        return mFastScrollingIndexCacheMissCount;
+    }
+
     @VisibleForTesting
     public ContactDirectoryManager getContactDirectoryManagerForTest() {
         return mContactDirectoryManager;
@@ -2620,6 +2638,15 @@ public class ContactsProvider2 extends AbstractContactsProvider
             invalidateFastScrollingIndexCache();
         }
 
+        if (mFastScrollingIndexUpdateNeeded) {
+            mFastScrollingIndexUpdateNeeded = false;
+            if (forProfile) {
+                invalidateFastScrollingIndexCache();
+            } else {
+                updateFastScrollingIndexCacheInTransaction(db);
+            }
+        }
+
         updateSearchIndexInTransaction();
 
         if (mProviderStatusUpdateNeeded) {
@@ -2645,6 +2672,11 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
 
         mDbHelper.get().invalidateAllCache();
+
+        // The fast scrolling index cache may have been updated for changes that are now rolled
+        // back.
+        mFastScrollingIndexUpdateNeeded = false;
+        invalidateFastScrollingIndexCache();
     }
 
     private void updateSearchIndexInTransaction() {
@@ -2883,7 +2915,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 break;
 
             case CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 insertContact(values);
                 break;
             }
@@ -2895,7 +2927,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS:
             case PROFILE_RAW_CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 id = insertRawContact(uri, values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -2903,7 +2935,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS_ID_DATA:
             case PROFILE_RAW_CONTACTS_ID_DATA: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
                 values.put(Data.RAW_CONTACT_ID, uri.getPathSegments().get(segment));
                 id = insertData(values, callerIsSyncAdapter);
@@ -2920,7 +2952,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 id = insertData(values, callerIsSyncAdapter);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 break;
@@ -3957,19 +3989,19 @@ public class ContactsProvider2 extends AbstractContactsProvider
             }
 
             case CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 // TODO
                 return 0;
             }
 
             case CONTACTS_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 long contactId = ContentUris.parseId(uri);
                 return deleteContact(contactId, callerIsSyncAdapter);
             }
 
             case CONTACTS_LOOKUP: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 final List<String> pathSegments = uri.getPathSegments();
                 final int segmentCount = pathSegments.size();
                 if (segmentCount < 3) {
@@ -3982,7 +4014,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             }
 
             case CONTACTS_LOOKUP_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 // lookup contact by ID and lookup key to see if they still match the actual record
                 final List<String> pathSegments = uri.getPathSegments();
                 final String lookupKey = pathSegments.get(2);
@@ -4022,7 +4054,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS:
             case PROFILE_RAW_CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 int numDeletes = 0;
                 Cursor c = db.query(Views.RAW_CONTACTS,
                         new String[] {RawContacts._ID, RawContacts.CONTACT_ID},
@@ -4043,7 +4075,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS_ID:
             case PROFILE_RAW_CONTACTS_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 final long rawContactId = ContentUris.parseId(uri);
                 return deleteRawContact(rawContactId, mDbHelper.get().getContactId(rawContactId),
                         callerIsSyncAdapter);
@@ -4051,7 +4083,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 return deleteData(appendAccountToSelection(
                         uri, selection), selectionArgs, callerIsSyncAdapter);
@@ -4063,7 +4095,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case CALLABLES_ID:
             case POSTALS_ID:
             case PROFILE_DATA_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 long dataId = ContentUris.parseId(uri);
                 mSyncToNetwork |= !callerIsSyncAdapter;
                 mSelectionArgs1[0] = String.valueOf(dataId);
@@ -4459,13 +4491,13 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case CONTACTS:
             case PROFILE: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 count = updateContactOptions(values, selection, selectionArgs, callerIsSyncAdapter);
                 break;
             }
 
             case CONTACTS_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 count = updateContactOptions(db, ContentUris.parseId(uri), values,
                         callerIsSyncAdapter);
                 break;
@@ -4473,7 +4505,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case CONTACTS_LOOKUP:
             case CONTACTS_LOOKUP_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 final List<String> pathSegments = uri.getPathSegments();
                 final int segmentCount = pathSegments.size();
                 if (segmentCount < 3) {
@@ -4488,7 +4520,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS_ID_DATA:
             case PROFILE_RAW_CONTACTS_ID_DATA: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 int segment = match == RAW_CONTACTS_ID_DATA ? 1 : 2;
                 final String rawContactId = uri.getPathSegments().get(segment);
                 String selectionWithId = (Data.RAW_CONTACT_ID + "=" + rawContactId + " ")
@@ -4500,7 +4532,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case DATA:
             case PROFILE_DATA: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 count = updateData(uri, values, appendAccountToSelection(uri, selection),
                         selectionArgs, callerIsSyncAdapter);
                 if (count > 0) {
@@ -4514,7 +4546,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
             case EMAILS_ID:
             case CALLABLES_ID:
             case POSTALS_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 count = updateData(uri, values, selection, selectionArgs, callerIsSyncAdapter);
                 if (count > 0) {
                     mSyncToNetwork |= !callerIsSyncAdapter;
@@ -4554,14 +4586,14 @@ public class ContactsProvider2 extends AbstractContactsProvider
 
             case RAW_CONTACTS:
             case PROFILE_RAW_CONTACTS: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 selection = appendAccountIdToSelection(uri, selection);
                 count = updateRawContacts(values, selection, selectionArgs, callerIsSyncAdapter);
                 break;
             }
 
             case RAW_CONTACTS_ID: {
-                invalidateFastScrollingIndexCache();
+                mFastScrollingIndexUpdateNeeded = true;
                 long rawContactId = ContentUris.parseId(uri);
                 if (selection != null) {
                     selectionArgs = insertSelectionArg(selectionArgs, String.valueOf(rawContactId));
@@ -5713,6 +5745,16 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    /**
+     * Returns the id of the local directory named by the directory query parameter, -1 if there
+     * is no such parameter, or {@link Long#MIN_VALUE} for a remote directory.
+     */
+    private static long getLocalDirectoryId(String directory) {
+        return (directory == null ? -1 :
+                (directory.equals("0") ? Directory.DEFAULT :
+                (directory.equals("1") ? Directory.LOCAL_INVISIBLE : Long.MIN_VALUE)));
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
@@ -5742,10 +5784,7 @@ public class ContactsProvider2 extends AbstractContactsProvider
         switchToContactMode();
 
         String directory = getQueryParameter(uri, ContactsContract.DIRECTORY_PARAM_KEY);
-        final long directoryId =
-                (directory == null ? -1 :
-                (directory.equals("0") ? Directory.DEFAULT :
-                (directory.equals("1") ? Directory.LOCAL_INVISIBLE : Long.MIN_VALUE)));
+        final long directoryId = getLocalDirectoryId(directory);
 
         if (directoryId > Long.MIN_VALUE) {
             final Cursor cursor = queryLocal(uri, projection, selection, selectionArgs, sortOrder,
@@ -7760,6 +7799,92 @@ public class ContactsProvider2 extends AbstractContactsProvider
         mFastScrollingIndexCache.invalidate();
     }
 
+    /**
+     * Brings the fast scrolling index cache up to date with the changes made in the current
+     * transaction, re-counting only the contacts that changed.
+     */
+    private void updateFastScrollingIndexCacheInTransaction(final SQLiteDatabase db) {
+        // FastScrollingIndexCache is thread-safe, no need to synchronize here.
+        mFastScrollingIndexCache.update(new FastScrollingIndexCache.IndexUpdater() {
+            @Override
+            public long[] getChangedContactIds(long since) {
+                return queryChangedContactIds(db, since);
+            }
+
+            @Override
+            public Cursor queryContacts(Uri queryUri, String selection, String[] selectionArgs,
+                    String sortOrder, long[] contactIds) {
+                // The cache doesn't tell a null sort order from an empty one, but only the
+                // former has an index.
+                final AddressBookIndexSortOrder indexSortOrder = AddressBookIndexSortOrder.parse(
+                        TextUtils.isEmpty(sortOrder) ? null : sortOrder);
+                if (indexSortOrder == null || !canUpdateFastScrollingIndex(queryUri, null)) {
+                    return null;
+                }
+
+                final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+                setTablesAndProjectionMapForContacts(qb, null);
+                appendLocalDirectoryAndAccountSelectionIfNeeded(qb,
+                        getLocalDirectoryId(getQueryParameter(
+                                queryUri, ContactsContract.DIRECTORY_PARAM_KEY)),
+                        queryUri);
+                final StringBuilder sb = new StringBuilder();
+                sb.append(" AND " + Contacts._ID + " IN (");
+                for (int i = 0; i < contactIds.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    sb.append(contactIds[i]);
+                }
+                sb.append(')');
+                qb.appendWhere(sb.toString());
+                qb.setStrict(true);
+                return queryFastScrollingIndexContacts(db, qb, selection, selectionArgs,
+                        indexSortOrder, null);
+            }
+        }, Clock.getInstance().currentTimeMillis());
+    }
+
+    /**
+     * Returns the ids of the contacts updated or deleted at or after {@code since}, or null if
+     * there are more than {@link #FAST_SCROLLING_INDEX_UPDATE_LIMIT}.
+     */
+    private static long[] queryChangedContactIds(SQLiteDatabase db, long since) {
+        final String sinceArg = String.valueOf(since);
+        final Cursor c = db.rawQuery(
+                "SELECT " + Contacts._ID +
+                " FROM " + Tables.CONTACTS +
+                " WHERE " + Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + ">=?" +
+                " UNION SELECT " + DeletedContacts.CONTACT_ID +
+                " FROM " + Tables.DELETED_CONTACTS +
+                " WHERE " + DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">=?" +
+                " LIMIT " + (FAST_SCROLLING_INDEX_UPDATE_LIMIT + 1),
+                new String[] {sinceArg, sinceArg});
+        try {
+            if (c.getCount() > FAST_SCROLLING_INDEX_UPDATE_LIMIT) {
+                return null;
+            }
+            final long[] contactIds = new long[c.getCount()];
+            while (c.moveToNext()) {
+                contactIds[c.getPosition()] = c.getLong(0);
+            }
+            return contactIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Whether the fast scrolling index of a query can be kept up to date by
+     * {@link #updateFastScrollingIndexCacheInTransaction}, which has to be able to run the query
+     * again from its URI alone.  This is the case for the contact list query, where each row is
+     * a contact.
+     */
+    private boolean canUpdateFastScrollingIndex(Uri queryUri, String countExpression) {
+        return queryUri != null && !inProfileMode() && sUriMatcher.match(queryUri) == CONTACTS
+                && TextUtils.isEmpty(countExpression);
+    }
+
     /**
      * Add the "fast scrolling index" bundle, generated by {@link #getFastScrollingIndexExtras},
      * to a cursor as extras.  It first checks {@link FastScrollingIndexCache} to see if we
@@ -7801,8 +7926,31 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 // Not in the cache.  Generate and put.
                 final long start = System.currentTimeMillis();
 
-                b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs,
-                        sortOrder, countExpression, cancellationSignal);
+                final AddressBookIndexSortOrder indexSortOrder =
+                        AddressBookIndexSortOrder.parse(sortOrder);
+                if (indexSortOrder != null
+                        && canUpdateFastScrollingIndex(queryUri, countExpression)) {
+                    // Also get the contacts in each bucket, so that the cache can update the
+                    // counts when some of them change.  The timestamp is taken before querying:
+                    // the next update re-counts any contact changed after it.
+                    final long timestamp = Clock.getInstance().currentTimeMillis();
+                    final Cursor groups = queryFastScrollingIndexGroups(db, qb, selection,
+                            selectionArgs, indexSortOrder, cancellationSignal);
+                    try {
+                        b = mFastScrollingIndexCache.put(queryUri, selection, selectionArgs,
+                                sortOrder, countExpression, groups,
+                                indexSortOrder.isDescending(), timestamp);
+                    } finally {
+                        groups.close();
+                    }
+                } else {
+                    b = getFastScrollingIndexExtras(db, qb, selection, selectionArgs,
+                            indexSortOrder, countExpression, cancellationSignal);
+                    if (b != null) {
+                        mFastScrollingIndexCache.put(queryUri, selection, selectionArgs,
+                                sortOrder, countExpression, b);
+                    }
+                }
 
                 final long end = System.currentTimeMillis();
                 final int time = (int) (end - start);
@@ -7810,8 +7958,6 @@ public class ContactsProvider2 extends AbstractContactsProvider
                 if (VERBOSE_LOGGING) {
                     Log.v(TAG, "getLetterCountExtraBundle took " + time + "ms");
                 }
-                mFastScrollingIndexCache.put(queryUri, selection, selectionArgs, sortOrder,
-                        countExpression, b);
             }
         }
         ((AbstractCursor) cursor).setExtras(b);
@@ -7838,50 +7984,72 @@ public class ContactsProvider2 extends AbstractContactsProvider
     }
 
     /**
-     * Computes counts by the address book index labels and returns it as {@link Bundle} which
-     * will be appended to a {@link Cursor} as extras.
+     * Columns and sort order of the address book index for the sort order of a query.
      */
-    private static Bundle getFastScrollingIndexExtras(final SQLiteDatabase db,
-            final SQLiteQueryBuilder qb, final String selection, final String[] selectionArgs,
-            final String sortOrder, String countExpression,
-            final CancellationSignal cancellationSignal) {
+    private static final class AddressBookIndexSortOrder {
         String sortKey;
+        String bucketKey;
+        String labelKey;
 
         // The sort order suffix could be something like "DESC".
         // We want to preserve it in the query even though we will change
         // the sort column itself.
         String sortOrderSuffix = "";
-        if (sortOrder != null) {
-            int spaceIndex = sortOrder.indexOf(' ');
-            if (spaceIndex != -1) {
-                sortKey = sortOrder.substring(0, spaceIndex);
-                sortOrderSuffix = sortOrder.substring(spaceIndex);
+
+        /**
+         * Returns the index sort order for {@code sortOrder}, or null if the index isn't
+         * supported for it.
+         */
+        static AddressBookIndexSortOrder parse(String sortOrder) {
+            final AddressBookIndexSortOrder result = new AddressBookIndexSortOrder();
+            if (sortOrder != null) {
+                int spaceIndex = sortOrder.indexOf(' ');
+                if (spaceIndex != -1) {
+                    result.sortKey = sortOrder.substring(0, spaceIndex);
+                    result.sortOrderSuffix = sortOrder.substring(spaceIndex);
+                } else {
+                    result.sortKey = sortOrder;
+                }
             } else {
-                sortKey = sortOrder;
+                result.sortKey = Contacts.SORT_KEY_PRIMARY;
             }
-        } else {
-            sortKey = Contacts.SORT_KEY_PRIMARY;
+
+            if (TextUtils.equals(result.sortKey, Contacts.SORT_KEY_PRIMARY)) {
+                result.bucketKey = ContactsColumns.PHONEBOOK_BUCKET_PRIMARY;
+                result.labelKey = ContactsColumns.PHONEBOOK_LABEL_PRIMARY;
+            } else if (TextUtils.equals(result.sortKey, Contacts.SORT_KEY_ALTERNATIVE)) {
+                result.bucketKey = ContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE;
+                result.labelKey = ContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE;
+            } else {
+                return null;
+            }
+            return result;
         }
 
-        String bucketKey;
-        String labelKey;
-        if (TextUtils.equals(sortKey, Contacts.SORT_KEY_PRIMARY)) {
-            bucketKey = ContactsColumns.PHONEBOOK_BUCKET_PRIMARY;
-            labelKey = ContactsColumns.PHONEBOOK_LABEL_PRIMARY;
-        } else if (TextUtils.equals(sortKey, Contacts.SORT_KEY_ALTERNATIVE)) {
-            bucketKey = ContactsColumns.PHONEBOOK_BUCKET_ALTERNATIVE;
-            labelKey = ContactsColumns.PHONEBOOK_LABEL_ALTERNATIVE;
-        } else {
+        boolean isDescending() {
+            return sortOrderSuffix.trim().toUpperCase(Locale.US).endsWith("DESC");
+        }
+    }
+
+    /**
+     * Computes counts by the address book index labels and returns it as {@link Bundle} which
+     * will be appended to a {@link Cursor} as extras.
+     */
+    private static Bundle getFastScrollingIndexExtras(final SQLiteDatabase db,
+            final SQLiteQueryBuilder qb, final String selection, final String[] selectionArgs,
+            final AddressBookIndexSortOrder sortOrder, String countExpression,
+            final CancellationSignal cancellationSignal) {
+        if (sortOrder == null) {
             return null;
         }
 
         HashMap<String, String> projectionMap = Maps.newHashMap();
         projectionMap.put(AddressBookIndexQuery.NAME,
-                sortKey + " AS " + AddressBookIndexQuery.NAME);
+                sortOrder.sortKey + " AS " + AddressBookIndexQuery.NAME);
         projectionMap.put(AddressBookIndexQuery.BUCKET,
-                bucketKey + " AS " + AddressBookIndexQuery.BUCKET);
+                sortOrder.bucketKey + " AS " + AddressBookIndexQuery.BUCKET);
         projectionMap.put(AddressBookIndexQuery.LABEL,
-                labelKey + " AS " + AddressBookIndexQuery.LABEL);
+                sortOrder.labelKey + " AS " + AddressBookIndexQuery.LABEL);
 
         // If "what to count" is not specified, we just count all records.
         if (TextUtils.isEmpty(countExpression)) {
@@ -7891,9 +8059,9 @@ public class ContactsProvider2 extends AbstractContactsProvider
         projectionMap.put(AddressBookIndexQuery.COUNT,
                 "COUNT(" + countExpression + ") AS " + AddressBookIndexQuery.COUNT);
         qb.setProjectionMap(projectionMap);
-        String orderBy = AddressBookIndexQuery.BUCKET + sortOrderSuffix
+        String orderBy = AddressBookIndexQuery.BUCKET + sortOrder.sortOrderSuffix
             + ", " + AddressBookIndexQuery.NAME + " COLLATE "
-            + PHONEBOOK_COLLATOR_NAME + sortOrderSuffix;
+            + PHONEBOOK_COLLATOR_NAME + sortOrder.sortOrderSuffix;
 
         Cursor indexCursor = qb.query(db, AddressBookIndexQuery.COLUMNS, selection, selectionArgs,
                 AddressBookIndexQuery.GROUP_BY, null /* having */,
@@ -7916,6 +8084,64 @@ public class ContactsProvider2 extends AbstractContactsProvider
         }
     }
 
+    private static final class AddressBookIndexContactsQuery {
+        public static final String[] COLUMNS = new String[] {
+            Contacts._ID, AddressBookIndexQuery.BUCKET, AddressBookIndexQuery.LABEL
+        };
+    }
+
+    private static final class AddressBookIndexGroupsQuery {
+        public static final String CONTACT_IDS = "contact_ids";
+
+        public static final String[] COLUMNS = new String[] {
+            AddressBookIndexQuery.BUCKET, AddressBookIndexQuery.LABEL, CONTACT_IDS
+        };
+    }
+
+    /**
+     * Returns the bucket, label and comma separated ids of the contacts of each bucket of the
+     * address book index, in the format expected by {@link FastScrollingIndexCache}.  The query
+     * builder must be set up for {@link Views#CONTACTS}.
+     */
+    private static Cursor queryFastScrollingIndexGroups(final SQLiteDatabase db,
+            final SQLiteQueryBuilder qb, final String selection, final String[] selectionArgs,
+            final AddressBookIndexSortOrder sortOrder,
+            final CancellationSignal cancellationSignal) {
+        HashMap<String, String> projectionMap = Maps.newHashMap();
+        projectionMap.put(AddressBookIndexQuery.BUCKET,
+                sortOrder.bucketKey + " AS " + AddressBookIndexQuery.BUCKET);
+        projectionMap.put(AddressBookIndexQuery.LABEL,
+                sortOrder.labelKey + " AS " + AddressBookIndexQuery.LABEL);
+        projectionMap.put(AddressBookIndexGroupsQuery.CONTACT_IDS,
+                "group_concat(" + Contacts._ID + ") AS " + AddressBookIndexGroupsQuery.CONTACT_IDS);
+        qb.setProjectionMap(projectionMap);
+
+        return qb.query(db, AddressBookIndexGroupsQuery.COLUMNS, selection, selectionArgs,
+                AddressBookIndexQuery.GROUP_BY, null, null, null, cancellationSignal);
+    }
+
+    /**
+     * Returns the id, bucket and label of each contact counted by the address book index, in
+     * the format expected by {@link FastScrollingIndexCache}.  The query builder must be set up
+     * for {@link Views#CONTACTS}.
+     */
+    private static Cursor queryFastScrollingIndexContacts(final SQLiteDatabase db,
+            final SQLiteQueryBuilder qb, final String selection, final String[] selectionArgs,
+            final AddressBookIndexSortOrder sortOrder,
+            final CancellationSignal cancellationSignal) {
+        HashMap<String, String> projectionMap = Maps.newHashMap();
+        projectionMap.put(Contacts._ID, sContactsProjectionMap.get(Contacts._ID));
+        projectionMap.put(AddressBookIndexQuery.BUCKET,
+                sortOrder.bucketKey + " AS " + AddressBookIndexQuery.BUCKET);
+        projectionMap.put(AddressBookIndexQuery.LABEL,
+                sortOrder.labelKey + " AS " + AddressBookIndexQuery.LABEL);
+        qb.setProjectionMap(projectionMap);
+
+        // Sorted by id, the contacts are appended to the index rather than inserted.
+        return qb.query(db, AddressBookIndexContactsQuery.COLUMNS, selection, selectionArgs,
+                null, null, Contacts._ID, null, cancellationSignal);
+    }
+
     /**
      * Returns the contact Id for the contact identified by the lookupKey.
      * Robust against changes in the lookup key: if the key has changed, will
@@ -23,28 +23,44 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
 import android.text.TextUtils;
+import android.util.Base64;
 import android.util.Log;
 
 import com.google.android.collect.Maps;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 /**
  * Cache for the "fast scrolling index".
  *
- * It's a cache from "keys" and "bundles" (see {@link #mCache} for what they are).  The cache
+ * It's a cache from "keys", which are query parameters passed to {@link #get}, to "indexes",
+ * which are the titles and counts that are appended to a {@link Cursor} as extras.  The cache
  * content is also persisted in the shared preferences, so it'll survive even if the process
  * is killed or the device reboots.
  *
- * All the content will be invalidated when the provider detects an operation that could potentially
- * change the index.
+ * An index that is put together with the contacts it counts (see
+ * {@link #put(Uri, String, String[], String, String, Cursor, boolean, long)}) is kept up to date
+ * incrementally: when the provider calls {@link #update}, only the contacts that changed since
+ * the last update are queried again and moved between buckets.  Any other index is dropped by
+ * {@link #update}.  All the content will be invalidated when the provider detects an operation
+ * that could change the index in other ways, e.g. a change of the visible contacts.
  *
- * There's no maximum number for cached entries.  It's okay because we store keys and values in
- * a compact form in both the in-memory cache and the preferences.  Also the query in question
- * (the query for contact lists) has relatively low number of variations.
+ * There's no maximum number for cached entries.  It's okay because we store keys and indexes in
+ * a compact binary form in both the in-memory cache and the preferences.  Also the query in
+ * question (the query for contact lists) has relatively low number of variations.
  *
  * This class is thread-safe.
  */
@@ -55,16 +71,44 @@ public class FastScrollingIndexCache {
     static final String PREFERENCE_KEY = "LetterCountCache";
 
     /**
-     * Separator used for in-memory structure.
+     * Version of the binary form saved to the preferences.  Anything else found there, including
+     * the string form used by older versions, is discarded.
      */
-    private static final String SEPARATOR = "\u0001";
-    private static final Pattern SEPARATOR_PATTERN = Pattern.compile(SEPARATOR);
+    private static final int FORMAT_VERSION = 2;
 
     /**
-     * Separator used for serializing values for preferences.
+     * Bucket used for contacts whose bucket is NULL.  It sorts before any other bucket, like NULL
+     * does in SQLite.
      */
-    private static final String SAVE_SEPARATOR = "\u0002";
-    private static final Pattern SAVE_SEPARATOR_PATTERN = Pattern.compile(SAVE_SEPARATOR);
+    private static final int NULL_BUCKET = Integer.MIN_VALUE;
+
+    /**
+     * An index that hasn't been updated for this long may have missed contacts that were
+     * deleted, because the deleted contacts log is pruned after that.
+     */
+    private static final long MAX_UPDATE_INTERVAL = DeletedContacts.DAYS_KEPT_MILLISECONDS;
+
+    /**
+     * Gives {@link #update} access to the contacts database.  Methods are called with the cache
+     * locked.
+     */
+    public interface IndexUpdater {
+        /**
+         * Returns the ids of the contacts that were updated or deleted at or after
+         * {@code since}, or null if there are too many of them to update the cache
+         * incrementally.
+         */
+        long[] getChangedContactIds(long since);
+
+        /**
+         * Runs the query of a cached index again, for the given contacts only.
+         *
+         * @return the id, bucket and label, in this order, of each contact that matches the
+         *     query; or null if the query can't be run again
+         */
+        Cursor queryContacts(Uri queryUri, String selection, String[] selectionArgs,
+                String sortOrder, long[] contactIds);
+    }
 
     private final SharedPreferences mPrefs;
 
@@ -73,17 +117,10 @@ public class FastScrollingIndexCache {
     /**
      * In-memory cache.
      *
-     * It's essentially a map from keys, which are query parameters passed to {@link #get}, to
-     * values, which are {@link Bundle}s that will be appended to a {@link Cursor} as extras.
-     *
-     * However, in order to save memory, we store stringified keys and values in the cache.
-     * Key strings are generated by {@link #buildCacheKey} and values are generated by
-     * {@link #buildCacheValue}.
-     *
-     * We store those strings joined with {@link #SAVE_SEPARATOR} as the separator when saving
-     * to shared preferences.
+     * It's a map from {@link Key}s to {@link Index}es.  The whole map is written in binary form,
+     * then Base64 encoded, when saving to shared preferences.
      */
-    private final Map<String, String> mCache = Maps.newHashMap();
+    private final Map<Key, Index> mCache = Maps.newHashMap();
 
     private static FastScrollingIndexCache sSingleton;
 
@@ -106,53 +143,17 @@ public class FastScrollingIndexCache {
         mPrefs = prefs;
     }
 
-    /**
-     * Append a {@link String} to a {@link StringBuilder}.
-     *
-     * Unlike the original {@link StringBuilder#append}, it does *not* append the string "null" if
-     * {@code value} is null.
-     */
-    private static void appendIfNotNull(StringBuilder sb, Object value) {
-        if (value != null) {
-            sb.append(value.toString());
-        }
-    }
-
-    private static String buildCacheKey(Uri queryUri, String selection, String[] selectionArgs,
-            String sortOrder, String countExpression) {
-        final StringBuilder sb = new StringBuilder();
-
-        appendIfNotNull(sb, queryUri);
-        appendIfNotNull(sb, SEPARATOR);
-        appendIfNotNull(sb, selection);
-        appendIfNotNull(sb, SEPARATOR);
-        appendIfNotNull(sb, sortOrder);
-        appendIfNotNull(sb, SEPARATOR);
-        appendIfNotNull(sb, countExpression);
-
-        if (selectionArgs != null) {
-            for (int i = 0; i < selectionArgs.length; i++) {
-                appendIfNotNull(sb, SEPARATOR);
-                appendIfNotNull(sb, selectionArgs[i]);
-            }
-        }
-        return sb.toString();
-    }
-
     @VisibleForTesting
-    static String buildCacheValue(String[] titles, int[] counts) {
-        final StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < titles.length; i++) {
-            if (i > 0) {
-                appendIfNotNull(sb, SEPARATOR);
-            }
-            appendIfNotNull(sb, titles[i]);
-            appendIfNotNull(sb, SEPARATOR);
-            appendIfNotNull(sb, Integer.toString(counts[i]));
+    static byte[] buildCacheValue(String[] titles, int[] counts) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            new Index(titles, counts).writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Can't happen with a ByteArrayOutputStream.
         }
-
-        return sb.toString();
+        return bytes.toByteArray();
     }
 
     /**
@@ -166,29 +167,13 @@ public class FastScrollingIndexCache {
     }
 
     @VisibleForTesting
-    static Bundle buildExtraBundleFromValue(String value) {
-        final String[] values;
-        if (TextUtils.isEmpty(value)) {
-            values = new String[0];
-        } else {
-            values = SEPARATOR_PATTERN.split(value);
-        }
-
-        if ((values.length) % 2 != 0) {
-            return null; // malformed
-        }
-
+    static Bundle buildExtraBundleFromValue(byte[] value) {
         try {
-            final int numTitles = values.length / 2;
-            final String[] titles = new String[numTitles];
-            final int[] counts = new int[numTitles];
-
-            for (int i = 0; i < numTitles; i++) {
-                titles[i] = values[i * 2];
-                counts[i] = Integer.parseInt(values[i * 2 + 1]);
-            }
-
-            return buildExtraBundle(titles, counts);
+            return Index.readFrom(new DataInputStream(new ByteArrayInputStream(value)))
+                    .toBundle();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to parse cached value", e);
+            return null; // malformed
         } catch (RuntimeException e) {
             Log.w(TAG, "Failed to parse cached value", e);
             return null; // malformed
@@ -199,43 +184,57 @@ public class FastScrollingIndexCache {
             String countExpression) {
         synchronized (mCache) {
             ensureLoaded();
-            final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
+            final Key key = new Key(queryUri, selection, selectionArgs, sortOrder,
                     countExpression);
-            final String value = mCache.get(key);
-            if (value == null) {
+            final Index index = mCache.get(key);
+            if (index == null) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     Log.v(TAG, "Miss: " + key);
                 }
                 return null;
             }
 
-            final Bundle b = buildExtraBundleFromValue(value);
-            if (b == null) {
-                // Value was malformed for whatever reason.
-                mCache.remove(key);
-                save();
-            } else {
-                if (Log.isLoggable(TAG, Log.VERBOSE)) {
-                    Log.v(TAG, "Hit:  " + key);
-                }
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Hit:  " + key);
             }
-            return b;
+            return index.toBundle();
         }
     }
 
     /**
      * Put a {@link Bundle} into the cache.  {@link Bundle} MUST be built with
      * {@link #buildExtraBundle(String[], int[])}.
+     *
+     * The index can't be updated incrementally, so it is dropped by the next {@link #update}.
      */
     public void put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
             String countExpression, Bundle bundle) {
+        put(new Key(queryUri, selection, selectionArgs, sortOrder, countExpression),
+                new Index(bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
+                        bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
+    }
+
+    /**
+     * Builds an index from the contacts it counts, puts it into the cache and returns the
+     * {@link Bundle} for it.  The index is kept up to date by {@link #update} from then on.
+     *
+     * @param groups the bucket, label and comma separated contact ids, in this order, of each
+     *     bucket to count, as aggregated by GROUP BY and group_concat()
+     * @param descending whether the buckets are sorted in descending order
+     * @param timestamp a time at which the contacts were not queried yet
+     */
+    public Bundle put(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+            String countExpression, Cursor groups, boolean descending, long timestamp) {
+        final Index index = new Index(descending, timestamp);
+        index.addGroups(groups);
+        put(new Key(queryUri, selection, selectionArgs, sortOrder, countExpression), index);
+        return index.toBundle();
+    }
+
+    private void put(Key key, Index index) {
         synchronized (mCache) {
             ensureLoaded();
-            final String key = buildCacheKey(queryUri, selection, selectionArgs, sortOrder,
-                    countExpression);
-            mCache.put(key, buildCacheValue(
-                    bundle.getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES),
-                    bundle.getIntArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_COUNTS)));
+            mCache.put(key, index);
             save();
 
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
@@ -244,6 +243,72 @@ public class FastScrollingIndexCache {
         }
     }
 
+    /**
+     * Brings the cache up to date with the contacts database at time {@code now}.
+     *
+     * Indexes that can be updated incrementally are updated for the contacts that changed since
+     * their last update.  All other indexes are dropped.
+     */
+    public void update(IndexUpdater updater, long now) {
+        synchronized (mCache) {
+            ensureLoaded();
+
+            boolean changed = false;
+            long since = now;
+            Iterator<Map.Entry<Key, Index>> it = mCache.entrySet().iterator();
+            while (it.hasNext()) {
+                final Index index = it.next().getValue();
+                // If the clock went backwards we can't tell what changed.
+                if (!index.canUpdate() || index.mTimestamp > now
+                        || now - index.mTimestamp > MAX_UPDATE_INTERVAL) {
+                    it.remove();
+                    changed = true;
+                } else {
+                    since = Math.min(since, index.mTimestamp);
+                }
+            }
+
+            if (!mCache.isEmpty()) {
+                final long[] contactIds = updater.getChangedContactIds(since);
+                if (contactIds == null) {
+                    mCache.clear();
+                    changed = true;
+                }
+                it = mCache.entrySet().iterator();
+                while (contactIds != null && it.hasNext()) {
+                    final Map.Entry<Key, Index> entry = it.next();
+                    final Index index = entry.getValue();
+                    if (contactIds.length > 0) {
+                        final Key key = entry.getKey();
+                        final Cursor c = updater.queryContacts(key.getQueryUri(),
+                                key.mSelection, key.mSelectionArgs, key.mSortOrder, contactIds);
+                        if (c == null) {
+                            it.remove();
+                            changed = true;
+                            continue;
+                        }
+                        try {
+                            index.removeContacts(contactIds);
+                            index.addContacts(c);
+                        } finally {
+                            c.close();
+                        }
+                        changed = true;
+                    }
+                    index.mTimestamp = now;
+                }
+            }
+
+            if (changed) {
+                save();
+            }
+
+            if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Updated, " + mCache.size() + " entries left");
+            }
+        }
+    }
+
     public void invalidate() {
         synchronized (mCache) {
             mPrefs.edit().remove(PREFERENCE_KEY).commit();
@@ -259,19 +324,27 @@ public class FastScrollingIndexCache {
     /**
      * Store the cache to the preferences.
      *
-     * We concatenate all key+value pairs into one string and save it.
+     * We write all key+index pairs in binary form and save them as one Base64 string.
      */
     private void save() {
-        final StringBuilder sb = new StringBuilder();
-        for (String key : mCache.keySet()) {
-            if (sb.length() > 0) {
-                appendIfNotNull(sb, SAVE_SEPARATOR);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FORMAT_VERSION);
+            writeVarLong(out, mCache.size());
+            for (Map.Entry<Key, Index> entry : mCache.entrySet()) {
+                entry.getKey().writeTo(out);
+                entry.getValue().writeTo(out);
             }
-            appendIfNotNull(sb, key);
-            appendIfNotNull(sb, SAVE_SEPARATOR);
-            appendIfNotNull(sb, mCache.get(key));
+            out.flush();
+        } catch (IOException e) {
+            // E.g. a string too long for writeUTF().  The cache is still usable in memory.
+            Log.w(TAG, "Failed to save to preferences", e);
+            mPrefs.edit().remove(PREFERENCE_KEY).apply();
+            return;
         }
-        mPrefs.edit().putString(PREFERENCE_KEY, sb.toString()).apply();
+        mPrefs.edit().putString(PREFERENCE_KEY,
+                Base64.encodeToString(bytes.toByteArray(), Base64.NO_WRAP)).apply();
     }
 
     private void ensureLoaded() {
@@ -289,25 +362,28 @@ public class FastScrollingIndexCache {
             final String savedValue = mPrefs.getString(PREFERENCE_KEY, null);
 
             if (!TextUtils.isEmpty(savedValue)) {
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        Base64.decode(savedValue, Base64.DEFAULT)));
 
-                final String[] keysAndValues = SAVE_SEPARATOR_PATTERN.split(savedValue);
-
-                if ((keysAndValues.length % 2) != 0) {
-                    return; // malformed
+                if (in.readInt() != FORMAT_VERSION) {
+                    return; // malformed, or saved by an older version
                 }
 
-                for (int i = 1; i < keysAndValues.length; i += 2) {
-                    final String key = keysAndValues[i - 1];
-                    final String value = keysAndValues[i];
+                final int count = readVarInt(in);
+                for (int i = 0; i < count; i++) {
+                    final Key key = Key.readFrom(in);
+                    final Index index = Index.readFrom(in);
 
                     if (Log.isLoggable(TAG, Log.VERBOSE)) {
                         Log.v(TAG, "Loaded: " + key);
                     }
 
-                    mCache.put(key, value);
+                    mCache.put(key, index);
                 }
             }
             successfullyLoaded = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load from preferences", e);
         } catch (RuntimeException e) {
             Log.w(TAG, "Failed to load from preferences", e);
             // But don't crash apps!
@@ -317,4 +393,427 @@ public class FastScrollingIndexCache {
             }
         }
     }
+
+    /**
+     * Query parameters an index was computed for.  Null strings are stored as empty strings
+     * and null selection arguments as an empty array, so that they are equal.
+     */
+    private static final class Key {
+        private final String mQueryUri;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final String mCountExpression;
+
+        public Key(Uri queryUri, String selection, String[] selectionArgs, String sortOrder,
+                String countExpression) {
+            this(queryUri == null ? "" : queryUri.toString(), selection, selectionArgs,
+                    sortOrder, countExpression);
+        }
+
+        private Key(String queryUri, String selection, String[] selectionArgs,
+                String sortOrder, String countExpression) {
+            mQueryUri = queryUri;
+            mSelection = nullToEmpty(selection);
+            mSortOrder = nullToEmpty(sortOrder);
+            mCountExpression = nullToEmpty(countExpression);
+            if (selectionArgs == null) {
+                mSelectionArgs = new String[0];
+            } else {
+                mSelectionArgs = new String[selectionArgs.length];
+                for (int i = 0; i < selectionArgs.length; i++) {
+                    mSelectionArgs[i] = nullToEmpty(selectionArgs[i]);
+                }
+            }
+        }
+
+        private static String nullToEmpty(String value) {
+            return value == null ? "" : value;
+        }
+
+        public Uri getQueryUri() {
+            return mQueryUri.isEmpty() ? null : Uri.parse(mQueryUri);
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) object;
+            return mQueryUri.equals(other.mQueryUri)
+                    && mSelection.equals(other.mSelection)
+                    && mSortOrder.equals(other.mSortOrder)
+                    && mCountExpression.equals(other.mCountExpression)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mQueryUri.hashCode();
+            result = 31 * result + mSelection.hashCode();
+            result = 31 * result + mSortOrder.hashCode();
+            result = 31 * result + mCountExpression.hashCode();
+            return 31 * result + Arrays.hashCode(mSelectionArgs);
+        }
+
+        @Override
+        public String toString() {
+            return mQueryUri + " " + mSelection + " " + Arrays.toString(mSelectionArgs) + " "
+                    + mSortOrder + " " + mCountExpression;
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeUTF(mQueryUri);
+            out.writeUTF(mSelection);
+            out.writeUTF(mSortOrder);
+            out.writeUTF(mCountExpression);
+            writeVarLong(out, mSelectionArgs.length);
+            for (String arg : mSelectionArgs) {
+                out.writeUTF(arg);
+            }
+        }
+
+        public static Key readFrom(DataInputStream in) throws IOException {
+            final String queryUri = in.readUTF();
+            final String selection = in.readUTF();
+            final String sortOrder = in.readUTF();
+            final String countExpression = in.readUTF();
+            final String[] selectionArgs = new String[readVarInt(in)];
+            for (int i = 0; i < selectionArgs.length; i++) {
+                selectionArgs[i] = in.readUTF();
+            }
+            return new Key(queryUri, selection, selectionArgs, sortOrder, countExpression);
+        }
+    }
+
+    /**
+     * Titles and counts of a fast scrolling index.  If the index can be updated incrementally,
+     * it also has the bucket of each title and the id and bucket of each contact it counts.
+     *
+     * Not thread-safe; only accessed with the cache locked once it's in the cache.
+     */
+    @VisibleForTesting
+    static final class Index {
+        private static final int INITIAL_BUCKET_CAPACITY = 32;
+        private static final int INITIAL_CONTACT_CAPACITY = 256;
+
+        private final boolean mDescending;
+
+        /**
+         * Changes to contacts before this time are reflected in the index.
+         */
+        private long mTimestamp;
+
+        // Buckets in index order, with their titles and the number of contacts in each.  Buckets
+        // map one to one to labels, as labels are computed from buckets.
+        private int mBucketCount;
+        private int[] mBuckets;
+        private String[] mLabels;
+        private int[] mCounts;
+
+        // Contacts counted, sorted by id, with their buckets.  Null if the index can't be updated.
+        private int mContactCount;
+        private long[] mContactIds;
+        private int[] mContactBuckets;
+
+        /**
+         * Creates an index that can't be updated.
+         */
+        public Index(String[] titles, int[] counts) {
+            mDescending = false;
+            mBucketCount = titles.length;
+            mBuckets = new int[titles.length];
+            mLabels = titles.clone();
+            mCounts = Arrays.copyOf(counts, titles.length);
+        }
+
+        /**
+         * Creates an empty index that can be updated.
+         */
+        public Index(boolean descending, long timestamp) {
+            mDescending = descending;
+            mTimestamp = timestamp;
+            mBuckets = new int[INITIAL_BUCKET_CAPACITY];
+            mLabels = new String[INITIAL_BUCKET_CAPACITY];
+            mCounts = new int[INITIAL_BUCKET_CAPACITY];
+            mContactIds = new long[INITIAL_CONTACT_CAPACITY];
+            mContactBuckets = new int[INITIAL_CONTACT_CAPACITY];
+        }
+
+        public boolean canUpdate() {
+            return mContactIds != null;
+        }
+
+        public Bundle toBundle() {
+            return buildExtraBundle(Arrays.copyOf(mLabels, mBucketCount),
+                    Arrays.copyOf(mCounts, mBucketCount));
+        }
+
+        /**
+         * Adds the contacts of a cursor with the id, bucket and label of each contact.
+         */
+        public void addContacts(Cursor c) {
+            while (c.moveToNext()) {
+                addContact(c.getLong(0), c.isNull(1) ? NULL_BUCKET : c.getInt(1), c.getString(2));
+            }
+        }
+
+        /**
+         * Adds the contacts of a cursor with the bucket, label and comma separated contact ids
+         * of each bucket.  The index must be empty.
+         */
+        public void addGroups(Cursor c) {
+            final ArrayList<long[]> groupIds = new ArrayList<long[]>();
+            final ArrayList<Integer> groupBuckets = new ArrayList<Integer>();
+            int total = 0;
+            while (c.moveToNext()) {
+                final long[] ids = parseIds(c.getString(2));
+                if (ids.length == 0) {
+                    continue;
+                }
+                final int bucket = c.isNull(0) ? NULL_BUCKET : c.getInt(0);
+                Arrays.sort(ids);
+                addToBucket(bucket, c.getString(1), ids.length);
+                groupIds.add(ids);
+                groupBuckets.add(bucket);
+                total += ids.length;
+            }
+
+            // Merge the sorted ids of the buckets.  A contact is in one bucket only.
+            if (total > mContactIds.length) {
+                mContactIds = new long[total];
+                mContactBuckets = new int[total];
+            }
+            final int[] next = new int[groupIds.size()];
+            for (mContactCount = 0; mContactCount < total; mContactCount++) {
+                int min = -1;
+                for (int i = 0; i < next.length; i++) {
+                    final long[] ids = groupIds.get(i);
+                    if (next[i] < ids.length
+                            && (min < 0 || ids[next[i]] < groupIds.get(min)[next[min]])) {
+                        min = i;
+                    }
+                }
+                mContactIds[mContactCount] = groupIds.get(min)[next[min]++];
+                mContactBuckets[mContactCount] = groupBuckets.get(min);
+            }
+        }
+
+        private static long[] parseIds(String ids) {
+            if (TextUtils.isEmpty(ids)) {
+                return new long[0];
+            }
+            int count = 1;
+            for (int i = 0; i < ids.length(); i++) {
+                if (ids.charAt(i) == ',') {
+                    count++;
+                }
+            }
+            final long[] result = new long[count];
+            int start = 0;
+            for (int i = 0; i < count; i++) {
+                int end = ids.indexOf(',', start);
+                if (end < 0) {
+                    end = ids.length();
+                }
+                result[i] = Long.parseLong(ids.substring(start, end));
+                start = end + 1;
+            }
+            return result;
+        }
+
+        public void addContact(long contactId, int bucket, String label) {
+            int position = Arrays.binarySearch(mContactIds, 0, mContactCount, contactId);
+            if (position >= 0) {
+                removeFromBucket(mContactBuckets[position]);
+            } else {
+                position = ~position;
+                if (mContactCount == mContactIds.length) {
+                    mContactIds = Arrays.copyOf(mContactIds, mContactCount * 2);
+                    mContactBuckets = Arrays.copyOf(mContactBuckets, mContactCount * 2);
+                }
+                System.arraycopy(mContactIds, position, mContactIds, position + 1,
+                        mContactCount - position);
+                System.arraycopy(mContactBuckets, position, mContactBuckets, position + 1,
+                        mContactCount - position);
+                mContactIds[position] = contactId;
+                mContactCount++;
+            }
+            mContactBuckets[position] = bucket;
+            addToBucket(bucket, label, 1);
+        }
+
+        public void removeContacts(long[] contactIds) {
+            for (long contactId : contactIds) {
+                final int position = Arrays.binarySearch(mContactIds, 0, mContactCount, contactId);
+                if (position < 0) {
+                    continue;
+                }
+                removeFromBucket(mContactBuckets[position]);
+                System.arraycopy(mContactIds, position + 1, mContactIds, position,
+                        mContactCount - position - 1);
+                System.arraycopy(mContactBuckets, position + 1, mContactBuckets, position,
+                        mContactCount - position - 1);
+                mContactCount--;
+            }
+        }
+
+        /**
+         * Returns the position of {@code bucket} in the index, or the ones' complement of the
+         * position it would be inserted at.
+         */
+        private int findBucket(int bucket) {
+            for (int i = 0; i < mBucketCount; i++) {
+                if (mBuckets[i] == bucket) {
+                    return i;
+                }
+                if (mDescending ? mBuckets[i] < bucket : mBuckets[i] > bucket) {
+                    return ~i;
+                }
+            }
+            return ~mBucketCount;
+        }
+
+        private void addToBucket(int bucket, String label, int count) {
+            int position = findBucket(bucket);
+            if (position >= 0) {
+                mCounts[position] += count;
+                return;
+            }
+
+            position = ~position;
+            if (mBucketCount == mBuckets.length) {
+                mBuckets = Arrays.copyOf(mBuckets, mBucketCount * 2);
+                mLabels = Arrays.copyOf(mLabels, mBucketCount * 2);
+                mCounts = Arrays.copyOf(mCounts, mBucketCount * 2);
+            }
+            System.arraycopy(mBuckets, position, mBuckets, position + 1, mBucketCount - position);
+            System.arraycopy(mLabels, position, mLabels, position + 1, mBucketCount - position);
+            System.arraycopy(mCounts, position, mCounts, position + 1, mBucketCount - position);
+            mBuckets[position] = bucket;
+            mLabels[position] = label;
+            mCounts[position] = count;
+            mBucketCount++;
+        }
+
+        private void removeFromBucket(int bucket) {
+            final int position = findBucket(bucket);
+            if (position < 0 || --mCounts[position] > 0) {
+                return;
+            }
+
+            // Like GROUP BY, don't keep empty buckets.
+            final int tail = mBucketCount - position - 1;
+            System.arraycopy(mBuckets, position + 1, mBuckets, position, tail);
+            System.arraycopy(mLabels, position + 1, mLabels, position, tail);
+            System.arraycopy(mCounts, position + 1, mCounts, position, tail);
+            mBucketCount--;
+            mLabels[mBucketCount] = null;
+        }
+
+        /**
+         * Writes the index.  Contacts are written as the difference from the previous id and the
+         * position of their bucket, which mostly takes two bytes per contact.
+         */
+        public void writeTo(DataOutput out) throws IOException {
+            final boolean canUpdate = canUpdate();
+            out.writeBoolean(canUpdate);
+            writeVarLong(out, mBucketCount);
+            for (int i = 0; i < mBucketCount; i++) {
+                out.writeBoolean(mLabels[i] != null);
+                if (mLabels[i] != null) {
+                    out.writeUTF(mLabels[i]);
+                }
+                out.writeInt(mCounts[i]);
+                if (canUpdate) {
+                    out.writeInt(mBuckets[i]);
+                }
+            }
+            if (!canUpdate) {
+                return;
+            }
+
+            out.writeBoolean(mDescending);
+            out.writeLong(mTimestamp);
+            writeVarLong(out, mContactCount);
+            long previousId = 0;
+            for (int i = 0; i < mContactCount; i++) {
+                writeVarLong(out, mContactIds[i] - previousId);
+                writeVarLong(out, findBucket(mContactBuckets[i]));
+                previousId = mContactIds[i];
+            }
+        }
+
+        public static Index readFrom(DataInputStream in) throws IOException {
+            final boolean canUpdate = in.readBoolean();
+            final int bucketCount = readVarInt(in);
+            final String[] labels = new String[bucketCount];
+            final int[] counts = new int[bucketCount];
+            final int[] buckets = new int[bucketCount];
+            for (int i = 0; i < bucketCount; i++) {
+                labels[i] = in.readBoolean() ? in.readUTF() : null;
+                counts[i] = in.readInt();
+                if (canUpdate) {
+                    buckets[i] = in.readInt();
+                }
+            }
+            if (!canUpdate) {
+                return new Index(labels, counts);
+            }
+
+            final Index index = new Index(in.readBoolean(), in.readLong());
+            final int contactCount = readVarInt(in);
+            index.mContactIds = new long[Math.max(contactCount, INITIAL_CONTACT_CAPACITY)];
+            index.mContactBuckets = new int[index.mContactIds.length];
+            long contactId = 0;
+            for (int i = 0; i < contactCount; i++) {
+                contactId += readVarLong(in);
+                final long position = readVarLong(in);
+                if (position < 0 || position >= bucketCount) {
+                    throw new IOException("Invalid bucket position " + position);
+                }
+                index.mContactIds[i] = contactId;
+                index.mContactBuckets[i] = buckets[(int) position];
+            }
+            index.mContactCount = contactCount;
+            index.mBucketCount = bucketCount;
+            index.mBuckets = Arrays.copyOf(buckets, Math.max(bucketCount, INITIAL_BUCKET_CAPACITY));
+            index.mLabels = Arrays.copyOf(labels, index.mBuckets.length);
+            index.mCounts = Arrays.copyOf(counts, index.mBuckets.length);
+            return index;
+        }
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    /**
+     * Reads the number of elements that follow.  Each element takes at least one byte, which
+     * catches malformed counts before anything is allocated for them.
+     */
+    private static int readVarInt(DataInputStream in) throws IOException {
+        final long value = readVarLong(in);
+        if (value < 0 || value > in.available()) {
+            throw new IOException("Invalid count " + value);
+        }
+        return (int) value;
+    }
 }
@@ -18,8 +18,10 @@ package com.android.providers.contacts;
 
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Locale;
 
 import libcore.icu.Transliterator;
@@ -44,10 +46,83 @@ import java.util.HashMap;
 public class HanziToPinyin {
     private static final String TAG = "HanziToPinyin";
 
+    // Number of recent transliterate() results that are kept.
+    private static final int TRANSLITERATION_CACHE_SIZE = 512;
+
+    // The char table is split in pages of 256 chars that are allocated on first use.
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
     private static HanziToPinyin sInstance;
     private Transliterator mPinyinTransliterator;
     private Transliterator mAsciiTransliterator;
 
+    /**
+     * The token of each non-ASCII char seen so far, indexed by char. Computing a token runs the
+     * transliterators, so each char is only transliterated once.
+     */
+    private final CharToken[][] mCharTokens =
+            new CharToken[(Character.MAX_VALUE + 1) >> PAGE_SHIFT][];
+
+    private final LruCache<String, String> mTransliterationCache =
+            new LruCache<String, String>(TRANSLITERATION_CACHE_SIZE);
+
+    /**
+     * The result of tokenizing a single char. Immutable, so that it can be shared between
+     * threads.
+     */
+    private static final class CharToken {
+        final int type;
+        final String source;
+        final String target;
+
+        CharToken(int type, String source, String target) {
+            this.type = type;
+            this.source = source;
+            this.target = target;
+        }
+    }
+
+    /**
+     * A reusable list of tokens, filled by {@link #getTokens(String, TokenBuffer)}. The
+     * {@link Token} objects are owned by the buffer and overwritten by the next call.
+     */
+    public static final class TokenBuffer {
+        private Token[] mTokens = new Token[16];
+        private int mSize;
+        private final StringBuilder mBuilder = new StringBuilder();
+
+        public int size() {
+            return mSize;
+        }
+
+        public Token get(int index) {
+            if (index >= mSize) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+            }
+            return mTokens[index];
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        void add(int type, String source, String target) {
+            if (mSize == mTokens.length) {
+                mTokens = Arrays.copyOf(mTokens, mSize * 2);
+            }
+            Token token = mTokens[mSize];
+            if (token == null) {
+                token = new Token();
+                mTokens[mSize] = token;
+            }
+            token.type = type;
+            token.source = source;
+            token.target = target;
+            mSize++;
+        }
+    }
+
     public static class Token {
         /**
          * Separator between target string for each source char
@@ -107,6 +182,28 @@ public class HanziToPinyin {
         }
     }
 
+    /**
+     * Returns the token for a non-ASCII char, computing it on first use.
+     */
+    private CharToken getCharToken(char character) {
+        CharToken[] page = mCharTokens[character >> PAGE_SHIFT];
+        if (page == null) {
+            // Racing threads may each allocate the page; one of them wins and the others'
+            // entries are recomputed later, which is harmless.
+            page = new CharToken[PAGE_SIZE];
+            mCharTokens[character >> PAGE_SHIFT] = page;
+        }
+        final int index = character & (PAGE_SIZE - 1);
+        CharToken charToken = page[index];
+        if (charToken == null) {
+            final Token token = new Token();
+            tokenize(character, token);
+            charToken = new CharToken(token.type, token.source, token.target);
+            page[index] = charToken;
+        }
+        return charToken;
+    }
+
     private void tokenize(char character, Token token) {
         token.source = Character.toString(character);
 
@@ -157,7 +254,26 @@ public class HanziToPinyin {
         if (!hasChineseTransliterator() || TextUtils.isEmpty(input)) {
             return null;
         }
-        return mPinyinTransliterator.transliterate(input);
+        if (isAscii(input)) {
+            // The transliterator only upper-cases ASCII.
+            return input.toUpperCase(Locale.ROOT);
+        }
+        String result = mTransliterationCache.get(input);
+        if (result == null) {
+            result = mPinyinTransliterator.transliterate(input);
+            mTransliterationCache.put(input, result);
+        }
+        return result;
+    }
+
+    private static boolean isAscii(String input) {
+        final int length = input.length();
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(i) >= 128) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -166,16 +282,33 @@ public class HanziToPinyin {
      * Token. If there is no Chinese transliterator, the empty token array is returned.
      */
     public ArrayList<Token> getTokens(final String input) {
-        ArrayList<Token> tokens = new ArrayList<Token>();
+        final TokenBuffer buffer = new TokenBuffer();
+        getTokens(input, buffer);
+        final int size = buffer.size();
+        final ArrayList<Token> tokens = new ArrayList<Token>(size);
+        for (int i = 0; i < size; i++) {
+            final Token token = buffer.get(i);
+            tokens.add(new Token(token.type, token.source, token.target));
+        }
+        return tokens;
+    }
+
+    /**
+     * Same as {@link #getTokens(String)}, but writes the tokens into the given buffer, replacing
+     * its content. Reusing the buffer across calls avoids allocating the tokens; Hanzi tokens
+     * don't allocate at all once their char has been seen.
+     */
+    public void getTokens(final String input, final TokenBuffer tokens) {
+        tokens.clear();
         if (!hasChineseTransliterator() || TextUtils.isEmpty(input)) {
             // return empty tokens.
-            return tokens;
+            return;
         }
 
         final int inputLength = input.length();
-        final StringBuilder sb = new StringBuilder();
+        final StringBuilder sb = tokens.mBuilder;
+        sb.setLength(0);
         int tokenType = Token.LATIN;
-        Token token = new Token();
 
         // Go through the input, create a new token when
         // a. Token type changed
@@ -187,14 +320,20 @@ public class HanziToPinyin {
                 if (sb.length() > 0) {
                     addToken(sb, tokens, tokenType);
                 }
+            } else if (character < 128) {
+                // ASCII
+                if (tokenType != Token.LATIN && sb.length() > 0) {
+                    addToken(sb, tokens, tokenType);
+                }
+                sb.append(character);
+                tokenType = Token.LATIN;
             } else {
-                tokenize(character, token);
+                final CharToken token = getCharToken(character);
                 if (token.type == Token.PINYIN) {
                     if (sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
                     }
-                    tokens.add(token);
-                    token = new Token();
+                    tokens.add(token.type, token.source, token.target);
                 } else {
                     if (tokenType != token.type && sb.length() > 0) {
                         addToken(sb, tokens, tokenType);
@@ -207,13 +346,12 @@ public class HanziToPinyin {
         if (sb.length() > 0) {
             addToken(sb, tokens, tokenType);
         }
-        return tokens;
     }
 
     private void addToken(
-            final StringBuilder sb, final ArrayList<Token> tokens, final int tokenType) {
+            final StringBuilder sb, final TokenBuffer tokens, final int tokenType) {
         String str = sb.toString();
-        tokens.add(new Token(tokenType, str, str));
+        tokens.add(tokenType, str, str);
         sb.setLength(0);
     }
 
@@ -25,9 +25,20 @@ import com.android.providers.contacts.ContactsDatabaseHelper.PhotoFilesColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -36,6 +47,12 @@ import java.util.Set;
 /**
  * Photo storage system that stores the files directly onto the hard disk
  * in the specified directory.
+ * <p>
+ * Files are named after the SHA-1 hash of their content, so that a photo that is stored under
+ * several photo file IDs (e.g. the same picture synced by two accounts) is only written once.
+ * The mapping from photo file IDs to files is kept in an append-only index file in the same
+ * directory, which is read on startup instead of listing the directory. The index is rewritten
+ * from the live entries once it holds more removed entries than live ones.
  */
 public class PhotoStore {
 
@@ -46,15 +63,47 @@ public class PhotoStore {
     // Directory name under the root directory for photo storage.
     private final String DIRECTORY = "photos";
 
+    // Name of the index file under the photo storage directory.
+    private static final String INDEX_FILE = "index";
+
+    private static final int INDEX_MAGIC = 0x50484f54;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_SIZE = 8;
+
+    // Index records have a fixed size so that a record truncated by a crash can be dropped:
+    // type (1 byte), photo file ID (8), size (8), SHA-1 hash (20). Removal records only use
+    // the type and the ID.
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int HASH_LENGTH = 20;
+    private static final int RECORD_SIZE = 1 + 8 + 8 + HASH_LENGTH;
+
+    // Number of index records below which the index is never compacted.
+    private static final int MIN_RECORDS_TO_COMPACT = 64;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /** Map of keys to entries in the directory. */
     private final Map<Long, Entry> mEntries;
 
+    /** Map of file names to the files in the directory. */
+    private final Map<String, Blob> mBlobs;
+
     /** Total amount of space currently used by the photo store in bytes. */
     private long mTotalSize = 0;
 
     /** The file path for photo storage. */
     private final File mStorePath;
 
+    /** The index of the entries in the directory. */
+    private final File mIndexFile;
+
+    /** The stream used to append records to the index, opened lazily. */
+    private DataOutputStream mIndexOut;
+
+    /** The number of records in the index. */
+    private int mIndexRecordCount;
+
     /** The database helper. */
     private final ContactsDatabaseHelper mDatabaseHelper;
 
@@ -76,15 +125,18 @@ public class PhotoStore {
                 }
             }
         }
+        mIndexFile = new File(mStorePath, INDEX_FILE);
         mDatabaseHelper = databaseHelper;
         mEntries = new HashMap<Long, Entry>();
+        mBlobs = new HashMap<String, Blob>();
         initialize();
     }
 
     /**
      * Clears the photo storage. Deletes all files from disk.
      */
-    public void clear() {
+    public synchronized void clear() {
+        closeIndex();
         File[] files = mStorePath.listFiles();
         if (files != null) {
             for (File file : files) {
@@ -96,38 +148,41 @@ public class PhotoStore {
         }
         mDb.delete(Tables.PHOTO_FILES, null, null);
         mEntries.clear();
+        mBlobs.clear();
+        mIndexRecordCount = 0;
         mTotalSize = 0;
     }
 
+    /**
+     * Returns the number of bytes used by the photo files. A file shared by several entries is
+     * only counted once.
+     */
     @VisibleForTesting
-    public long getTotalSize() {
+    public synchronized long getTotalSize() {
         return mTotalSize;
     }
 
     /**
      * Returns the entry with the specified key if it exists, null otherwise.
      */
-    public Entry get(long key) {
+    public synchronized Entry get(long key) {
         return mEntries.get(key);
     }
 
     /**
-     * Initializes the PhotoStore by scanning for all files currently in the
-     * specified root directory.
+     * Initializes the PhotoStore by reading the index of the files currently in the specified
+     * root directory. If there is no valid index, e.g. because the photos were stored by an
+     * older version that named files after their photo file ID, the directory is scanned and
+     * the index is rebuilt from the files in it.
      */
-    public final void initialize() {
-        File[] files = mStorePath.listFiles();
-        if (files == null) {
-            return;
-        }
-        for (File file : files) {
-            try {
-                Entry entry = new Entry(file);
-                putEntry(entry.id, entry);
-            } catch (NumberFormatException nfe) {
-                // Not a valid photo store entry - delete the file.
-                cleanupFile(file);
-            }
+    public final synchronized void initialize() {
+        if (!readIndex()) {
+            Log.i(TAG, "Rebuilding photo store index");
+            mEntries.clear();
+            mBlobs.clear();
+            mTotalSize = 0;
+            importFiles();
+            rewriteIndex();
         }
 
         // Get a reference to the database.
@@ -145,10 +200,23 @@ public class PhotoStore {
      * @param keysInUse The set of all keys that are in use in the photo store.
      * @return The set of the keys in use that refer to non-existent entries.
      */
-    public Set<Long> cleanup(Set<Long> keysInUse) {
+    public synchronized Set<Long> cleanup(Set<Long> keysInUse) {
         Set<Long> keysToRemove = new HashSet<Long>();
         keysToRemove.addAll(mEntries.keySet());
         keysToRemove.removeAll(keysInUse);
+
+        // The index is not checked against the directory on startup, so drop the entries whose
+        // file has gone missing here. This checks each file once even if it is shared.
+        for (Blob blob : mBlobs.values()) {
+            if (!new File(mStorePath, blob.name).exists()) {
+                for (Entry entry : mEntries.values()) {
+                    if (entry.blob == blob) {
+                        keysToRemove.add(entry.id);
+                    }
+                }
+            }
+        }
+
         if (!keysToRemove.isEmpty()) {
             Log.d(TAG, "cleanup removing " + keysToRemove.size() + " entries");
             for (long key : keysToRemove) {
@@ -189,41 +257,70 @@ public class PhotoStore {
         int height = displayPhoto.getHeight();
         int thumbnailDim = photoProcessor.getMaxThumbnailPhotoDim();
         if (allowSmallImageStorage || width > thumbnailDim || height > thumbnailDim) {
-            // Write the photo to a temp file, create the DB record for tracking it, and rename the
-            // temp file to match.
+            byte[] photoBytes;
+            try {
+                photoBytes = photoProcessor.getDisplayPhotoBytes();
+            } catch (IOException e) {
+                return 0;
+            }
+            return insert(photoBytes, width, height);
+        }
+        return 0;
+    }
+
+    private synchronized long insert(byte[] photoBytes, int width, int height) {
+        String name = toHex(newDigest().digest(photoBytes));
+        Blob blob = mBlobs.get(name);
+        boolean newFile = false;
+        if (blob == null || !new File(mStorePath, name).exists()) {
+            // Write the photo to a temp file and rename it, so that a file named after a hash
+            // always holds the complete photo.
             File file = null;
             try {
-                // Write the display photo to a temp file.
-                byte[] photoBytes = photoProcessor.getDisplayPhotoBytes();
                 file = File.createTempFile("img", null, mStorePath);
                 FileOutputStream fos = new FileOutputStream(file);
-                fos.write(photoBytes);
-                fos.close();
-
-                // Create the DB entry.
-                ContentValues values = new ContentValues();
-                values.put(PhotoFiles.HEIGHT, height);
-                values.put(PhotoFiles.WIDTH, width);
-                values.put(PhotoFiles.FILESIZE, photoBytes.length);
-                long id = mDb.insert(Tables.PHOTO_FILES, null, values);
-                if (id != 0) {
-                    // Rename the temp file.
-                    File target = getFileForPhotoFileId(id);
-                    if (file.renameTo(target)) {
-                        Entry entry = new Entry(target);
-                        putEntry(entry.id, entry);
-                        return id;
-                    }
+                try {
+                    fos.write(photoBytes);
+                } finally {
+                    fos.close();
                 }
+                if (!file.renameTo(new File(mStorePath, name))) {
+                    cleanupFile(file);
+                    return 0;
+                }
+                newFile = blob == null;
             } catch (IOException e) {
-                // Write failed - will delete the file below.
+                // Write failed - delete the file.
+                if (file != null) {
+                    cleanupFile(file);
+                }
+                return 0;
             }
+        }
 
-            // If anything went wrong, clean up the file before returning.
-            if (file != null) {
-                cleanupFile(file);
+        // Create the DB entry.
+        ContentValues values = new ContentValues();
+        values.put(PhotoFiles.HEIGHT, height);
+        values.put(PhotoFiles.WIDTH, width);
+        values.put(PhotoFiles.FILESIZE, photoBytes.length);
+        long id = mDb.insert(Tables.PHOTO_FILES, null, values);
+        if (id > 0) {
+            Entry entry = putEntry(id, name, photoBytes.length);
+            try {
+                appendRecord(RECORD_PUT, entry);
+                return id;
+            } catch (IOException e) {
+                // The entry would be lost on restart; don't hand it out.
+                Log.w(TAG, "Could not update photo store index", e);
+                remove(id);
+                return 0;
             }
         }
+
+        // If anything went wrong, clean up the file before returning.
+        if (newFile) {
+            cleanupFile(new File(mStorePath, name));
+        }
         return 0;
     }
 
@@ -235,33 +332,47 @@ public class PhotoStore {
     }
 
     /**
-     * Removes the specified photo file from the store if it exists.
+     * Removes the specified photo file from the store if it exists. The file itself is only
+     * deleted when no other entry shares it.
      */
-    public void remove(long id) {
-        cleanupFile(getFileForPhotoFileId(id));
+    public synchronized void remove(long id) {
+        Entry entry = mEntries.get(id);
         removeEntry(id);
+        if (entry != null) {
+            try {
+                appendRecord(RECORD_REMOVE, entry);
+            } catch (IOException e) {
+                // The entry comes back on restart, and cleanup() removes it again.
+                Log.w(TAG, "Could not update photo store index", e);
+            }
+        }
     }
 
     /**
-     * Returns a file object for the given photo file ID.
-     */
-    private File getFileForPhotoFileId(long id) {
-        return new File(mStorePath, String.valueOf(id));
-    }
-
-    /**
-     * Puts the entry with the specified photo file ID into the store.
+     * Puts an entry for the given file into the store.
      * @param id The photo file ID to identify the entry by.
-     * @param entry The entry to store.
+     * @param name The name of the file holding the photo.
+     * @param size The size of the file.
+     * @return The new entry.
      */
-    private void putEntry(long id, Entry entry) {
-        if (!mEntries.containsKey(id)) {
-            mTotalSize += entry.size;
-        } else {
-            Entry oldEntry = mEntries.get(id);
-            mTotalSize += (entry.size - oldEntry.size);
+    private Entry putEntry(long id, String name, long size) {
+        Entry oldEntry = mEntries.get(id);
+        if (oldEntry != null) {
+            // Only happens while reading an index; leave an unused file to rewriteIndex().
+            releaseBlob(oldEntry.blob, false);
         }
+
+        Blob blob = mBlobs.get(name);
+        if (blob == null) {
+            blob = new Blob(name, size);
+            mBlobs.put(name, blob);
+            mTotalSize += size;
+        }
+        blob.refCount++;
+
+        Entry entry = new Entry(id, blob, new File(mStorePath, name).getAbsolutePath());
         mEntries.put(id, entry);
+        return entry;
     }
 
     /**
@@ -269,15 +380,284 @@ public class PhotoStore {
      * the associated photo file entry from the database.
      */
     private void removeEntry(long id) {
-        Entry entry = mEntries.get(id);
+        Entry entry = mEntries.remove(id);
         if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(id);
+            releaseBlob(entry.blob, true);
         }
         mDb.delete(ContactsDatabaseHelper.Tables.PHOTO_FILES, PhotoFilesColumns.CONCRETE_ID + "=?",
                 new String[]{String.valueOf(id)});
     }
 
+    private void releaseBlob(Blob blob, boolean deleteFile) {
+        if (--blob.refCount == 0) {
+            mBlobs.remove(blob.name);
+            mTotalSize -= blob.size;
+            if (deleteFile) {
+                cleanupFile(new File(mStorePath, blob.name));
+            }
+        }
+    }
+
+    /**
+     * Reads the index into memory.
+     * @return Whether a valid index was read.
+     */
+    private boolean readIndex() {
+        if (!mIndexFile.exists()) {
+            return false;
+        }
+        int records = 0;
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mIndexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                    return false;
+                }
+                byte[] hash = new byte[HASH_LENGTH];
+                while (true) {
+                    byte type;
+                    long id;
+                    long size;
+                    try {
+                        type = in.readByte();
+                        id = in.readLong();
+                        size = in.readLong();
+                        in.readFully(hash);
+                    } catch (EOFException e) {
+                        // Either the end of the index, or a record cut short by a crash.
+                        break;
+                    }
+                    if (type == RECORD_PUT) {
+                        putEntry(id, toHex(hash), size);
+                    } else if (type == RECORD_REMOVE) {
+                        Entry entry = mEntries.remove(id);
+                        if (entry != null) {
+                            // The file was deleted along with its last entry, if needed.
+                            releaseBlob(entry.blob, false);
+                        }
+                    } else {
+                        return false;
+                    }
+                    records++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read photo store index", e);
+            return false;
+        }
+
+        mIndexRecordCount = records;
+        try {
+            // Drop a partial record at the end so that new records are appended after the
+            // last complete one.
+            long length = INDEX_HEADER_SIZE + (long) records * RECORD_SIZE;
+            if (mIndexFile.length() != length) {
+                RandomAccessFile file = new RandomAccessFile(mIndexFile, "rw");
+                try {
+                    file.setLength(length);
+                } finally {
+                    file.close();
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not truncate photo store index", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds the entries from the files in the directory. Files named after a photo file ID
+     * are renamed after their hash; any other file is deleted, since it can't be mapped back to
+     * a photo file ID.
+     */
+    private void importFiles() {
+        File[] files = mStorePath.listFiles();
+        if (files == null) {
+            return;
+        }
+        MessageDigest digest = newDigest();
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName());
+            } catch (NumberFormatException nfe) {
+                // Not a valid photo store entry - delete the file.
+                cleanupFile(file);
+                continue;
+            }
+            try {
+                long size = file.length();
+                String name = toHex(hashFile(file, digest));
+                if (mBlobs.containsKey(name)) {
+                    cleanupFile(file);
+                } else if (!file.renameTo(new File(mStorePath, name))) {
+                    cleanupFile(file);
+                    continue;
+                }
+                putEntry(id, name, size);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not import photo file " + file.getName(), e);
+                cleanupFile(file);
+            }
+        }
+    }
+
+    /**
+     * Hashes the content of a file, reading it through a memory mapping rather than copying it
+     * into a buffer.
+     */
+    private static byte[] hashFile(File file, MessageDigest digest) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > 0) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                digest.update(buffer);
+            }
+            return digest.digest();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends a record to the index, and rewrites the index if most of its records are stale.
+     */
+    private void appendRecord(byte type, Entry entry) throws IOException {
+        if (mIndexRecordCount >= MIN_RECORDS_TO_COMPACT
+                && mIndexRecordCount > 2 * mEntries.size()) {
+            // The rewritten index already reflects this change.
+            if (rewriteIndex()) {
+                return;
+            }
+        }
+        if (mIndexOut == null) {
+            if (!mIndexFile.exists()) {
+                // E.g. after clear(); start a new index, which will include this change.
+                if (rewriteIndex()) {
+                    return;
+                }
+                throw new IOException("Could not create " + mIndexFile);
+            }
+            mIndexOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mIndexFile, true), RECORD_SIZE));
+        }
+        writeRecord(mIndexOut, type, entry);
+        mIndexOut.flush();
+        mIndexRecordCount++;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, Entry entry)
+            throws IOException {
+        out.writeByte(type);
+        out.writeLong(entry.id);
+        out.writeLong(entry.size);
+        out.write(fromHex(entry.blob.name));
+    }
+
+    /**
+     * Writes an index holding only the live entries, and deletes any file in the directory that
+     * is not used by them, e.g. one left behind by a crash.
+     * @return Whether the index was written.
+     */
+    private boolean rewriteIndex() {
+        closeIndex();
+        File tempFile = new File(mStorePath, INDEX_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                for (Entry entry : mEntries.values()) {
+                    writeRecord(out, RECORD_PUT, entry);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(mIndexFile)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write photo store index", e);
+            cleanupFile(tempFile);
+            return false;
+        }
+        mIndexRecordCount = mEntries.size();
+
+        File[] files = mStorePath.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.equals(INDEX_FILE) && !mBlobs.containsKey(name)) {
+                    cleanupFile(file);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void closeIndex() {
+        if (mIndexOut != null) {
+            try {
+                mIndexOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close photo store index", e);
+            }
+            mIndexOut = null;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((Character.digit(hex.charAt(i * 2), 16) << 4)
+                    | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+
+    /**
+     * A photo file in the directory, shared by all the entries with the same content.
+     */
+    private static class Blob {
+        /** The name of the file, i.e. the hex encoded hash of its content. */
+        final String name;
+
+        /** The size of the file, in bytes. */
+        final long size;
+
+        /** The number of entries using the file. */
+        int refCount;
+
+        Blob(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
     public static class Entry {
         /** The photo file ID that identifies the entry. */
         public final long id;
@@ -288,10 +668,14 @@ public class PhotoStore {
         /** The path to the file. */
         public final String path;
 
-        public Entry(File file) {
-            id = Long.parseLong(file.getName());
-            size = file.length();
-            path = file.getAbsolutePath();
+        /** The file holding the data. */
+        private final Blob blob;
+
+        private Entry(long id, Blob blob, String path) {
+            this.id = id;
+            this.size = blob.size;
+            this.path = path;
+            this.blob = blob;
         }
     }
 }
@@ -17,7 +17,9 @@ package com.android.providers.contacts;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.CommonDataKinds.Nickname;
@@ -38,7 +40,7 @@ import com.google.android.collect.Lists;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -76,7 +78,10 @@ public class SearchIndexManager {
         private StringBuilder mSbName = new StringBuilder();
         private StringBuilder mSbTokens = new StringBuilder();
         private StringBuilder mSbElementContent = new StringBuilder();
-        private HashSet<String> mUniqueElements = new HashSet<String>();
+        // Offsets of the elements committed to mSbContent, used to skip duplicate elements
+        // without turning each of them into a String.
+        private int[] mElementStarts = new int[16];
+        private int mElementCount;
         private Cursor mCursor;
 
         void setCursor(Cursor cursor) {
@@ -88,7 +93,7 @@ public class SearchIndexManager {
             mSbTokens.setLength(0);
             mSbName.setLength(0);
             mSbElementContent.setLength(0);
-            mUniqueElements.clear();
+            mElementCount = 0;
         }
 
         public String getContent() {
@@ -117,19 +122,67 @@ public class SearchIndexManager {
         }
 
         public void commit() {
-            if (mSbElementContent.length() != 0) {
-                String content = mSbElementContent.toString().replace('\n', ' ');
-                if (!mUniqueElements.contains(content)) {
+            final int length = mSbElementContent.length();
+            if (length != 0) {
+                for (int i = 0; i < length; i++) {
+                    if (mSbElementContent.charAt(i) == '\n') {
+                        mSbElementContent.setCharAt(i, ' ');
+                    }
+                }
+                if (!containsElement(mSbElementContent)) {
                     if (mSbContent.length() != 0) {
                         mSbContent.append('\n');
                     }
-                    mSbContent.append(content);
-                    mUniqueElements.add(content);
+                    if (mElementCount == mElementStarts.length) {
+                        mElementStarts = Arrays.copyOf(mElementStarts, mElementCount * 2);
+                    }
+                    mElementStarts[mElementCount++] = mSbContent.length();
+                    mSbContent.append(mSbElementContent);
                 }
                 mSbElementContent.setLength(0);
             }
         }
 
+        /**
+         * Returns true if {@code element} has already been committed to the content.
+         */
+        private boolean containsElement(CharSequence element) {
+            final int length = element.length();
+            for (int i = 0; i < mElementCount; i++) {
+                final int start = mElementStarts[i];
+                final int end = i + 1 < mElementCount
+                        ? mElementStarts[i + 1] - 1 : mSbContent.length();
+                if (end - start == length && regionEquals(mSbContent, start, element, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean regionEquals(
+                CharSequence s, int start, CharSequence other, int length) {
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(start + i) != other.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the index row built so far has the given values, i.e. if a search
+         * index row holding them does not need to be rewritten.
+         */
+        boolean matches(String content, String name, String tokens) {
+            return contentEquals(mSbContent, content) && contentEquals(mSbName, name)
+                    && contentEquals(mSbTokens, tokens);
+        }
+
+        private static boolean contentEquals(StringBuilder sb, String value) {
+            // Empty builders are stored as null, see getContent() etc.
+            return value == null ? sb.length() == 0 : value.contentEquals(sb);
+        }
+
         public void appendContentFromColumn(String columnName) {
             appendContentFromColumn(columnName, SEPARATOR_SPACE);
         }
@@ -235,12 +288,96 @@ public class SearchIndexManager {
         }
     }
 
+    /**
+     * The search index rows of the contacts being updated, sorted by contact ID. They are read
+     * up front so that they can be compared with the rebuilt rows while search_index is written.
+     */
+    private static final class ExistingIndexRows {
+        private static final String[] COLUMNS = {
+                "rowid",
+                SearchIndexColumns.CONTACT_ID,
+                SearchIndexColumns.CONTENT,
+                SearchIndexColumns.NAME,
+                SearchIndexColumns.TOKENS
+        };
+
+        private long[] mRowIds = new long[0];
+        private long[] mContactIds = new long[0];
+        private String[] mContent = new String[0];
+        private String[] mNames = new String[0];
+        private String[] mTokens = new String[0];
+        private int mCount;
+        private int mPosition;
+
+        void load(SQLiteDatabase db, String selection) {
+            final Cursor cursor = db.query(Tables.SEARCH_INDEX, COLUMNS, selection, null, null,
+                    null, SearchIndexColumns.CONTACT_ID);
+            try {
+                final int count = cursor.getCount();
+                if (mRowIds.length < count) {
+                    mRowIds = new long[count];
+                    mContactIds = new long[count];
+                    mContent = new String[count];
+                    mNames = new String[count];
+                    mTokens = new String[count];
+                }
+                mCount = 0;
+                mPosition = 0;
+                while (cursor.moveToNext()) {
+                    mRowIds[mCount] = cursor.getLong(0);
+                    mContactIds[mCount] = cursor.getLong(1);
+                    mContent[mCount] = cursor.getString(2);
+                    mNames[mCount] = cursor.getString(3);
+                    mTokens[mCount] = cursor.getString(4);
+                    mCount++;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        boolean hasNext() {
+            return mPosition < mCount;
+        }
+
+        long contactId() {
+            return mContactIds[mPosition];
+        }
+
+        long rowId() {
+            return mRowIds[mPosition];
+        }
+
+        boolean matches(IndexBuilder builder) {
+            return builder.matches(mContent[mPosition], mNames[mPosition], mTokens[mPosition]);
+        }
+
+        void next() {
+            mPosition++;
+        }
+
+        void clear() {
+            Arrays.fill(mContent, 0, mCount, null);
+            Arrays.fill(mNames, 0, mCount, null);
+            Arrays.fill(mTokens, 0, mCount, null);
+            mCount = 0;
+            mPosition = 0;
+        }
+    }
+
     private final ContactsProvider2 mContactsProvider;
     private final ContactsDatabaseHelper mDbHelper;
     private StringBuilder mSb = new StringBuilder();
     private IndexBuilder mIndexBuilder = new IndexBuilder();
     private ContentValues mValues = new ContentValues();
     private String[] mSelectionArgs1 = new String[1];
+    private final ExistingIndexRows mExistingRows = new ExistingIndexRows();
+    private boolean mIncrementalUpdateEnabled = true;
+
+    // Statements used by incremental updates; only valid during updateIndexForRawContacts().
+    private SQLiteStatement mUpdateRowStatement;
+    private SQLiteStatement mDeleteRowStatement;
+    private int mRowsWritten;
 
     public SearchIndexManager(ContactsProvider2 contactsProvider) {
         this.mContactsProvider = contactsProvider;
@@ -276,7 +413,7 @@ public class SearchIndexManager {
         int count = 0;
         try {
             mDbHelper.createSearchIndexTable(db, true);
-            count = buildAndInsertIndex(db, null);
+            count = buildAndInsertIndex(db, null, null);
         } finally {
             mContactsProvider.setProviderStatus(ContactsProvider2.STATUS_NORMAL);
 
@@ -320,25 +457,80 @@ public class SearchIndexManager {
         // The selection to select raw_contacts.
         final String rawContactsSelection = sb.toString();
 
-        // Remove affected search_index rows.
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        final int deleted = db.delete(Tables.SEARCH_INDEX,
-                SearchIndexColumns.CONTACT_ID + " IN (SELECT " +
-                    RawContacts.CONTACT_ID +
-                    " FROM " + Tables.RAW_CONTACTS +
-                    " WHERE " + rawContactsSelection +
-                    ")"
-                , null);
+        // The selection to select the affected search_index rows.
+        final String searchIndexSelection = SearchIndexColumns.CONTACT_ID + " IN (SELECT " +
+                RawContacts.CONTACT_ID +
+                " FROM " + Tables.RAW_CONTACTS +
+                " WHERE " + rawContactsSelection +
+                ")";
 
-        // Then rebuild index for them.
-        final int count = buildAndInsertIndex(db, rawContactsSelection);
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mRowsWritten = 0;
+        final int count;
+        if (!mIncrementalUpdateEnabled) {
+            // Remove affected search_index rows, then rebuild index for them.
+            mRowsWritten += db.delete(Tables.SEARCH_INDEX, searchIndexSelection, null);
+            count = buildAndInsertIndex(db, rawContactsSelection, null);
+        } else {
+            // Rebuild the rows of the affected contacts and only write the ones that changed.
+            // Every write to an FTS table rewrites the doclists of all the tokens in the row, so
+            // this is much cheaper when a sync touches many contacts without changing most of
+            // them.
+            mUpdateRowStatement = db.compileStatement("UPDATE " + Tables.SEARCH_INDEX +
+                    " SET " + SearchIndexColumns.CONTENT + "=?," +
+                    SearchIndexColumns.NAME + "=?," +
+                    SearchIndexColumns.TOKENS + "=?" +
+                    " WHERE rowid=?");
+            mDeleteRowStatement = db.compileStatement("DELETE FROM " + Tables.SEARCH_INDEX +
+                    " WHERE rowid=?");
+            try {
+                mExistingRows.load(db, searchIndexSelection);
+                count = buildAndInsertIndex(db, rawContactsSelection, mExistingRows);
+
+                // Whatever is left belongs to contacts that no longer have searchable data.
+                while (mExistingRows.hasNext()) {
+                    deleteIndexRow(mExistingRows.rowId());
+                    mExistingRows.next();
+                }
+            } finally {
+                mExistingRows.clear();
+                mUpdateRowStatement.close();
+                mUpdateRowStatement = null;
+                mDeleteRowStatement.close();
+                mDeleteRowStatement = null;
+            }
+        }
 
         if (VERBOSE_LOGGING) {
-            Log.v(TAG, "Updated search index for " + count + " contacts");
+            Log.v(TAG, "Updated search index for " + count + " contacts, "
+                    + mRowsWritten + " rows written");
         }
     }
 
-    private int buildAndInsertIndex(SQLiteDatabase db, String selection) {
+    /**
+     * Switches between updating the rows of stale contacts only when they changed, which is the
+     * default, and deleting and re-inserting all of them.
+     */
+    @VisibleForTesting
+    void setIncrementalUpdateEnabledForTest(boolean enabled) {
+        mIncrementalUpdateEnabled = enabled;
+    }
+
+    /**
+     * Returns the number of search_index rows inserted, updated or deleted by the last call to
+     * {@link #updateIndexForRawContacts}.
+     */
+    @VisibleForTesting
+    int getRowsWrittenForTest() {
+        return mRowsWritten;
+    }
+
+    /**
+     * Builds the search index rows of the contacts matching {@code selection}. If
+     * {@code existingRows} is null the rows are inserted, otherwise they are merged with it.
+     */
+    private int buildAndInsertIndex(SQLiteDatabase db, String selection,
+            ExistingIndexRows existingRows) {
         mSb.setLength(0);
         mSb.append(Data.CONTACT_ID + ", ");
         mSb.append("(CASE WHEN " + DataColumns.MIMETYPE_ID + "=");
@@ -367,7 +559,7 @@ public class SearchIndexManager {
                 long contactId = cursor.getLong(0);
                 if (contactId != currentContactId) {
                     if (currentContactId != -1) {
-                        insertIndexRow(db, currentContactId, mIndexBuilder);
+                        writeIndexRow(db, currentContactId, mIndexBuilder, existingRows);
                         count++;
                     }
                     currentContactId = contactId;
@@ -381,7 +573,7 @@ public class SearchIndexManager {
                 }
             }
             if (currentContactId != -1) {
-                insertIndexRow(db, currentContactId, mIndexBuilder);
+                writeIndexRow(db, currentContactId, mIndexBuilder, existingRows);
                 count++;
             }
         } finally {
@@ -390,6 +582,36 @@ public class SearchIndexManager {
         return count;
     }
 
+    private void writeIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder,
+            ExistingIndexRows existingRows) {
+        if (existingRows == null) {
+            insertIndexRow(db, contactId, builder);
+            return;
+        }
+
+        // Both the existing rows and the data rows are sorted by contact ID, so any existing row
+        // before this contact belongs to a contact without searchable data.
+        while (existingRows.hasNext() && existingRows.contactId() < contactId) {
+            deleteIndexRow(existingRows.rowId());
+            existingRows.next();
+        }
+
+        if (existingRows.hasNext() && existingRows.contactId() == contactId) {
+            if (!existingRows.matches(builder)) {
+                updateIndexRow(existingRows.rowId(), builder);
+            }
+            existingRows.next();
+
+            // There should be only one row per contact, but don't rely on it.
+            while (existingRows.hasNext() && existingRows.contactId() == contactId) {
+                deleteIndexRow(existingRows.rowId());
+                existingRows.next();
+            }
+        } else {
+            insertIndexRow(db, contactId, builder);
+        }
+    }
+
     private void insertIndexRow(SQLiteDatabase db, long contactId, IndexBuilder builder) {
         mValues.clear();
         mValues.put(SearchIndexColumns.CONTENT, builder.getContent());
@@ -397,7 +619,24 @@ public class SearchIndexManager {
         mValues.put(SearchIndexColumns.TOKENS, builder.getTokens());
         mValues.put(SearchIndexColumns.CONTACT_ID, contactId);
         db.insert(Tables.SEARCH_INDEX, null, mValues);
+        mRowsWritten++;
     }
+
+    private void updateIndexRow(long rowId, IndexBuilder builder) {
+        DatabaseUtils.bindObjectToProgram(mUpdateRowStatement, 1, builder.getContent());
+        DatabaseUtils.bindObjectToProgram(mUpdateRowStatement, 2, builder.getName());
+        DatabaseUtils.bindObjectToProgram(mUpdateRowStatement, 3, builder.getTokens());
+        mUpdateRowStatement.bindLong(4, rowId);
+        mUpdateRowStatement.execute();
+        mRowsWritten++;
+    }
+
+    private void deleteIndexRow(long rowId) {
+        mDeleteRowStatement.bindLong(1, rowId);
+        mDeleteRowStatement.execute();
+        mRowsWritten++;
+    }
+
     private int getSearchIndexVersion() {
         return Integer.parseInt(mDbHelper.getProperty(PROPERTY_SEARCH_INDEX_VERSION, "0"));
     }
@@ -852,12 +852,15 @@ public abstract class AbstractContactAggregator {
     /**
      * Creates a new Contact for a given set of the raw contacts of {@code rawContactIds} if the
      * given contactId is null. Otherwise, regroup them into contact with {@code contactId}.
+     *
+     * @return the id of the contact the raw contacts now belong to, or 0 if
+     *         {@code rawContactIds} is empty
      */
-    protected final void createContactForRawContacts(SQLiteDatabase db,
+    protected final long createContactForRawContacts(SQLiteDatabase db,
             TransactionContext txContext, Set<Long> rawContactIds, Long contactId) {
         if (rawContactIds.isEmpty()) {
             // No raw contact id is provided.
-            return;
+            return 0;
         }
 
         // If contactId is not provided, generates a new one.
@@ -872,6 +875,7 @@ public abstract class AbstractContactAggregator {
             setPresenceContactId(rawContactId, contactId);
         }
         updateAggregateData(txContext, contactId);
+        return contactId;
     }
 
     protected static class RawContactIdQuery {
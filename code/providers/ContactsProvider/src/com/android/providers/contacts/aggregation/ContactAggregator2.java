@@ -20,6 +20,7 @@ import static com.android.providers.contacts.aggregation.util.RawContactMatcher.
 import static com.android.providers.contacts.aggregation.util.RawContactMatcher.SCORE_THRESHOLD_SECONDARY;
 import static com.android.providers.contacts.aggregation.util.RawContactMatcher.SCORE_THRESHOLD_SUGGEST;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.BaseColumns;
 import android.provider.ContactsContract.AggregationExceptions;
@@ -33,6 +34,7 @@ import android.provider.ContactsContract.PhotoFiles;
 import android.provider.ContactsContract.RawContacts;
 import android.text.TextUtils;
 import android.util.Log;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.providers.contacts.ContactsDatabaseHelper;
 import com.android.providers.contacts.ContactsDatabaseHelper.AccountsColumns;
 import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
@@ -50,6 +52,7 @@ import com.android.providers.contacts.aggregation.util.ContactAggregatorHelper;
 import com.android.providers.contacts.aggregation.util.MatchScore;
 import com.android.providers.contacts.aggregation.util.RawContactMatcher;
 import com.android.providers.contacts.aggregation.util.RawContactMatchingCandidates;
+import com.android.providers.contacts.aggregation.util.RawContactMatchingIndex;
 import com.android.providers.contacts.database.ContactsTableUtil;
 import com.google.android.collect.Sets;
 
@@ -71,8 +74,25 @@ public class ContactAggregator2 extends AbstractContactAggregator {
     private static final int KEEP_INTACT = 0;
     private static final int RE_AGGREGATE = -1;
 
+    // If a transaction marks at least this many raw contacts for aggregation, build an in-memory
+    // matching index once instead of running the data matching queries for every raw contact.
+    @VisibleForTesting
+    static final int BATCH_AGGREGATION_THRESHOLD = 200;
+
+    // Building the index scans the whole database, so only do it when the batch is at least
+    // 1/BATCH_INDEX_COST_RATIO of all raw contacts.
+    private static final int BATCH_INDEX_COST_RATIO = 8;
+
+    private static final String SIM_ACCOUNT_SELECTION =
+            AccountsColumns.ACCOUNT_TYPE + " = 'sprd.com.android.account.sim' OR " +
+            AccountsColumns.ACCOUNT_TYPE + " = 'sprd.com.android.account.usim'";
+
     private final RawContactMatcher mMatcher = new RawContactMatcher();
 
+    // Non-null only while a batch is being aggregated in aggregateInTransaction().
+    private RawContactMatchingIndex mBatchIndex;
+    private int mBatchAggregationThreshold = BATCH_AGGREGATION_THRESHOLD;
+
     /**
      * Constructor.
      */
@@ -84,6 +104,152 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                 commonNicknameCache);
     }
 
+    @VisibleForTesting
+    void setBatchAggregationThresholdForTest(int threshold) {
+        mBatchAggregationThreshold = threshold;
+    }
+
+    /**
+     * Aggregates all raw contacts marked in the current transaction. Large batches, e.g. the
+     * re-aggregation after an algorithm upgrade or the first sync into an empty database, are
+     * matched against a {@link RawContactMatchingIndex} that is built with a handful of table
+     * scans instead of several queries per raw contact.
+     */
+    @Override
+    public void aggregateInTransaction(TransactionContext txContext, SQLiteDatabase db) {
+        final int markedCount = mRawContactsMarkedForAggregation.size();
+        if (markedCount < mBatchAggregationThreshold || (long) markedCount
+                * BATCH_INDEX_COST_RATIO < DatabaseUtils.queryNumEntries(db, Tables.RAW_CONTACTS)) {
+            super.aggregateInTransaction(txContext, db);
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        mBatchIndex = buildMatchingIndex(db);
+        if (DEBUG_LOGGING) {
+            Log.d(TAG, "Batch aggregation index built for " + mBatchIndex.getRawContactCount()
+                    + " raw contacts in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        try {
+            super.aggregateInTransaction(txContext, db);
+        } finally {
+            mBatchIndex = null;
+        }
+    }
+
+    private RawContactMatchingIndex buildMatchingIndex(SQLiteDatabase db) {
+        final RawContactMatchingIndex index = new RawContactMatchingIndex(
+                "1".equals(mDbHelper.getUseStrictPhoneNumberComparisonParameter()));
+
+        Cursor c = db.query(BatchRawContactsQuery.TABLE, BatchRawContactsQuery.COLUMNS,
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addRawContact(c.getLong(BatchRawContactsQuery.RAW_CONTACT_ID),
+                        c.getLong(BatchRawContactsQuery.CONTACT_ID),
+                        c.getLong(BatchRawContactsQuery.ACCOUNT_ID),
+                        c.getInt(BatchRawContactsQuery.IS_READ_ONLY) != 0);
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(Tables.DEFAULT_DIRECTORY, new String[] {BaseColumns._ID},
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addContactInDefaultDirectory(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(Tables.RAW_CONTACTS_JOIN_ACCOUNTS, new String[] {"raw_contacts._id"},
+                SIM_ACCOUNT_SELECTION, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.markSimAccount(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(BatchNameLookupQuery.TABLE, BatchNameLookupQuery.COLUMNS,
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addName(c.getLong(BatchNameLookupQuery.RAW_CONTACT_ID),
+                        c.getString(BatchNameLookupQuery.NORMALIZED_NAME),
+                        c.getInt(BatchNameLookupQuery.NAME_TYPE));
+            }
+        } finally {
+            c.close();
+        }
+
+        mSelectionArgs1[0] = String.valueOf(mMimeTypeIdEmail);
+        c = db.query(Tables.DATA, BatchEmailQuery.COLUMNS, BatchEmailQuery.SELECTION,
+                mSelectionArgs1, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addEmail(c.getLong(BatchEmailQuery.RAW_CONTACT_ID),
+                        c.getString(BatchEmailQuery.ADDRESS));
+            }
+        } finally {
+            c.close();
+        }
+
+        mSelectionArgs1[0] = String.valueOf(mMimeTypeIdIdentity);
+        c = db.query(Tables.DATA, BatchIdentityQuery.COLUMNS, BatchIdentityQuery.SELECTION,
+                mSelectionArgs1, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addIdentity(c.getLong(BatchIdentityQuery.RAW_CONTACT_ID),
+                        c.getString(BatchIdentityQuery.NAMESPACE),
+                        c.getString(BatchIdentityQuery.IDENTITY));
+            }
+        } finally {
+            c.close();
+        }
+
+        c = db.query(BatchPhoneLookupQuery.TABLE, BatchPhoneLookupQuery.COLUMNS,
+                null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                index.addPhone(c.getLong(BatchPhoneLookupQuery.RAW_CONTACT_ID),
+                        c.getString(BatchPhoneLookupQuery.MIN_MATCH),
+                        c.getString(BatchPhoneLookupQuery.NUMBER));
+            }
+        } finally {
+            c.close();
+        }
+        return index;
+    }
+
+    @Override
+    public void updateAggregateData(TransactionContext txContext, long contactId) {
+        super.updateAggregateData(txContext, contactId);
+        if (mBatchIndex != null) {
+            mBatchIndex.setContactInDefaultDirectory(contactId,
+                    mDbHelper.isContactInDefaultDirectory(mDbHelper.getWritableDatabase(),
+                            contactId));
+        }
+    }
+
+    /**
+     * Calls {@link #createContactForRawContacts} and keeps the batch matching index, if any,
+     * in sync with the new contact id.
+     */
+    private void createContactAndUpdateIndex(SQLiteDatabase db,
+            TransactionContext txContext, Set<Long> rawContactIds, Long contactId) {
+        final long newContactId = createContactForRawContacts(db, txContext, rawContactIds,
+                contactId);
+        if (mBatchIndex != null) {
+            for (Long rawContactId : rawContactIds) {
+                mBatchIndex.setContactId(rawContactId, newContactId);
+            }
+        }
+    }
+
     /**
      * Given a specific raw contact, finds all matching raw contacts and re-aggregate them
      * based on the matching connectivity.
@@ -150,10 +316,15 @@ public class ContactAggregator2 extends AbstractContactAggregator {
          * @{
          */
         Set<Long> rIds = matchingCandidates.getRawContactIdSet();
-        String where = AccountsColumns.ACCOUNT_TYPE + " = 'sprd.com.android.account.sim' OR " +
-                         AccountsColumns.ACCOUNT_TYPE + " = 'sprd.com.android.account.usim'";
-        Cursor cursor = db.query(Tables.RAW_CONTACTS_JOIN_ACCOUNTS,
-                                  new String[]{"raw_contacts._id"}, where, null, null, null, null);
+        if (mBatchIndex != null) {
+            for (Long rId : new ArrayList<Long>(rIds)) {
+                if (mBatchIndex.isSimAccount(rId)) {
+                    matchingCandidates.remove(rId);
+                }
+            }
+        }
+        Cursor cursor = mBatchIndex != null ? null : db.query(Tables.RAW_CONTACTS_JOIN_ACCOUNTS,
+                new String[]{"raw_contacts._id"}, SIM_ACCOUNT_SELECTION, null, null, null, null);
         if (cursor != null) {
             try {
                 while (cursor.moveToNext()) {
@@ -217,7 +388,8 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             if (VERBOSE_LOGGING) {
                 Log.v(TAG, "create new contact for rid=" + rawContactId);
             }
-            createContactForRawContacts(db, txContext, Sets.newHashSet(rawContactId), null);
+            createContactAndUpdateIndex(db, txContext, Sets.newHashSet(rawContactId),
+                    null);
             if (currentContactContentsCount > 0) {
                 updateAggregateData(txContext, currentContactId);
             }
@@ -409,7 +581,7 @@ public class ContactAggregator2 extends AbstractContactAggregator {
             }
             final String connectedRids = TextUtils.join(",", connectedRawContactIds);
             clearSuperPrimarySetting(db, connectedRids);
-            createContactForRawContacts(db, txContext, connectedRawContactIds, contactId);
+            createContactAndUpdateIndex(db, txContext, connectedRawContactIds, contactId);
             // re-aggregate
             if (VERBOSE_LOGGING) {
                 Log.v(TAG, "Aggregating rids=" + connectedRawContactIds);
@@ -429,6 +601,9 @@ public class ContactAggregator2 extends AbstractContactAggregator {
                     ContactsTableUtil.deleteContact(db, cid);
                     mAggregatedPresenceDelete.bindLong(1, cid);
                     mAggregatedPresenceDelete.execute();
+                    if (mBatchIndex != null) {
+                        mBatchIndex.setContactInDefaultDirectory(cid, false);
+                    }
                 } else {
                     updateAggregateData(txContext, cid);
                 }
@@ -900,6 +1075,10 @@ public class ContactAggregator2 extends AbstractContactAggregator {
      */
     private void updateMatchScores(SQLiteDatabase db, long rawContactId,
             MatchCandidateList candidates, RawContactMatcher matcher) {
+        if (mBatchIndex != null && mBatchIndex.contains(rawContactId)) {
+            updateMatchScoresFromIndex(db, rawContactId, matcher);
+            return;
+        }
         //update primary score
         updateMatchScoresBasedOnExceptions(db, rawContactId, matcher);
         updateMatchScoresBasedOnNameMatches(db, rawContactId, matcher);
@@ -916,6 +1095,28 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         }
     }
 
+    /**
+     * Same as {@link #updateMatchScores}, but looks up the data matches in the batch matching
+     * index instead of the database. Aggregation exceptions are still read from the database.
+     */
+    private void updateMatchScoresFromIndex(SQLiteDatabase db, long rawContactId,
+            RawContactMatcher matcher) {
+        updateMatchScoresBasedOnExceptions(db, rawContactId, matcher);
+        mBatchIndex.updateScoresBasedOnNameMatches(rawContactId, matcher, PRIMARY_HIT_LIMIT);
+        if (!mBatchIndex.hasName(rawContactId)) {
+            mBatchIndex.updateScoresBasedOnIdentityMatch(rawContactId, matcher);
+            mBatchIndex.updateScoresBasedOnEmailMatches(rawContactId, matcher,
+                    SECONDARY_HIT_LIMIT);
+            mBatchIndex.updateScoresBasedOnPhoneMatches(rawContactId, matcher,
+                    SECONDARY_HIT_LIMIT);
+            final List<Long> secondaryRawContactIds = matcher.prepareSecondaryMatchCandidates();
+            if (secondaryRawContactIds != null
+                    && secondaryRawContactIds.size() <= SECONDARY_HIT_LIMIT) {
+                mBatchIndex.updateScoreForCandidatesWithoutName(secondaryRawContactIds, matcher);
+            }
+        }
+    }
+
     private void updateMatchScoresForSuggestionsBasedOnDataMatches(SQLiteDatabase db,
             MatchCandidateList candidates, RawContactMatcher matcher,
             ArrayList<AggregationSuggestionParameter> parameters) {
@@ -1088,6 +1289,82 @@ public class ContactAggregator2 extends AbstractContactAggregator {
         int ACCOUNT_ID = 2;
     }
 
+    private interface BatchRawContactsQuery {
+        String TABLE = Tables.RAW_CONTACTS;
+
+        String[] COLUMNS = new String[] {
+                RawContacts._ID,
+                RawContacts.CONTACT_ID,
+                RawContactsColumns.ACCOUNT_ID,
+                "raw_contact_is_read_only"
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int CONTACT_ID = 1;
+        int ACCOUNT_ID = 2;
+        int IS_READ_ONLY = 3;
+    }
+
+    private interface BatchNameLookupQuery {
+        String TABLE = Tables.NAME_LOOKUP;
+
+        String[] COLUMNS = new String[] {
+                NameLookupColumns.RAW_CONTACT_ID,
+                NameLookupColumns.NORMALIZED_NAME,
+                NameLookupColumns.NAME_TYPE
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int NORMALIZED_NAME = 1;
+        int NAME_TYPE = 2;
+    }
+
+    private interface BatchEmailQuery {
+        String SELECTION = DataColumns.MIMETYPE_ID + "=?"
+                + " AND " + Email.DATA + " NOT NULL";
+
+        String[] COLUMNS = new String[] {
+                Data.RAW_CONTACT_ID,
+                Email.DATA
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int ADDRESS = 1;
+    }
+
+    private interface BatchIdentityQuery {
+        String SELECTION = DataColumns.MIMETYPE_ID + "=?"
+                + " AND " + Identity.NAMESPACE + " NOT NULL"
+                + " AND " + Identity.IDENTITY + " NOT NULL";
+
+        String[] COLUMNS = new String[] {
+                Data.RAW_CONTACT_ID,
+                Identity.NAMESPACE,
+                Identity.IDENTITY
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int NAMESPACE = 1;
+        int IDENTITY = 2;
+    }
+
+    private interface BatchPhoneLookupQuery {
+        String TABLE = Tables.PHONE_LOOKUP
+                + " JOIN " + Tables.DATA
+                + " ON (" + DataColumns.CONCRETE_ID + "="
+                + Tables.PHONE_LOOKUP + "." + PhoneLookupColumns.DATA_ID + ")";
+
+        String[] COLUMNS = new String[] {
+                DataColumns.CONCRETE_RAW_CONTACT_ID,
+                PhoneLookupColumns.MIN_MATCH,
+                Phone.NUMBER
+        };
+
+        int RAW_CONTACT_ID = 0;
+        int MIN_MATCH = 1;
+        int NUMBER = 2;
+    }
+
     protected interface NullNameRawContactsIdsQuery {
         final String TABLE =  Tables.RAW_CONTACTS + " LEFT OUTER JOIN " +  Tables.NAME_LOOKUP
                 + " ON "+ RawContacts._ID + " = " + NameLookupColumns.RAW_CONTACT_ID
@@ -22,7 +22,6 @@ import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -153,9 +152,7 @@ public class ContactMatcher {
         return sMaxScore[index];
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
@@ -163,15 +160,8 @@ public class ContactMatcher {
     private MatchScore getMatchingScore(long contactId) {
         MatchScore matchingScore = mScores.get(contactId);
         if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(contactId);
-            } else {
-                matchingScore = new MatchScore(contactId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(contactId, matchingScore);
+            matchingScore = mScores.add(contactId);
+            matchingScore.reset(contactId);
         }
         return matchingScore;
     }
@@ -226,12 +216,12 @@ public class ContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -271,7 +261,6 @@ public class ContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
 
     /**
@@ -284,8 +273,8 @@ public class ContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates(int threshold) {
         ArrayList<Long> contactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -311,8 +300,8 @@ public class ContactMatcher {
     public long pickBestMatch(int threshold, boolean allowMultipleMatches) {
         long contactId = -1;
         int maxScore = 0;
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -346,10 +335,10 @@ public class ContactMatcher {
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * MatchScore.SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
+        List<MatchScore> matches = mScores.scores();
         Collections.sort(matches);
         int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
+        for (int i = 0; i < mScores.size(); i++) {
             MatchScore matchScore = matches.get(i);
             if (matchScore.getScore() >= scaledThreshold) {
                 count++;
@@ -363,6 +352,6 @@ public class ContactMatcher {
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.scores().toString();
     }
 }
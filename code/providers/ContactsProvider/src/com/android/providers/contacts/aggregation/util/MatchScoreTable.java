@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A reusable map from a (raw) contact id to a {@link MatchScore}, used by the matchers instead
+ * of a {@code HashMap<Long, MatchScore>} so that ids are never boxed.
+ * <p>
+ * Keys live in an open-addressing table with linear probing. {@link MatchScore} objects are
+ * pooled: {@link #clear()} keeps them, and {@link #add} hands out a previously used one before
+ * allocating a new one. Once the table has grown to the largest match set seen, a full
+ * aggregation pass does not allocate.
+ * <p>
+ * Not thread safe.
+ */
+public class MatchScoreTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] mKeys = new long[INITIAL_CAPACITY];
+    private MatchScore[] mValues = new MatchScore[INITIAL_CAPACITY];
+
+    // Slots of the keys currently in the table, in insertion order, so that clear() only touches
+    // the slots in use.
+    private int[] mUsedSlots = new int[INITIAL_CAPACITY];
+
+    // Scores handed out so far. The first mCount elements are in use.
+    private final ArrayList<MatchScore> mPool = new ArrayList<MatchScore>();
+    private int mCount;
+
+    /**
+     * Returns the score for {@code key}, or null if there is none.
+     */
+    public MatchScore get(long key) {
+        final int mask = mKeys.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            final MatchScore value = mValues[slot];
+            if (value == null) {
+                return null;
+            }
+            if (mKeys[slot] == key) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Adds {@code key}, which must not be in the table, and returns the pooled score it maps to.
+     * The score is left in whatever state it was; callers must reset it.
+     */
+    public MatchScore add(long key) {
+        if ((mCount + 1) * 4 > mKeys.length * 3) {
+            rehash(mKeys.length * 2);
+        }
+
+        final MatchScore score;
+        if (mCount < mPool.size()) {
+            score = mPool.get(mCount);
+        } else {
+            score = new MatchScore(0);
+            mPool.add(score);
+        }
+        mUsedSlots[mCount++] = insert(key, score);
+        return score;
+    }
+
+    private int insert(long key, MatchScore score) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (mValues[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = score;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        final long[] oldKeys = mKeys;
+        final MatchScore[] oldValues = mValues;
+        mKeys = new long[capacity];
+        mValues = new MatchScore[capacity];
+        mUsedSlots = new int[capacity];
+        int count = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                mUsedSlots[count++] = insert(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        final int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Returns the number of scores in the table.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the i-th score in the table, 0 <= i < {@link #size()}.
+     */
+    public MatchScore getAt(int i) {
+        return mPool.get(i);
+    }
+
+    /**
+     * Returns a live view of the scores in the table. Reordering the view, e.g. by sorting it,
+     * does not affect lookups.
+     */
+    public List<MatchScore> scores() {
+        return mPool.subList(0, mCount);
+    }
+
+    /**
+     * Removes all keys, keeping the table capacity and the pooled scores.
+     */
+    public void clear() {
+        for (int i = 0; i < mCount; i++) {
+            mValues[mUsedSlots[i]] = null;
+        }
+        mCount = 0;
+    }
+}
@@ -37,6 +37,10 @@ public class NameDistance {
     private final boolean[] mMatchFlags1;
     private final boolean[] mMatchFlags2;
 
+    // Byte histograms used to bound the number of Jaro matches before computing them.
+    private final int[] mHistogram;
+    private final int[] mCandidateHistogram;
+
     /**
      * Constructor.
      *
@@ -47,6 +51,8 @@ public class NameDistance {
         mPrefixOnly = false;
         mMatchFlags1 = new boolean[maxLength];
         mMatchFlags2 = new boolean[maxLength];
+        mHistogram = new int[256];
+        mCandidateHistogram = new int[256];
     }
 
     /**
@@ -56,12 +62,115 @@ public class NameDistance {
         mPrefixOnly = true;
         mMaxLength = 0;
         mMatchFlags1 = mMatchFlags2 = null;
+        mHistogram = mCandidateHistogram = null;
     }
 
     /**
      * Computes a string distance between two normalized strings passed as byte arrays.
      */
     public float getDistance(byte bytes1[], byte bytes2[]) {
+        return getDistance(bytes1, bytes2, -1f);
+    }
+
+    /**
+     * Computes a string distance between two normalized strings passed as byte arrays, but
+     * returns 0 without running the full computation if the distance cannot possibly be greater
+     * than {@code threshold}. Pass a negative threshold to always compute the exact distance.
+     */
+    public float getDistance(byte bytes1[], byte bytes2[], float threshold) {
+        if (isPrefix(bytes1, bytes2)) {
+            return 1.0f;
+        }
+
+        if (mPrefixOnly) {
+            return 0;
+        }
+
+        if (threshold >= 0) {
+            addToHistogram(mHistogram, bytes1, Math.min(bytes1.length, mMaxLength), 1);
+            final int maxMatches = countCommonBytes(bytes2);
+            addToHistogram(mHistogram, bytes1, Math.min(bytes1.length, mMaxLength), -1);
+            if (getUpperBound(bytes1, bytes2, maxMatches) <= threshold) {
+                return 0;
+            }
+        }
+        return computeDistance(bytes1, bytes2);
+    }
+
+    /**
+     * Returns true if the shorter array is at least {@link #MIN_EXACT_PREFIX_LENGTH} long and is
+     * a prefix of the longer one.
+     */
+    private static boolean isPrefix(byte bytes1[], byte bytes2[]) {
+        final byte[] array1 = bytes1.length > bytes2.length ? bytes2 : bytes1;
+        final byte[] array2 = bytes1.length > bytes2.length ? bytes1 : bytes2;
+        if (array1.length < MIN_EXACT_PREFIX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < array1.length; i++) {
+            if (array1[i] != array2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addToHistogram(int[] histogram, byte[] array, int length, int delta) {
+        for (int i = 0; i < length; i++) {
+            histogram[array[i] & 0xFF] += delta;
+        }
+    }
+
+    /**
+     * Returns the size of the multiset intersection of the (truncated) bytes of
+     * {@code candidate} and the bytes counted in {@link #mHistogram}. This is an upper bound for
+     * the number of Jaro matches.
+     */
+    private int countCommonBytes(byte[] candidate) {
+        final int length = Math.min(candidate.length, mMaxLength);
+        int common = 0;
+        for (int i = 0; i < length; i++) {
+            final int b = candidate[i] & 0xFF;
+            if (mCandidateHistogram[b]++ < mHistogram[b]) {
+                common++;
+            }
+        }
+        addToHistogram(mCandidateHistogram, candidate, length, -1);
+        return common;
+    }
+
+    /**
+     * Returns an upper bound of {@link #computeDistance} given that there are at most
+     * {@code maxMatches} matching characters: the Jaro similarity without transpositions, plus
+     * the Winkler bonus for the actual common prefix.
+     */
+    private float getUpperBound(byte bytes1[], byte bytes2[], int maxMatches) {
+        if (maxMatches == 0) {
+            return 0f;
+        }
+
+        final int length1 = Math.min(Math.min(bytes1.length, bytes2.length), mMaxLength);
+        final int length2 = Math.min(Math.max(bytes1.length, bytes2.length), mMaxLength);
+        float m = maxMatches;
+        float jaro = (m / length1 + m / length2 + 1f) / 3;
+        if (jaro < WINKLER_BONUS_THRESHOLD) {
+            return jaro;
+        }
+
+        int prefix = 0;
+        for (int i = 0; i < length1; i++) {
+            if (bytes1[i] != bytes2[i]) {
+                break;
+            }
+            prefix++;
+        }
+        return jaro + Math.min(0.1f, 1f / length2) * prefix * (1 - jaro);
+    }
+
+    /**
+     * Computes the Jaro-Winkler distance of two arrays, neither of which is a prefix of the other.
+     */
+    private float computeDistance(byte bytes1[], byte bytes2[]) {
         byte[] array1, array2;
 
         if (bytes1.length > bytes2.length) {
@@ -73,23 +182,6 @@ public class NameDistance {
         }
 
         int length1 = array1.length;
-        if (length1 >= MIN_EXACT_PREFIX_LENGTH) {
-            boolean prefix = true;
-            for (int i = 0; i < array1.length; i++) {
-                if (array1[i] != array2[i]) {
-                    prefix = false;
-                    break;
-                }
-            }
-            if (prefix) {
-                return 1.0f;
-            }
-        }
-
-        if (mPrefixOnly) {
-            return 0;
-        }
-
         if (length1 > mMaxLength) {
             length1 = mMaxLength;
         }
@@ -21,7 +21,6 @@ import com.android.providers.contacts.util.Hex;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -158,9 +157,7 @@ public class RawContactMatcher {
         return sMaxScore[index];
     }
 
-    private final HashMap<Long, MatchScore> mScores = new HashMap<Long, MatchScore>();
-    private final ArrayList<MatchScore> mScoreList = new ArrayList<MatchScore>();
-    private int mScoreCount = 0;
+    private final MatchScoreTable mScores = new MatchScoreTable();
 
     private final NameDistance mNameDistanceConservative = new NameDistance();
     private final NameDistance mNameDistanceApproximate = new NameDistance(MAX_MATCHED_NAME_LENGTH);
@@ -168,15 +165,8 @@ public class RawContactMatcher {
     private MatchScore getMatchingScore(long rawContactId, long contactId, long accountId) {
         MatchScore matchingScore = mScores.get(rawContactId);
         if (matchingScore == null) {
-            if (mScoreList.size() > mScoreCount) {
-                matchingScore = mScoreList.get(mScoreCount);
-                matchingScore.reset(rawContactId, contactId, accountId);
-            } else {
-                matchingScore = new MatchScore(rawContactId, contactId, accountId);
-                mScoreList.add(matchingScore);
-            }
-            mScoreCount++;
-            mScores.put(rawContactId, matchingScore);
+            matchingScore = mScores.add(rawContactId);
+            matchingScore.reset(rawContactId, contactId, accountId);
         }
         return matchingScore;
     }
@@ -224,12 +214,12 @@ public class RawContactMatcher {
                 mNameDistanceConservative : mNameDistanceApproximate;
 
         int score;
-        float distance = nameDistance.getDistance(decodedCandidateName, decodedName);
         boolean emailBased = candidateNameType == NameLookupType.EMAIL_BASED_NICKNAME
                 || nameType == NameLookupType.EMAIL_BASED_NICKNAME;
         float threshold = emailBased
                 ? APPROXIMATE_MATCH_THRESHOLD_FOR_EMAIL
                 : APPROXIMATE_MATCH_THRESHOLD;
+        float distance = nameDistance.getDistance(decodedCandidateName, decodedName, threshold);
         if (distance > threshold) {
             score = (int)(minScore +  (maxScore - minScore) * (1.0f - distance));
         } else {
@@ -274,7 +264,6 @@ public class RawContactMatcher {
 
     public void clear() {
         mScores.clear();
-        mScoreCount = 0;
     }
     /**
      * Returns a list of IDs for raw contacts that are only matched on secondary data elements
@@ -286,8 +275,8 @@ public class RawContactMatcher {
     public List<Long> prepareSecondaryMatchCandidates() {
         ArrayList<Long> rawContactIds = null;
 
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut() ||  score.getPrimaryScore() > SCORE_THRESHOLD_PRIMARY){
                 continue;
             }
@@ -308,8 +297,8 @@ public class RawContactMatcher {
      */
     public List<MatchScore> pickBestMatches() {
         final List<MatchScore> matches = new ArrayList<>();
-        for (int i = 0; i < mScoreCount; i++) {
-            MatchScore score = mScoreList.get(i);
+        for (int i = 0; i < mScores.size(); i++) {
+            MatchScore score = mScores.getAt(i);
             if (score.isKeepOut()) {
                 continue;
             }
@@ -333,10 +322,10 @@ public class RawContactMatcher {
      */
     public List<MatchScore> pickBestMatches(int threshold) {
         int scaledThreshold = threshold * SCORE_SCALE;
-        List<MatchScore> matches = mScoreList.subList(0, mScoreCount);
+        List<MatchScore> matches = mScores.scores();
         Collections.sort(matches);
         int count = 0;
-        for (int i = 0; i < mScoreCount; i++) {
+        for (int i = 0; i < mScores.size(); i++) {
             MatchScore matchScore = matches.get(i);
             if (matchScore.getScore() >= scaledThreshold) {
                 count++;
@@ -350,7 +339,7 @@ public class RawContactMatcher {
 
     @Override
     public String toString() {
-        return mScoreList.subList(0, mScoreCount).toString();
+        return mScores.scores().toString();
     }
 
     public void matchNoName(Long rawContactId, Long contactId, Long accountId) {
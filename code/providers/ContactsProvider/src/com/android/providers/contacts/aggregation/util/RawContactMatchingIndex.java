@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import android.telephony.PhoneNumberUtils;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * In-memory name/email/phone/identity index over all raw contacts, used by the contact
+ * aggregator when a single transaction marks a large number of raw contacts for aggregation.
+ * <p>
+ * The index is built once per batch and replaces the per-raw-contact self-join queries on the
+ * name_lookup, data and phone_lookup tables. Contact ids and default directory membership change
+ * while the batch is being aggregated, so the aggregator must report them back through
+ * {@link #setContactId} and {@link #setContactInDefaultDirectory}.
+ * <p>
+ * Not thread safe.
+ */
+public class RawContactMatchingIndex {
+
+    private static final class RawContactEntry {
+        final long mRawContactId;
+        long mContactId;
+        final long mAccountId;
+        final boolean mReadOnly;
+        boolean mHasName;
+        boolean mSimAccount;
+        ArrayList<NamePosting> mNames;
+        ArrayList<String> mEmails;
+        ArrayList<PhonePosting> mPhones;
+        ArrayList<String> mIdentities;
+
+        RawContactEntry(long rawContactId, long contactId, long accountId, boolean readOnly) {
+            mRawContactId = rawContactId;
+            mContactId = contactId;
+            mAccountId = accountId;
+            mReadOnly = readOnly;
+        }
+    }
+
+    private static final class NamePosting {
+        final RawContactEntry mRawContact;
+        final String mNormalizedName;
+        final int mNameType;
+
+        NamePosting(RawContactEntry rawContact, String normalizedName, int nameType) {
+            mRawContact = rawContact;
+            mNormalizedName = normalizedName;
+            mNameType = nameType;
+        }
+    }
+
+    private static final class PhonePosting {
+        final RawContactEntry mRawContact;
+        final String mMinMatch;
+        final String mNumber;
+
+        PhonePosting(RawContactEntry rawContact, String minMatch, String number) {
+            mRawContact = rawContact;
+            mMinMatch = minMatch;
+            mNumber = number;
+        }
+    }
+
+    private final HashMap<Long, RawContactEntry> mRawContacts =
+            new HashMap<Long, RawContactEntry>();
+    private final HashMap<String, ArrayList<NamePosting>> mNameIndex =
+            new HashMap<String, ArrayList<NamePosting>>();
+    private final HashMap<String, ArrayList<RawContactEntry>> mEmailIndex =
+            new HashMap<String, ArrayList<RawContactEntry>>();
+    private final HashMap<String, ArrayList<PhonePosting>> mPhoneIndex =
+            new HashMap<String, ArrayList<PhonePosting>>();
+    private final HashMap<String, ArrayList<RawContactEntry>> mIdentityIndex =
+            new HashMap<String, ArrayList<RawContactEntry>>();
+    private final HashSet<Long> mContactsInDefaultDirectory = new HashSet<Long>();
+
+    private final boolean mUseStrictPhoneNumberComparison;
+
+    public RawContactMatchingIndex(boolean useStrictPhoneNumberComparison) {
+        mUseStrictPhoneNumberComparison = useStrictPhoneNumberComparison;
+    }
+
+    public int getRawContactCount() {
+        return mRawContacts.size();
+    }
+
+    public void addRawContact(long rawContactId, long contactId, long accountId,
+            boolean readOnly) {
+        mRawContacts.put(rawContactId,
+                new RawContactEntry(rawContactId, contactId, accountId, readOnly));
+    }
+
+    public void addContactInDefaultDirectory(long contactId) {
+        mContactsInDefaultDirectory.add(contactId);
+    }
+
+    public void markSimAccount(long rawContactId) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry != null) {
+            entry.mSimAccount = true;
+        }
+    }
+
+    public void addName(long rawContactId, String normalizedName, int nameType) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || normalizedName == null) {
+            return;
+        }
+        final NamePosting posting = new NamePosting(entry, normalizedName, nameType);
+        if (entry.mNames == null) {
+            entry.mNames = new ArrayList<NamePosting>(4);
+        }
+        entry.mNames.add(posting);
+        if (nameType == NameLookupType.NAME_EXACT && normalizedName.length() > 0) {
+            entry.mHasName = true;
+        }
+        ArrayList<NamePosting> postings = mNameIndex.get(normalizedName);
+        if (postings == null) {
+            postings = new ArrayList<NamePosting>(2);
+            mNameIndex.put(normalizedName, postings);
+        }
+        postings.add(posting);
+    }
+
+    public void addEmail(long rawContactId, String address) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || address == null) {
+            return;
+        }
+        if (entry.mEmails == null) {
+            entry.mEmails = new ArrayList<String>(2);
+        }
+        entry.mEmails.add(address);
+        addToIndex(mEmailIndex, address, entry);
+    }
+
+    public void addPhone(long rawContactId, String minMatch, String number) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || minMatch == null) {
+            return;
+        }
+        final PhonePosting posting = new PhonePosting(entry, minMatch, number);
+        if (entry.mPhones == null) {
+            entry.mPhones = new ArrayList<PhonePosting>(2);
+        }
+        entry.mPhones.add(posting);
+        ArrayList<PhonePosting> postings = mPhoneIndex.get(minMatch);
+        if (postings == null) {
+            postings = new ArrayList<PhonePosting>(2);
+            mPhoneIndex.put(minMatch, postings);
+        }
+        postings.add(posting);
+    }
+
+    public void addIdentity(long rawContactId, String namespace, String identity) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || namespace == null || identity == null) {
+            return;
+        }
+        final String key = namespace + '\u0001' + identity;
+        if (entry.mIdentities == null) {
+            entry.mIdentities = new ArrayList<String>(1);
+        }
+        entry.mIdentities.add(key);
+        addToIndex(mIdentityIndex, key, entry);
+    }
+
+    private static void addToIndex(HashMap<String, ArrayList<RawContactEntry>> index, String key,
+            RawContactEntry entry) {
+        ArrayList<RawContactEntry> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<RawContactEntry>(2);
+            index.put(key, entries);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Records that the raw contact now belongs to {@code contactId}.
+     */
+    public void setContactId(long rawContactId, long contactId) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry != null) {
+            entry.mContactId = contactId;
+        }
+    }
+
+    public void setContactInDefaultDirectory(long contactId, boolean inDefaultDirectory) {
+        if (inDefaultDirectory) {
+            mContactsInDefaultDirectory.add(contactId);
+        } else {
+            mContactsInDefaultDirectory.remove(contactId);
+        }
+    }
+
+    /**
+     * Returns true if the raw contact is known to the index. Raw contacts inserted after the
+     * index was built must be matched with the regular queries.
+     */
+    public boolean contains(long rawContactId) {
+        return mRawContacts.containsKey(rawContactId);
+    }
+
+    public boolean hasName(long rawContactId) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        return entry != null && entry.mHasName;
+    }
+
+    public boolean isSimAccount(long rawContactId) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        return entry != null && entry.mSimAccount;
+    }
+
+    private boolean isCandidate(RawContactEntry candidate, long rawContactId) {
+        return candidate.mRawContactId != rawContactId
+                && mContactsInDefaultDirectory.contains(candidate.mContactId);
+    }
+
+    /**
+     * Equivalent of the name_lookup self-join: exact matches on the normalized name.
+     */
+    public void updateScoresBasedOnNameMatches(long rawContactId, RawContactMatcher matcher,
+            int limit) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || entry.mNames == null) {
+            return;
+        }
+        int hits = 0;
+        for (int i = 0; i < entry.mNames.size(); i++) {
+            final NamePosting name = entry.mNames.get(i);
+            final ArrayList<NamePosting> postings = mNameIndex.get(name.mNormalizedName);
+            for (int j = 0; j < postings.size(); j++) {
+                final NamePosting other = postings.get(j);
+                final RawContactEntry candidate = other.mRawContact;
+                if (candidate.mReadOnly
+                        || !mContactsInDefaultDirectory.contains(candidate.mContactId)) {
+                    continue;
+                }
+                if (++hits > limit) {
+                    return;
+                }
+                if (candidate.mRawContactId == rawContactId) {
+                    continue;
+                }
+                matcher.matchName(candidate.mRawContactId, candidate.mContactId,
+                        candidate.mAccountId, name.mNameType, name.mNormalizedName,
+                        other.mNameType, name.mNormalizedName,
+                        RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+                if (name.mNameType == NameLookupType.NICKNAME
+                        && other.mNameType == NameLookupType.NICKNAME) {
+                    matcher.updateScoreWithNicknameMatch(candidate.mRawContactId,
+                            candidate.mContactId, candidate.mAccountId);
+                }
+            }
+        }
+    }
+
+    public void updateScoresBasedOnIdentityMatch(long rawContactId, RawContactMatcher matcher) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || entry.mIdentities == null) {
+            return;
+        }
+        for (int i = 0; i < entry.mIdentities.size(); i++) {
+            final ArrayList<RawContactEntry> entries =
+                    mIdentityIndex.get(entry.mIdentities.get(i));
+            for (int j = 0; j < entries.size(); j++) {
+                final RawContactEntry candidate = entries.get(j);
+                if (isCandidate(candidate, rawContactId)) {
+                    matcher.matchIdentity(candidate.mRawContactId, candidate.mContactId,
+                            candidate.mAccountId);
+                }
+            }
+        }
+    }
+
+    public void updateScoresBasedOnEmailMatches(long rawContactId, RawContactMatcher matcher,
+            int limit) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || entry.mEmails == null) {
+            return;
+        }
+        int hits = 0;
+        for (int i = 0; i < entry.mEmails.size(); i++) {
+            final ArrayList<RawContactEntry> entries = mEmailIndex.get(entry.mEmails.get(i));
+            for (int j = 0; j < entries.size(); j++) {
+                final RawContactEntry candidate = entries.get(j);
+                if (!mContactsInDefaultDirectory.contains(candidate.mContactId)) {
+                    continue;
+                }
+                if (++hits > limit) {
+                    return;
+                }
+                if (candidate.mRawContactId != rawContactId) {
+                    matcher.updateScoreWithEmailMatch(candidate.mRawContactId,
+                            candidate.mContactId, candidate.mAccountId);
+                }
+            }
+        }
+    }
+
+    public void updateScoresBasedOnPhoneMatches(long rawContactId, RawContactMatcher matcher,
+            int limit) {
+        final RawContactEntry entry = mRawContacts.get(rawContactId);
+        if (entry == null || entry.mPhones == null) {
+            return;
+        }
+        int hits = 0;
+        for (int i = 0; i < entry.mPhones.size(); i++) {
+            final PhonePosting phone = entry.mPhones.get(i);
+            final ArrayList<PhonePosting> postings = mPhoneIndex.get(phone.mMinMatch);
+            for (int j = 0; j < postings.size(); j++) {
+                final PhonePosting other = postings.get(j);
+                final RawContactEntry candidate = other.mRawContact;
+                if (!mContactsInDefaultDirectory.contains(candidate.mContactId)
+                        || !PhoneNumberUtils.compare(phone.mNumber, other.mNumber,
+                                mUseStrictPhoneNumberComparison)) {
+                    continue;
+                }
+                if (++hits > limit) {
+                    return;
+                }
+                if (candidate.mRawContactId != rawContactId) {
+                    matcher.updateScoreWithPhoneNumberMatch(candidate.mRawContactId,
+                            candidate.mContactId, candidate.mAccountId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Equivalent of the null name query: scores the given secondary matches that have no
+     * structured name.
+     */
+    public void updateScoreForCandidatesWithoutName(Iterable<Long> rawContactIds,
+            RawContactMatcher matcher) {
+        for (Long rawContactId : rawContactIds) {
+            final RawContactEntry entry = mRawContacts.get(rawContactId);
+            if (entry != null && !entry.mHasName) {
+                matcher.matchNoName(entry.mRawContactId, entry.mContactId, entry.mAccountId);
+            }
+        }
+    }
+}
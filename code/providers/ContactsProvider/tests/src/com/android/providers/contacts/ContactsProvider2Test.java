@@ -7370,6 +7370,40 @@ public class ContactsProvider2Test extends BaseContactsProvider2Test {
         cursor.close();
     }
 
+    public void testContactCountsUpdatedIncrementally() {
+        Uri uri = Contacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(Contacts.EXTRA_ADDRESS_BOOK_INDEX, "true").build();
+        final ContactsProvider2 cp = (ContactsProvider2) getProvider();
+
+        RawContactUtil.createRawContactWithName(mResolver, "James", "Sullivan");
+        long rawContactId = RawContactUtil.createRawContactWithName(mResolver, "Mike", "Wazowski");
+        long booRawContactId = RawContactUtil.createRawContactWithName(mResolver, "Boo", null);
+
+        Cursor cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "B", "J", "M");
+        assertFirstLetterCounts(cursor,  1,   1,   1);
+        cursor.close();
+        final int missCount = cp.getFastScrollingIndexCacheMissCountForTest();
+
+        RawContactUtil.createRawContactWithName(mResolver, "Mary", null);
+        ContentValues values = new ContentValues();
+        values.put(StructuredName.GIVEN_NAME, "Randall");
+        mResolver.update(Data.CONTENT_URI, values,
+                Data.RAW_CONTACT_ID + "=? AND " + Data.MIMETYPE + "=?",
+                new String[] {String.valueOf(rawContactId), StructuredName.CONTENT_ITEM_TYPE});
+        RawContactUtil.delete(mResolver, booRawContactId, true);
+
+        cursor = mResolver.query(uri, new String[]{Contacts.DISPLAY_NAME},
+                null, null, Contacts.SORT_KEY_PRIMARY);
+        assertFirstLetterValues(cursor, "J", "M", "R");
+        assertFirstLetterCounts(cursor,  1,   1,   1);
+        cursor.close();
+
+        // The index was updated rather than recomputed.
+        assertEquals(missCount, cp.getFastScrollingIndexCacheMissCountForTest());
+    }
+
     private void assertFirstLetterValues(Cursor cursor, String... expected) {
         String[] actual = cursor.getExtras()
                 .getStringArray(Contacts.EXTRA_ADDRESS_BOOK_INDEX_TITLES);
@@ -16,6 +16,8 @@
 
 package com.android.providers.contacts;
 
+import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.ContactsContract.Contacts;
@@ -26,6 +28,9 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import com.android.providers.contacts.util.MockSharedPreferences;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 @SmallTest
 public class FastScrollingIndexCacheTest extends AndroidTestCase {
     private MockSharedPreferences mPrefs;
@@ -147,6 +152,167 @@ public class FastScrollingIndexCacheTest extends AndroidTestCase {
         assertBundle(TITLES_2, COUNTS_2, cache2.get(URI_B, "s", PROJECTION_2, "so", "ce"));
     }
 
+    /**
+     * Returns a cursor with the id, bucket and label of contacts, given as {id, bucket} pairs.
+     * The label of bucket N is the N-th letter.
+     */
+    private static Cursor contacts(long... idsAndBuckets) {
+        final MatrixCursor c = new MatrixCursor(new String[] {"_id", "bucket", "label"});
+        for (int i = 0; i < idsAndBuckets.length; i += 2) {
+            c.addRow(new Object[] {idsAndBuckets[i], idsAndBuckets[i + 1],
+                    String.valueOf((char) ('A' + idsAndBuckets[i + 1]))});
+        }
+        return c;
+    }
+
+    /**
+     * Returns a cursor with the bucket, label and comma separated ids of each bucket of contacts,
+     * given as {id, bucket} pairs, as returned by GROUP BY.  The label of bucket N is the N-th
+     * letter.
+     */
+    private static Cursor groups(long... idsAndBuckets) {
+        final TreeMap<Long, StringBuilder> groups = new TreeMap<Long, StringBuilder>();
+        for (int i = 0; i < idsAndBuckets.length; i += 2) {
+            StringBuilder ids = groups.get(idsAndBuckets[i + 1]);
+            if (ids == null) {
+                ids = new StringBuilder();
+                groups.put(idsAndBuckets[i + 1], ids);
+            } else {
+                ids.append(',');
+            }
+            ids.append(idsAndBuckets[i]);
+        }
+        final MatrixCursor c = new MatrixCursor(new String[] {"bucket", "label", "contact_ids"});
+        for (Map.Entry<Long, StringBuilder> group : groups.entrySet()) {
+            c.addRow(new Object[] {group.getKey(),
+                    String.valueOf((char) ('A' + group.getKey())), group.getValue().toString()});
+        }
+        return c;
+    }
+
+    /**
+     * Reports the given changed contacts, and the given query result for them.
+     */
+    private static class TestIndexUpdater implements FastScrollingIndexCache.IndexUpdater {
+        private final long[] mChangedContactIds;
+        private final Cursor mContacts;
+        private long mSince = -1;
+
+        public TestIndexUpdater(long[] changedContactIds, Cursor contacts) {
+            mChangedContactIds = changedContactIds;
+            mContacts = contacts;
+        }
+
+        @Override
+        public long[] getChangedContactIds(long since) {
+            mSince = since;
+            return mChangedContactIds;
+        }
+
+        @Override
+        public Cursor queryContacts(Uri queryUri, String selection, String[] selectionArgs,
+                String sortOrder, long[] contactIds) {
+            MoreAsserts.assertEquals(mChangedContactIds, contactIds);
+            return mContacts;
+        }
+    }
+
+    public void testUpdate() {
+        Bundle b = mCache.put(URI_A, "s", PROJECTION_1, "so", null,
+                groups(1, 0, 2, 1, 3, 1), false, 100);
+        assertBundle(new String[] {"A", "B"}, new int[] {1, 2}, b);
+
+        // Contact 1 is deleted, contact 2 moves to a new bucket and contact 4 is added.
+        TestIndexUpdater updater = new TestIndexUpdater(new long[] {1, 2, 4}, contacts(2, 2, 4, 0));
+        mCache.update(updater, 200);
+        assertEquals(100, updater.mSince);
+        assertBundle(new String[] {"A", "B", "C"}, new int[] {1, 1, 1},
+                mCache.get(URI_A, "s", PROJECTION_1, "so", null));
+
+        // Contact 4 stops matching the query, and the last contact in bucket A is gone.
+        updater = new TestIndexUpdater(new long[] {4}, contacts());
+        mCache.update(updater, 300);
+        assertEquals(200, updater.mSince);
+        assertBundle(new String[] {"B", "C"}, new int[] {1, 1},
+                mCache.get(URI_A, "s", PROJECTION_1, "so", null));
+
+        // Nothing changed.
+        updater = new TestIndexUpdater(new long[] {}, contacts());
+        mCache.update(updater, 400);
+        assertEquals(300, updater.mSince);
+        assertBundle(new String[] {"B", "C"}, new int[] {1, 1},
+                mCache.get(URI_A, "s", PROJECTION_1, "so", null));
+    }
+
+    public void testPutGroups() {
+        // Ids within and across buckets are out of order.
+        Bundle b = mCache.put(URI_A, "s", null, "so", null,
+                groups(30, 1, 5, 0, 12, 1, 2, 2, 7, 1), false, 100);
+        assertBundle(new String[] {"A", "B", "C"}, new int[] {1, 3, 1}, b);
+
+        mCache.update(new TestIndexUpdater(new long[] {2, 12, 30}, contacts(12, 0)), 200);
+        assertBundle(new String[] {"A", "B"}, new int[] {2, 1},
+                mCache.get(URI_A, "s", null, "so", null));
+    }
+
+    public void testUpdateDescending() {
+        Bundle b = mCache.put(URI_A, null, null, "so DESC", null,
+                groups(1, 1, 2, 3), true, 100);
+        assertBundle(new String[] {"D", "B"}, new int[] {1, 1}, b);
+
+        mCache.update(new TestIndexUpdater(new long[] {3, 5, 6}, contacts(3, 4, 5, 0, 6, 2)),
+                200);
+        assertBundle(new String[] {"E", "D", "C", "B", "A"}, new int[] {1, 1, 1, 1, 1},
+                mCache.get(URI_A, null, null, "so DESC", null));
+    }
+
+    public void testUpdateDropsIndexes() {
+        // Can't be updated.
+        putAndGetBundle(mCache, URI_A, "s", null, null, null, TITLES_1, COUNTS_1);
+        // Too old.
+        mCache.put(URI_A, "s1", null, null, null, groups(1, 0), false, 100);
+        // Newer than "now", the clock went backwards.
+        mCache.put(URI_A, "s2", null, null, null, groups(1, 0), false, 2000000000000L);
+        // Up to date.
+        mCache.put(URI_A, "s3", null, null, null, groups(1, 0), false, 1000000000000L);
+
+        final TestIndexUpdater updater = new TestIndexUpdater(new long[] {}, contacts());
+        mCache.update(updater, 1000000000000L + 1);
+        assertEquals(1000000000000L, updater.mSince);
+        assertNull(mCache.get(URI_A, "s", null, null, null));
+        assertNull(mCache.get(URI_A, "s1", null, null, null));
+        assertNull(mCache.get(URI_A, "s2", null, null, null));
+        assertBundle(new String[] {"A"}, new int[] {1}, mCache.get(URI_A, "s3", null, null, null));
+
+        // Too many changes.
+        mCache.update(new TestIndexUpdater(null, contacts()), 1000000000000L + 2);
+        assertNull(mCache.get(URI_A, "s3", null, null, null));
+
+        // Query can't be run again.
+        mCache.put(URI_A, "s3", null, null, null, groups(1, 0), false, 100);
+        mCache.update(new TestIndexUpdater(new long[] {1}, null), 200);
+        assertNull(mCache.get(URI_A, "s3", null, null, null));
+    }
+
+    public void testSaveUpdatableIndex() {
+        mCache.put(URI_B, "s", PROJECTION_2, "so", null, groups(10, 0, 300, 1, 70000, 1), false,
+                100);
+        putAndGetBundle(mCache, URI_A, null, null, null, null, TITLES_3, COUNTS_3);
+
+        FastScrollingIndexCache cache2 = FastScrollingIndexCache.getInstanceForTest(mPrefs);
+        assertBundle(new String[] {"A", "B"}, new int[] {1, 2},
+                cache2.get(URI_B, "s", PROJECTION_2, "so", null));
+        assertBundle(TITLES_3, COUNTS_3, cache2.get(URI_A, null, null, null, null));
+
+        // The loaded index still knows its contacts and when it was last updated.
+        final TestIndexUpdater updater =
+                new TestIndexUpdater(new long[] {300, 70000}, contacts(70000, 2));
+        cache2.update(updater, 200);
+        assertEquals(100, updater.mSince);
+        assertBundle(new String[] {"A", "C"}, new int[] {1, 1},
+                cache2.get(URI_B, "s", PROJECTION_2, "so", null));
+    }
+
     public void testMalformedPreferences() {
         mPrefs.edit().putString(FastScrollingIndexCache.PREFERENCE_KEY, "123");
         // get() shouldn't crash
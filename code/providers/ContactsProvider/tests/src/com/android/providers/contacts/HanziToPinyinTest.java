@@ -16,18 +16,23 @@
 
 package com.android.providers.contacts;
 
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.providers.contacts.HanziToPinyin.Token;
+import com.android.providers.contacts.HanziToPinyin.TokenBuffer;
 
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 @SmallTest
 public class HanziToPinyinTest extends TestCase {
+    private static final String TAG = "HanziToPinyinTest";
     private final static String ONE_HANZI = "\u675C";
     private final static String TWO_HANZI = "\u675C\u9D51";
     private final static String ASSIC = "test";
@@ -126,4 +131,110 @@ public class HanziToPinyinTest extends TestCase {
         test('\u9a08', "PIAN");
         test('\u9e09', "YANG");
     }
+
+    @SmallTest
+    public void testGetTokensIntoBuffer() throws Exception {
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        final TokenBuffer buffer = new TokenBuffer();
+        HanziToPinyin.getInstance().getTokens(MISC, buffer);
+        assertSameTokens(HanziToPinyin.getInstance().getTokens(MISC), buffer);
+
+        // Reusing the buffer for a shorter input drops the previous tokens.
+        HanziToPinyin.getInstance().getTokens(TWO_HANZI, buffer);
+        assertSameTokens(HanziToPinyin.getInstance().getTokens(TWO_HANZI), buffer);
+
+        HanziToPinyin.getInstance().getTokens("", buffer);
+        assertEquals(0, buffer.size());
+    }
+
+    @SmallTest
+    public void testTransliterate() throws Exception {
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        assertEquals("TEST 123", HanziToPinyin.getInstance().transliterate("Test 123"));
+
+        // Cached results are the same as fresh ones.
+        final String first = HanziToPinyin.getInstance().transliterate(TWO_HANZI);
+        assertFalse(TextUtils.isEmpty(first));
+        assertEquals(first, HanziToPinyin.getInstance().transliterate(TWO_HANZI));
+    }
+
+    /**
+     * Measures tokenizing and transliterating a corpus of 100k generated Chinese names.
+     */
+    @LargeTest
+    public void testNameCorpus() throws Exception {
+        if (!hasChineseTransliterator()) {
+            return;
+        }
+        final String[] names = buildNameCorpus(100000);
+        final HanziToPinyin hanziToPinyin = HanziToPinyin.getInstance();
+
+        // Warm up the char table, so that both token APIs are measured the same way.
+        final TokenBuffer buffer = new TokenBuffer();
+        for (String name : names) {
+            hanziToPinyin.getTokens(name, buffer);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        int listTokens = 0;
+        for (String name : names) {
+            listTokens += hanziToPinyin.getTokens(name).size();
+        }
+        final long listTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        int bufferTokens = 0;
+        for (String name : names) {
+            hanziToPinyin.getTokens(name, buffer);
+            bufferTokens += buffer.size();
+        }
+        final long bufferTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (String name : names) {
+            hanziToPinyin.transliterate(name);
+        }
+        final long transliterateTime = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, names.length + " names: getTokens(String) " + listTime
+                + " ms, getTokens(String, TokenBuffer) " + bufferTime
+                + " ms, transliterate " + transliterateTime + " ms");
+        assertEquals(listTokens, bufferTokens);
+        assertEquals(names.length * 3, bufferTokens);
+    }
+
+    /**
+     * Returns {@code count} three-character names made of common family names and given name
+     * characters. Names repeat, like they do in a real address book.
+     */
+    private static String[] buildNameCorpus(int count) {
+        final String familyNames = "\u738B\u674E\u5F20\u5218\u9648\u6768\u8D75\u9EC4"
+                + "\u5434\u5468\u5F90\u5B59\u9A6C\u6731\u80E1\u90ED\u4F55\u6797";
+        final String givenNames = "\u4F1F\u82B3\u5A1C\u654F\u9759\u4E3D\u5F3A\u78CA"
+                + "\u519B\u6D0B\u52C7\u8273\u6770\u6D9B\u660E\u8D85\u79C0\u971E"
+                + "\u5E73\u521A\u534E\u5FD7\u6210\u5174\u6587\u6D77\u6653\u4E91";
+        final Random random = new Random(42);
+        final String[] names = new String[count];
+        final char[] name = new char[3];
+        for (int i = 0; i < count; i++) {
+            name[0] = familyNames.charAt(random.nextInt(familyNames.length()));
+            name[1] = givenNames.charAt(random.nextInt(givenNames.length()));
+            name[2] = givenNames.charAt(random.nextInt(givenNames.length()));
+            names[i] = new String(name);
+        }
+        return names;
+    }
+
+    private static void assertSameTokens(ArrayList<Token> expected, TokenBuffer actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).type, actual.get(i).type);
+            assertEquals(expected.get(i).source, actual.get(i).source);
+            assertEquals(expected.get(i).target, actual.get(i).target);
+        }
+    }
 }
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.PhotoFiles;
+import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
@@ -29,6 +30,7 @@ import com.android.providers.contacts.tests.R;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -239,4 +241,90 @@ public class PhotoStoreTest extends PhotoLoadingTestCase {
             c.close();
         }
     }
+
+    public void testDeduplicatePhotos() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId1 = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        long photoFileId2 = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        assertTrue(photoFileId1 != 0);
+        assertTrue(photoFileId2 != 0);
+        assertTrue(photoFileId1 != photoFileId2);
+
+        // Both entries share the same file.
+        PhotoStore.Entry entry1 = mPhotoStore.get(photoFileId1);
+        PhotoStore.Entry entry2 = mPhotoStore.get(photoFileId2);
+        assertEquals(entry1.path, entry2.path);
+        assertEquals(entry1.size, mPhotoStore.getTotalSize());
+
+        // The file is kept until its last entry is removed.
+        mPhotoStore.remove(photoFileId1);
+        assertTrue(new File(entry2.path).exists());
+        assertEquals(entry2.size, mPhotoStore.getTotalSize());
+
+        mPhotoStore.remove(photoFileId2);
+        assertFalse(new File(entry2.path).exists());
+        assertEquals(0, mPhotoStore.getTotalSize());
+    }
+
+    public void testReloadFromIndex() throws IOException {
+        long[] photoFileIds = new long[3];
+        int[] resourceIds = new int[] {
+                R.drawable.earth_normal, R.drawable.earth_large, R.drawable.earth_normal
+        };
+        for (int i = 0; i < resourceIds.length; i++) {
+            photoFileIds[i] = mPhotoStore.insert(newPhotoProcessor(
+                    loadPhotoFromResource(resourceIds[i], PhotoSize.ORIGINAL), false));
+        }
+        mPhotoStore.remove(photoFileIds[1]);
+
+        // A new store over the same directory sees the same entries.
+        PhotoStore reloaded = new PhotoStore(getStoreRoot(photoFileIds[0]),
+                mProvider.getDatabaseHelper(getContext()));
+        assertEquals(mPhotoStore.get(photoFileIds[0]).path, reloaded.get(photoFileIds[0]).path);
+        assertNull(reloaded.get(photoFileIds[1]));
+        assertEquals(mPhotoStore.get(photoFileIds[2]).path, reloaded.get(photoFileIds[2]).path);
+        assertEquals(mPhotoStore.getTotalSize(), reloaded.getTotalSize());
+    }
+
+    public void testImportPhotoFilesWithoutIndex() throws IOException {
+        byte[] photo = loadPhotoFromResource(R.drawable.earth_normal, PhotoSize.ORIGINAL);
+        long photoFileId = mPhotoStore.insert(newPhotoProcessor(photo, false));
+        File storedFile = new File(mPhotoStore.get(photoFileId).path);
+        File storePath = storedFile.getParentFile();
+        byte[] content = readInputStreamFully(new FileInputStream(storedFile));
+
+        // Lay out the directory the way older versions did: one file per photo file ID.
+        mPhotoStore.clear();
+        File legacyFile1 = new File(storePath, "1001");
+        File legacyFile2 = new File(storePath, "1002");
+        writeFile(legacyFile1, content);
+        writeFile(legacyFile2, content);
+        writeFile(new File(storePath, "img123.tmp"), content);
+
+        PhotoStore imported = new PhotoStore(storePath.getParentFile(),
+                mProvider.getDatabaseHelper(getContext()));
+        assertFalse(legacyFile1.exists());
+        assertFalse(legacyFile2.exists());
+        assertFalse(new File(storePath, "img123.tmp").exists());
+
+        PhotoStore.Entry entry1 = imported.get(1001);
+        PhotoStore.Entry entry2 = imported.get(1002);
+        assertEquals(entry1.path, entry2.path);
+        assertEquals(content.length, imported.getTotalSize());
+        MoreAsserts.assertEquals(content,
+                readInputStreamFully(new FileInputStream(new File(entry1.path))));
+    }
+
+    private File getStoreRoot(long photoFileId) {
+        return new File(mPhotoStore.get(photoFileId).path).getParentFile().getParentFile();
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
 }
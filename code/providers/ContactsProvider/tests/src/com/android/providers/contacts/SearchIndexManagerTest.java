@@ -16,25 +16,35 @@
 
 package com.android.providers.contacts;
 
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.net.Uri.Builder;
 import android.provider.ContactsContract.CommonDataKinds.Im;
+import android.provider.ContactsContract.CommonDataKinds.Note;
 import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.StructuredName;
 import android.provider.ContactsContract.CommonDataKinds.StructuredPostal;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.SearchSnippets;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.Suppress;
 
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
 import com.android.providers.contacts.testutil.DataUtil;
 import com.android.providers.contacts.testutil.RawContactUtil;
 
 import java.text.Collator;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Unit tests for {@link SearchIndexManager}.
@@ -273,6 +283,70 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
                 contactId, "Please note: three notes or more make up a chord.", null, null);
     }
 
+    public void testSearchIndexSkipsDuplicateElements() {
+        long rawContactId = RawContactUtil.createRawContact(mResolver);
+        long contactId = queryContactId(rawContactId);
+        insertNote(rawContactId, "abc");
+        insertNote(rawContactId, "ab");
+        insertNote(rawContactId, "abc");
+        insertNote(rawContactId, "b c");
+        insertNote(rawContactId, "b\nc");
+        insertNote(rawContactId, "bc");
+
+        assertSearchIndexContent(contactId, "abc\nab\nb c\nbc");
+    }
+
+    public void testUpdateIndexOnlyWritesChangedRows() {
+        long rawContactId1 = RawContactUtil.createRawContact(mResolver);
+        long contactId1 = queryContactId(rawContactId1);
+        insertNote(rawContactId1, "first");
+        long rawContactId2 = RawContactUtil.createRawContact(mResolver);
+        long contactId2 = queryContactId(rawContactId2);
+        Uri noteUri = insertNote(rawContactId2, "second");
+        long rawContactId3 = RawContactUtil.createRawContact(mResolver);
+        long contactId3 = queryContactId(rawContactId3);
+        Uri noteUri3 = insertNote(rawContactId3, "third");
+
+        final SQLiteDatabase db = getContactsProvider().getDatabaseHelper().getWritableDatabase();
+        final long rowId1 = querySearchIndexRowId(db, contactId1);
+        final long rowId2 = querySearchIndexRowId(db, contactId2);
+
+        final SearchIndexManager manager = new SearchIndexManager(getContactsProvider());
+        final Set<Long> contactIds = new HashSet<Long>(
+                Arrays.asList(contactId1, contactId2, contactId3));
+        final Set<Long> noRawContactIds = Collections.emptySet();
+
+        // Nothing changed.
+        manager.updateIndexForRawContacts(contactIds, noRawContactIds);
+        assertEquals(0, manager.getRowsWrittenForTest());
+
+        // One contact changed; its row is updated in place.
+        db.execSQL("UPDATE " + Tables.DATA + " SET " + Note.NOTE + "='changed'"
+                + " WHERE " + Data._ID + "=" + ContentUris.parseId(noteUri));
+        manager.updateIndexForRawContacts(contactIds, noRawContactIds);
+        assertEquals(1, manager.getRowsWrittenForTest());
+        assertSearchIndexContent(contactId1, "first");
+        assertSearchIndexContent(contactId2, "changed");
+        assertEquals(rowId1, querySearchIndexRowId(db, contactId1));
+        assertEquals(rowId2, querySearchIndexRowId(db, contactId2));
+
+        // A contact without searchable data loses its row.
+        db.execSQL("DELETE FROM " + Tables.DATA
+                + " WHERE " + Data._ID + "=" + ContentUris.parseId(noteUri3));
+        manager.updateIndexForRawContacts(contactIds, noRawContactIds);
+        assertEquals(1, manager.getRowsWrittenForTest());
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + Tables.SEARCH_INDEX + " WHERE " + SearchIndexColumns.CONTACT_ID + "="
+                + contactId3, null));
+
+        // Deleting and re-inserting everything writes every row twice.
+        manager.setIncrementalUpdateEnabledForTest(false);
+        manager.updateIndexForRawContacts(contactIds, noRawContactIds);
+        assertEquals(4, manager.getRowsWrittenForTest());
+        assertSearchIndexContent(contactId1, "first");
+        assertSearchIndexContent(contactId2, "changed");
+    }
+
     public void testSnippetArgs() {
         long rawContactId = RawContactUtil.createRawContact(mResolver);
         insertNote(rawContactId, "Please note: three notes or more make up a chord.");
@@ -526,6 +600,17 @@ public class SearchIndexManagerTest extends BaseContactsProvider2Test {
         DataUtil.insertStructuredName(mResolver, rawContactId, values);
     }
 
+    private void assertSearchIndexContent(long contactId, String expectedContent) {
+        ContactsDatabaseHelper dbHelper = (ContactsDatabaseHelper) getContactsProvider()
+                .getDatabaseHelper();
+        assertEquals(expectedContent, dbHelper.querySearchIndexContentForTest(contactId));
+    }
+
+    private static long querySearchIndexRowId(SQLiteDatabase db, long contactId) {
+        return DatabaseUtils.longForQuery(db, "SELECT rowid FROM " + Tables.SEARCH_INDEX
+                + " WHERE " + SearchIndexColumns.CONTACT_ID + "=" + contactId, null);
+    }
+
     // TODO: expectedName must be tested. Many tests in here are quite useless at the moment
     private void assertSearchIndex(
             long contactId, String expectedContent, String expectedName, String expectedTokens) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.contacts;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.DataColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.MimetypesColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.SearchIndexColumns;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Measures the cost of updating the search index after a sync that touches every contact but
+ * only changes some of them, with and without incremental updates in {@link SearchIndexManager}.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e class com.android.providers.contacts.SearchIndexUpdateTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class SearchIndexUpdateTest extends BaseContactsProvider2Test {
+
+    private static final String TAG = "SearchIndexUpdateTest";
+
+    // Raw contacts inserted per applyBatch() call; 4 operations each.
+    private static final int INSERT_CHUNK_SIZE = 100;
+
+    public void testSyncUpdate_10k_10PercentChanged() throws Exception {
+        runComparison(10000, 10);
+    }
+
+    public void testSyncUpdate_10k_nothingChanged() throws Exception {
+        runComparison(10000, 0);
+    }
+
+    private void runComparison(int count, int changedPercent) throws Exception {
+        final Set<Long> rawContactIds = insertRawContacts(count);
+        final SearchIndexManager manager = new SearchIndexManager(getContactsProvider());
+
+        manager.setIncrementalUpdateEnabledForTest(false);
+        final ArrayList<String> fullIndex = new ArrayList<String>();
+        final long fullTime = updateIndex(manager, rawContactIds, changedPercent, fullIndex);
+        final int fullRowsWritten = manager.getRowsWrittenForTest();
+
+        manager.setIncrementalUpdateEnabledForTest(true);
+        final ArrayList<String> incrementalIndex = new ArrayList<String>();
+        final long incrementalTime =
+                updateIndex(manager, rawContactIds, changedPercent, incrementalIndex);
+        final int incrementalRowsWritten = manager.getRowsWrittenForTest();
+
+        Log.i(TAG, count + " contacts, " + changedPercent + "% changed: full " + fullTime
+                + " ms (" + fullRowsWritten + " rows written), incremental " + incrementalTime
+                + " ms (" + incrementalRowsWritten + " rows written)");
+
+        assertEquals(count, fullIndex.size());
+        assertEquals(fullIndex, incrementalIndex);
+        assertEquals(count * 2, fullRowsWritten);
+        assertEquals(count * changedPercent / 100, incrementalRowsWritten);
+    }
+
+    /**
+     * Inserts {@code count} raw contacts with a name, a phone number and an email address each.
+     *
+     * @return the IDs of the raw contacts
+     */
+    private Set<Long> insertRawContacts(int count) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            final int backReference = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_NAME, "account")
+                    .withValue(RawContacts.ACCOUNT_TYPE, "type")
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, "Given" + i)
+                    .withValue(StructuredName.FAMILY_NAME, "Family" + i)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, String.valueOf(6505550000L + i))
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, Email.CONTENT_ITEM_TYPE)
+                    .withValue(Email.ADDRESS, "user" + i + "@example.com")
+                    .build());
+            if ((i + 1) % INSERT_CHUNK_SIZE == 0) {
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                ops.clear();
+            }
+        }
+        if (!ops.isEmpty()) {
+            mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+
+        final Set<Long> rawContactIds = new HashSet<Long>();
+        final Cursor c = getDatabase().query(Tables.RAW_CONTACTS,
+                new String[] {RawContacts._ID}, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                rawContactIds.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        return rawContactIds;
+    }
+
+    /**
+     * Changes the email address of {@code changedPercent}% of the contacts and updates the
+     * search index of all of them, in a transaction that is rolled back afterwards so that
+     * both modes start from the same state.
+     *
+     * @return the index update time in milliseconds
+     */
+    private long updateIndex(SearchIndexManager manager, Set<Long> rawContactIds,
+            int changedPercent, ArrayList<String> index) {
+        final SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("UPDATE " + Tables.DATA + " SET " + Email.ADDRESS + "='new' || "
+                    + Email.ADDRESS
+                    + " WHERE " + DataColumns.MIMETYPE_ID + "=(SELECT " + MimetypesColumns._ID
+                    + " FROM " + Tables.MIMETYPES + " WHERE " + MimetypesColumns.MIMETYPE + "='"
+                    + Email.CONTENT_ITEM_TYPE + "')"
+                    + " AND " + Data.RAW_CONTACT_ID + " % 100 < " + changedPercent);
+
+            final long start = System.currentTimeMillis();
+            manager.updateIndexForRawContacts(Collections.<Long>emptySet(), rawContactIds);
+            final long elapsed = System.currentTimeMillis() - start;
+
+            final Cursor c = db.query(Tables.SEARCH_INDEX, new String[] {
+                    SearchIndexColumns.CONTACT_ID, SearchIndexColumns.CONTENT,
+                    SearchIndexColumns.NAME, SearchIndexColumns.TOKENS},
+                    null, null, null, null, SearchIndexColumns.CONTACT_ID);
+            try {
+                while (c.moveToNext()) {
+                    index.add(c.getLong(0) + "|" + c.getString(1) + "|" + c.getString(2) + "|"
+                            + c.getString(3));
+                }
+            } finally {
+                c.close();
+            }
+            return elapsed;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return getContactsProvider().getDatabaseHelper().getWritableDatabase();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.contacts.aggregation;
+
+import android.content.ContentProviderOperation;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Data;
+import android.provider.ContactsContract.RawContacts;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.providers.contacts.BaseContactsProvider2Test;
+import com.android.providers.contacts.ContactsDatabaseHelper.Tables;
+import com.android.providers.contacts.ContactsProvider2;
+import com.android.providers.contacts.TransactionContext;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the batch aggregation mode of {@link ContactAggregator2} with per raw contact
+ * aggregation, both for the resulting aggregates and for the time it takes.
+ *
+ * Run the test like this:
+ * <code>
+ * adb shell am instrument -e \
+ *         class com.android.providers.contacts.aggregation.ContactAggregator2BatchTest -w \
+ *         com.android.providers.contacts.tests/android.test.InstrumentationTestRunner
+ * </code>
+ */
+@LargeTest
+public class ContactAggregator2BatchTest extends BaseContactsProvider2Test {
+
+    private static final String TAG = "ContactAggregator2BatchTest";
+
+    // Raw contacts inserted per applyBatch() call; 3 operations each.
+    private static final int INSERT_CHUNK_SIZE = 100;
+
+    private ContactAggregator2 mAggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final ContactsProvider2 cp = (ContactsProvider2) getProvider();
+        cp.setNewAggregatorForTest(true);
+        mAggregator = (ContactAggregator2) cp.getContactAggregatorForTest();
+    }
+
+    public void testBatchAggregation_1k() throws Exception {
+        runComparison(1000);
+    }
+
+    public void testBatchAggregation_10k() throws Exception {
+        runComparison(10000);
+    }
+
+    public void testBatchAggregation_50k() throws Exception {
+        runComparison(50000);
+    }
+
+    private void runComparison(int count) throws Exception {
+        insertRawContacts(count);
+
+        final long[] perRowContactIds = new long[count];
+        final long perRowTime = reaggregate(Integer.MAX_VALUE, perRowContactIds);
+        final long[] batchContactIds = new long[count];
+        final long batchTime = reaggregate(0, batchContactIds);
+
+        Log.i(TAG, count + " raw contacts: per-row " + perRowTime + " ms, batch "
+                + batchTime + " ms");
+
+        // Every fourth raw contact is a duplicate of the one before it; the rest are unique.
+        assertSameAggregates(perRowContactIds, batchContactIds);
+        for (int i = 1; i < count; i++) {
+            if (i % 4 == 1) {
+                assertEquals(batchContactIds[i - 1], batchContactIds[i]);
+            } else {
+                assertTrue(batchContactIds[i - 1] != batchContactIds[i]);
+            }
+        }
+    }
+
+    /**
+     * Inserts {@code count} raw contacts with aggregation disabled, then switches them to the
+     * default aggregation mode without aggregating them.
+     */
+    private void insertRawContacts(int count) throws Exception {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < count; i++) {
+            // Raw contacts 4k and 4k+1 share a name and a phone number.
+            final int person = i % 4 == 1 ? i - 1 : i;
+            final int backReference = ops.size();
+            ops.add(ContentProviderOperation.newInsert(RawContacts.CONTENT_URI)
+                    .withValue(RawContacts.ACCOUNT_NAME, "account" + (i % 2))
+                    .withValue(RawContacts.ACCOUNT_TYPE, "type")
+                    .withValue(RawContacts.AGGREGATION_MODE, RawContacts.AGGREGATION_MODE_DISABLED)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, StructuredName.CONTENT_ITEM_TYPE)
+                    .withValue(StructuredName.GIVEN_NAME, "Given" + person)
+                    .withValue(StructuredName.FAMILY_NAME, "Family" + person)
+                    .build());
+            ops.add(ContentProviderOperation.newInsert(Data.CONTENT_URI)
+                    .withValueBackReference(Data.RAW_CONTACT_ID, backReference)
+                    .withValue(Data.MIMETYPE, Phone.CONTENT_ITEM_TYPE)
+                    .withValue(Phone.NUMBER, String.valueOf(6505550000L + person))
+                    .build());
+            if ((i + 1) % INSERT_CHUNK_SIZE == 0) {
+                mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                ops.clear();
+            }
+        }
+        if (!ops.isEmpty()) {
+            mResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+
+        getDatabase().execSQL("UPDATE " + Tables.RAW_CONTACTS + " SET "
+                + RawContacts.AGGREGATION_MODE + "=" + RawContacts.AGGREGATION_MODE_DEFAULT);
+    }
+
+    /**
+     * Re-aggregates all raw contacts in a transaction that is rolled back afterwards, so that
+     * both modes start from the same state.
+     *
+     * @return the aggregation time in milliseconds
+     */
+    private long reaggregate(int batchThreshold, long[] contactIds) {
+        final SQLiteDatabase db = getDatabase();
+        mAggregator.setBatchAggregationThresholdForTest(batchThreshold);
+        db.beginTransaction();
+        try {
+            mAggregator.markAllVisibleForAggregation(db);
+            final long start = System.currentTimeMillis();
+            mAggregator.aggregateInTransaction(new TransactionContext(false), db);
+            final long elapsed = System.currentTimeMillis() - start;
+
+            final Cursor c = db.query(Tables.RAW_CONTACTS, new String[] {RawContacts.CONTACT_ID},
+                    null, null, null, null, RawContacts._ID);
+            try {
+                assertEquals(contactIds.length, c.getCount());
+                while (c.moveToNext()) {
+                    contactIds[c.getPosition()] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            return elapsed;
+        } finally {
+            mAggregator.clearPendingAggregations();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Asserts that both arrays group raw contacts into the same partitions; the actual contact
+     * ids may differ.
+     */
+    private static void assertSameAggregates(long[] expected, long[] actual) {
+        for (int i = 1; i < expected.length; i++) {
+            for (int j = Math.max(0, i - 4); j < i; j++) {
+                assertEquals(expected[i] == expected[j], actual[i] == actual[j]);
+            }
+        }
+    }
+
+    private SQLiteDatabase getDatabase() {
+        return ((ContactsProvider2) getProvider()).getDatabaseHelper().getWritableDatabase();
+    }
+}
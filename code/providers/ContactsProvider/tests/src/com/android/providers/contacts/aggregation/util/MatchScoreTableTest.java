@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package com.android.providers.contacts.aggregation.util;
+
+import com.android.providers.contacts.ContactsDatabaseHelper.NameLookupType;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+@SmallTest
+public class MatchScoreTableTest extends AndroidTestCase {
+
+    private static final String TAG = "MatchScoreTableTest";
+
+    public void testAddAndGet() {
+        final MatchScoreTable table = new MatchScoreTable();
+        assertNull(table.get(5));
+
+        final MatchScore score = table.add(5);
+        score.reset(5);
+        assertSame(score, table.get(5));
+        assertNull(table.get(6));
+        assertEquals(1, table.size());
+        assertSame(score, table.getAt(0));
+    }
+
+    public void testGrowKeepsEntries() {
+        final MatchScoreTable table = new MatchScoreTable();
+        for (long id = 0; id < 1000; id++) {
+            // Spread the ids so that they collide in the low bits.
+            table.add(id << 20).reset(id);
+        }
+        assertEquals(1000, table.size());
+        for (long id = 0; id < 1000; id++) {
+            assertEquals(id, table.get(id << 20).getContactId());
+        }
+        assertNull(table.get(1000L << 20));
+    }
+
+    public void testClearReusesScores() {
+        final MatchScoreTable table = new MatchScoreTable();
+        final MatchScore first = table.add(Long.MAX_VALUE);
+        table.add(-1);
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.get(Long.MAX_VALUE));
+        assertNull(table.get(-1));
+
+        assertSame(first, table.add(42));
+        assertSame(first, table.get(42));
+    }
+
+    public void testSortingDoesNotBreakLookups() {
+        final MatchScoreTable table = new MatchScoreTable();
+        for (long id = 1; id <= 10; id++) {
+            final MatchScore score = table.add(id);
+            score.reset(id);
+            score.updatePrimaryScore((int) id);
+        }
+        Collections.sort(table.scores());
+        assertEquals(10, table.getAt(0).getContactId());
+        for (long id = 1; id <= 10; id++) {
+            assertEquals(id, table.get(id).getContactId());
+        }
+    }
+
+    /**
+     * The matchers keep their scores from one aggregation to the next: after clear(), matching
+     * as many candidates again gives the same results out of the same score objects.  Ids above
+     * 127 are used so that they would not come from the {@link Long} cache if they were boxed.
+     */
+    public void testMatchersReuseScores() {
+        final int candidates = 500;
+        final ContactMatcher contactMatcher = new ContactMatcher();
+        final RawContactMatcher rawContactMatcher = new RawContactMatcher();
+
+        runMatchers(contactMatcher, rawContactMatcher, candidates);
+        final List<MatchScore> contactScores =
+                new ArrayList<MatchScore>(contactMatcher.pickBestMatches(0));
+        final List<MatchScore> rawContactScores =
+                new ArrayList<MatchScore>(rawContactMatcher.pickBestMatches(0));
+        assertEquals(candidates, contactScores.size());
+        assertEquals(candidates, rawContactScores.size());
+
+        runMatchers(contactMatcher, rawContactMatcher, candidates);
+        assertSameScores(contactScores, contactMatcher.pickBestMatches(0));
+        assertSameScores(rawContactScores, rawContactMatcher.pickBestMatches(0));
+    }
+
+    private static void assertSameScores(List<MatchScore> expected, List<MatchScore> actual) {
+        assertEquals(expected.size(), actual.size());
+        final Set<MatchScore> expectedScores =
+                Collections.newSetFromMap(new IdentityHashMap<MatchScore, Boolean>());
+        expectedScores.addAll(expected);
+        for (int i = 0; i < actual.size(); i++) {
+            assertTrue(expectedScores.contains(actual.get(i)));
+            assertEquals(expected.get(i).getContactId(), actual.get(i).getContactId());
+            assertEquals(expected.get(i).getScore(), actual.get(i).getScore());
+        }
+    }
+
+    /**
+     * Logs how long the matchers take to score and rank a batch of candidates once their tables
+     * and score pools are warmed up.
+     */
+    @LargeTest
+    public void testMatcherTime() {
+        final int candidates = 500;
+        final int passes = 100;
+        final ContactMatcher contactMatcher = new ContactMatcher();
+        final RawContactMatcher rawContactMatcher = new RawContactMatcher();
+
+        // Warm up so that the tables and score pools reach their final size.
+        runMatchers(contactMatcher, rawContactMatcher, candidates);
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < passes; i++) {
+            runMatchers(contactMatcher, rawContactMatcher, candidates);
+            contactMatcher.pickBestMatches(0);
+            rawContactMatcher.pickBestMatches(0);
+        }
+        final long elapsed = System.nanoTime() - start;
+        Log.i(TAG, "Matching " + candidates + " candidates: " + (elapsed / passes / 1000)
+                + " us per pass");
+    }
+
+    private static void runMatchers(ContactMatcher contactMatcher,
+            RawContactMatcher rawContactMatcher, int candidates) {
+        contactMatcher.clear();
+        rawContactMatcher.clear();
+        for (int i = 0; i < candidates; i++) {
+            final long id = 1000 + i;
+            contactMatcher.matchName(id, NameLookupType.NAME_EXACT, "4A4F484E",
+                    NameLookupType.NAME_EXACT, "4A4F484E", ContactMatcher.MATCHING_ALGORITHM_EXACT);
+            contactMatcher.updateScoreWithPhoneNumberMatch(id);
+            rawContactMatcher.matchName(id, id + 1, 1, NameLookupType.NAME_EXACT, "4A4F484E",
+                    NameLookupType.NAME_EXACT, "4A4F484E",
+                    RawContactMatcher.MATCHING_ALGORITHM_EXACT);
+            rawContactMatcher.updateScoreWithPhoneNumberMatch(id, id + 1, 1);
+        }
+    }
+}
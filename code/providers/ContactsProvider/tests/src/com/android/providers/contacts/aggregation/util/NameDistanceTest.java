@@ -66,6 +66,32 @@ public class NameDistanceTest extends TestCase {
         assertFloat(0, "Abcd", "Efgh");
     }
 
+    public void testThreshold_rejectsHopelessPairs() {
+        assertEquals(0f, mNameDistance.getDistance(decode("Johny"), decode("Duane"), 0.82f));
+        assertEquals(0f, mNameDistance.getDistance(decode("Abcd"), decode("Efgh"), 0.82f));
+    }
+
+    public void testThreshold_keepsCloseMatches() {
+        final String[] names = {"Martha", "Marhta", "Dwayne", "Duane", "DIXON", "DICKSONX"};
+        for (String name1 : names) {
+            for (String name2 : names) {
+                final byte[] s1 = decode(name1);
+                final byte[] s2 = decode(name2);
+                final float exact = mNameDistance.getDistance(s1, s2);
+                final float bounded = mNameDistance.getDistance(s1, s2, 0.82f);
+                if (exact > 0.82f) {
+                    assertEquals(name1 + "/" + name2, exact, bounded);
+                } else {
+                    assertTrue(name1 + "/" + name2, bounded <= 0.82f);
+                }
+            }
+        }
+    }
+
+    private static byte[] decode(String name) {
+        return Hex.decodeHex(NameNormalizer.normalize(name));
+    }
+
     private void assertFloat(float expected, String name1, String name2) {
         byte[] s1 = Hex.decodeHex(NameNormalizer.normalize(name1));
         byte[] s2 = Hex.decodeHex(NameNormalizer.normalize(name2));
@@ -42,6 +42,12 @@ public class Constants {
     /** The column that is used for the downloads's ETag */
     public static final String ETAG = "etag";
 
+    /**
+     * The column that is used for the progress of each byte range of a
+     * download fetched over several connections; see {@link DownloadSegments}
+     */
+    public static final String SEGMENTS = "segments";
+
     /** The column that is used for the initiating app's UID */
     public static final String UID = "uid";
 
@@ -119,6 +125,27 @@ public class Constants {
     /** The buffer size used to stream the data */
     public static final int BUFFER_SIZE = 8192;
 
+    /**
+     * The buffer size used to stream the data to a plain file; filled by several reads before
+     * each write
+     */
+    public static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+
+    /** The longest time that data read from the network waits in the buffer before being written */
+    public static final long MAX_BUFFER_TIME = 500;
+
+    /** How much file space to claim at once when the length of a download isn't known */
+    public static final long ALLOCATION_EXTENT = 16 * 1024 * 1024;
+
+    /**
+     * The maximum number of byte ranges that a large download is fetched in at
+     * once, when the server supports range requests; 1 turns this off
+     */
+    public static final int MAX_SEGMENTS = 4;
+
+    /** The minimum size of each of those byte ranges */
+    public static final long MIN_SEGMENT_BYTES = 8 * 1024 * 1024;
+
     /** The minimum amount of progress that has to be done before the progress bar gets updated */
     public static final int MIN_PROGRESS_STEP = 65536;
 
@@ -97,6 +97,7 @@ public class DownloadInfo {
             info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
             info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
             info.mETag = getString(Constants.ETAG);
+            info.mSegments = getString(Constants.SEGMENTS);
             info.mUid = getInt(Constants.UID);
             info.mMediaScanned = getInt(Downloads.Impl.COLUMN_MEDIA_SCANNED);
             info.mDeleted = getInt(Downloads.Impl.COLUMN_DELETED) == 1;
@@ -232,6 +233,7 @@ public class DownloadInfo {
     public long mTotalBytes;
     public long mCurrentBytes;
     public String mETag;
+    public String mSegments;
     public int mUid;
     public int mMediaScanned;
     public boolean mDeleted;
@@ -585,6 +587,7 @@ public class DownloadInfo {
         pw.printPair("mNumFailed", mNumFailed);
         pw.printPair("mRetryAfter", mRetryAfter);
         pw.printPair("mETag", mETag);
+        pw.printPair("mSegments", mSegments);
         pw.printPair("mIsPublicApi", mIsPublicApi);
         pw.println();
 
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.text.TextUtils;
+
+/**
+ * Byte ranges of a download that is fetched over several connections at once,
+ * and how far each of them got. Persisted in the {@link Constants#SEGMENTS}
+ * column as comma-separated {@code start-current-end} triples, where
+ * {@code end} is exclusive.
+ */
+class DownloadSegments {
+
+    /**
+     * One byte range of a download. Only the thread transferring it moves it
+     * forward; any thread may read how far it got.
+     */
+    static class Segment {
+        final long mStart;
+        final long mEnd;
+        private volatile long mCurrent;
+
+        Segment(long start, long current, long end) {
+            mStart = start;
+            mCurrent = current;
+            mEnd = end;
+        }
+
+        /**
+         * Offset of the next byte to transfer.
+         */
+        public long getCurrent() {
+            return mCurrent;
+        }
+
+        public long getRemaining() {
+            return mEnd - mCurrent;
+        }
+
+        public boolean isComplete() {
+            return mCurrent >= mEnd;
+        }
+
+        /**
+         * Account for bytes written at {@link #getCurrent()}.
+         */
+        public void advance(long bytes) {
+            mCurrent += bytes;
+        }
+
+        @Override
+        public String toString() {
+            return mStart + "-" + mCurrent + "-" + mEnd;
+        }
+    }
+
+    private final Segment[] mSegments;
+
+    private DownloadSegments(Segment[] segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Split a download of the given length into at most {@code maxSegments}
+     * ranges of at least {@code minSegmentBytes} each.
+     */
+    public static DownloadSegments split(long totalBytes, int maxSegments, long minSegmentBytes) {
+        final int count = (int) Math.max(1,
+                Math.min(maxSegments, totalBytes / Math.max(1, minSegmentBytes)));
+        final Segment[] segments = new Segment[count];
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            final long end = (i == count - 1) ? totalBytes : totalBytes * (i + 1) / count;
+            segments[i] = new Segment(start, start, end);
+            start = end;
+        }
+        return new DownloadSegments(segments);
+    }
+
+    /**
+     * Parse segments as persisted by {@link #toString()}.
+     *
+     * @return the segments, or null if the value is missing, malformed, or
+     *         doesn't cover exactly the given length
+     */
+    public static DownloadSegments parse(String value, long totalBytes) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        final String[] ranges = value.split(",");
+        final Segment[] segments = new Segment[ranges.length];
+        long expectedStart = 0;
+        try {
+            for (int i = 0; i < ranges.length; i++) {
+                final String[] parts = ranges[i].split("-");
+                if (parts.length != 3) {
+                    return null;
+                }
+                final long start = Long.parseLong(parts[0]);
+                final long current = Long.parseLong(parts[1]);
+                final long end = Long.parseLong(parts[2]);
+                if (start != expectedStart || current < start || current > end || end < start) {
+                    return null;
+                }
+                segments[i] = new Segment(start, current, end);
+                expectedStart = end;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (expectedStart != totalBytes) {
+            return null;
+        }
+        return new DownloadSegments(segments);
+    }
+
+    public Segment[] getSegments() {
+        return mSegments;
+    }
+
+    /**
+     * Return the first segment that isn't complete, or null if all are.
+     */
+    public Segment getFirstIncomplete() {
+        for (Segment segment : mSegments) {
+            if (!segment.isComplete()) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the number of bytes transferred over all segments.
+     */
+    public long getCurrentBytes() {
+        long bytes = 0;
+        for (Segment segment : mSegments) {
+            bytes += segment.getCurrent() - segment.mStart;
+        }
+        return bytes;
+    }
+
+    public boolean isComplete() {
+        return getFirstIncomplete() == null;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Segment segment : mSegments) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(segment);
+        }
+        return builder.toString();
+    }
+}
@@ -62,12 +62,14 @@ import android.util.Log;
 import android.util.Pair;
 
 import com.android.providers.downloads.DownloadInfo.NetworkState;
+import com.google.common.annotations.VisibleForTesting;
 
 import libcore.io.IoUtils;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -76,6 +78,19 @@ import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.android.providers.downloadsplugin.DownloadsDRMUtils;
 /**
@@ -101,6 +116,30 @@ public class DownloadThread implements Runnable {
 
     private static final int DEFAULT_TIMEOUT = (int) (20 * SECOND_IN_MILLIS);
 
+    /**
+     * Writes progress of all downloads to disk and the database, off the
+     * threads transferring data.
+     */
+    private static final ExecutorService sProgressExecutor = buildProgressExecutor();
+
+    private static ExecutorService buildProgressExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Runs the connections of segmented downloads. This is separate from the
+     * pool that runs DownloadThreads, since that one may be full of the very
+     * downloads waiting on their segments.
+     */
+    private static final ExecutorService sSegmentExecutor = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    @VisibleForTesting
+    static long sMinSegmentBytes = Constants.MIN_SEGMENT_BYTES;
+
     /**
      *Add for download pause&resume
      *@{
@@ -151,6 +190,7 @@ public class DownloadThread implements Runnable {
         public long mTotalBytes;
         public long mCurrentBytes;
         public String mETag;
+        public String mSegments;
 
         public String mErrorMsg;
 
@@ -164,6 +204,7 @@ public class DownloadThread implements Runnable {
             mTotalBytes = info.mTotalBytes;
             mCurrentBytes = info.mCurrentBytes;
             mETag = info.mETag;
+            mSegments = info.mSegments;
         }
 
         private ContentValues buildContentValues() {
@@ -178,6 +219,7 @@ public class DownloadThread implements Runnable {
             values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, mTotalBytes);
             values.put(Downloads.Impl.COLUMN_CURRENT_BYTES, mCurrentBytes);
             values.put(Constants.ETAG, mETag);
+            values.put(Constants.SEGMENTS, mSegments);
 
             values.put(Downloads.Impl.COLUMN_LAST_MODIFICATION, mSystemFacade.currentTimeMillis());
             values.put(Downloads.Impl.COLUMN_ERROR_MSG, mErrorMsg);
@@ -217,6 +259,24 @@ public class DownloadThread implements Runnable {
     private long mLastUpdateBytes = 0;
     private long mLastUpdateTime = 0;
 
+    /** Progress update running on {@link #sProgressExecutor}, if any. */
+    private Future<?> mPendingProgress;
+    /** Set when a progress update fails; thrown from the transfer thread. */
+    private volatile StopRequestException mProgressFailure;
+
+    /**
+     * End of the file space claimed so far; only tracked while the length of
+     * the download isn't known.
+     */
+    private long mAllocatedBytes;
+
+    /** Byte ranges of the download when it is fetched over several connections. */
+    private DownloadSegments mSegments;
+    /** Set to tell the segments still running to give up. */
+    private volatile boolean mSegmentsStopped;
+    /** Connections of the running segments; guarded by itself. */
+    private final List<HttpURLConnection> mSegmentConns = new ArrayList<HttpURLConnection>();
+
     private int mNetworkType = ConnectivityManager.TYPE_NONE;
 
     /** Historical bytes/second speed of this download. */
@@ -416,6 +476,19 @@ public class DownloadThread implements Runnable {
     private void executeDownload() throws StopRequestException {
         final boolean resuming = mInfoDelta.mCurrentBytes != 0;
 
+        if (resuming && mInfoDelta.mSegments != null) {
+            mSegments = DownloadSegments.parse(mInfoDelta.mSegments, mInfoDelta.mTotalBytes);
+            if (mSegments == null) {
+                throw new StopRequestException(STATUS_CANNOT_RESUME, "Invalid segments");
+            }
+            if (mSegments.isComplete()) {
+                // Everything was written before we were stopped
+                mInfoDelta.mCurrentBytes = mInfoDelta.mTotalBytes;
+                mInfoDelta.mSegments = null;
+                return;
+            }
+        }
+
         URL url;
         try {
             // TODO: migrate URL sanity checking into client side of API
@@ -455,7 +528,17 @@ public class DownloadThread implements Runnable {
                                     STATUS_CANNOT_RESUME, "Expected partial, but received OK");
                         }
                         parseOkHeaders(conn);
-                        transferData(conn);
+                        if (shouldSegment(conn)) {
+                            mSegments = DownloadSegments.split(mInfoDelta.mTotalBytes,
+                                    Constants.MAX_SEGMENTS, sMinSegmentBytes);
+                            mInfoDelta.mSegments = mSegments.toString();
+                            transferSegments(conn, url);
+                        } else {
+                            // Forget about any segments of an earlier attempt
+                            mSegments = null;
+                            mInfoDelta.mSegments = null;
+                            transferData(conn);
+                        }
                         return;
 
                     case HTTP_PARTIAL:
@@ -463,7 +546,11 @@ public class DownloadThread implements Runnable {
                             throw new StopRequestException(
                                     STATUS_CANNOT_RESUME, "Expected OK, but received partial");
                         }
-                        transferData(conn);
+                        if (mSegments != null) {
+                            transferSegments(conn, url);
+                        } else {
+                            transferData(conn);
+                        }
                         return;
 
                     case HTTP_MOVED_PERM:
@@ -566,25 +653,7 @@ public class DownloadThread implements Runnable {
                     out = new ParcelFileDescriptor.AutoCloseOutputStream(outPfd);
                 }
 
-                // Pre-flight disk space requirements, when known
-                if (mInfoDelta.mTotalBytes > 0) {
-                    final long curSize = Os.fstat(outFd).st_size;
-                    final long newBytes = mInfoDelta.mTotalBytes - curSize;
-
-                    StorageUtils.ensureAvailableSpace(mContext, outFd, newBytes);
-
-                    try {
-                        // We found enough space, so claim it for ourselves
-                        Os.posix_fallocate(outFd, 0, mInfoDelta.mTotalBytes);
-                    } catch (ErrnoException e) {
-                        if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
-                            Log.w(TAG, "fallocate() not supported; falling back to ftruncate()");
-                            Os.ftruncate(outFd, mInfoDelta.mTotalBytes);
-                        } else {
-                            throw e;
-                        }
-                    }
-                }
+                reserveSpace(outFd);
 
                 // Move into place to begin writing
                 Os.lseek(outFd, mInfoDelta.mCurrentBytes, OsConstants.SEEK_SET);
@@ -597,7 +666,17 @@ public class DownloadThread implements Runnable {
 
             // Start streaming data, periodically watch for pause/cancel
             // commands and checking disk space as needed.
-            transferData(in, out, outFd);
+            if (out instanceof FileOutputStream) {
+                transferData(in, ((FileOutputStream) out).getChannel(), outFd);
+            } else {
+                transferData(in, out, outFd);
+            }
+
+            // The last progress update may have found the download deleted
+            final StopRequestException progressFailure = awaitProgress();
+            if (progressFailure != null) {
+                throw progressFailure;
+            }
 
             try {
                 if (out instanceof DrmOutputStream) {
@@ -608,6 +687,9 @@ public class DownloadThread implements Runnable {
             }
 
         } finally {
+            // Don't close the file under a progress update
+            awaitProgress();
+
             if (drmClient != null) {
                 drmClient.release();
             }
@@ -624,6 +706,486 @@ public class DownloadThread implements Runnable {
         }
     }
 
+    /**
+     * Pre-flight disk space requirements, when known.
+     */
+    private void reserveSpace(FileDescriptor outFd)
+            throws ErrnoException, IOException, StopRequestException {
+        if (mInfoDelta.mTotalBytes > 0) {
+            final long curSize = Os.fstat(outFd).st_size;
+            final long newBytes = mInfoDelta.mTotalBytes - curSize;
+
+            StorageUtils.ensureAvailableSpace(mContext, outFd, newBytes);
+
+            try {
+                // We found enough space, so claim it for ourselves
+                Os.posix_fallocate(outFd, 0, mInfoDelta.mTotalBytes);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
+                    Log.w(TAG, "fallocate() not supported; falling back to ftruncate()");
+                    Os.ftruncate(outFd, mInfoDelta.mTotalBytes);
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether to fetch the rest of the download over several connections at
+     * once: it must be large, and the server must support range requests and
+     * identify the content with an ETag, so that all ranges come from the same
+     * version of it.
+     */
+    private boolean shouldSegment(HttpURLConnection conn) {
+        return Constants.MAX_SEGMENTS > 1
+                && mInfoDelta.mTotalBytes >= 2 * sMinSegmentBytes
+                && mInfoDelta.mETag != null
+                && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"))
+                && !DownloadDrmHelper.isDrmConvertNeeded(mInfoDelta.mMimeType);
+    }
+
+    /**
+     * Transfer the remaining segments of the download at once, each over its
+     * own connection on {@link #sSegmentExecutor}, straight to its offset in the
+     * destination file. The given connection serves the first remaining
+     * segment. Meanwhile, watch for pause/cancel commands and report the
+     * progress of each segment through the database.
+     */
+    private void transferSegments(HttpURLConnection conn, final URL url)
+            throws StopRequestException {
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        ParcelFileDescriptor outPfd = null;
+        FileDescriptor outFd = null;
+        FileOutputStream out = null;
+        synchronized (mSegmentConns) {
+            mSegmentsStopped = false;
+            mSegmentConns.clear();
+        }
+        try {
+            try {
+                outPfd = mContext.getContentResolver()
+                        .openFileDescriptor(mInfo.getAllDownloadsUri(), "rw");
+                outFd = outPfd.getFileDescriptor();
+                out = new ParcelFileDescriptor.AutoCloseOutputStream(outPfd);
+                reserveSpace(outFd);
+            } catch (ErrnoException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+
+            final FileChannel channel = out.getChannel();
+            HttpURLConnection firstConn = conn;
+            for (final DownloadSegments.Segment segment : mSegments.getSegments()) {
+                if (segment.isComplete()) {
+                    continue;
+                }
+                final HttpURLConnection segmentConn = firstConn;
+                firstConn = null;
+                if (segmentConn != null) {
+                    addSegmentConnection(segmentConn);
+                }
+                futures.add(sSegmentExecutor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws StopRequestException {
+                        transferSegment(segment, segmentConn, url, channel);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                while (!awaitSegment(future)) {
+                    checkPausedOrCanceled();
+                    updateSegmentProgress(outFd);
+                }
+            }
+            updateSegmentProgress(outFd);
+
+            if (!mSegments.isComplete()) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Segments incomplete");
+            }
+
+            // All ranges are in place in the file; forget about them
+            mInfoDelta.mSegments = null;
+
+            final StopRequestException progressFailure = awaitProgress();
+            if (progressFailure != null) {
+                throw progressFailure;
+            }
+
+        } finally {
+            // Stop whatever is still running before letting go of the file
+            stopSegments();
+            awaitSegmentsStopped(futures);
+            awaitProgress();
+            if (mInfoDelta.mSegments != null) {
+                final long currentBytes = mSegments.getCurrentBytes();
+                if (currentBytes != mInfoDelta.mCurrentBytes) {
+                    mMadeProgress = true;
+                }
+                mInfoDelta.mCurrentBytes = currentBytes;
+                mInfoDelta.mSegments = mSegments.toString();
+            }
+
+            try {
+                if (outFd != null) outFd.sync();
+            } catch (IOException e) {
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+        }
+    }
+
+    /**
+     * Wait a little for a segment to finish.
+     *
+     * @return true if it finished, false if it is still running
+     * @throws StopRequestException if it failed
+     */
+    private boolean awaitSegment(Future<Void> future) throws StopRequestException {
+        try {
+            future.get(Constants.MAX_BUFFER_TIME, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Interrupted");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof StopRequestException) {
+                throw (StopRequestException) cause;
+            }
+            throw new StopRequestException(STATUS_UNKNOWN_ERROR, cause);
+        }
+    }
+
+    /**
+     * Remember the connection of a segment, so that stopping the segments can
+     * disconnect it.
+     *
+     * @return false if the segments were stopped already, in which case the
+     *         connection shouldn't be used
+     */
+    private boolean addSegmentConnection(HttpURLConnection conn) {
+        synchronized (mSegmentConns) {
+            if (mSegmentsStopped) {
+                return false;
+            }
+            mSegmentConns.add(conn);
+            return true;
+        }
+    }
+
+    /**
+     * Tell the segments to give up, and disconnect their connections so that
+     * reads blocked on a stalled server fail right away instead of waiting
+     * for the read timeout.
+     */
+    private void stopSegments() {
+        synchronized (mSegmentConns) {
+            mSegmentsStopped = true;
+            for (HttpURLConnection conn : mSegmentConns) {
+                conn.disconnect();
+            }
+            mSegmentConns.clear();
+        }
+    }
+
+    /**
+     * Wait for every segment to stop, however it ends.
+     */
+    private static void awaitSegmentsStopped(List<Future<Void>> futures) {
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The segments write to our file descriptor; don't lose track of them
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Account for what the segments transferred, and report it through the
+     * database if necessary.
+     */
+    private void updateSegmentProgress(FileDescriptor outFd) throws StopRequestException {
+        final long currentBytes = mSegments.getCurrentBytes();
+        if (currentBytes != mInfoDelta.mCurrentBytes) {
+            mMadeProgress = true;
+            mInfoDelta.mCurrentBytes = currentBytes;
+            mInfoDelta.mSegments = mSegments.toString();
+            updateProgress(outFd);
+        }
+    }
+
+    /**
+     * Transfer one segment of the download to its offset in the destination
+     * file, over the given connection or, if null, a new range request. Runs on
+     * {@link #sSegmentExecutor}.
+     */
+    private void transferSegment(DownloadSegments.Segment segment, HttpURLConnection conn,
+            URL url, FileChannel channel) throws StopRequestException {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        TrafficStats.setThreadStatsTag(TrafficStats.TAG_SYSTEM_DOWNLOAD);
+        TrafficStats.setThreadStatsUid(mInfo.mUid);
+
+        InputStream in = null;
+        try {
+            try {
+                if (conn == null) {
+                    conn = openSegment(segment, url);
+                }
+                in = conn.getInputStream();
+            } catch (IOException e) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, e);
+            }
+
+            final byte[] buffer = new byte[Constants.TRANSFER_BUFFER_SIZE];
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            while (!segment.isComplete() && !mSegmentsStopped) {
+                final int wanted = (int) Math.min(buffer.length, segment.getRemaining());
+                int filled = 0;
+                IOException readFailure = null;
+                try {
+                    while (filled < wanted && !mSegmentsStopped) {
+                        final int len = in.read(buffer, filled, wanted - filled);
+                        if (len == -1) {
+                            break;
+                        }
+                        filled += len;
+                    }
+                } catch (IOException e) {
+                    // Keep what we already received, so that resuming doesn't fetch it again
+                    readFailure = e;
+                }
+
+                if (filled > 0) {
+                    try {
+                        byteBuffer.clear();
+                        byteBuffer.limit(filled);
+                        final long offset = segment.getCurrent();
+                        while (byteBuffer.hasRemaining()) {
+                            channel.write(byteBuffer, offset + byteBuffer.position());
+                        }
+                    } catch (IOException e) {
+                        throw new StopRequestException(STATUS_FILE_ERROR, e);
+                    }
+                    segment.advance(filled);
+                }
+
+                if (readFailure != null) {
+                    throw new StopRequestException(STATUS_HTTP_DATA_ERROR,
+                            "Failed reading response: " + readFailure, readFailure);
+                }
+                if (filled < wanted && !mSegmentsStopped) {
+                    throw new StopRequestException(
+                            STATUS_HTTP_DATA_ERROR, "Segment ended early");
+                }
+            }
+        } finally {
+            IoUtils.closeQuietly(in);
+            if (conn != null) conn.disconnect();
+
+            TrafficStats.clearThreadStatsTag();
+            TrafficStats.clearThreadStatsUid();
+        }
+    }
+
+    /**
+     * Request the remaining bytes of a segment.
+     */
+    private HttpURLConnection openSegment(DownloadSegments.Segment segment, URL url)
+            throws IOException, StopRequestException {
+        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        boolean opened = false;
+        try {
+            if (!addSegmentConnection(conn)) {
+                throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Segments stopped");
+            }
+            conn.setInstanceFollowRedirects(false);
+            conn.setConnectTimeout(DEFAULT_TIMEOUT);
+            conn.setReadTimeout(DEFAULT_TIMEOUT);
+
+            addRequestHeaders(conn, false);
+            conn.addRequestProperty("If-Match", mInfoDelta.mETag);
+            addRangeHeader(conn, segment);
+
+            final int responseCode = conn.getResponseCode();
+            switch (responseCode) {
+                case HTTP_PARTIAL:
+                    opened = true;
+                    return conn;
+
+                case HTTP_OK:
+                    throw new StopRequestException(
+                            STATUS_CANNOT_RESUME, "Expected partial, but received OK");
+
+                case HTTP_PRECON_FAILED:
+                    throw new StopRequestException(
+                            STATUS_CANNOT_RESUME, "Precondition failed");
+
+                case HTTP_REQUESTED_RANGE_NOT_SATISFIABLE:
+                    throw new StopRequestException(
+                            STATUS_CANNOT_RESUME, "Requested range not satisfiable");
+
+                case HTTP_UNAVAILABLE:
+                case HTTP_INTERNAL_ERROR:
+                    throw new StopRequestException(responseCode, conn.getResponseMessage());
+
+                default:
+                    throw StopRequestException.throwUnhandledHttpError(
+                            responseCode, conn.getResponseMessage());
+            }
+        } finally {
+            if (!opened) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Transfer as much data as possible from the HTTP response to the
+     * destination file, through a plain file channel: the response is gathered
+     * into a large buffer, which is written at its offset in a single call, and
+     * when the length isn't known, file space is claimed in large extents ahead
+     * of the data instead of before every write.
+     */
+    private void transferData(InputStream in, FileChannel channel, FileDescriptor outFd)
+            throws StopRequestException {
+        final byte[] buffer = new byte[Constants.TRANSFER_BUFFER_SIZE];
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        final boolean streaming = mInfoDelta.mTotalBytes == -1;
+        try {
+            mAllocatedBytes = streaming ? Os.fstat(outFd).st_size : mInfoDelta.mTotalBytes;
+        } catch (ErrnoException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+
+        int filled = 0;
+        long fillStart = 0;
+        while (true) {
+            checkPausedOrCanceled();
+
+            int len = -1;
+            try {
+                len = in.read(buffer, filled, buffer.length - filled);
+            } catch (IOException e) {
+                // Keep what we already received, so that resuming doesn't fetch it again
+                if (filled > 0) {
+                    try {
+                        writeBuffer(channel, outFd, byteBuffer, filled);
+                    } catch (StopRequestException ignored) {
+                    }
+                }
+                throw new StopRequestException(
+                        STATUS_HTTP_DATA_ERROR, "Failed reading response: " + e, e);
+            }
+
+            if (len > 0) {
+                if (filled == 0) {
+                    fillStart = SystemClock.elapsedRealtime();
+                }
+                filled += len;
+            }
+
+            if (filled > 0 && (len == -1 || filled == buffer.length
+                    || SystemClock.elapsedRealtime() - fillStart >= Constants.MAX_BUFFER_TIME)) {
+                writeBuffer(channel, outFd, byteBuffer, filled);
+                filled = 0;
+            }
+
+            if (len == -1) {
+                break;
+            }
+        }
+
+        // Give back the part of the last extent that we didn't need
+        if (streaming && mAllocatedBytes > mInfoDelta.mCurrentBytes) {
+            try {
+                Os.ftruncate(outFd, mInfoDelta.mCurrentBytes);
+            } catch (ErrnoException e) {
+                throw new StopRequestException(STATUS_FILE_ERROR, e);
+            }
+        }
+
+        // Finished without error; verify length if known
+        if (mInfoDelta.mTotalBytes != -1 && mInfoDelta.mCurrentBytes != mInfoDelta.mTotalBytes) {
+            throw new StopRequestException(STATUS_HTTP_DATA_ERROR, "Content length mismatch");
+        }
+    }
+
+    /**
+     * Write the first {@code length} bytes of the buffer at the current end of
+     * the download, and account for them.
+     */
+    private void writeBuffer(FileChannel channel, FileDescriptor outFd, ByteBuffer buffer,
+            int length) throws StopRequestException {
+        try {
+            final long offset = mInfoDelta.mCurrentBytes;
+            ensureAllocated(outFd, offset + length);
+
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+
+            mMadeProgress = true;
+            mInfoDelta.mCurrentBytes += length;
+
+            updateProgress(outFd);
+
+        } catch (ErrnoException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        } catch (IOException e) {
+            throw new StopRequestException(STATUS_FILE_ERROR, e);
+        }
+    }
+
+    /**
+     * Make sure the file has space claimed up to the given offset, claiming
+     * another {@link Constants#ALLOCATION_EXTENT} beyond it if needed.
+     */
+    private void ensureAllocated(FileDescriptor outFd, long end)
+            throws ErrnoException, IOException, StopRequestException {
+        if (end <= mAllocatedBytes) {
+            return;
+        }
+
+        long newEnd = end + Constants.ALLOCATION_EXTENT;
+        try {
+            StorageUtils.ensureAvailableSpace(mContext, outFd, newEnd - mAllocatedBytes);
+        } catch (StopRequestException e) {
+            // Not enough room for a whole extent; maybe there is for the data itself
+            newEnd = end;
+            StorageUtils.ensureAvailableSpace(mContext, outFd, newEnd - mAllocatedBytes);
+        }
+
+        try {
+            Os.posix_fallocate(outFd, mAllocatedBytes, newEnd - mAllocatedBytes);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSYS || e.errno == OsConstants.ENOTSUP) {
+                Os.ftruncate(outFd, newEnd);
+            } else {
+                throw e;
+            }
+        }
+        mAllocatedBytes = newEnd;
+    }
+
     /**
      * Transfer as much data as possible from the HTTP response to the
      * destination file.
@@ -774,9 +1336,16 @@ public class DownloadThread implements Runnable {
     }
 
     /**
-     * Report download progress through the database if necessary.
+     * Report download progress through the database if necessary. The update
+     * itself runs on {@link #sProgressExecutor}, so that a slow fsync() doesn't
+     * hold up the transfer; a failure of it is thrown from a later call.
      */
-    private void updateProgress(FileDescriptor outFd) throws IOException, StopRequestException {
+    private void updateProgress(final FileDescriptor outFd) throws StopRequestException {
+        final StopRequestException failure = mProgressFailure;
+        if (failure != null) {
+            throw failure;
+        }
+
         final long now = SystemClock.elapsedRealtime();
         final long currentBytes = mInfoDelta.mCurrentBytes;
 
@@ -802,18 +1371,65 @@ public class DownloadThread implements Runnable {
 
         final long bytesDelta = currentBytes - mLastUpdateBytes;
         final long timeDelta = now - mLastUpdateTime;
-        if (bytesDelta > Constants.MIN_PROGRESS_STEP && timeDelta > Constants.MIN_PROGRESS_TIME) {
-            // fsync() to ensure that current progress has been flushed to disk,
-            // so we can always resume based on latest database information.
-            outFd.sync();
-
-            mInfoDelta.writeToDatabaseOrThrow();
+        if (bytesDelta > Constants.MIN_PROGRESS_STEP && timeDelta > Constants.MIN_PROGRESS_TIME
+                && (mPendingProgress == null || mPendingProgress.isDone())) {
+            // Take the values now, while nothing else changes them
+            final ContentValues values = mInfoDelta.buildContentValues();
+            mPendingProgress = sProgressExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // fsync() to ensure that current progress has been flushed to disk,
+                        // so we can always resume based on latest database information.
+                        outFd.sync();
+
+                        if (mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
+                                values, Downloads.Impl.COLUMN_DELETED + " == '0'", null) == 0) {
+                            mProgressFailure = new StopRequestException(
+                                    STATUS_CANCELED, "Download deleted or missing!");
+                        }
+                    } catch (IOException e) {
+                        mProgressFailure = new StopRequestException(STATUS_FILE_ERROR, e);
+                    } catch (RuntimeException e) {
+                        mProgressFailure = new StopRequestException(STATUS_UNKNOWN_ERROR, e);
+                    }
+                }
+            });
 
             mLastUpdateBytes = currentBytes;
             mLastUpdateTime = now;
         }
     }
 
+    /**
+     * Wait for the progress update in flight, if any.
+     *
+     * @return the failure of a progress update since the transfer started, or
+     *         null if there was none
+     */
+    private StopRequestException awaitProgress() {
+        final Future<?> pending = mPendingProgress;
+        mPendingProgress = null;
+        if (pending != null) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    pending.get();
+                    break;
+                } catch (InterruptedException e) {
+                    // The update touches our file descriptor; don't lose track of it
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    break;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mProgressFailure;
+    }
+
     /**
      * Process response headers from first server response. This derives its
      * filename, size, and ETag.
@@ -896,10 +1512,24 @@ public class DownloadThread implements Runnable {
             if (mInfoDelta.mETag != null) {
                 conn.addRequestProperty("If-Match", mInfoDelta.mETag);
             }
-            conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
+            final DownloadSegments.Segment segment =
+                    (mSegments != null) ? mSegments.getFirstIncomplete() : null;
+            if (segment != null) {
+                addRangeHeader(conn, segment);
+            } else {
+                conn.addRequestProperty("Range", "bytes=" + mInfoDelta.mCurrentBytes + "-");
+            }
         }
     }
 
+    /**
+     * Request the remaining bytes of the given segment.
+     */
+    private static void addRangeHeader(HttpURLConnection conn, DownloadSegments.Segment segment) {
+        conn.addRequestProperty("Range",
+                "bytes=" + segment.getCurrent() + "-" + (segment.mEnd - 1));
+    }
+
     private void logDebug(String msg) {
         Log.d(TAG, "[" + mId + "] " + msg);
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+/**
+ * This test exercises the {@link DownloadSegments} byte range bookkeeping.
+ */
+@SmallTest
+public class DownloadSegmentsTest extends AndroidTestCase {
+
+    public void testSplit() {
+        final DownloadSegments segments = DownloadSegments.split(1000, 4, 100);
+        assertEquals("0-0-250,250-250-500,500-500-750,750-750-1000", segments.toString());
+        assertEquals(0, segments.getCurrentBytes());
+        assertFalse(segments.isComplete());
+    }
+
+    public void testSplitRespectsMinimum() {
+        assertEquals(2, DownloadSegments.split(1000, 4, 400).getSegments().length);
+        assertEquals(1, DownloadSegments.split(1000, 4, 4000).getSegments().length);
+        assertEquals(1, DownloadSegments.split(1000, 1, 1).getSegments().length);
+
+        // Lengths that don't divide evenly differ by at most a byte
+        assertEquals("0-0-333,333-333-667,667-667-1001",
+                DownloadSegments.split(1001, 3, 1).toString());
+    }
+
+    public void testProgress() {
+        final DownloadSegments segments = DownloadSegments.split(1000, 2, 1);
+        final DownloadSegments.Segment first = segments.getSegments()[0];
+        final DownloadSegments.Segment second = segments.getSegments()[1];
+
+        second.advance(100);
+        assertEquals(600, second.getCurrent());
+        assertEquals(400, second.getRemaining());
+        assertEquals(100, segments.getCurrentBytes());
+        assertSame(first, segments.getFirstIncomplete());
+
+        first.advance(500);
+        assertTrue(first.isComplete());
+        assertSame(second, segments.getFirstIncomplete());
+        assertEquals("0-500-500,500-600-1000", segments.toString());
+
+        second.advance(400);
+        assertTrue(segments.isComplete());
+        assertNull(segments.getFirstIncomplete());
+        assertEquals(1000, segments.getCurrentBytes());
+    }
+
+    public void testParseRoundTrip() {
+        final DownloadSegments segments = DownloadSegments.parse("0-10-250,250-400-500", 500);
+        assertNotNull(segments);
+        assertEquals(2, segments.getSegments().length);
+        assertEquals(160, segments.getCurrentBytes());
+        assertEquals("0-10-250,250-400-500", segments.toString());
+    }
+
+    public void testParseInvalid() {
+        assertNull(DownloadSegments.parse(null, 500));
+        assertNull(DownloadSegments.parse("", 500));
+        assertNull(DownloadSegments.parse("kittens", 500));
+        assertNull(DownloadSegments.parse("0-10", 500));
+        assertNull(DownloadSegments.parse("0-x-500", 500));
+        // Gap, overlap, progress outside the range, and the wrong length
+        assertNull(DownloadSegments.parse("0-0-200,250-250-500", 500));
+        assertNull(DownloadSegments.parse("0-0-300,250-250-500", 500));
+        assertNull(DownloadSegments.parse("0-300-250,250-250-500", 500));
+        assertNull(DownloadSegments.parse("0-0-250,250-250-500", 600));
+    }
+}
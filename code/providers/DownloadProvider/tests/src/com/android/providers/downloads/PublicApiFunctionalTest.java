@@ -45,9 +45,11 @@ import android.net.Uri;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.provider.Downloads;
+import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.Suppress;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.google.mockwebserver.MockResponse;
 import com.google.mockwebserver.RecordedRequest;
@@ -66,6 +68,7 @@ import java.util.concurrent.TimeoutException;
 
 @LargeTest
 public class PublicApiFunctionalTest extends AbstractPublicApiTest {
+    private static final String TAG = "PublicApiFunctionalTest";
     private static final String REDIRECTED_PATH = "/other_path";
     private static final String ETAG = "my_etag";
 
@@ -151,6 +154,111 @@ public class PublicApiFunctionalTest extends AbstractPublicApiTest {
         assertEquals(length, download.getLongField(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
     }
 
+    @Suppress
+    public void testTransferSpeed() throws Exception {
+        // NOTE: suppressed since this takes several minutes to run
+        final long length = 2 * GB_IN_BYTES;
+        measureTransfer("with length", length, true);
+        measureTransfer("streaming", length, false);
+    }
+
+    /**
+     * Download a file of the given size from the local server, and log how
+     * long it took.
+     */
+    private void measureTransfer(String name, long length, boolean hasLength) throws Exception {
+        final MockResponse response = new MockResponse().setResponseCode(HTTP_OK)
+                .setBody(new FakeInputStream(length), length)
+                .setHeader("Content-type", "application/octet-stream")
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        if (!hasLength) {
+            response.removeHeader("Content-Length").setHeader("Connection", "close");
+        }
+        enqueueResponse(response);
+
+        final Download download = enqueueRequest(getRequest()
+                .setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS,
+                        "speed-" + hasLength + ".bin"));
+        final long start = SystemClock.elapsedRealtime();
+        download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL, 10 * DateUtils.MINUTE_IN_MILLIS);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(length, download.getLongField(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+        assertEquals(length, download.getLongField(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+        Log.i(TAG, name + ": " + length + " bytes in " + elapsed + "ms ("
+                + ((length * SECOND_IN_MILLIS / Math.max(1, elapsed)) >> 20) + " MB/s)");
+        mManager.remove(download.mId);
+    }
+
+    public void testSegmentedDownload() throws Exception {
+        final byte[] body = RangeDispatcher.buildBody(4 * 4096);
+        final RangeDispatcher dispatcher = new RangeDispatcher(body, ETAG, true);
+        mServer.setDispatcher(dispatcher);
+        DownloadThread.sMinSegmentBytes = 4096;
+        try {
+            final Download download = enqueueRequest(getRequest());
+            download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+            MoreAsserts.assertEquals(body, download.getRawContents());
+            assertEquals(body.length,
+                    download.getLongField(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+
+            // The first request serves the first segment, and each other one has its own
+            final List<String> ranges = dispatcher.getRanges();
+            assertEquals(4, ranges.size());
+            assertNull(ranges.get(0));
+            assertTrue(ranges.contains("bytes=4096-8191"));
+            assertTrue(ranges.contains("bytes=8192-12287"));
+            assertTrue(ranges.contains("bytes=12288-16383"));
+        } finally {
+            DownloadThread.sMinSegmentBytes = Constants.MIN_SEGMENT_BYTES;
+        }
+    }
+
+    public void testSegmentedDownloadResumes() throws Exception {
+        final byte[] body = RangeDispatcher.buildBody(4 * 4096);
+        final RangeDispatcher dispatcher = new RangeDispatcher(body, ETAG, true);
+        mServer.setDispatcher(dispatcher);
+        DownloadThread.sMinSegmentBytes = 4096;
+        try {
+            // Every connection drops part way through its segment
+            dispatcher.setTruncateBytes(1024);
+            final Download download = enqueueRequest(getRequest());
+            download.runUntilStatus(STATUS_PAUSED);
+            assertEquals(DownloadManager.PAUSED_WAITING_TO_RETRY, download.getReason());
+            final int firstAttempt = dispatcher.getRanges().size();
+
+            dispatcher.setTruncateBytes(0);
+            mSystemFacade.incrementTimeMillis(RETRY_DELAY_MILLIS);
+            download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+            MoreAsserts.assertEquals(body, download.getRawContents());
+
+            // Only the missing parts of each segment were requested again
+            final List<String> ranges = dispatcher.getRanges();
+            assertTrue(ranges.size() > firstAttempt);
+            for (String range : ranges.subList(firstAttempt, ranges.size())) {
+                assertNotNull(range);
+                assertFalse(range.equals("bytes=0-4095"));
+            }
+        } finally {
+            DownloadThread.sMinSegmentBytes = Constants.MIN_SEGMENT_BYTES;
+        }
+    }
+
+    public void testNoSegmentsWithoutRanges() throws Exception {
+        final byte[] body = RangeDispatcher.buildBody(4 * 4096);
+        final RangeDispatcher dispatcher = new RangeDispatcher(body, ETAG, false);
+        mServer.setDispatcher(dispatcher);
+        DownloadThread.sMinSegmentBytes = 4096;
+        try {
+            final Download download = enqueueRequest(getRequest());
+            download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+            MoreAsserts.assertEquals(body, download.getRawContents());
+            assertEquals(1, dispatcher.getRanges().size());
+        } finally {
+            DownloadThread.sMinSegmentBytes = Constants.MIN_SEGMENT_BYTES;
+        }
+    }
+
     private void checkUriContent(Uri uri) throws FileNotFoundException, IOException {
         InputStream inputStream = mResolver.openInputStream(uri);
         try {
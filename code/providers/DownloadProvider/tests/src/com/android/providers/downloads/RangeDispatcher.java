@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_PARTIAL;
+import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
+
+import com.google.mockwebserver.Dispatcher;
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.RecordedRequest;
+import com.google.mockwebserver.SocketPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serves a single body to any request, honoring byte range requests the way
+ * a static file server does.
+ */
+class RangeDispatcher extends Dispatcher {
+    private final byte[] mBody;
+    private final String mETag;
+    private final boolean mAcceptRanges;
+    private final List<String> mRanges = new ArrayList<String>();
+    private int mTruncateBytes;
+
+    RangeDispatcher(byte[] body, String etag, boolean acceptRanges) {
+        mBody = body;
+        mETag = etag;
+        mAcceptRanges = acceptRanges;
+    }
+
+    /**
+     * Build a body of the given length whose bytes depend on their offset.
+     */
+    static byte[] buildBody(int length) {
+        final byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return body;
+    }
+
+    /**
+     * Cut off every response after the given number of bytes, as if the
+     * connection dropped; 0 serves complete responses again.
+     */
+    synchronized void setTruncateBytes(int bytes) {
+        mTruncateBytes = bytes;
+    }
+
+    /**
+     * Return the Range headers received so far, null for requests without one.
+     */
+    synchronized List<String> getRanges() {
+        return new ArrayList<String>(mRanges);
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        final String range = getHeader(request, "Range");
+        mRanges.add(range);
+
+        final String ifMatch = getHeader(request, "If-Match");
+        if (ifMatch != null && !ifMatch.equals(mETag)) {
+            return new MockResponse().setResponseCode(HTTP_PRECON_FAILED)
+                    .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        }
+
+        int start = 0;
+        int end = mBody.length;
+        final boolean partial = mAcceptRanges && range != null;
+        if (partial) {
+            // Only "bytes=start-" and "bytes=start-last" are needed here
+            final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Integer.parseInt(bounds[1]) + 1;
+            }
+        }
+
+        int sent = end - start;
+        if (mTruncateBytes > 0) {
+            sent = Math.min(sent, mTruncateBytes);
+        }
+        final MockResponse response = new MockResponse()
+                .setResponseCode(partial ? HTTP_PARTIAL : HTTP_OK)
+                .setBody(Arrays.copyOfRange(mBody, start, start + sent))
+                .setHeader("Content-type", "application/octet-stream")
+                .setHeader("Content-length", end - start)
+                .setHeader("Etag", mETag)
+                .setSocketPolicy(SocketPolicy.DISCONNECT_AT_END);
+        if (mAcceptRanges) {
+            response.setHeader("Accept-Ranges", "bytes");
+        }
+        if (partial) {
+            response.setHeader("Content-range",
+                    "bytes " + start + "-" + (end - 1) + "/" + mBody.length);
+        }
+        return response;
+    }
+
+    private static String getHeader(RecordedRequest request, String header) {
+        final String prefix = header + ": ";
+        for (String line : request.getHeaders()) {
+            if (line.startsWith(prefix)) {
+                return line.substring(prefix.length());
+            }
+        }
+        return null;
+    }
+}